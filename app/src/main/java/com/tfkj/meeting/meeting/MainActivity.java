@@ -2,24 +2,35 @@ package com.tfkj.meeting.meeting;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.app.FragmentActivity;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.Button;
+import android.widget.EditText;
 import android.widget.Toast;
 
+import java.util.List;
+
 import com.tfkj.meeting.meeting.Test.TestActivity;
 import com.tfkj.meeting.meeting.device.DeviceListActivity;
 import com.tfkj.meeting.meeting.service.CService;
+import com.tfkj.meeting.meeting.service.MeshEvents;
+import com.tfkj.meeting.meeting.service.MeshService;
 import com.tfkj.meeting.meeting.service.SService;
 
 public class MainActivity extends AppCompatActivity {
@@ -28,6 +39,33 @@ public class MainActivity extends AppCompatActivity {
     private static final int REQUEST_ENABLE_BT = 3;
     private static final int REQUEST_LOCATION_PERMISSION_CODE = 4;
     private BluetoothAdapter mBluetoothAdapter = null;
+    private MeshService.MeshBinder mMeshBinder = null;
+    private boolean mBound = false;
+
+    private final MeshEvents.Listener mMeshListener = new MeshEvents.Listener() {
+        @Override
+        public void onStateChanged(int serverState, int clientState, int links) {
+            if (getSupportActionBar() != null) {
+                getSupportActionBar().setSubtitle(links > 0 ? getString(R.string.mesh_links, links) : null);
+            }
+        }
+
+        @Override
+        public void onMessages(List<MeshEvents.Message> messages, int dropped) {
+            if (!messages.isEmpty()) {
+                MeshEvents.Message last = messages.get(messages.size() - 1);
+                Log.d(TAG, "read " + messages.size() + " messages, last:" + new String(last.payload));
+            }
+            if (dropped > 0) {
+                Log.w(TAG, "dropped " + dropped + " messages");
+            }
+        }
+
+        @Override
+        public void onWritten(int frames, long bytes) {
+            Log.d(TAG, "wrote " + frames + " frames, " + bytes + " bytes");
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -54,33 +92,58 @@ public class MainActivity extends AppCompatActivity {
         if (!mBluetoothAdapter.isEnabled()) {
             Intent enableIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
             startActivityForResult(enableIntent, REQUEST_ENABLE_BT);
+        } else {
+            attachMesh();
         }
+        MeshEvents.getInstance().addListener(mMeshListener);
     }
 
-    @Override
-    public void onResume() {
-        super.onResume();
-        if (CService.getInstance().getState() == Constants.STATE_NONE) {
-            CService.getInstance().start();
-        }
-        if (SService.getInstance().getState() == Constants.STATE_NONE) {
-            SService.getInstance().start();
+    /**
+     * 链路由前台服务持有，Activity重建时只重新绑定，不会断开
+     */
+    private void attachMesh() {
+        if (mBound) {
+            return;
         }
+        MeshService.start(this);
+        mBound = bindService(new Intent(this, MeshService.class), mConnection, Context.BIND_AUTO_CREATE);
     }
 
     @Override
-    public void onDestroy() {
-        super.onDestroy();
-        CService.getInstance().stop();
-        SService.getInstance().stop();
+    public void onStop() {
+        super.onStop();
+        MeshEvents.getInstance().removeListener(mMeshListener);
+        if (mBound) {
+            unbindService(mConnection);
+            mBound = false;
+            mMeshBinder = null;
+        }
     }
 
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mMeshBinder = (MeshService.MeshBinder) service;
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mMeshBinder = null;
+        }
+    };
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.menu, menu);
         return super.onCreateOptionsMenu(menu);
     }
 
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        menu.findItem(R.id.routing_stage).setChecked(mMeshBinder != null && mMeshBinder.isRoutingStage());
+        return super.onPrepareOptionsMenu(menu);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
@@ -89,11 +152,48 @@ public class MainActivity extends AppCompatActivity {
                 Intent serverIntent = new Intent(this, DeviceListActivity.class);
                 startActivity(serverIntent);
 
+                break;
+            case R.id.meeting_key:
+                if (mMeshBinder != null) {
+                    showMeetingKeyDialog();
+                }
+                break;
+            case R.id.routing_stage:
+                if (mMeshBinder != null) {
+                    mMeshBinder.setRoutingStage(!item.isChecked());
+                }
+                break;
+            case R.id.leave_meeting:
+                if (mMeshBinder != null) {
+                    mMeshBinder.leave();
+                }
+                finish();
                 break;
         }
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * 输入会议口令，之后新建的链路生效
+     */
+    private void showMeetingKeyDialog() {
+        final EditText input = new EditText(this);
+        input.setHint(R.string.meeting_key_hint);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.meeting_key)
+                .setView(input)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (mMeshBinder != null) {
+                            mMeshBinder.setMeetingKey(input.getText().toString());
+                        }
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, @Nullable Intent data) {
         switch (requestCode) {
@@ -101,6 +201,7 @@ public class MainActivity extends AppCompatActivity {
                 // When the request to enable Bluetooth returns
                 if (resultCode == Activity.RESULT_OK) {
                     initBluetooth();
+                    attachMesh();
                 } else {
                     // User did not enable Bluetooth or an error occurred
                     Log.d(TAG, "BT not enabled");
@@ -130,8 +231,9 @@ public class MainActivity extends AppCompatActivity {
     public void onClickSend(View view) {
 
         String message = "MAIN";
-        CService.getInstance().writeToAllService(message.getBytes());
-        SService.getInstance().writeToAllClient(message.getBytes());
+        if (mMeshBinder != null) {
+            mMeshBinder.send(message.getBytes());
+        }
     }
 
     public void onClickToTest(View view) {
@@ -0,0 +1,15 @@
+package com.tfkj.meeting.meeting;
+
+import android.app.Application;
+
+import com.tfkj.meeting.meeting.service.MeshSession;
+
+public class MeetingApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        //在界面创建之前恢复上次的会议
+        MeshSession.getInstance().restore(this);
+    }
+}
@@ -4,8 +4,7 @@ import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
 
 import com.tfkj.meeting.meeting.R;
-import com.tfkj.meeting.meeting.service.CService;
-import com.tfkj.meeting.meeting.service.SService;
+import com.tfkj.meeting.meeting.service.MeshRouter;
 
 public class TestActivity extends AppCompatActivity {
 
@@ -14,7 +13,6 @@ public class TestActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_test);
         String message = "TEST";
-        CService.getInstance().writeToAllService(message.getBytes());
-        SService.getInstance().writeToAllClient(message.getBytes());
+        MeshRouter.getInstance().sendMessage(message.getBytes());
     }
 }
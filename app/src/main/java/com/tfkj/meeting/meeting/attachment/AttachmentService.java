@@ -0,0 +1,275 @@
+package com.tfkj.meeting.meeting.attachment;
+
+import android.util.Log;
+
+import com.tfkj.meeting.meeting.service.Frame;
+import com.tfkj.meeting.meeting.service.FrameHandler;
+import com.tfkj.meeting.meeting.service.Link;
+import com.tfkj.meeting.meeting.service.MeshConfig;
+import com.tfkj.meeting.meeting.service.MeshRouter;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 把ChunkFetcher接入网络：清单全网转发，分块的请求和数据只在链路内传输，逐跳拉取。
+ * 链路断开后不再向它发送，从它拉取的分块改向其他邻居请求。
+ *
+ * <pre>
+ * request := count:2 hash:32*count
+ * chunk   := hash:32 data
+ * </pre>
+ */
+public class AttachmentService {
+    private static final String TAG = "AttachmentService";
+
+    private static final long EXPIRE_INTERVAL_MS = 1000;
+
+    /**
+     * 附件收齐通知，在AttachmentService的线程中调用
+     */
+    public interface Listener {
+        void onAttachment(Manifest manifest, byte[] data);
+    }
+
+    private final ChunkStore store;
+    private final ChunkFetcher fetcher;
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    // 邻居地址 -> 链路，分块只在链路内收发
+    private final ConcurrentHashMap<String, Link> links = new ConcurrentHashMap<>();
+    // 发送和通知都在这个线程中进行，不在ChunkFetcher的锁内写链路
+    private ScheduledExecutorService scheduler;
+
+    private volatile static AttachmentService instance = null;
+
+    private AttachmentService() {
+        store = new ChunkStore(MeshConfig.getInstance().getAttachmentCacheBytes());
+        fetcher = new ChunkFetcher(store, new ChunkFetcher.Callback() {
+            @Override
+            public void request(final String link, List<String> hashes) {
+                final byte[] payload = encodeRequest(hashes);
+                execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Frame frame = Frame.createLocal(Frame.TYPE_CHUNK_REQUEST, payload);
+                        if (link == null) {
+                            MeshRouter.getInstance().sendToNeighbors(frame, null);
+                        } else {
+                            send(link, frame);
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void sendChunk(final String link, final String hash, final byte[] data) {
+                execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        send(link, Frame.createLocal(Frame.TYPE_CHUNK_DATA, encodeChunk(hash, data)));
+                    }
+                });
+            }
+
+            @Override
+            public void onComplete(final Manifest manifest, final byte[] data) {
+                execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (Listener listener : listeners) {
+                            listener.onAttachment(manifest, data);
+                        }
+                    }
+                });
+            }
+        });
+
+        MeshRouter router = MeshRouter.getInstance();
+        router.register(Frame.TYPE_ATTACHMENT_MANIFEST, true, new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame, Link from) {
+                links.put(from.getAddress(), from);
+                try {
+                    fetcher.onManifest(Manifest.decode(frame.getPayload()), from.getAddress(),
+                            System.currentTimeMillis());
+                } catch (IOException e) {
+                    Log.e(TAG, "bad manifest from " + frame.getOrigin(), e);
+                }
+            }
+        });
+        router.register(Frame.TYPE_CHUNK_REQUEST, false, new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame, Link from) {
+                links.put(from.getAddress(), from);
+                try {
+                    fetcher.onRequest(from.getAddress(), decodeRequest(frame.getPayload()),
+                            System.currentTimeMillis());
+                } catch (IOException e) {
+                    Log.e(TAG, "bad chunk request from " + from.getAddress(), e);
+                }
+            }
+        });
+        router.register(Frame.TYPE_CHUNK_DATA, false, new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame, Link from) {
+                byte[] payload = frame.getPayload();
+                if (payload.length < Manifest.HASH_LENGTH) {
+                    Log.w(TAG, "short chunk from " + from.getAddress());
+                    return;
+                }
+                String hash = chunkHash(payload);
+                if (!fetcher.onChunk(from.getAddress(), hash, chunkData(payload), System.currentTimeMillis())) {
+                    Log.w(TAG, "chunk " + hash + " from " + from.getAddress() + " failed verification");
+                }
+            }
+        });
+        router.addLinkListener(new MeshRouter.LinkListener() {
+            @Override
+            public void onLinkUp(Link link) {
+                links.put(link.getAddress(), link);
+            }
+
+            @Override
+            public void onLinkDown(Link link) {
+                //同一地址可能已经重连，只移除断开的这条
+                if (links.remove(link.getAddress(), link)) {
+                    fetcher.onLinkDown(link.getAddress(), System.currentTimeMillis());
+                }
+            }
+        });
+    }
+
+    public static AttachmentService getInstance() {
+        if (instance == null) {
+            synchronized (AttachmentService.class) {
+                if (instance == null) {
+                    instance = new AttachmentService();
+                }
+            }
+        }
+        return instance;
+    }
+
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    fetcher.expire(System.currentTimeMillis());
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "expire failed", e);
+                }
+            }
+        }, EXPIRE_INTERVAL_MS, EXPIRE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdownNow();
+        scheduler = null;
+        links.clear();
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * 分享附件：分块放入本机缓存，全网广播清单，其他节点按需拉取
+     *
+     * @throws IllegalArgumentException 附件过大，清单超过一帧
+     */
+    public Manifest share(String name, byte[] data) {
+        List<byte[]> chunks = new ArrayList<>();
+        Manifest manifest = Manifest.of(name, data, chunks);
+        fetcher.addLocal(manifest, chunks);
+        MeshRouter.getInstance().broadcast(Frame.createLocal(Frame.TYPE_ATTACHMENT_MANIFEST, manifest.encode()));
+        return manifest;
+    }
+
+    /**
+     * @return 缓存命中率、节省的字节数和缓存占用
+     */
+    public String getReport() {
+        return fetcher.getReport();
+    }
+
+    private synchronized void execute(Runnable task) {
+        if (scheduler == null) {
+            Log.w(TAG, "attachment task dropped, service stopped");
+            return;
+        }
+        scheduler.execute(task);
+    }
+
+    private void send(String address, Frame frame) {
+        Link link = links.get(address);
+        if (link == null) {
+            Log.w(TAG, "no link to " + address);
+            return;
+        }
+        link.send(frame);
+    }
+
+    static byte[] encodeRequest(List<String> hashes) {
+        ByteBuffer buffer = ByteBuffer.allocate(2 + hashes.size() * Manifest.HASH_LENGTH);
+        buffer.putShort((short) hashes.size());
+        for (String hash : hashes) {
+            buffer.put(Manifest.fromHex(hash));
+        }
+        return buffer.array();
+    }
+
+    static List<String> decodeRequest(byte[] payload) throws IOException {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+            int count = buffer.getShort() & 0xFFFF;
+            if (buffer.remaining() != count * Manifest.HASH_LENGTH) {
+                throw new IOException("bad chunk request: " + count + " hashes in " + payload.length + " bytes");
+            }
+            List<String> hashes = new ArrayList<>(count);
+            byte[] hash = new byte[Manifest.HASH_LENGTH];
+            for (int i = 0; i < count; i++) {
+                buffer.get(hash);
+                hashes.add(Manifest.toHex(hash));
+            }
+            return hashes;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("truncated chunk request");
+        }
+    }
+
+    static byte[] encodeChunk(String hash, byte[] data) {
+        return ByteBuffer.allocate(Manifest.HASH_LENGTH + data.length).put(Manifest.fromHex(hash)).put(data).array();
+    }
+
+    static String chunkHash(byte[] payload) {
+        byte[] hash = new byte[Manifest.HASH_LENGTH];
+        System.arraycopy(payload, 0, hash, 0, Manifest.HASH_LENGTH);
+        return Manifest.toHex(hash);
+    }
+
+    static byte[] chunkData(byte[] payload) {
+        byte[] data = new byte[payload.length - Manifest.HASH_LENGTH];
+        System.arraycopy(payload, Manifest.HASH_LENGTH, data, 0, data.length);
+        return data;
+    }
+}
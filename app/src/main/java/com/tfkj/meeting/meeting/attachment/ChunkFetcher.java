@@ -0,0 +1,343 @@
+package com.tfkj.meeting.meeting.attachment;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 一个节点上按清单拉取分块的状态。
+ *
+ * 收到清单后只请求缓存里没有的分块，发给转来清单的邻居：它离发起节点更近，已有或正在拉取这些分块。
+ * 邻居请求本机还没有的分块时先记下，收到后再发给它，所以每个分块在每条链路上最多传一次；
+ * 清单先转发再交给本机处理，邻居的请求可能比本机的拉取先到，所以记下的请求保留REQUEST_TIMEOUT_MS。
+ * 请求超时后先向同一邻居重新请求（多半只是丢了一帧），再超时改为向所有邻居请求，超过MAX_RETRIES次放弃。
+ * 转来清单的邻居断开时，在途的分块立即向所有邻居请求，之后改向最先回复分块的邻居请求，它离有这些分块的节点最近。
+ * 不创建线程也不直接收发：请求、发送分块和完成通知都通过Callback，时间由调用方传入。
+ */
+public class ChunkFetcher {
+
+    // 每个附件同时在途的分块数
+    static final int WINDOW = 8;
+    static final long REQUEST_TIMEOUT_MS = 5000;
+    static final int MAX_RETRIES = 3;
+
+    /**
+     * 所有回调都在持有ChunkFetcher锁时调用，不能阻塞
+     */
+    public interface Callback {
+        /**
+         * @param link 邻居地址，为null时发给所有邻居
+         */
+        void request(String link, List<String> hashes);
+
+        void sendChunk(String link, String hash, byte[] data);
+
+        void onComplete(Manifest manifest, byte[] data);
+    }
+
+    private static class Transfer {
+        final Manifest manifest;
+        // 请求发往的邻居，断开后为null，直到有邻居回复分块
+        String source;
+        // 还没有请求的分块
+        final LinkedHashSet<String> missing = new LinkedHashSet<>();
+        // 已请求的分块 -> 超时时间
+        final LinkedHashMap<String, Long> inflight = new LinkedHashMap<>();
+        int retries;
+
+        Transfer(Manifest manifest, String source) {
+            this.manifest = manifest;
+            this.source = source;
+        }
+    }
+
+    private final ChunkStore store;
+    private final Callback callback;
+    private final HashMap<String, Transfer> transfers = new HashMap<>();
+    // 本机还没有、邻居已经请求的分块 -> 邻居地址 -> 过期时间
+    private final HashMap<String, HashMap<String, Long>> waiting = new HashMap<>();
+
+    private long hits;
+    private long misses;
+    private long bytesSaved;
+    private long bytesFetched;
+    private long bytesServed;
+    private long bytesDuplicate;
+    private long completed;
+    private long abandoned;
+
+    public ChunkFetcher(ChunkStore store, Callback callback) {
+        this.store = store;
+        this.callback = callback;
+    }
+
+    /**
+     * 本机分享的附件，分块直接放入缓存
+     */
+    public synchronized void addLocal(Manifest manifest, List<byte[]> chunks) {
+        for (int i = 0; i < chunks.size(); i++) {
+            store.put(manifest.chunks.get(i), chunks.get(i));
+        }
+    }
+
+    /**
+     * 收到清单
+     *
+     * @param from 转来清单的邻居
+     */
+    public synchronized void onManifest(Manifest manifest, String from, long now) {
+        if (transfers.containsKey(manifest.id)) {
+            return;
+        }
+        Transfer transfer = new Transfer(manifest, from);
+        Set<String> counted = new HashSet<>();
+        for (int i = 0; i < manifest.chunks.size(); i++) {
+            String hash = manifest.chunks.get(i);
+            if (!counted.add(hash)) {
+                continue;
+            }
+            if (store.contains(hash)) {
+                hits++;
+                bytesSaved += manifest.chunkLength(i);
+            } else {
+                misses++;
+                transfer.missing.add(hash);
+            }
+        }
+        if (transfer.missing.isEmpty()) {
+            complete(transfer, now);
+            return;
+        }
+        if (manifest.size > store.getMaxBytes()) {
+            //缓存放不下，收到后面的分块时前面的已被淘汰
+            abandoned++;
+            return;
+        }
+        transfers.put(manifest.id, transfer);
+        pump(transfer, now);
+    }
+
+    /**
+     * 邻居请求分块：有的立即发送，没有的在REQUEST_TIMEOUT_MS内收到后发送
+     */
+    public synchronized void onRequest(String from, List<String> hashes, long now) {
+        for (String hash : hashes) {
+            byte[] data = store.get(hash);
+            if (data != null) {
+                bytesServed += data.length;
+                callback.sendChunk(from, hash, data);
+            } else {
+                HashMap<String, Long> links = waiting.get(hash);
+                if (links == null) {
+                    links = new HashMap<>();
+                    waiting.put(hash, links);
+                }
+                links.put(from, now + REQUEST_TIMEOUT_MS);
+            }
+        }
+    }
+
+    /**
+     * 收到分块
+     *
+     * @return 哈希不符时返回false，分块被丢弃
+     */
+    public synchronized boolean onChunk(String from, String hash, byte[] data, long now) {
+        if (!Manifest.hash(data).equals(hash)) {
+            return false;
+        }
+        if (isFetching(hash)) {
+            bytesFetched += data.length;
+        } else {
+            //向所有邻居重新请求时多个邻居都会回复
+            bytesDuplicate += data.length;
+        }
+        store.put(hash, data);
+        HashMap<String, Long> links = waiting.remove(hash);
+        if (links != null) {
+            for (String link : links.keySet()) {
+                bytesServed += data.length;
+                callback.sendChunk(link, hash, data);
+            }
+        }
+        List<Transfer> ready = new ArrayList<>();
+        for (Transfer transfer : transfers.values()) {
+            if (transfer.inflight.remove(hash) != null | transfer.missing.remove(hash)) {
+                if (transfer.source == null) {
+                    transfer.source = from;
+                }
+                if (transfer.inflight.isEmpty() && transfer.missing.isEmpty()) {
+                    ready.add(transfer);
+                } else {
+                    pump(transfer, now);
+                }
+            }
+        }
+        for (Transfer transfer : ready) {
+            transfers.remove(transfer.manifest.id);
+            complete(transfer, now);
+        }
+        return true;
+    }
+
+    /**
+     * 邻居断开：丢弃它的请求，从它拉取的分块改向所有邻居请求
+     */
+    public synchronized void onLinkDown(String link, long now) {
+        Iterator<HashMap<String, Long>> waits = waiting.values().iterator();
+        while (waits.hasNext()) {
+            HashMap<String, Long> links = waits.next();
+            links.remove(link);
+            if (links.isEmpty()) {
+                waits.remove();
+            }
+        }
+        for (Transfer transfer : transfers.values()) {
+            if (!link.equals(transfer.source)) {
+                continue;
+            }
+            transfer.source = null;
+            if (transfer.inflight.isEmpty()) {
+                continue;
+            }
+            List<String> hashes = new ArrayList<>(transfer.inflight.keySet());
+            for (String hash : hashes) {
+                transfer.inflight.put(hash, now + REQUEST_TIMEOUT_MS);
+            }
+            callback.request(null, hashes);
+        }
+    }
+
+    /**
+     * 定期调用，重新请求超时的分块，丢弃过期的邻居请求
+     */
+    public synchronized void expire(long now) {
+        Iterator<HashMap<String, Long>> waits = waiting.values().iterator();
+        while (waits.hasNext()) {
+            HashMap<String, Long> links = waits.next();
+            Iterator<Long> deadlines = links.values().iterator();
+            while (deadlines.hasNext()) {
+                if (deadlines.next() <= now) {
+                    deadlines.remove();
+                }
+            }
+            if (links.isEmpty()) {
+                waits.remove();
+            }
+        }
+        Iterator<Transfer> it = transfers.values().iterator();
+        while (it.hasNext()) {
+            Transfer transfer = it.next();
+            List<String> late = new ArrayList<>();
+            for (Map.Entry<String, Long> entry : transfer.inflight.entrySet()) {
+                if (entry.getValue() <= now) {
+                    late.add(entry.getKey());
+                }
+            }
+            if (late.isEmpty()) {
+                continue;
+            }
+            if (++transfer.retries > MAX_RETRIES) {
+                it.remove();
+                abandoned++;
+                continue;
+            }
+            for (String hash : late) {
+                transfer.inflight.put(hash, now + REQUEST_TIMEOUT_MS);
+            }
+            callback.request(transfer.retries == 1 ? transfer.source : null, late);
+        }
+    }
+
+    private void pump(Transfer transfer, long now) {
+        List<String> batch = new ArrayList<>();
+        Iterator<String> it = transfer.missing.iterator();
+        while (transfer.inflight.size() < WINDOW && it.hasNext()) {
+            String hash = it.next();
+            it.remove();
+            transfer.inflight.put(hash, now + REQUEST_TIMEOUT_MS);
+            batch.add(hash);
+        }
+        if (!batch.isEmpty()) {
+            callback.request(transfer.source, batch);
+        }
+    }
+
+    private void complete(Transfer transfer, long now) {
+        Manifest manifest = transfer.manifest;
+        byte[] data = new byte[(int) manifest.size];
+        for (int i = 0; i < manifest.chunks.size(); i++) {
+            byte[] chunk = store.get(manifest.chunks.get(i));
+            if (chunk == null) {
+                //拉取期间被淘汰，重新拉取
+                transfer.missing.add(manifest.chunks.get(i));
+            } else {
+                System.arraycopy(chunk, 0, data, i * Manifest.CHUNK_SIZE, chunk.length);
+            }
+        }
+        if (!transfer.missing.isEmpty()) {
+            transfers.put(manifest.id, transfer);
+            pump(transfer, now);
+            return;
+        }
+        completed++;
+        callback.onComplete(manifest, data);
+    }
+
+    private boolean isFetching(String hash) {
+        for (Transfer transfer : transfers.values()) {
+            if (transfer.inflight.containsKey(hash) || transfer.missing.contains(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized boolean isFetching() {
+        return !transfers.isEmpty();
+    }
+
+    /**
+     * @return 收到清单时已在缓存中的分块比例
+     */
+    public synchronized double getHitRate() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    /**
+     * @return 因分块已在缓存中而不用传输的字节数
+     */
+    public synchronized long getBytesSaved() {
+        return bytesSaved;
+    }
+
+    public synchronized long getBytesFetched() {
+        return bytesFetched;
+    }
+
+    public synchronized long getBytesServed() {
+        return bytesServed;
+    }
+
+    /**
+     * @return 收到的不需要的分块字节数，只在向所有邻居重新请求时出现
+     */
+    public synchronized long getBytesDuplicate() {
+        return bytesDuplicate;
+    }
+
+    public synchronized String getReport() {
+        return String.format("chunks hit %d missed %d (%.0f%%), saved %dKB, fetched %dKB, served %dKB, "
+                        + "duplicate %dKB; attachments completed %d abandoned %d in progress %d; "
+                        + "cache %d chunks %dKB/%dKB evicted %d",
+                hits, misses, getHitRate() * 100, bytesSaved / 1024, bytesFetched / 1024, bytesServed / 1024,
+                bytesDuplicate / 1024, completed, abandoned, transfers.size(), store.size(),
+                store.getBytes() / 1024, store.getMaxBytes() / 1024, store.getEvicted());
+    }
+}
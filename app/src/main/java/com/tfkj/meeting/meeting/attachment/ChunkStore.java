@@ -0,0 +1,82 @@
+package com.tfkj.meeting.meeting.attachment;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 按哈希保存分块的本地缓存，总字节数超过上限时淘汰最久未使用的分块
+ */
+public class ChunkStore {
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, byte[]> chunks = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long evicted;
+
+    public ChunkStore(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * 只判断，不影响淘汰顺序
+     */
+    public synchronized boolean contains(String hash) {
+        return chunks.containsKey(hash);
+    }
+
+    /**
+     * @return 分块数据，调用方不能修改；没有时返回null
+     */
+    public synchronized byte[] get(String hash) {
+        return chunks.get(hash);
+    }
+
+    /**
+     * 保存分块，调用方应已校验哈希
+     *
+     * @return 新加入时返回true
+     */
+    public synchronized boolean put(String hash, byte[] data) {
+        if (data.length > maxBytes) {
+            return false;
+        }
+        if (chunks.containsKey(hash)) {
+            return false;
+        }
+        chunks.put(hash, data);
+        bytes += data.length;
+        Iterator<Map.Entry<String, byte[]>> it = chunks.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, byte[]> oldest = it.next();
+            bytes -= oldest.getValue().length;
+            evicted++;
+            it.remove();
+        }
+        return true;
+    }
+
+    public synchronized int size() {
+        return chunks.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return 累计淘汰的分块数
+     */
+    public synchronized long getEvicted() {
+        return evicted;
+    }
+
+    public synchronized void clear() {
+        chunks.clear();
+        bytes = 0;
+    }
+}
@@ -0,0 +1,149 @@
+package com.tfkj.meeting.meeting.attachment;
+
+import com.tfkj.meeting.meeting.service.Frame;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 附件的清单：名称、长度和按顺序排列的分块哈希。
+ *
+ * 附件按CHUNK_SIZE切成分块，每块以SHA-256寻址；内容相同的分块在任何附件中哈希都相同，
+ * 所以重复分享的附件、只改了几页的文档只需要传输缓存里没有的分块。
+ * 清单ID是长度和所有分块哈希的SHA-256，内容相同的附件ID相同。
+ *
+ * <pre>
+ * manifest := nameLength:2 name:UTF-8 size:8 count:4 hash:32*count
+ * </pre>
+ */
+public class Manifest {
+
+    public static final int CHUNK_SIZE = 16 * 1024;
+    public static final int HASH_LENGTH = 32;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public final String id;
+    public final String name;
+    public final long size;
+    // 分块的十六进制哈希，按在附件中的顺序
+    public final List<String> chunks;
+
+    private Manifest(String name, long size, List<String> chunks) {
+        this.name = name;
+        this.size = size;
+        this.chunks = Collections.unmodifiableList(chunks);
+        this.id = computeId(size, chunks);
+    }
+
+    /**
+     * 切分附件
+     *
+     * @param out 按顺序收到切出的分块，可为null
+     * @throws IllegalArgumentException 清单超过一帧的长度
+     */
+    public static Manifest of(String name, byte[] data, List<byte[]> out) {
+        List<String> chunks = new ArrayList<>();
+        for (int offset = 0; offset < data.length; offset += CHUNK_SIZE) {
+            int length = Math.min(CHUNK_SIZE, data.length - offset);
+            byte[] chunk = new byte[length];
+            System.arraycopy(data, offset, chunk, 0, length);
+            chunks.add(hash(chunk));
+            if (out != null) {
+                out.add(chunk);
+            }
+        }
+        Manifest manifest = new Manifest(name, data.length, chunks);
+        if (manifest.encodedLength() > Frame.MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("attachment too large: " + data.length);
+        }
+        return manifest;
+    }
+
+    /**
+     * @return 第index块的长度，最后一块可能不满
+     */
+    public int chunkLength(int index) {
+        return (int) Math.min(CHUNK_SIZE, size - (long) index * CHUNK_SIZE);
+    }
+
+    public static String hash(byte[] data) {
+        return toHex(digest().digest(data));
+    }
+
+    public byte[] encode() {
+        byte[] name = this.name.getBytes(UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(encodedLength());
+        buffer.putShort((short) name.length).put(name).putLong(size).putInt(chunks.size());
+        for (String chunk : chunks) {
+            buffer.put(fromHex(chunk));
+        }
+        return buffer.array();
+    }
+
+    public static Manifest decode(byte[] payload) throws IOException {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+            byte[] name = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(name);
+            long size = buffer.getLong();
+            int count = buffer.getInt();
+            if (size < 0 || count != (size + CHUNK_SIZE - 1) / CHUNK_SIZE
+                    || buffer.remaining() != count * HASH_LENGTH) {
+                throw new IOException("bad manifest: size " + size + ", " + count + " chunks");
+            }
+            List<String> chunks = new ArrayList<>(count);
+            byte[] hash = new byte[HASH_LENGTH];
+            for (int i = 0; i < count; i++) {
+                buffer.get(hash);
+                chunks.add(toHex(hash));
+            }
+            return new Manifest(new String(name, UTF_8), size, chunks);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("truncated manifest");
+        }
+    }
+
+    private int encodedLength() {
+        return 2 + name.getBytes(UTF_8).length + 8 + 4 + chunks.size() * HASH_LENGTH;
+    }
+
+    private static String computeId(long size, List<String> chunks) {
+        MessageDigest digest = digest();
+        digest.update(ByteBuffer.allocate(8).putLong(size).array());
+        for (String chunk : chunks) {
+            digest.update(fromHex(chunk));
+        }
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
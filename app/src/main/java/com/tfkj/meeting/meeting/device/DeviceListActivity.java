@@ -24,17 +24,19 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.View;
 import android.view.Window;
-import android.widget.AdapterView;
-import android.widget.ArrayAdapter;
 import android.widget.Button;
-import android.widget.ListView;
 import android.widget.TextView;
 
 import com.tfkj.meeting.meeting.R;
 import com.tfkj.meeting.meeting.service.CService;
+import com.tfkj.meeting.meeting.service.MeshConfig;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -43,8 +45,12 @@ import java.util.Set;
 public class DeviceListActivity extends Activity {
 
     private static final String TAG = "DeviceListActivity";
+    // 链路状态刷新间隔
+    private static final long LINK_REFRESH_INTERVAL_MS = 100;
     private BluetoothAdapter mBtAdapter;
-    private ArrayAdapter<String> mNewDevicesArrayAdapter;
+    private SelectDeviceAdapter mPairedDevicesAdapter;
+    private NewDevicesAdapter mNewDevicesAdapter;
+    private DiscoveredDeviceStore mDiscoveredDeviceStore;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -63,19 +69,17 @@ public class DeviceListActivity extends Activity {
             }
         });
 
-        final SelectDeviceArrayAdapter pairedDevicesArrayAdapter =
-                new SelectDeviceArrayAdapter(this, R.layout.device_name, new ArrayList<SelectDeviceBean>());
-        mNewDevicesArrayAdapter = new ArrayAdapter<String>(this, R.layout.device_name);
+        mPairedDevicesAdapter = new SelectDeviceAdapter(new ArrayList<SelectDeviceBean>());
+        mNewDevicesAdapter = new NewDevicesAdapter(mNewDeviceClickListener);
+        mDiscoveredDeviceStore = new DiscoveredDeviceStore(mNewDevicesAdapter);
 
-        mNewDevicesArrayAdapter = new ArrayAdapter<String>(this, R.layout.device_name);
+        RecyclerView pairedListView = (RecyclerView) findViewById(R.id.paired_devices);
+        pairedListView.setLayoutManager(new LinearLayoutManager(this));
+        pairedListView.setAdapter(mPairedDevicesAdapter);
 
-        ListView pairedListView = (ListView) findViewById(R.id.paired_devices);
-        pairedListView.setAdapter(pairedDevicesArrayAdapter);
-        pairedListView.setOnItemClickListener(mDeviceClickListener);
-
-        ListView newDevicesListView = (ListView) findViewById(R.id.new_devices);
-        newDevicesListView.setAdapter(mNewDevicesArrayAdapter);
-        newDevicesListView.setOnItemClickListener(mDeviceClickListener);
+        RecyclerView newDevicesListView = (RecyclerView) findViewById(R.id.new_devices);
+        newDevicesListView.setLayoutManager(new LinearLayoutManager(this));
+        newDevicesListView.setAdapter(mNewDevicesAdapter);
 
         IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
         this.registerReceiver(mReceiver, filter);
@@ -94,17 +98,17 @@ public class DeviceListActivity extends Activity {
                 SelectDeviceBean selectDeviceBean = new SelectDeviceBean();
                 selectDeviceBean.setDeviceName(device.getName());
                 selectDeviceBean.setDeviceAddress(device.getAddress());
-                pairedDevicesArrayAdapter.add(selectDeviceBean);
+                mPairedDevicesAdapter.add(selectDeviceBean);
             }
         } else {
             String noDevices = getResources().getText(R.string.none_paired).toString();
-            pairedDevicesArrayAdapter.clear();
+            mPairedDevicesAdapter.clear();
         }
 
         Button selectAllButton = (Button) findViewById(R.id.btn_select_all);
         selectAllButton.setOnClickListener(new View.OnClickListener() {
             public void onClick(View v) {
-                pairedDevicesArrayAdapter.selectAll();
+                mPairedDevicesAdapter.selectAll();
             }
         });
 
@@ -115,7 +119,7 @@ public class DeviceListActivity extends Activity {
 
                 // Get the device MAC address, which is the last 17 chars in the View
 
-                List<SelectDeviceBean> data = pairedDevicesArrayAdapter.getData();
+                List<SelectDeviceBean> data = mPairedDevicesAdapter.getData();
 
                 ArrayList<String> macAddresses = new ArrayList<>();
                 for (int i = 0; i < data.size(); i++) {
@@ -127,6 +131,35 @@ public class DeviceListActivity extends Activity {
         });
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        Choreographer.getInstance().postFrameCallback(mLinkRefreshCallback);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        Choreographer.getInstance().removeFrameCallback(mLinkRefreshCallback);
+    }
+
+    /**
+     * 跟随屏幕刷新采样链路状态，每LINK_REFRESH_INTERVAL_MS最多局部刷新一次
+     */
+    private final Choreographer.FrameCallback mLinkRefreshCallback = new Choreographer.FrameCallback() {
+        private long lastRefreshTime;
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            long now = SystemClock.uptimeMillis();
+            if (now - lastRefreshTime >= LINK_REFRESH_INTERVAL_MS) {
+                lastRefreshTime = now;
+                mPairedDevicesAdapter.refreshLinks();
+            }
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    };
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
@@ -134,6 +167,7 @@ public class DeviceListActivity extends Activity {
             mBtAdapter.cancelDiscovery();
         }
         this.unregisterReceiver(mReceiver);
+        mDiscoveredDeviceStore.quit();
     }
 
     private void doDiscovery() {
@@ -151,22 +185,22 @@ public class DeviceListActivity extends Activity {
         mBtAdapter.startDiscovery();
     }
 
-    private AdapterView.OnItemClickListener mDeviceClickListener
-            = new AdapterView.OnItemClickListener() {
-        public void onItemClick(AdapterView<?> av, View v, int arg2, long arg3) {
+    private NewDevicesAdapter.OnDeviceClickListener mNewDeviceClickListener
+            = new NewDevicesAdapter.OnDeviceClickListener() {
+        @Override
+        public void onDeviceClick(DiscoveredDevice device) {
             // Cancel discovery because it's costly and we're about to connect
             mBtAdapter.cancelDiscovery();
-
-            // Get the device MAC address, which is the last 17 chars in the View
-            String info = ((TextView) v).getText().toString();
-            String address = info.substring(info.length() - 17);
-
-            BluetoothDevice device = mBtAdapter.getRemoteDevice(address);
-            CService.getInstance().connect(device, true);
-            finish();
+            connectDevice(device.getDeviceAddress());
         }
     };
 
+    private void connectDevice(String address) {
+        BluetoothDevice device = mBtAdapter.getRemoteDevice(address);
+        CService.getInstance().connect(device, MeshConfig.getInstance().isSecureRfcomm());
+        finish();
+    }
+
     private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -174,26 +208,17 @@ public class DeviceListActivity extends Activity {
 
             if (BluetoothDevice.ACTION_FOUND.equals(action)) {
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                String deviceInfo = device.getName() + "\n" + device.getAddress();
-                Log.i(TAG, deviceInfo);
+                short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE);
                 if (device.getBondState() != BluetoothDevice.BOND_BONDED) {
-                    boolean isExists = false;
-                    for (int i = 0; i < mNewDevicesArrayAdapter.getCount(); i++) {
-                        if (deviceInfo.equals(mNewDevicesArrayAdapter.getItem(i))) {
-                            isExists = true;
-                            break;
-                        }
-                    }
-                    if (!isExists) {
-                        mNewDevicesArrayAdapter.add(deviceInfo);
-                    }
+                    //去重和列表更新都在DiscoveredDeviceStore的后台线程中完成
+                    mDiscoveredDeviceStore.onDeviceFound(device.getAddress(), device.getName(), rssi);
                 }
             } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
                 setProgressBarIndeterminateVisibility(false);
                 setTitle(R.string.select_device);
-                if (mNewDevicesArrayAdapter.getCount() == 0) {
-                    String noDevices = getResources().getText(R.string.none_found).toString();
-                    mNewDevicesArrayAdapter.add(noDevices);
+                if (mNewDevicesAdapter.getItemCount() == 0) {
+                    TextView title = (TextView) findViewById(R.id.title_new_devices);
+                    title.setText(R.string.none_found);
                 }
             }
         }
@@ -0,0 +1,46 @@
+package com.tfkj.meeting.meeting.device;
+
+/**
+ * 扫描到的蓝牙设备，不可变对象，RSSI变化时生成新实例，便于DiffUtil比较新旧快照
+ */
+public class DiscoveredDevice {
+    private final String deviceAddress;
+    private final String deviceName;
+    private final short rssi;
+    //显示用的文字只在创建时拼接一次
+    private final String label;
+
+    public DiscoveredDevice(String deviceAddress, String deviceName, short rssi) {
+        this.deviceAddress = deviceAddress;
+        this.deviceName = deviceName;
+        this.rssi = rssi;
+        this.label = deviceName + "\n" + deviceAddress;
+    }
+
+    public String getDeviceAddress() {
+        return deviceAddress;
+    }
+
+    public String getDeviceName() {
+        return deviceName;
+    }
+
+    public short getRssi() {
+        return rssi;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * 返回RSSI更新后的设备，名称没有变化时沿用原来的名称
+     */
+    public DiscoveredDevice withRssi(String deviceName, short rssi) {
+        String name = deviceName != null ? deviceName : this.deviceName;
+        if (rssi == this.rssi && (name == null ? this.deviceName == null : name.equals(this.deviceName))) {
+            return this;
+        }
+        return new DiscoveredDevice(deviceAddress, name, rssi);
+    }
+}
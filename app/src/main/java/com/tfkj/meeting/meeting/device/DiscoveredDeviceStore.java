@@ -0,0 +1,170 @@
+package com.tfkj.meeting.meeting.device;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.support.v7.util.DiffUtil;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * 扫描结果模型。
+ *
+ * ACTION_FOUND在后台线程中按MAC地址哈希去重，结果合并成批次，每帧最多向界面提交一次，
+ * 界面只根据DiffUtil的差异结果局部刷新，已存在设备的RSSI变化只刷新对应的行。
+ */
+public class DiscoveredDeviceStore {
+
+    /**
+     * 界面端接收批量更新
+     */
+    public interface Listener {
+        void onDevicesChanged(List<DiscoveredDevice> devices, DiffUtil.DiffResult diff);
+    }
+
+    // 两次提交之间的最小间隔，约为一帧
+    private static final long BATCH_INTERVAL_MS = 16;
+
+    public static final String PAYLOAD_RSSI = "rssi";
+
+    private final HandlerThread mWorkerThread;
+    private final Handler mWorker;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Listener mListener;
+
+    // 以下字段只在工作线程中访问
+    private final HashMap<String, Integer> mIndex = new HashMap<>();
+    private final ArrayList<DiscoveredDevice> mDevices = new ArrayList<>();
+    private List<DiscoveredDevice> mPublished = Collections.emptyList();
+    private boolean mDirty;
+    private boolean mPublishPending;
+
+    private volatile boolean mQuit;
+
+    public DiscoveredDeviceStore(Listener listener) {
+        mListener = listener;
+        mWorkerThread = new HandlerThread("DiscoveredDeviceStore", Process.THREAD_PRIORITY_BACKGROUND);
+        mWorkerThread.start();
+        mWorker = new Handler(mWorkerThread.getLooper());
+    }
+
+    /**
+     * 记录一次扫描结果，可在任意线程调用
+     */
+    public void onDeviceFound(final String address, final String name, final short rssi) {
+        mWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                Integer position = mIndex.get(address);
+                if (position == null) {
+                    mIndex.put(address, mDevices.size());
+                    mDevices.add(new DiscoveredDevice(address, name, rssi));
+                    markDirty();
+                } else {
+                    DiscoveredDevice old = mDevices.get(position);
+                    DiscoveredDevice updated = old.withRssi(name, rssi);
+                    if (updated != old) {
+                        mDevices.set(position, updated);
+                        markDirty();
+                    }
+                }
+            }
+        });
+    }
+
+    public void quit() {
+        mQuit = true;
+        mWorker.removeCallbacksAndMessages(null);
+        mMainHandler.removeCallbacksAndMessages(null);
+        mWorkerThread.quit();
+    }
+
+    private void markDirty() {
+        mDirty = true;
+        if (!mPublishPending) {
+            mPublishPending = true;
+            mWorker.postDelayed(mPublishRunnable, BATCH_INTERVAL_MS);
+        }
+    }
+
+    private final Runnable mPublishRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mPublishPending = false;
+            if (!mDirty) {
+                return;
+            }
+            mDirty = false;
+
+            final List<DiscoveredDevice> oldList = mPublished;
+            final List<DiscoveredDevice> newList = Collections.unmodifiableList(new ArrayList<>(mDevices));
+            final DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new SnapshotDiff(oldList, newList), false);
+            mPublished = newList;
+
+            // 差异在工作线程中算好，主线程只在下一帧开始时应用
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+                        @Override
+                        public void doFrame(long frameTimeNanos) {
+                            if (mQuit) {
+                                return;
+                            }
+                            mListener.onDevicesChanged(newList, diff);
+                        }
+                    });
+                }
+            });
+        }
+    };
+
+    /**
+     * 新增设备只会追加到末尾，按地址判断是否为同一项
+     */
+    private static class SnapshotDiff extends DiffUtil.Callback {
+        private final List<DiscoveredDevice> oldList;
+        private final List<DiscoveredDevice> newList;
+
+        SnapshotDiff(List<DiscoveredDevice> oldList, List<DiscoveredDevice> newList) {
+            this.oldList = oldList;
+            this.newList = newList;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return oldList.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return newList.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return oldList.get(oldItemPosition).getDeviceAddress()
+                    .equals(newList.get(newItemPosition).getDeviceAddress());
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            return oldList.get(oldItemPosition) == newList.get(newItemPosition);
+        }
+
+        @Override
+        public Object getChangePayload(int oldItemPosition, int newItemPosition) {
+            DiscoveredDevice oldItem = oldList.get(oldItemPosition);
+            DiscoveredDevice newItem = newList.get(newItemPosition);
+            if (oldItem.getLabel().equals(newItem.getLabel())) {
+                return PAYLOAD_RSSI;
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.tfkj.meeting.meeting.device;
+
+import android.support.annotation.NonNull;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import com.tfkj.meeting.meeting.R;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 扫描到的新设备列表，数据由DiscoveredDeviceStore批量提交
+ */
+public class NewDevicesAdapter extends RecyclerView.Adapter<NewDevicesAdapter.ViewHolder>
+        implements DiscoveredDeviceStore.Listener {
+
+    public interface OnDeviceClickListener {
+        void onDeviceClick(DiscoveredDevice device);
+    }
+
+    private List<DiscoveredDevice> mDevices = Collections.emptyList();
+    private final OnDeviceClickListener mClickListener;
+
+    // 所有行共用一个点击监听
+    private final View.OnClickListener mItemClickListener = new View.OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            ViewHolder holder = (ViewHolder) v.getTag();
+            int position = holder.getAdapterPosition();
+            if (position != RecyclerView.NO_POSITION) {
+                mClickListener.onDeviceClick(mDevices.get(position));
+            }
+        }
+    };
+
+    public NewDevicesAdapter(OnDeviceClickListener clickListener) {
+        mClickListener = clickListener;
+    }
+
+    @Override
+    public void onDevicesChanged(List<DiscoveredDevice> devices, DiffUtil.DiffResult diff) {
+        mDevices = devices;
+        diff.dispatchUpdatesTo(this);
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_new_device, parent, false);
+        ViewHolder holder = new ViewHolder(view);
+        view.setTag(holder);
+        view.setOnClickListener(mItemClickListener);
+        return holder;
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        DiscoveredDevice device = mDevices.get(position);
+        holder.tvDevice.setText(device.getLabel());
+        holder.tvRssi.setText(String.valueOf(device.getRssi()));
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position, @NonNull List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            onBindViewHolder(holder, position);
+            return;
+        }
+        // 只有RSSI变化，不重新设置名称
+        holder.tvRssi.setText(String.valueOf(mDevices.get(position).getRssi()));
+    }
+
+    @Override
+    public int getItemCount() {
+        return mDevices.size();
+    }
+
+    static class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView tvDevice;
+        final TextView tvRssi;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            tvDevice = itemView.findViewById(R.id.tv_device);
+            tvRssi = itemView.findViewById(R.id.tv_rssi);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.tfkj.meeting.meeting.device;
+
+import android.support.annotation.NonNull;
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
+import android.widget.TextView;
+
+import com.tfkj.meeting.meeting.Constants;
+import com.tfkj.meeting.meeting.R;
+import com.tfkj.meeting.meeting.service.LinkMonitor;
+import com.tfkj.meeting.meeting.service.LinkStats;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 已配对设备选择列表。
+ *
+ * 使用稳定ID，所有行共用同一个监听器；全选和链路状态刷新通过payload只重绑变化的控件。
+ */
+public class SelectDeviceAdapter extends RecyclerView.Adapter<SelectDeviceAdapter.ViewHolder> {
+
+    static final Object PAYLOAD_SELECTION = new Object();
+    static final Object PAYLOAD_LINK = new Object();
+
+    private final ArrayList<SelectDeviceBean> selectDeviceBeans;
+    private boolean selectAll;
+    private final StringBuilder statusBuilder = new StringBuilder();
+
+    private final CompoundButton.OnCheckedChangeListener checkedChangeListener =
+            new CompoundButton.OnCheckedChangeListener() {
+                @Override
+                public void onCheckedChanged(CompoundButton compoundButton, boolean b) {
+                    ViewHolder holder = (ViewHolder) compoundButton.getTag();
+                    int position = holder.getAdapterPosition();
+                    if (position != RecyclerView.NO_POSITION) {
+                        selectDeviceBeans.get(position).setSelected(b);
+                    }
+                }
+            };
+
+    //点击整行切换选中状态
+    private final View.OnClickListener itemClickListener = new View.OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            ViewHolder holder = (ViewHolder) v.getTag();
+            holder.checkBox.toggle();
+        }
+    };
+
+    public SelectDeviceAdapter(ArrayList<SelectDeviceBean> selectDeviceBeans) {
+        this.selectDeviceBeans = selectDeviceBeans;
+        setHasStableIds(true);
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_select_device, parent, false);
+        ViewHolder viewHolder = new ViewHolder(view);
+        view.setTag(viewHolder);
+        view.setOnClickListener(itemClickListener);
+        viewHolder.checkBox.setTag(viewHolder);
+        viewHolder.checkBox.setOnCheckedChangeListener(checkedChangeListener);
+        return viewHolder;
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        SelectDeviceBean selectDeviceBean = selectDeviceBeans.get(position);
+        holder.tvDevice.setText(selectDeviceBean.getLabel());
+        holder.checkBox.setChecked(selectDeviceBean.isSelected());
+        bindLink(holder, selectDeviceBean);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position, @NonNull List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            onBindViewHolder(holder, position);
+            return;
+        }
+        SelectDeviceBean selectDeviceBean = selectDeviceBeans.get(position);
+        for (Object payload : payloads) {
+            if (payload == PAYLOAD_SELECTION) {
+                holder.checkBox.setChecked(selectDeviceBean.isSelected());
+            } else if (payload == PAYLOAD_LINK) {
+                bindLink(holder, selectDeviceBean);
+            }
+        }
+    }
+
+    private void bindLink(ViewHolder holder, SelectDeviceBean selectDeviceBean) {
+        StringBuilder sb = statusBuilder;
+        sb.setLength(0);
+        switch (selectDeviceBean.getConnectionState()) {
+            case Constants.STATE_CONNECTED:
+                sb.append("已连接");
+                if (selectDeviceBean.getRttMillis() >= 0) {
+                    sb.append('\n').append(selectDeviceBean.getRttMillis()).append(" ms");
+                }
+                sb.append('\n').append(selectDeviceBean.getBytesPerSecond()).append(" B/s");
+                break;
+            case Constants.STATE_CONNECTING:
+                sb.append("连接中");
+                break;
+            default:
+                break;
+        }
+        holder.tvStatus.setText(sb);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return selectDeviceBeans.get(position).getStableId();
+    }
+
+    @Override
+    public int getItemCount() {
+        return selectDeviceBeans.size();
+    }
+
+    public List<SelectDeviceBean> getData() {
+        return selectDeviceBeans;
+    }
+
+    public void add(SelectDeviceBean selectDeviceBean) {
+        selectDeviceBeans.add(selectDeviceBean);
+        notifyItemInserted(selectDeviceBeans.size() - 1);
+    }
+
+    public void clear() {
+        selectDeviceBeans.clear();
+        notifyDataSetChanged();
+    }
+
+    public void selectAll() {
+        selectAll = !selectAll;
+        for (int i = 0; i < selectDeviceBeans.size(); i++) {
+            selectDeviceBeans.get(i).setSelected(selectAll);
+        }
+        notifyItemRangeChanged(0, selectDeviceBeans.size(), PAYLOAD_SELECTION);
+    }
+
+    /**
+     * 读取LinkMonitor中所有设备的链路状态，只刷新有变化的行。
+     * 吞吐量读取TopologyBalancer定期采样的结果，界面不采样，不影响采样窗口
+     */
+    public void refreshLinks() {
+        LinkMonitor monitor = LinkMonitor.getInstance();
+        for (int i = 0; i < selectDeviceBeans.size(); i++) {
+            SelectDeviceBean selectDeviceBean = selectDeviceBeans.get(i);
+            LinkStats stats = monitor.get(selectDeviceBean.getDeviceAddress());
+            if (stats == null) {
+                continue;
+            }
+            if (selectDeviceBean.updateLink(stats.getState(), stats.getRttMillis(), stats.getBytesPerSecond())) {
+                notifyItemChanged(i, PAYLOAD_LINK);
+            }
+        }
+    }
+
+    static class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView tvDevice;
+        final TextView tvStatus;
+        final CheckBox checkBox;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            tvDevice = itemView.findViewById(R.id.tv_device);
+            tvStatus = itemView.findViewById(R.id.tv_status);
+            checkBox = itemView.findViewById(R.id.checkbox_device);
+        }
+    }
+}
@@ -1,9 +1,19 @@
 package com.tfkj.meeting.meeting.device;
 
+import com.tfkj.meeting.meeting.Constants;
+
 public class SelectDeviceBean {
     private String deviceAddress;
     private String deviceName;
     private boolean selected;
+    //显示用的名称和地址，名称或地址变化时才重新拼接
+    private String label;
+    private long stableId;
+
+    //链路实时状态
+    private int connectionState = Constants.STATE_NONE;
+    private long rttMillis = -1;
+    private long bytesPerSecond;
 
     public String getDeviceAddress() {
         return deviceAddress;
@@ -11,6 +21,8 @@ public class SelectDeviceBean {
 
     public void setDeviceAddress(String deviceAddress) {
         this.deviceAddress = deviceAddress;
+        this.label = null;
+        this.stableId = addressToId(deviceAddress);
     }
 
     public String getDeviceName() {
@@ -19,6 +31,7 @@ public class SelectDeviceBean {
 
     public void setDeviceName(String deviceName) {
         this.deviceName = deviceName;
+        this.label = null;
     }
 
     public boolean isSelected() {
@@ -28,4 +41,60 @@ public class SelectDeviceBean {
     public void setSelected(boolean selected) {
         this.selected = selected;
     }
+
+    public String getLabel() {
+        if (label == null) {
+            label = deviceName + "\n" + deviceAddress;
+        }
+        return label;
+    }
+
+    /**
+     * @return 由MAC地址换算的稳定ID，供RecyclerView识别同一设备
+     */
+    public long getStableId() {
+        return stableId;
+    }
+
+    public int getConnectionState() {
+        return connectionState;
+    }
+
+    public long getRttMillis() {
+        return rttMillis;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * 更新链路状态
+     *
+     * @return 有变化时返回true
+     */
+    public boolean updateLink(int connectionState, long rttMillis, long bytesPerSecond) {
+        if (this.connectionState == connectionState && this.rttMillis == rttMillis
+                && this.bytesPerSecond == bytesPerSecond) {
+            return false;
+        }
+        this.connectionState = connectionState;
+        this.rttMillis = rttMillis;
+        this.bytesPerSecond = bytesPerSecond;
+        return true;
+    }
+
+    private static long addressToId(String address) {
+        if (address == null) {
+            return 0;
+        }
+        long id = 0;
+        for (int i = 0; i < address.length(); i++) {
+            int digit = Character.digit(address.charAt(i), 16);
+            if (digit >= 0) {
+                id = (id << 4) | digit;
+            }
+        }
+        return id;
+    }
 }
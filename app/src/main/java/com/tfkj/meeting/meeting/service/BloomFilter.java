@@ -0,0 +1,104 @@
+package com.tfkj.meeting.meeting.service;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * 固定大小的Bloom过滤器，用于话题订阅的摘要。
+ *
+ * 话题名按UTF-8做64位FNV-1a散列，高低32位做双重散列得到HASHES个位置。
+ * 大小固定，两个过滤器可以直接按位或合并。
+ */
+public class BloomFilter {
+
+    public static final int BITS = 512;
+    public static final int BYTES = BITS / 8;
+    static final int HASHES = 3;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final long[] words = new long[BITS / 64];
+
+    public BloomFilter() {
+    }
+
+    public BloomFilter(BloomFilter other) {
+        System.arraycopy(other.words, 0, words, 0, words.length);
+    }
+
+    public void add(String key) {
+        long hash = hash(key);
+        for (int i = 0; i < HASHES; i++) {
+            int bit = index(hash, i);
+            words[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @return false表示一定没有，true表示可能有
+     */
+    public boolean mightContain(String key) {
+        long hash = hash(key);
+        for (int i = 0; i < HASHES; i++) {
+            int bit = index(hash, i);
+            if ((words[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void or(BloomFilter other) {
+        for (int i = 0; i < words.length; i++) {
+            words[i] |= other.words[i];
+        }
+    }
+
+    public boolean isEmpty() {
+        for (long word : words) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void encode(byte[] out, int offset) {
+        for (int i = 0; i < BYTES; i++) {
+            out[offset + i] = (byte) (words[i >>> 3] >>> ((i & 7) * 8));
+        }
+    }
+
+    public static BloomFilter decode(byte[] data, int offset) {
+        BloomFilter filter = new BloomFilter();
+        for (int i = 0; i < BYTES; i++) {
+            filter.words[i >>> 3] |= (data[offset + i] & 0xFFL) << ((i & 7) * 8);
+        }
+        return filter;
+    }
+
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private static int index(long hash, int i) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        return ((h1 + i * h2) & 0x7FFFFFFF) % BITS;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof BloomFilter && Arrays.equals(words, ((BloomFilter) o).words);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(words);
+    }
+}
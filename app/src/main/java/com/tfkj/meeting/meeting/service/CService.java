@@ -24,12 +24,22 @@ import android.util.Log;
 
 import com.tfkj.meeting.meeting.Constants;
 
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class CService {
     // Debugging
@@ -37,20 +47,33 @@ public class CService {
 
     private final BluetoothAdapter mAdapter;
     private ConnectThread mConnectThread;
-    private int mState;
+    //上次通知界面的状态，用于日志
     private int mNewState;
     private volatile static CService instance = null;
 
     //所有接入客服端的连接线程---》 一个客服端连接多个服务端
-    private HashMap<String, ConnectedThread> serviceConnectedThread = new HashMap<>();
+    private final ConcurrentHashMap<String, ConnectedThread> serviceConnectedThread = new ConcurrentHashMap<>();
+
+    //迁移中的连接：新服务端地址 -> 新连接建立后要断开的旧服务端地址
+    private final HashMap<String, String> pendingMigrations = new HashMap<>();
 
     private ArrayList<String> macAddresses;
     private int connectDeviceIndex;
 
+    // 恢复会议时每台设备最多尝试连接的次数，对端可能也在重启
+    private static final int MAX_RESUME_ATTEMPTS = 3;
+    private static final long RESUME_RETRY_MS = 2000;
+    //恢复会议时并行进行的连接
+    private final HashSet<ConnectThread> resumeThreads = new HashSet<>();
+    private ScheduledExecutorService resumeScheduler;
+    //每台服务端上次胜出的连接方式
+    private final ConnectRace.Memory connectModes = new ConnectRace.Memory();
+    //交换密钥超时
+    private final ScheduledExecutorService mTimeoutScheduler = Executors.newSingleThreadScheduledExecutor();
+
     private CService() {
         mAdapter = BluetoothAdapter.getDefaultAdapter();
-        mState = Constants.STATE_NONE;
-        mNewState = mState;
+        mNewState = Constants.STATE_NONE;
     }
 
     public static CService getInstance() {
@@ -66,8 +89,35 @@ public class CService {
     }
 
 
+    /**
+     * @return 由各条连接的状态汇总：有已建立的连接时为STATE_CONNECTED，有正在连接的设备时为STATE_CONNECTING
+     */
     public synchronized int getState() {
-        return mState;
+        ArrayList<ConnectionState> states = new ArrayList<>();
+        for (ConnectedThread connectedThread : serviceConnectedThread.values()) {
+            states.add(connectedThread.mmState);
+        }
+        if (mConnectThread != null) {
+            states.add(mConnectThread.mmState);
+        }
+        for (ConnectThread thread : resumeThreads) {
+            states.add(thread.mmState);
+        }
+        return ConnectionState.aggregate(states, Constants.STATE_NONE);
+    }
+
+    int getLinkCount() {
+        return serviceConnectedThread.size();
+    }
+
+    /**
+     * 通知界面连接状态或链路数已变化，多次通知会合并
+     */
+    private synchronized void updateUserInterfaceTitle() {
+        int state = getState();
+        Log.d(TAG, "updateUserInterfaceTitle() " + mNewState + " -> " + state);
+        mNewState = state;
+        MeshEvents.getInstance().postClientState(state);
     }
 
     public synchronized void start() {
@@ -79,29 +129,23 @@ public class CService {
             mConnectThread = null;
         }
 
-        mState = getState();
-        Log.d(TAG, "updateUserInterfaceTitle() " + mNewState + " -> " + mState);
-        mNewState = mState;
+        updateUserInterfaceTitle();
     }
 
     public synchronized void connect(BluetoothDevice device, boolean secure) {
         Log.d(TAG, "connect to: " + device);
 
         // Cancel any thread attempting to make a connection
-        if (mState == Constants.STATE_CONNECTING) {
-            if (mConnectThread != null) {
-                mConnectThread.cancel();
-                mConnectThread = null;
-            }
+        if (mConnectThread != null) {
+            mConnectThread.cancel();
+            mConnectThread = null;
         }
 
         // Start the thread to connect with the given device
         mConnectThread = new ConnectThread(device, secure);
         mConnectThread.start();
         // Update UI title
-        mState = getState();
-        Log.d(TAG, "updateUserInterfaceTitle() " + mNewState + " -> " + mState);
-        mNewState = mState;
+        updateUserInterfaceTitle();
     }
 
     /**
@@ -116,13 +160,109 @@ public class CService {
         }
     }
 
+    /**
+     * 恢复上次会议：同时连接所有服务端，不经过逐台连接的队列
+     *
+     * @param addresses 上次会议中连接的服务端地址
+     */
+    public synchronized void resume(List<String> addresses) {
+        for (String address : addresses) {
+            if (!serviceConnectedThread.containsKey(address)) {
+                startResume(address, 1);
+            }
+        }
+        updateUserInterfaceTitle();
+    }
+
+    private synchronized void startResume(String address, int attempt) {
+        ConnectThread thread = new ConnectThread(mAdapter.getRemoteDevice(address),
+                MeshConfig.getInstance().isSecureRfcomm(), attempt);
+        resumeThreads.add(thread);
+        thread.start();
+    }
+
+    /**
+     * 恢复连接失败，稍后重试，不影响其他连接
+     */
+    private synchronized void resumeFailed(ConnectThread thread) {
+        resumeThreads.remove(thread);
+        final String address = thread.mmDevice.getAddress();
+        final int attempt = thread.mmAttempt + 1;
+        if (attempt > MAX_RESUME_ATTEMPTS) {
+            Log.w(TAG, "give up resuming " + address);
+            return;
+        }
+        if (resumeScheduler == null) {
+            resumeScheduler = Executors.newSingleThreadScheduledExecutor();
+        }
+        resumeScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (CService.this) {
+                    if (resumeScheduler != null && !serviceConnectedThread.containsKey(address)) {
+                        startResume(address, attempt);
+                    }
+                }
+            }
+        }, RESUME_RETRY_MS * thread.mmAttempt, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 服务端接入已满，按服务端推荐的邻居顺序改连，优先于尚未连接的设备
+     *
+     * @param addresses 负载较低的邻居地址
+     */
+    private synchronized void redirected(List<String> addresses) {
+        if (macAddresses == null) {
+            macAddresses = new ArrayList<>();
+            connectDeviceIndex = 0;
+        }
+        int insertAt = connectDeviceIndex;
+        for (String address : addresses) {
+            if (!serviceConnectedThread.containsKey(address) && !macAddresses.contains(address)) {
+                macAddresses.add(insertAt++, address);
+            }
+        }
+        if (mConnectThread == null) {
+            connectNextDevice();
+        }
+    }
+
+    /**
+     * 把一条到服务端的连接迁移到另一台服务端：先连接新服务端，连接成功后再断开旧连接，
+     * 迁移过程中始终至少有一条连接在转发消息。同一时间只进行一次迁移。
+     *
+     * @return 已开始迁移时返回true
+     */
+    public synchronized boolean migrate(String fromAddress, String toAddress) {
+        if (!pendingMigrations.isEmpty() || mConnectThread != null
+                || serviceConnectedThread.containsKey(toAddress)) {
+            return false;
+        }
+        Log.i(TAG, "migrate " + fromAddress + " -> " + toAddress);
+        pendingMigrations.put(toAddress, fromAddress);
+        connect(mAdapter.getRemoteDevice(toAddress), MeshConfig.getInstance().isSecureRfcomm());
+        return true;
+    }
+
+    public synchronized boolean isMigrating() {
+        return !pendingMigrations.isEmpty();
+    }
+
+    /**
+     * @return 当前连接的所有服务端地址
+     */
+    public List<String> getConnectedAddresses() {
+        return new ArrayList<>(serviceConnectedThread.keySet());
+    }
+
     /**
      * 连接下一台蓝牙设备
      */
     private void connectNextDevice(){
-        if(macAddresses.size()>connectDeviceIndex){
+        if(macAddresses!=null && macAddresses.size()>connectDeviceIndex){
             BluetoothDevice device = mAdapter.getRemoteDevice(macAddresses.get(connectDeviceIndex));
-            connect(device, true);
+            connect(device, MeshConfig.getInstance().isSecureRfcomm());
             connectDeviceIndex ++;
         }
     }
@@ -131,29 +271,52 @@ public class CService {
      * 蓝牙设备连接成功
      *
      * @param socket
-     * @param device
      * @param socketType
+     * @param channel 应用层加密，未启用时为null
      */
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice
-            device, final String socketType) {
+    synchronized void connected(LinkSocket socket, final String socketType, SecureChannel channel,
+                                ConnectionState state) {
+        String address = socket.getAddress();
         Log.d(TAG, "connected, Socket Type:" + socketType);
 
-        // Cancel the thread that completed the connection
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
+        if (!state.markConnected()) {
+            //连接过程中已被取消
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of cancelled socket failed", e);
+            }
+            return;
         }
 
         // Start the thread to manage the connection and perform transmissions
-        ConnectedThread mConnectedThread = new ConnectedThread(socket, device.getAddress(), socketType);
+        ConnectedThread mConnectedThread = new ConnectedThread(socket, address, socketType, channel, state);
+        //告知服务端保留的是这条连接，必须是第一帧；落败的连接已关闭，不会发出
+        mConnectedThread.write(Frame.createLocal(Frame.TYPE_LINK_KEPT, new byte[0]).getEncoded());
+        //先发出本机的链路初始化帧（如状态同步请求），再开始接收对方的
+        MeshRouter.getInstance().linkUp(mConnectedThread);
         mConnectedThread.start();
 
-        serviceConnectedThread.put(device.getAddress(), mConnectedThread);
+        ConnectedThread replaced = serviceConnectedThread.put(address, mConnectedThread);
+        if (replaced != null) {
+            replaced.close();
+        }
+
+        //告知新连接的服务端本机的接入数
+        mConnectedThread.write(Frame.createLocal(Frame.TYPE_LOAD,
+                ControlCodec.encodeLoad(SService.getInstance().getPeerCount())).getEncoded());
 
-        Log.e(TAG,"Connected to " + device.getName());
+        Log.e(TAG,"Connected to " + address);
 
-        mState = getState();
-        mNewState = mState;
+        String migratedFrom = pendingMigrations.remove(address);
+        if (migratedFrom != null) {
+            ConnectedThread old = serviceConnectedThread.remove(migratedFrom);
+            if (old != null) {
+                old.close();
+            }
+        }
+
+        updateUserInterfaceTitle();
 
         connectNextDevice();
     }
@@ -166,7 +329,7 @@ public class CService {
 
         //关闭所有服务端线程
         for (ConnectedThread connectedThread : serviceConnectedThread.values()) {
-            connectedThread.cancel();
+            connectedThread.close();
         }
         serviceConnectedThread.clear();
 
@@ -175,53 +338,72 @@ public class CService {
             mConnectThread = null;
         }
 
-        mState = Constants.STATE_NONE;
+        for (ConnectThread thread : resumeThreads) {
+            thread.cancel();
+        }
+        resumeThreads.clear();
+        if (resumeScheduler != null) {
+            resumeScheduler.shutdownNow();
+            resumeScheduler = null;
+        }
+
         // Update UI title
-        mState = getState();
-        Log.d(TAG, "updateUserInterfaceTitle() " + mNewState + " -> " + mState);
-        mNewState = mState;
+        updateUserInterfaceTitle();
     }
 
-    public void writeToAllService(byte[] out) {
+    /**
+     * @param exclude 不包含的服务端地址，可为null
+     * @return 所有已连接服务端的发送队列
+     */
+    ArrayList<FanOut.Lane> getLanes(String exclude) {
+        ArrayList<FanOut.Lane> lanes = new ArrayList<>(serviceConnectedThread.size());
         for (Map.Entry<String, ConnectedThread> item : serviceConnectedThread.entrySet()) {
-            item.getValue().write(out);
+            if (!item.getKey().equals(exclude)) {
+                lanes.add(item.getValue().mmLane);
+            }
+        }
+        return lanes;
+    }
+
+    /**
+     * 向所有服务端转发帧
+     *
+     * @param frame   帧
+     * @param exclude 不发送的服务端地址，可为null
+     * @return 并行发送时的完成情况，逐条发送时为null
+     */
+    FanOut.Result writeFrameToAllService(Frame frame, String exclude) {
+        ArrayList<FanOut.Lane> lanes = getLanes(exclude);
+        MeshConfig config = MeshConfig.getInstance();
+        if (config.isParallelFanOut()) {
+            return FanOut.getInstance().scatter(frame, lanes, config.getFanOutDeadlineMs(), exclude == null);
         }
+        FanOut.sequential(frame, lanes, exclude == null);
+        return null;
     }
 
     /**
-     * 蓝色设备连接失败，多台设备时连接下一台
+     * 蓝色设备连接失败，多台设备时连接下一台。其他连接不受影响
      */
-    private void connectionFailed() {
+    private synchronized void connectionFailed() {
 
         Log.e(TAG, "Unable to connect device");
 
-        mState = Constants.STATE_NONE;
         // Update UI title
-
-        mState = getState();
-        mNewState = mState;
-
-        // Start the service over to restart listening mode
-        CService.this.start();
+        updateUserInterfaceTitle();
 
         connectNextDevice();
     }
 
     /**
-     * 断开连接
+     * 一条连接意外断开，其他连接不受影响
      */
     private void connectionLost() {
 
         Log.e(TAG, "Device connection was lost");
 
-        mState = Constants.STATE_NONE;
         // Update UI title
-
-        mState = getState();
-        mNewState = mState;
-
-        // Start the service over to restart listening mode
-        CService.this.start();
+        updateUserInterfaceTitle();
     }
 
     /**
@@ -229,93 +411,237 @@ public class CService {
      * with a device. It runs straight through; the connection either
      * succeeds or fails.
      *
-     * 连接线程，直到连接成功或者失败
+     * 连接线程，直到连接成功或者失败。Secure和Insecure两种连接按ConnectRace错开进行，每种各用一个线程阻塞在connect()
      */
-    private class ConnectThread extends Thread {
-        private final BluetoothSocket mmSocket;
+    private class ConnectThread extends Thread implements ConnectRace.Callback {
         private final BluetoothDevice mmDevice;
-        private String mSocketType;
+        //恢复会议时的第几次尝试，普通连接为0
+        private final int mmAttempt;
+        //连接成功后交给ConnectedThread继续使用
+        private final ConnectionState mmState = new ConnectionState();
+        private final ConnectRace mmRace;
+        //两种方式的socket，下标为ConnectRace.SECURE/INSECURE
+        private final BluetoothSocket[] mmSockets = new BluetoothSocket[2];
+        private final CountDownLatch mmDone = new CountDownLatch(1);
 
         public ConnectThread(BluetoothDevice device, boolean secure) {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
-            mSocketType = secure ? "Secure" : "Insecure";
+            this(device, secure, 0);
+        }
 
-            // Get a BluetoothSocket for a connection with the
-            // given BluetoothDevice
-            try {
-                if (secure) {
-                    tmp = device.createRfcommSocketToServiceRecord(
-                            Constants.MY_UUID_SECURE);
-                } else {
-                    tmp = device.createInsecureRfcommSocketToServiceRecord(
-                            Constants.MY_UUID_INSECURE);
-                }
-            } catch (IOException e) {
-                Log.e(TAG, "Socket Type: " + mSocketType + "create() failed", e);
-            }
-            mmSocket = tmp;
-            mState = Constants.STATE_CONNECTING;
+        /**
+         * @param secure 优先使用Secure连接
+         */
+        public ConnectThread(BluetoothDevice device, boolean secure, int attempt) {
+            mmDevice = device;
+            mmAttempt = attempt;
+            mmRace = connectModes.create(device.getAddress(), secure, MeshConfig.getInstance(), this);
+            LinkMonitor.getInstance().obtain(device.getAddress()).setState(Constants.STATE_CONNECTING);
         }
 
         public void run() {
-            Log.i(TAG, "BEGIN mConnectThread SocketType:" + mSocketType);
-            setName("ConnectThread" + mSocketType);
+            Log.i(TAG, "BEGIN mConnectThread " + mmDevice.getAddress());
+            setName("ConnectThread");
+            long startNanos = System.nanoTime();
 
             // Always cancel discovery because it will slow down a connection
             mAdapter.cancelDiscovery();
 
-            // Make a connection to the BluetoothSocket
+            mmRace.start();
             try {
-                // This is a blocking call and will only return on a
-                // successful connection or an exception
-                mmSocket.connect();
-            } catch (IOException e) {
-                // Close the socket
-                try {
-                    mmSocket.close();
-                } catch (IOException e2) {
-                    Log.e(TAG, "unable to close() " + mSocketType +
-                            " socket during connection failure", e2);
+                long stagger = mmRace.getStaggerMs();
+                if (stagger >= 0 && !mmDone.await(stagger, TimeUnit.MILLISECONDS)) {
+                    mmRace.onTimer();
                 }
-                connectionFailed();
+                mmDone.await();
+            } catch (InterruptedException e) {
+                mmRace.cancel();
+                Thread.currentThread().interrupt();
+            }
+            int winner = mmRace.getWinner();
+            if (winner < 0) {
+                failed();
                 return;
             }
+            BluetoothSocket socket;
+            synchronized (mmSockets) {
+                socket = mmSockets[winner];
+            }
+            String socketType = ConnectRace.nameOf(winner);
+            Log.i(TAG, "connected " + mmDevice.getAddress() + " via " + socketType + " in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + "ms");
+
+            // 在全局锁外交换会话密钥，超过MeshConfig.HANDSHAKE_TIMEOUT_MS关闭连接
+            SecureChannel channel = null;
+            MeshConfig config = MeshConfig.getInstance();
+            if (config.isEncryption()) {
+                final BluetoothSocket handshakeSocket = socket;
+                final String handshakeType = socketType;
+                ScheduledFuture<?> deadline = mTimeoutScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        Log.w(TAG, "key exchange with " + mmDevice.getAddress() + " timed out");
+                        closeQuietly(handshakeSocket, handshakeType);
+                    }
+                }, MeshConfig.HANDSHAKE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                try {
+                    channel = SecureChannel.handshake(socket.getInputStream(), socket.getOutputStream(),
+                            true, config.getMeetingKey());
+                } catch (SecureChannel.RefusedException e) {
+                    //服务端接入已满，没有交换密钥，先排上推荐的邻居再结束这次连接
+                    deadline.cancel(false);
+                    Log.w(TAG, "refused by " + mmDevice.getAddress());
+                    closeQuietly(socket, socketType);
+                    redirected(ControlCodec.decodeRedirect(e.getRedirect()));
+                    failed();
+                    return;
+                } catch (IOException e) {
+                    deadline.cancel(false);
+                    Log.e(TAG, "key exchange with " + mmDevice.getAddress() + " failed", e);
+                    closeQuietly(socket, socketType);
+                    failed();
+                    return;
+                }
+                if (!deadline.cancel(false)) {
+                    //完成时已超时，连接已关闭
+                    failed();
+                    return;
+                }
+            }
 
             // Reset the ConnectThread because we're done
             synchronized (CService.this) {
-                mConnectThread = null;
+                if (mConnectThread == this) {
+                    mConnectThread = null;
+                }
+                resumeThreads.remove(this);
             }
 
             // Start the connected thread
-            connected(mmSocket, mmDevice, mSocketType);
+            connected(LinkSocket.wrap(socket), socketType, channel, mmState);
+        }
+
+        @Override
+        public void start(final int mode) {
+            Thread attempt = new Thread("Connect" + ConnectRace.nameOf(mode)) {
+                @Override
+                public void run() {
+                    BluetoothSocket socket = null;
+                    try {
+                        // Get a BluetoothSocket for a connection with the
+                        // given BluetoothDevice
+                        if (mode == ConnectRace.SECURE) {
+                            socket = mmDevice.createRfcommSocketToServiceRecord(Constants.MY_UUID_SECURE);
+                        } else {
+                            socket = mmDevice.createInsecureRfcommSocketToServiceRecord(Constants.MY_UUID_INSECURE);
+                        }
+                        synchronized (mmSockets) {
+                            mmSockets[mode] = socket;
+                        }
+                        // This is a blocking call and will only return on a
+                        // successful connection or an exception
+                        socket.connect();
+                    } catch (IOException e) {
+                        Log.w(TAG, ConnectRace.nameOf(mode) + " connect to " + mmDevice.getAddress() + " failed", e);
+                        if (socket != null) {
+                            closeQuietly(socket, ConnectRace.nameOf(mode));
+                        }
+                        mmRace.onFailed(mode);
+                        return;
+                    }
+                    mmRace.onConnected(mode);
+                }
+            };
+            attempt.start();
+        }
+
+        @Override
+        public void cancel(int mode) {
+            BluetoothSocket socket;
+            synchronized (mmSockets) {
+                socket = mmSockets[mode];
+            }
+            if (socket != null) {
+                closeQuietly(socket, ConnectRace.nameOf(mode));
+            }
+        }
+
+        @Override
+        public void onWon(int mode) {
+            mmDone.countDown();
+        }
+
+        @Override
+        public void onFailed() {
+            mmDone.countDown();
+        }
+
+        private void failed() {
+            LinkMonitor.getInstance().obtain(mmDevice.getAddress()).setState(Constants.STATE_NONE);
+            synchronized (CService.this) {
+                pendingMigrations.remove(mmDevice.getAddress());
+                if (mConnectThread == this) {
+                    mConnectThread = null;
+                }
+            }
+            if (mmState.markClosed() == ConnectionState.CLOSING) {
+                //被取消的连接，不是失败
+                synchronized (CService.this) {
+                    resumeThreads.remove(this);
+                }
+                updateUserInterfaceTitle();
+            } else if (mmAttempt > 0) {
+                resumeFailed(this);
+            } else {
+                connectionFailed();
+            }
         }
 
         public void cancel() {
-            try {
-                mmSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "close() of connect " + mSocketType + " socket failed", e);
+            mmState.beginClose();
+            mmRace.cancel();
+            //已经连上、正在交换密钥的一方
+            int winner = mmRace.getWinner();
+            if (winner >= 0) {
+                cancel(winner);
             }
         }
     }
 
+    private static void closeQuietly(BluetoothSocket socket, String socketType) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close() of connect " + socketType + " socket failed", e);
+        }
+    }
+
     /**
      * This thread runs during a connection with a remote device.
      * It handles all incoming and outgoing transmissions.
      *
      * 已经连接成功。此线程为与远程蓝牙设备通信线程。
      */
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
+    private class ConnectedThread extends Thread implements Link, CutThrough.Streamable {
+        private final LinkSocket mmSocket;
         private final InputStream mmInStream;
         private final OutputStream mmOutStream;
+        //未加密时多个线程写同一条链路的锁，直通转发整帧期间持有
+        private final ReentrantLock mmWriteLock = new ReentrantLock();
         private String macAddress;
-
-        public ConnectedThread(BluetoothSocket socket, String macAddress, String socketType) {
+        private final LinkStats mmStats;
+        //并行发送时这条链路的发送队列
+        private final FanOut.Lane mmLane;
+        private final SecureChannel mmChannel;
+        //主动关闭的连接（重定向、迁移）断开时不当作连接丢失处理
+        private final ConnectionState mmState;
+
+        public ConnectedThread(LinkSocket socket, String macAddress, String socketType, SecureChannel channel,
+                               ConnectionState state) {
             Log.d(TAG, "create ConnectedThread: " + socketType);
             mmSocket = socket;
             this.macAddress = macAddress;
+            mmChannel = channel;
+            mmState = state;
             InputStream tmpIn = null;
             OutputStream tmpOut = null;
 
@@ -329,51 +655,140 @@ public class CService {
 
             mmInStream = tmpIn;
             mmOutStream = tmpOut;
-            mState = Constants.STATE_CONNECTED;
+            mmStats = LinkMonitor.getInstance().obtain(macAddress);
+            mmLane = new FanOut.Lane(this, mmStats);
+            mmStats.setState(Constants.STATE_CONNECTED);
         }
 
         public void run() {
             Log.i(TAG, "BEGIN mConnectedThread");
-            byte[] buffer = new byte[1024];
-            int bytes;
+            DataInputStream in = Frame.wrap(mmInStream);
 
             // Keep listening to the InputStream while connected
-            while (mState == Constants.STATE_CONNECTED) {
+            while (mmState.isConnected()) {
                 try {
-                    bytes = mmInStream.read(buffer);
-                    String message = new String(buffer, 0, bytes);
-                    Log.e(TAG, "read message:" + message);
-
-                    Log.e(TAG, "from SService to CService:" +message);
-
-                    for (Map.Entry<String, ConnectedThread> item : serviceConnectedThread.entrySet()) {
-                        if (!item.getKey().equals(macAddress)) {
-                            item.getValue().write(buffer);
-                        }
+                    Frame frame = mmChannel != null ? Frame.decode(mmChannel.read(in)) : CutThrough.read(in, this);
+                    if (frame == null) {
+                        //上游中断的直通帧
+                        continue;
+                    }
+                    if (frame.isTraced()) {
+                        frame.markReceived(Tracer.now());
+                    }
+                    mmStats.addBytesIn(frame.getEncoded().length);
+                    TrafficCapture.getInstance().record(getAddress(), TrafficCapture.DIRECTION_IN, frame.getEncoded());
+
+                    switch (frame.getType()) {
+                        case Frame.TYPE_LOAD:
+                            mmStats.setReportedLoad(ControlCodec.decodeLoad(frame.getPayload()));
+                            break;
+                        case Frame.TYPE_REDIRECT:
+                            //服务端已满，断开并改连推荐的邻居
+                            Log.w(TAG, "redirected by " + macAddress);
+                            serviceConnectedThread.remove(macAddress, this);
+                            close();
+                            redirected(ControlCodec.decodeRedirect(frame.getPayload()));
+                            break;
+                        case Frame.TYPE_PING:
+                            write(Frame.createLocal(Frame.TYPE_PONG, frame.getPayload()).getEncoded());
+                            break;
+                        case Frame.TYPE_PONG:
+                            mmStats.setRttMillis(ControlCodec.rttMillis(frame.getPayload(), System.nanoTime()));
+                            break;
+                        case Frame.TYPE_CLOCK_PROBE:
+                        case Frame.TYPE_CLOCK_REPLY:
+                            //接收时间参与时钟同步，和PING一样在通信线程中处理，不在路由线程前排队
+                            MeshRouter.getInstance().onFrame(frame, this);
+                            break;
+                        default:
+                            RoutingStage.getInstance().publish(frame, this);
+                            break;
                     }
-                    SService.getInstance().writeToAllClient(message.getBytes());
                 } catch (IOException e) {
-                    Log.e(TAG, "disconnected", e);
-                    connectionLost();
+                    if (mmState.isConnected()) {
+                        Log.e(TAG, "disconnected", e);
+                    }
                     break;
                 }
             }
+
+            boolean lost = mmState.markClosed() == ConnectionState.CONNECTED;
+            if (serviceConnectedThread.remove(macAddress, this)) {
+                mmStats.setState(Constants.STATE_NONE);
+            }
+            MeshRouter.getInstance().linkDown(this);
+            if (lost) {
+                connectionLost();
+            } else {
+                updateUserInterfaceTitle();
+            }
+        }
+
+        @Override
+        public String getAddress() {
+            return macAddress;
+        }
+
+        @Override
+        public CutThrough.Sink open(byte[] header) {
+            if (mmChannel != null || !mmState.isConnected()) {
+                return null;
+            }
+            return CutThrough.Sink.open(getAddress(), mmOutStream, mmWriteLock, mmStats, header);
+        }
+
+        @Override
+        public void send(Frame frame) {
+            if (frame.isTraced()) {
+                frame = Tracer.getInstance().stamp(frame);
+            }
+            write(frame.getEncoded());
+        }
+
+        public void write(byte[] buffer) {
+            write(buffer, false);
         }
 
         /**
          * Write to the connected OutStream.
          *
-         * @param buffer The bytes to write
+         * @param buffer     The bytes to write
+         * @param isUpdateUI 本机发出的消息，计入界面的发送统计
          */
-        public void write(byte[] buffer) {
+        public void write(byte[] buffer, boolean isUpdateUI) {
             try {
-                mmOutStream.write(buffer);
-                Log.e(TAG, "write message:" + new String(buffer));
+                //多个线程会同时向同一条链路写帧，必须整帧写出
+                if (mmChannel != null) {
+                    mmChannel.write(mmOutStream, buffer);
+                } else {
+                    mmWriteLock.lock();
+                    try {
+                        mmOutStream.write(buffer);
+                    } finally {
+                        mmWriteLock.unlock();
+                    }
+                }
+                mmStats.addBytesOut(buffer.length);
+                TrafficCapture.getInstance().record(getAddress(), TrafficCapture.DIRECTION_OUT, buffer);
+
+                if (isUpdateUI) {
+                    MeshEvents.getInstance().postWritten(buffer.length);
+                }
             } catch (IOException e) {
                 Log.e(TAG, "Exception during write", e);
             }
         }
 
+        /**
+         * 主动断开，不触发connectionLost
+         */
+        public void close() {
+            if (mmState.beginClose()) {
+                mmStats.setState(Constants.STATE_NONE);
+                cancel();
+            }
+        }
+
         public void cancel() {
             try {
                 mmSocket.close();
@@ -0,0 +1,153 @@
+package com.tfkj.meeting.meeting.service;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * 节点通告的承载能力，用于选举中心节点
+ *
+ * <pre>
+ *  0  address     17 bytes 发起节点的MAC地址，由第一跳邻居填写
+ * 17  battery      1 byte  电量百分比
+ * 18  charging     1 byte
+ * 19  cpuClass     1 byte  CPU核数
+ * 20  peerCount    2 bytes 接入的客户端数
+ * 22  throughput   4 bytes 链路实测峰值吞吐，字节/秒
+ * 26  linkCount    2 bytes 作为客户端和服务端的链路总数
+ * </pre>
+ */
+public class Capacity {
+
+    public static final int ENCODED_LENGTH = 28;
+    private static final int ADDRESS_LENGTH = 17;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final long nodeId;
+    private final String address;
+    private final int battery;
+    private final boolean charging;
+    private final int cpuClass;
+    private final int peerCount;
+    private final int throughput;
+    private final int linkCount;
+    private final long updatedAt;
+
+    public Capacity(long nodeId, String address, int battery, boolean charging, int cpuClass,
+                    int peerCount, int throughput, int linkCount, long updatedAt) {
+        this.nodeId = nodeId;
+        this.address = address;
+        this.battery = battery;
+        this.charging = charging;
+        this.cpuClass = cpuClass;
+        this.peerCount = peerCount;
+        this.throughput = throughput;
+        this.linkCount = linkCount;
+        this.updatedAt = updatedAt;
+    }
+
+    public long getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * @return MAC地址，本机或尚未经过第一跳时为null
+     */
+    public String getAddress() {
+        return address;
+    }
+
+    public int getBattery() {
+        return battery;
+    }
+
+    public boolean isCharging() {
+        return charging;
+    }
+
+    public int getCpuClass() {
+        return cpuClass;
+    }
+
+    public int getPeerCount() {
+        return peerCount;
+    }
+
+    public int getThroughput() {
+        return throughput;
+    }
+
+    /**
+     * @return 链路总数，为1时它只靠一条链路与全网相连
+     */
+    public int getLinkCount() {
+        return linkCount;
+    }
+
+    public long getUpdatedAt() {
+        return updatedAt;
+    }
+
+    /**
+     * 承载能力评分，越高越适合做中心节点。
+     * 电量（充电时按满电）占主要部分，其次是CPU核数和链路吞吐；不含当前负载，负载是选举的结果。
+     */
+    public int score() {
+        int power = charging ? 100 : battery;
+        int cpu = Math.min(cpuClass, 8) * 5;
+        // 每4KB/s记1分，最多40分
+        int link = Math.min(throughput / 4096, 40);
+        return power + cpu + link;
+    }
+
+    public byte[] encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(ENCODED_LENGTH);
+        byte[] addressBytes = new byte[ADDRESS_LENGTH];
+        if (address != null) {
+            System.arraycopy(address.getBytes(ASCII), 0, addressBytes, 0, ADDRESS_LENGTH);
+        }
+        buffer.put(addressBytes)
+                .put((byte) battery)
+                .put((byte) (charging ? 1 : 0))
+                .put((byte) cpuClass)
+                .putShort((short) peerCount)
+                .putInt(throughput)
+                .putShort((short) linkCount);
+        return buffer.array();
+    }
+
+    /**
+     * @return 负载不完整时为null
+     */
+    public static Capacity decode(long nodeId, byte[] payload, long now) {
+        if (payload.length < ENCODED_LENGTH) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        byte[] addressBytes = new byte[ADDRESS_LENGTH];
+        buffer.get(addressBytes);
+        String address = addressBytes[0] == 0 ? null : new String(addressBytes, ASCII);
+        int battery = buffer.get() & 0xFF;
+        boolean charging = buffer.get() != 0;
+        int cpuClass = buffer.get() & 0xFF;
+        int peerCount = buffer.getShort() & 0xFFFF;
+        int throughput = buffer.getInt();
+        int linkCount = buffer.getShort() & 0xFFFF;
+        return new Capacity(nodeId, address, battery, charging, cpuClass, peerCount, throughput, linkCount, now);
+    }
+
+    /**
+     * @return 还没有填写地址的通告，即刚从发起节点发出
+     */
+    public static boolean hasNoAddress(byte[] buffer, int offset) {
+        return buffer.length >= offset + ADDRESS_LENGTH && buffer[offset] == 0;
+    }
+
+    /**
+     * 第一跳邻居填写发起节点的地址
+     */
+    public static byte[] withAddress(byte[] payload, String address) {
+        byte[] copy = payload.clone();
+        System.arraycopy(address.getBytes(ASCII), 0, copy, 0, ADDRESS_LENGTH);
+        return copy;
+    }
+}
@@ -0,0 +1,308 @@
+package com.tfkj.meeting.meeting.service;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * 网内的时钟同步。
+ *
+ * 与每个邻居定期交换带时间戳的探测（与NTP相同的四个时间戳），得到本机到邻居时钟的偏移和往返时延。
+ * 每个邻居保留最近WINDOW个样本，只用时延最小的四分之一估计：时延高的样本多是单向排队，往返不对称，偏移不可信。
+ * 对这些样本做最小二乘拟合，得到偏移和频差。
+ *
+ * 全网以节点ID最小的节点为参考时钟。与NTP的分层相同，每个节点从层级最低的邻居换算出自己到参考时钟的偏移，
+ * 层级为邻居的层级加一；作为某个邻居的时钟源时，回复中告知对方不要反过来以本机为源。
+ * 层级超过MAX_STRATUM视为不可达，参考节点离开后旧的参考不会在环路中一直留存。
+ *
+ * 时间都是纳秒，本地时钟由调用方提供，需要是单调的。
+ *
+ * <pre>
+ * probe := t1:8
+ * reply := t1:8 t2:8 t3:8 reference:8 stratum:1 flags:1 offset:8 error:8
+ * </pre>
+ */
+public class ClockSync {
+
+    public static final int MAX_STRATUM = 15;
+    // 每个邻居保留的样本数，按2秒一次探测约覆盖2分钟
+    static final int WINDOW = 64;
+    // 参与估计的样本数
+    static final int FILTERED = WINDOW / 4;
+    // 拟合频差需要的最短样本跨度
+    static final long MIN_SKEW_SPAN_NANOS = 10000000000L;
+    // 晶振的频差不会超过这个范围，超出时视为拟合失败
+    static final double MAX_SKEW = 500e-6;
+    // 超过此时间没有回复的邻居不再作为时钟源
+    public static final long STALE_NANOS = 30000000000L;
+
+    static final int PROBE_LENGTH = 8;
+    static final int REPLY_LENGTH = 8 * 4 + 2 + 8 * 2;
+    static final int FLAG_YOUR_SOURCE = 1;
+
+    /**
+     * 一个邻居的样本和它报告的参考时钟
+     */
+    private static class Peer {
+        final long[] times = new long[WINDOW];
+        final long[] offsets = new long[WINDOW];
+        final long[] delays = new long[WINDOW];
+        int count;
+        int next;
+        long lastReply;
+
+        long reference;
+        int stratum;
+        boolean poisoned;
+        // 邻居时钟加上此值为参考时间
+        long referenceOffset;
+        long referenceError;
+
+        // 拟合结果：offsetAt(t) = offset + skew * (t - anchor)
+        long anchor;
+        double offset;
+        double skew;
+        long error;
+
+        void add(long time, long sampleOffset, long delay) {
+            times[next] = time;
+            offsets[next] = sampleOffset;
+            delays[next] = delay;
+            next = (next + 1) % WINDOW;
+            count = Math.min(count + 1, WINDOW);
+            fit(time);
+        }
+
+        private void fit(long now) {
+            //时延最小的FILTERED个样本，时延相同时都保留
+            long[] sorted = Arrays.copyOf(delays, count);
+            Arrays.sort(sorted);
+            long limit = sorted[Math.min(count, FILTERED) - 1];
+            //以秒为单位拟合，避免纳秒的平方溢出精度
+            double n = 0;
+            double sx = 0;
+            double sy = 0;
+            double sxx = 0;
+            double sxy = 0;
+            long first = now;
+            for (int i = 0; i < count; i++) {
+                if (delays[i] > limit) {
+                    continue;
+                }
+                double x = (times[i] - now) / 1e9;
+                double y = offsets[i];
+                n++;
+                sx += x;
+                sy += y;
+                sxx += x * x;
+                sxy += x * y;
+                first = Math.min(first, times[i]);
+            }
+            anchor = now;
+            double variance = n * sxx - sx * sx;
+            double slope = 0;
+            if (n >= 3 && now - first >= MIN_SKEW_SPAN_NANOS && variance > 0) {
+                slope = (n * sxy - sx * sy) / variance;
+                if (Math.abs(slope) > MAX_SKEW * 1e9) {
+                    slope = 0;
+                }
+            }
+            skew = slope / 1e9;
+            offset = (sy - slope * sx) / n;
+
+            double residual = 0;
+            for (int i = 0; i < count; i++) {
+                if (delays[i] <= limit) {
+                    double r = offsets[i] - (offset + slope * (times[i] - now) / 1e9);
+                    residual += r * r;
+                }
+            }
+            error = (long) Math.sqrt(residual / n);
+        }
+
+        long offsetAt(long time) {
+            return Math.round(offset + skew * (time - anchor));
+        }
+    }
+
+    private final long nodeId;
+    private final HashMap<String, Peer> peers = new HashMap<>();
+    private String source;
+    private long reference;
+    private int stratum;
+
+    public ClockSync(long nodeId) {
+        this.nodeId = nodeId;
+        reference = nodeId;
+    }
+
+    public static byte[] encodeProbe(long now) {
+        return ByteBuffer.allocate(PROBE_LENGTH).putLong(now).array();
+    }
+
+    /**
+     * 响应邻居的探测
+     *
+     * @param address  邻居的地址
+     * @param received 收到探测时的本地时间
+     * @param now      发送回复时的本地时间
+     */
+    public synchronized byte[] reply(String address, byte[] probe, long received, long now) {
+        ByteBuffer buffer = ByteBuffer.allocate(REPLY_LENGTH);
+        buffer.putLong(ByteBuffer.wrap(probe).getLong());
+        buffer.putLong(received);
+        buffer.putLong(now);
+        buffer.putLong(reference);
+        buffer.put((byte) stratum);
+        buffer.put((byte) (address.equals(source) ? FLAG_YOUR_SOURCE : 0));
+        buffer.putLong(getReferenceOffset(now));
+        buffer.putLong(getErrorNanos());
+        return buffer.array();
+    }
+
+    /**
+     * 收到探测的回复，更新对这个邻居的估计并重新选择时钟源
+     *
+     * @param now 收到回复时的本地时间
+     */
+    public synchronized void onReply(String address, byte[] data, long now) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long t1 = buffer.getLong();
+        long t2 = buffer.getLong();
+        long t3 = buffer.getLong();
+        long delay = (now - t1) - (t3 - t2);
+        if (delay < 0) {
+            return;
+        }
+        Peer peer = peers.get(address);
+        if (peer == null) {
+            peer = new Peer();
+            peers.put(address, peer);
+        }
+        peer.reference = buffer.getLong();
+        peer.stratum = buffer.get() & 0xFF;
+        peer.poisoned = (buffer.get() & FLAG_YOUR_SOURCE) != 0;
+        peer.referenceOffset = buffer.getLong();
+        peer.referenceError = buffer.getLong();
+        peer.lastReply = now;
+        //邻居时钟 - 本地时钟，取往返的中点
+        peer.add(now, ((t2 - t1) + (t3 - now)) / 2, delay);
+        select(now);
+    }
+
+    /**
+     * 链路断开
+     */
+    public synchronized void remove(String address, long now) {
+        peers.remove(address);
+        select(now);
+    }
+
+    /**
+     * 定期调用，丢弃长时间没有回复的邻居
+     */
+    public synchronized void expire(long now) {
+        Iterator<Map.Entry<String, Peer>> it = peers.entrySet().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().getValue().lastReply > STALE_NANOS) {
+                it.remove();
+            }
+        }
+        select(now);
+    }
+
+    /**
+     * 选择参考ID最小、层级最低、误差最小的邻居作为时钟源，都不比本机好时本机即为参考时钟
+     */
+    private void select(long now) {
+        String best = null;
+        Peer bestPeer = null;
+        for (Map.Entry<String, Peer> entry : peers.entrySet()) {
+            Peer peer = entry.getValue();
+            if (peer.poisoned || peer.stratum >= MAX_STRATUM || peer.reference >= nodeId
+                    || now - peer.lastReply > STALE_NANOS) {
+                continue;
+            }
+            if (bestPeer == null || peer.reference < bestPeer.reference
+                    || (peer.reference == bestPeer.reference && (peer.stratum < bestPeer.stratum
+                    || (peer.stratum == bestPeer.stratum
+                    && peer.error + peer.referenceError < bestPeer.error + bestPeer.referenceError)))) {
+                best = entry.getKey();
+                bestPeer = peer;
+            }
+        }
+        source = best;
+        if (bestPeer == null) {
+            reference = nodeId;
+            stratum = 0;
+        } else {
+            reference = bestPeer.reference;
+            stratum = bestPeer.stratum + 1;
+        }
+    }
+
+    /**
+     * @return 本地时间加上此值为参考时间
+     */
+    public synchronized long getReferenceOffset(long now) {
+        Peer peer = source == null ? null : peers.get(source);
+        return peer == null ? 0 : peer.offsetAt(now) + peer.referenceOffset;
+    }
+
+    /**
+     * 本地时间换算为全网的参考时间
+     */
+    public synchronized long toReference(long local) {
+        return local + getReferenceOffset(local);
+    }
+
+    /**
+     * 参考时间换算为本地时间
+     */
+    public synchronized long fromReference(long referenceTime) {
+        return referenceTime - getReferenceOffset(referenceTime - getReferenceOffset(referenceTime));
+    }
+
+    /**
+     * 每跳的误差取参与估计的样本相对拟合结果的均方根，反映排队抖动；
+     * 链路固定的单向时延差无法从往返测量中得知，不包含在内
+     *
+     * @return 到参考时钟的误差估计，为路径上各跳误差之和
+     */
+    public synchronized long getErrorNanos() {
+        Peer peer = source == null ? null : peers.get(source);
+        return peer == null ? 0 : peer.error + peer.referenceError;
+    }
+
+    /**
+     * @return 本机相对时钟源的频差，百万分之一
+     */
+    public synchronized double getSkewPpm() {
+        Peer peer = source == null ? null : peers.get(source);
+        return peer == null ? 0 : peer.skew * 1e6;
+    }
+
+    public synchronized long getReference() {
+        return reference;
+    }
+
+    /**
+     * @return 0表示本机即为参考时钟
+     */
+    public synchronized int getStratum() {
+        return stratum;
+    }
+
+    /**
+     * @return 当前的时钟源邻居，本机为参考时钟时为null
+     */
+    public synchronized String getSource() {
+        return source;
+    }
+
+    public long getNodeId() {
+        return nodeId;
+    }
+}
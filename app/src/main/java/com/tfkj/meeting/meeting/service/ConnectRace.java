@@ -0,0 +1,239 @@
+package com.tfkj.meeting.meeting.service;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 错开尝试Secure和Insecure两种RFCOMM连接，保留先成功的一种，关闭另一种。
+ *
+ * 先尝试的方式staggerMs内没有结果时开始另一种，两种同时进行；先尝试的方式失败时立即开始另一种。
+ * 落败的一方正在连接时取消，已经连上时直接关闭；客户端在保留的连接上先发出Frame.TYPE_LINK_KEPT，服务端只接入这一条。
+ * 状态机本身不创建线程也不计时：连接、取消和结果通知由Callback完成，staggerMs到期时调用onTimer。
+ */
+public class ConnectRace {
+
+    public static final int SECURE = 0;
+    public static final int INSECURE = 1;
+
+    // 只在先尝试的方式失败后才开始另一种
+    public static final long NO_STAGGER = -1;
+
+    /**
+     * 所有回调都在持有ConnectRace锁时调用，不能阻塞
+     */
+    public interface Callback {
+        /**
+         * 开始一种方式的连接，结果通过onConnected或onFailed通知
+         */
+        void start(int mode);
+
+        /**
+         * 取消正在进行的连接，或关闭落败后才连上的连接
+         */
+        void cancel(int mode);
+
+        void onWon(int mode);
+
+        /**
+         * 两种方式都失败，或被cancel()取消
+         */
+        void onFailed();
+    }
+
+    private static final int IDLE = 0;
+    private static final int RUNNING = 1;
+    private static final int FAILED = 2;
+    private static final int CONNECTED = 3;
+    private static final int CANCELLED = 4;
+
+    private final int first;
+    private final long staggerMs;
+    private final Callback callback;
+    private final int[] states = new int[2];
+    private boolean finished;
+    private int winner = -1;
+
+    /**
+     * @param first     先尝试的方式
+     * @param staggerMs 先尝试的方式这么久没有结果时开始另一种，NO_STAGGER表示只在失败后开始
+     */
+    public ConnectRace(int first, long staggerMs, Callback callback) {
+        this.first = first;
+        this.staggerMs = staggerMs;
+        this.callback = callback;
+    }
+
+    public static String nameOf(int mode) {
+        return mode == SECURE ? "Secure" : "Insecure";
+    }
+
+    public long getStaggerMs() {
+        return staggerMs;
+    }
+
+    public synchronized void start() {
+        if (finished) {
+            return;
+        }
+        if (states[first] == IDLE) {
+            begin(first);
+        } else if (states[1 - first] == IDLE) {
+            //先尝试的方式已被禁用
+            begin(1 - first);
+        }
+    }
+
+    /**
+     * 禁用一种方式，在start()前调用：这种方式不会开始，另一种失败时直接结束
+     */
+    public synchronized void disable(int mode) {
+        if (states[mode] == IDLE) {
+            states[mode] = FAILED;
+        }
+    }
+
+    /**
+     * staggerMs到期
+     */
+    public synchronized void onTimer() {
+        if (!finished && states[1 - first] == IDLE) {
+            begin(1 - first);
+        }
+    }
+
+    public synchronized void onConnected(int mode) {
+        if (finished || states[mode] != RUNNING) {
+            //已经有一方胜出或已取消，后连上的关闭
+            states[mode] = CANCELLED;
+            callback.cancel(mode);
+            return;
+        }
+        states[mode] = CONNECTED;
+        finished = true;
+        winner = mode;
+        if (states[1 - mode] == RUNNING) {
+            states[1 - mode] = CANCELLED;
+            callback.cancel(1 - mode);
+        }
+        callback.onWon(mode);
+    }
+
+    public synchronized void onFailed(int mode) {
+        if (states[mode] != RUNNING) {
+            return;
+        }
+        states[mode] = FAILED;
+        if (finished) {
+            return;
+        }
+        int other = 1 - mode;
+        if (states[other] == IDLE) {
+            begin(other);
+        } else if (states[other] == FAILED) {
+            finished = true;
+            callback.onFailed();
+        }
+    }
+
+    /**
+     * 放弃连接，取消正在进行的尝试
+     */
+    public synchronized void cancel() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        for (int mode = 0; mode < 2; mode++) {
+            if (states[mode] == RUNNING) {
+                states[mode] = CANCELLED;
+                callback.cancel(mode);
+            }
+        }
+        callback.onFailed();
+    }
+
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @return 胜出的方式，尚未胜出时为-1
+     */
+    public synchronized int getWinner() {
+        return winner;
+    }
+
+    private void begin(int mode) {
+        states[mode] = RUNNING;
+        callback.start(mode);
+    }
+
+    /**
+     * 记住每台设备上次胜出的方式，下次直接使用，失败时再尝试另一种
+     */
+    public static class Memory {
+        private final ConcurrentHashMap<String, Integer> winners = new ConcurrentHashMap<>();
+
+        /**
+         * 按当前配置创建：优先Secure且开启错开尝试时使用配置的错开时间；没有会议口令时禁用Insecure。
+         * 每次连接都重新读取配置，会议中设置口令后新的连接即可使用Insecure
+         *
+         * @param secure 优先使用Secure连接
+         */
+        public ConnectRace create(String address, boolean secure, MeshConfig config, Callback callback) {
+            //Insecure优先时不提前尝试Secure，未配对的设备上Secure连接会弹出配对对话框
+            long stagger = secure && config.isConnectRace() ? config.getConnectStaggerMs() : NO_STAGGER;
+            ConnectRace race = create(address, secure ? SECURE : INSECURE, stagger, callback);
+            if (!config.isInsecureRfcommAllowed()) {
+                //没有会议口令时Insecure连接可被中间人冒充，Secure失败后也不改用
+                race.disable(INSECURE);
+            }
+            return race;
+        }
+
+        /**
+         * @param preferred 没有记录时先尝试的方式
+         * @param staggerMs 没有记录时另一种方式的延后时间
+         */
+        public ConnectRace create(final String address, int preferred, long staggerMs, final Callback callback) {
+            Integer remembered = winners.get(address);
+            Callback recording = new Callback() {
+                @Override
+                public void start(int mode) {
+                    callback.start(mode);
+                }
+
+                @Override
+                public void cancel(int mode) {
+                    callback.cancel(mode);
+                }
+
+                @Override
+                public void onWon(int mode) {
+                    winners.put(address, mode);
+                    callback.onWon(mode);
+                }
+
+                @Override
+                public void onFailed() {
+                    callback.onFailed();
+                }
+            };
+            if (remembered != null) {
+                return new ConnectRace(remembered, NO_STAGGER, recording);
+            }
+            return new ConnectRace(preferred, staggerMs, recording);
+        }
+
+        /**
+         * @return 上次胜出的方式，没有记录时为-1
+         */
+        public int get(String address) {
+            Integer remembered = winners.get(address);
+            return remembered == null ? -1 : remembered;
+        }
+
+        public void forget(String address) {
+            winners.remove(address);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.tfkj.meeting.meeting.service;
+
+import com.tfkj.meeting.meeting.Constants;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 单条连接的生命周期：CONNECTING → CONNECTED → CLOSING → CLOSED，只能向后变化。
+ *
+ * 每条连接从开始连接（或accept）起持有自己的状态，通信线程只根据自己的状态决定是否继续读取；
+ * 状态变化通过CAS完成，多个线程同时关闭同一条连接时只有一个生效。
+ * SService、CService的整体状态由各条连接的状态汇总得出。
+ */
+public final class ConnectionState {
+    public static final int CONNECTING = 0;
+    public static final int CONNECTED = 1;
+    // 本机主动关闭，等待通信线程退出
+    public static final int CLOSING = 2;
+    public static final int CLOSED = 3;
+
+    private final AtomicInteger state = new AtomicInteger(CONNECTING);
+
+    public int get() {
+        return state.get();
+    }
+
+    public boolean isConnected() {
+        return state.get() == CONNECTED;
+    }
+
+    /**
+     * CONNECTING → CONNECTED
+     *
+     * @return 连接在此之前已被关闭时返回false
+     */
+    public boolean markConnected() {
+        return state.compareAndSet(CONNECTING, CONNECTED);
+    }
+
+    /**
+     * 主动关闭：CONNECTING或CONNECTED → CLOSING
+     *
+     * @return 本次调用发起了关闭时返回true，已在关闭时返回false
+     */
+    public boolean beginClose() {
+        while (true) {
+            int current = state.get();
+            if (current >= CLOSING) {
+                return false;
+            }
+            if (state.compareAndSet(current, CLOSING)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 通信线程退出或连接失败时调用
+     *
+     * @return 之前的状态：CONNECTED表示连接意外断开，CLOSING表示主动关闭
+     */
+    public int markClosed() {
+        return state.getAndSet(CLOSED);
+    }
+
+    /**
+     * 汇总多条连接的状态
+     *
+     * @param idleState 没有任何连接时的状态，如Constants.STATE_LISTEN
+     * @return 有已建立的连接时为Constants.STATE_CONNECTED，有正在建立的连接时为Constants.STATE_CONNECTING，否则为idleState
+     */
+    public static int aggregate(Iterable<ConnectionState> states, int idleState) {
+        boolean connecting = false;
+        for (ConnectionState connection : states) {
+            int current = connection.get();
+            if (current == CONNECTED) {
+                return Constants.STATE_CONNECTED;
+            }
+            connecting |= current == CONNECTING;
+        }
+        return connecting ? Constants.STATE_CONNECTING : idleState;
+    }
+
+    @Override
+    public String toString() {
+        switch (state.get()) {
+            case CONNECTING:
+                return "CONNECTING";
+            case CONNECTED:
+                return "CONNECTED";
+            case CLOSING:
+                return "CLOSING";
+            default:
+                return "CLOSED";
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.tfkj.meeting.meeting.service;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 控制帧负载的编解码
+ */
+public class ControlCodec {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    // MAC地址的字符串长度，如 00:11:22:33:44:55
+    private static final int ADDRESS_LENGTH = 17;
+
+    private ControlCodec() {
+    }
+
+    /**
+     * 重定向：1字节数量 + 若干个17字节的MAC地址
+     */
+    public static byte[] encodeRedirect(List<String> addresses) {
+        int count = Math.min(addresses.size(), 255);
+        ByteBuffer buffer = ByteBuffer.allocate(1 + count * ADDRESS_LENGTH);
+        buffer.put((byte) count);
+        for (int i = 0; i < count; i++) {
+            buffer.put(addresses.get(i).getBytes(ASCII), 0, ADDRESS_LENGTH);
+        }
+        return buffer.array();
+    }
+
+    public static List<String> decodeRedirect(byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        int count = buffer.get() & 0xFF;
+        ArrayList<String> addresses = new ArrayList<>(count);
+        byte[] address = new byte[ADDRESS_LENGTH];
+        for (int i = 0; i < count && buffer.remaining() >= ADDRESS_LENGTH; i++) {
+            buffer.get(address);
+            addresses.add(new String(address, ASCII));
+        }
+        return addresses;
+    }
+
+    /**
+     * 负载通告：当前接入的客户端数
+     */
+    public static byte[] encodeLoad(int peerCount) {
+        return ByteBuffer.allocate(4).putInt(peerCount).array();
+    }
+
+    public static int decodeLoad(byte[] payload) {
+        return ByteBuffer.wrap(payload).getInt();
+    }
+
+    /**
+     * 探测：发送时的System.nanoTime()，对端原样返回
+     */
+    public static byte[] encodePing(long nanoTime) {
+        return ByteBuffer.allocate(8).putLong(nanoTime).array();
+    }
+
+    public static long rttMillis(byte[] pongPayload, long nowNanos) {
+        return (nowNanos - ByteBuffer.wrap(pongPayload).getLong()) / 1000000;
+    }
+}
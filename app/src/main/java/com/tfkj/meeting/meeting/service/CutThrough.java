@@ -0,0 +1,320 @@
+package com.tfkj.meeting.meeting.service;
+
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 中继节点的直通转发。
+ *
+ * 存储转发时中继节点收完整帧才开始发送，每一跳都多一整帧的传输时间，大帧的延迟随跳数线性增加。
+ * 这里读完帧头、确定要转发后，负载每收到一块就写给下游链路，整帧期间一直持有下游链路的写锁。
+ * 发出的帧带FLAG_STREAMED，负载之后跟一个状态字节；上游在帧中间断开时，剩余部分补0并写STREAM_ABORTED，
+ * 下游丢弃这一帧，链路本身不受影响。
+ *
+ * 只用于未加密的链路（加密按整帧计算认证标签），不用于要按负载决定去向或修改负载的帧、追踪的帧和概率转发，
+ * 开启路由线程时也不使用。
+ * 写锁正被占用的链路在收完后按原方式发送，不等待，也就不会互相等待写锁。
+ * 上游停顿超过FanOut的期限时不再占着下游：对已写出的部分写STREAM_ABORTED并释放写锁，收完后按原方式发送。
+ */
+public class CutThrough {
+    private static final String TAG = "CutThrough";
+
+    // 每次最多转发的字节数
+    static final int CHUNK = 1024;
+
+    /**
+     * 可以直通写入的链路，由ConnectedThread实现
+     */
+    interface Streamable {
+        /**
+         * @param header 带FLAG_STREAMED的帧头
+         * @return 已写入帧头的Sink；链路加密、已关闭或写锁被占用时返回null
+         */
+        Sink open(byte[] header);
+    }
+
+    /**
+     * 一次直通写入，从open到complete或abort期间持有链路的写锁
+     */
+    public static class Sink {
+        private final String address;
+        private final OutputStream out;
+        private final ReentrantLock lock;
+        private final LinkStats stats;
+        private boolean failed;
+        private boolean released;
+        private boolean completed;
+
+        private Sink(String address, OutputStream out, ReentrantLock lock, LinkStats stats) {
+            this.address = address;
+            this.out = out;
+            this.lock = lock;
+            this.stats = stats;
+        }
+
+        /**
+         * @param stats 可为null
+         * @return 写锁被占用或写帧头失败时返回null
+         */
+        public static Sink open(String address, OutputStream out, ReentrantLock lock, LinkStats stats,
+                                byte[] header) {
+            if (!lock.tryLock()) {
+                return null;
+            }
+            try {
+                out.write(header);
+                return new Sink(address, out, lock, stats);
+            } catch (IOException e) {
+                Log.e(TAG, "write header to " + address + " failed", e);
+                lock.unlock();
+                return null;
+            }
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        void write(byte[] buffer, int offset, int length) {
+            if (failed) {
+                return;
+            }
+            try {
+                out.write(buffer, offset, length);
+            } catch (IOException e) {
+                //下游断开，由它的通信线程处理，这里只停止写入
+                Log.e(TAG, "write to " + address + " failed", e);
+                failed = true;
+            }
+        }
+
+        /**
+         * @return 整帧都已直通写出，不需要再发送
+         */
+        boolean isCompleted() {
+            return completed;
+        }
+
+        /**
+         * 写入完成状态并释放写锁
+         */
+        void complete(byte[] encoded) {
+            if (released) {
+                return;
+            }
+            released = true;
+            completed = true;
+            try {
+                write(new byte[]{Frame.STREAM_COMPLETE}, 0, 1);
+                if (!failed) {
+                    if (stats != null) {
+                        stats.addBytesOut(encoded.length + 1);
+                    }
+                    TrafficCapture.getInstance().record(address, TrafficCapture.DIRECTION_OUT, encoded);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 补齐剩余的负载，写入中断状态并释放写锁
+         *
+         * @param remaining 还没有写出的负载字节数
+         */
+        void abort(int remaining) {
+            if (released) {
+                return;
+            }
+            released = true;
+            try {
+                byte[] zeros = new byte[Math.min(remaining, CHUNK)];
+                while (remaining > 0 && !failed) {
+                    int n = Math.min(remaining, zeros.length);
+                    write(zeros, 0, n);
+                    remaining -= n;
+                }
+                write(new byte[]{Frame.STREAM_ABORTED}, 0, 1);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private CutThrough() {
+    }
+
+    /**
+     * 从未加密的链路读取一帧，可以直通转发时边收边转发
+     *
+     * @return 帧，上游中断的直通帧返回null；直通转发过的帧带getStreamedTo()，MeshRouter只再发给其余链路
+     * @throws IOException 链路断开或收到无法识别的数据
+     */
+    static Frame read(DataInputStream in, Link from) throws IOException {
+        byte[] header = Frame.readHeader(in);
+        if (!isEligible(header)) {
+            return Frame.readRest(header, in);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        long origin = buffer.getLong(4);
+        int seq = buffer.getInt(12);
+        MeshRouter router = MeshRouter.getInstance();
+        if (!router.admitStreamed(origin, seq, header[2], Frame.HEADER_LENGTH + Frame.lengthOf(header), from)) {
+            return Frame.readRest(header, in);
+        }
+
+        byte[] streamed = header.clone();
+        streamed[3] |= Frame.FLAG_STREAMED;
+        String exclude = from.getAddress();
+        ArrayList<FanOut.Lane> lanes = SService.getInstance().getLanes(exclude);
+        lanes.addAll(CService.getInstance().getLanes(exclude));
+        List<Sink> sinks = new ArrayList<>(lanes.size());
+        for (FanOut.Lane lane : lanes) {
+            if (lane.getLink() instanceof Streamable) {
+                Sink sink = ((Streamable) lane.getLink()).open(streamed);
+                if (sink != null) {
+                    sinks.add(sink);
+                }
+            }
+        }
+
+        Frame frame;
+        try {
+            frame = stream(header, in, sinks, MeshConfig.getInstance().getFanOutDeadlineMs());
+        } catch (IOException e) {
+            //这一帧没有收完，之后从其他链路收到时重新处理
+            router.getSeenCache().forget(origin, seq);
+            throw e;
+        }
+        if (frame == null) {
+            router.getSeenCache().forget(origin, seq);
+            return null;
+        }
+        List<String> addresses = new ArrayList<>(sinks.size());
+        for (Sink sink : sinks) {
+            if (sink.isCompleted()) {
+                addresses.add(sink.getAddress());
+            }
+        }
+        frame.markStreamed(addresses);
+        return frame;
+    }
+
+    /**
+     * 帧头是否允许直通转发：达到长度阈值、全网转发且负载原样转发给所有邻居。
+     * 直通要在通信线程中去重和限速，开启路由线程时不使用，所有转发决定都在路由线程中进行
+     */
+    private static boolean isEligible(byte[] header) {
+        MeshConfig config = MeshConfig.getInstance();
+        byte type = header[2];
+        return config.isCutThrough()
+                && !RoutingStage.getInstance().isRunning()
+                && Frame.lengthOf(header) >= config.getCutThroughMinBytes()
+                && (header[3] & Frame.FLAG_TRACED) == 0
+                && config.getGossipFanout() == 0
+                && MeshRouter.getInstance().isRouted(type)
+                && type != Frame.TYPE_ADVERT
+                && type != Frame.TYPE_TOPIC;
+    }
+
+    /**
+     * 读取负载，每收到一块就写给所有Sink，结束后Sink都已释放。
+     * 上游超过stallMs没有新数据时提前中断所有Sink，之后只收完这一帧
+     *
+     * @param header  已读取的帧头
+     * @param stallMs 持有下游写锁时等待上游数据的最长时间
+     * @return 收完的帧，没有直通写完的Sink的isCompleted()为false；上游中断的直通帧返回null，下游同样收到中断状态
+     * @throws IOException 上游在帧中间断开，下游已收到中断状态
+     */
+    static Frame stream(byte[] header, DataInputStream in, List<Sink> sinks, long stallMs) throws IOException {
+        byte[] encoded = new byte[Frame.HEADER_LENGTH + Frame.lengthOf(header)];
+        System.arraycopy(header, 0, encoded, 0, Frame.HEADER_LENGTH);
+        int offset = Frame.HEADER_LENGTH;
+        boolean holding = !sinks.isEmpty();
+        Frame frame = null;
+        try {
+            while (offset < encoded.length) {
+                if (holding && !awaitData(in, stallMs)) {
+                    holding = false;
+                    release(sinks, encoded.length - offset);
+                }
+                int n = in.read(encoded, offset, Math.min(CHUNK, encoded.length - offset));
+                if (n < 0) {
+                    throw new EOFException("stream ended in frame payload");
+                }
+                if (holding) {
+                    for (Sink sink : sinks) {
+                        sink.write(encoded, offset, n);
+                    }
+                }
+                offset += n;
+            }
+            boolean streamedIn = (header[3] & Frame.FLAG_STREAMED) != 0;
+            if (streamedIn && holding && !awaitData(in, stallMs)) {
+                holding = false;
+                release(sinks, 0);
+            }
+            boolean upstreamAborted = streamedIn && in.readByte() != Frame.STREAM_COMPLETE;
+            if (!upstreamAborted) {
+                encoded[3] &= ~Frame.FLAG_STREAMED;
+                frame = Frame.parse(encoded);
+            }
+        } catch (IOException e) {
+            for (Sink sink : sinks) {
+                sink.abort(encoded.length - offset);
+            }
+            throw e;
+        }
+        for (Sink sink : sinks) {
+            if (frame != null) {
+                sink.complete(encoded);
+            } else {
+                sink.abort(0);
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * 上游停顿，中断所有Sink并释放写锁
+     */
+    private static void release(List<Sink> sinks, int remaining) {
+        Log.w(TAG, "upstream stalled, releasing " + sinks.size() + " links");
+        for (Sink sink : sinks) {
+            sink.abort(remaining);
+        }
+    }
+
+    /**
+     * 等待上游有可读的数据，不阻塞在read上
+     *
+     * @return 超过timeoutMs仍没有数据时返回false
+     */
+    private static boolean awaitData(InputStream in, long timeoutMs) throws IOException {
+        if (in.available() > 0) {
+            return true;
+        }
+        long deadline = System.nanoTime() + timeoutMs * 1000000L;
+        while (in.available() == 0) {
+            if (System.nanoTime() >= deadline) {
+                return false;
+            }
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+}
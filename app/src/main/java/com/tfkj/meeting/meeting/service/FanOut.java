@@ -0,0 +1,301 @@
+package com.tfkj.meeting.meeting.service;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 并行向多条链路发送同一帧。
+ *
+ * 逐条链路写入时，总耗时是所有链路写入时间之和，排在后面的设备延迟随人数增加；
+ * 这里每条链路有自己的发送队列（Lane），同一链路上的帧保持顺序，不同链路之间并行写入。
+ * 每次发送都有截止时间，超时未写完的链路记入LinkStats.getLateWrites()。
+ * 链路积压时只丢弃实时语音，晚到的语音已无用；控制帧和普通数据丢失后没有重传，总是排队，
+ * 写不动的链路断开后写入立即返回，积压随之清空。
+ */
+public class FanOut {
+    private static final String TAG = "FanOut";
+
+    // 一条链路积压超过此帧数后，新的实时语音帧直接丢弃并记为超时
+    static final int MAX_QUEUED = 64;
+
+    private final ExecutorService writers;
+    private final ScheduledThreadPoolExecutor deadlines;
+
+    private volatile static FanOut instance = null;
+
+    FanOut() {
+        writers = Executors.newCachedThreadPool(new NamedThreadFactory("FanOut"));
+        deadlines = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("FanOutDeadline"));
+        deadlines.setRemoveOnCancelPolicy(true);
+    }
+
+    public static FanOut getInstance() {
+        if (instance == null) {
+            synchronized (FanOut.class) {
+                if (instance == null) {
+                    instance = new FanOut();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 一条链路的发送队列，由ConnectedThread持有
+     */
+    public static class Lane {
+        private final Link link;
+        private final LinkStats stats;
+        private final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicBoolean draining = new AtomicBoolean();
+
+        public Lane(Link link, LinkStats stats) {
+            this.link = link;
+            this.stats = stats;
+        }
+
+        public Link getLink() {
+            return link;
+        }
+
+        /**
+         * @param droppable 积压过多时可以丢弃，只用于实时语音
+         * @return 加入队列时返回true，可丢弃的帧遇到积压过多时返回false
+         */
+        boolean offer(Runnable write, ExecutorService writers, boolean droppable) {
+            if (queued.incrementAndGet() > MAX_QUEUED && droppable) {
+                queued.decrementAndGet();
+                return false;
+            }
+            queue.offer(write);
+            if (draining.compareAndSet(false, true)) {
+                writers.execute(drain);
+            }
+            return true;
+        }
+
+        private final Runnable drain = new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    Runnable write;
+                    while ((write = queue.poll()) != null) {
+                        queued.decrementAndGet();
+                        write.run();
+                    }
+                    draining.set(false);
+                    //释放标记后再检查一次，避免漏掉刚加入的帧
+                    if (queue.isEmpty() || !draining.compareAndSet(false, true)) {
+                        return;
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * 一次发送的完成情况
+     */
+    public static class Result {
+        private final long startNanos = System.nanoTime();
+        private final CountDownLatch done;
+        private final AtomicInteger remaining;
+        private final AtomicBoolean[] finished;
+        private final List<Lane> lanes;
+        private final List<String> late = new ArrayList<>();
+        private volatile long completedNanos = -1;
+        private ScheduledFuture<?> deadline;
+
+        Result(List<Lane> lanes) {
+            this.lanes = lanes;
+            done = new CountDownLatch(lanes.size());
+            remaining = new AtomicInteger(lanes.size());
+            finished = new AtomicBoolean[lanes.size()];
+            for (int i = 0; i < finished.length; i++) {
+                finished[i] = new AtomicBoolean();
+            }
+            if (lanes.isEmpty()) {
+                completedNanos = 0;
+            }
+        }
+
+        /**
+         * 一条链路写完或放弃，每条链路只计一次
+         */
+        void finish(int index, boolean onTime) {
+            if (!finished[index].compareAndSet(false, true)) {
+                return;
+            }
+            if (!onTime) {
+                markLate(index);
+            }
+            //先记录完成时间再放行await，等待方看到的完成时间总是有效的
+            if (remaining.decrementAndGet() > 0) {
+                done.countDown();
+            } else {
+                completedNanos = System.nanoTime() - startNanos;
+                done.countDown();
+                ScheduledFuture<?> pending;
+                synchronized (this) {
+                    pending = deadline;
+                }
+                if (pending != null) {
+                    pending.cancel(false);
+                }
+            }
+        }
+
+        /**
+         * 截止时间到达时仍未写完的链路记为超时，之后写完也不再计入
+         */
+        void expire() {
+            for (int i = 0; i < finished.length; i++) {
+                if (!finished[i].get()) {
+                    markLate(i);
+                }
+            }
+        }
+
+        private void markLate(int index) {
+            Lane lane = lanes.get(index);
+            synchronized (late) {
+                if (late.contains(lane.link.getAddress())) {
+                    return;
+                }
+                late.add(lane.link.getAddress());
+            }
+            if (lane.stats != null) {
+                lane.stats.addLateWrite();
+            }
+        }
+
+        synchronized void setDeadline(ScheduledFuture<?> deadline) {
+            this.deadline = deadline;
+        }
+
+        /**
+         * 等待所有链路写完
+         *
+         * @return 在超时前全部写完时返回true
+         */
+        public boolean await(long timeoutMs) throws InterruptedException {
+            return done.await(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+
+        public boolean isComplete() {
+            return done.getCount() == 0;
+        }
+
+        /**
+         * @return 从发出到所有链路写完的耗时，未写完时为-1
+         */
+        public long getCompletedNanos() {
+            return completedNanos;
+        }
+
+        /**
+         * @return 未在截止时间前写完的链路地址
+         */
+        public List<String> getLate() {
+            synchronized (late) {
+                return new ArrayList<>(late);
+            }
+        }
+    }
+
+    /**
+     * 并行发送
+     *
+     * @param frame      帧
+     * @param lanes      目标链路
+     * @param deadlineMs 每条链路的截止时间，毫秒
+     * @param isUpdateUI 本机发出的消息，计入界面的发送统计
+     */
+    public Result scatter(final Frame frame, Collection<Lane> lanes, long deadlineMs, final boolean isUpdateUI) {
+        final List<Lane> targets = new ArrayList<>(lanes);
+        final Result result = new Result(targets);
+        if (targets.isEmpty()) {
+            return result;
+        }
+        if (frame.isTraced()) {
+            frame.markEnqueued(Tracer.now());
+        }
+        final long deadlineNanos = result.startNanos + TimeUnit.MILLISECONDS.toNanos(deadlineMs);
+        final boolean droppable = RateLimiter.classOf(frame.getType()) == RateLimiter.CLASS_REALTIME;
+        result.setDeadline(deadlines.schedule(new Runnable() {
+            @Override
+            public void run() {
+                result.expire();
+            }
+        }, deadlineMs, TimeUnit.MILLISECONDS));
+
+        for (int i = 0; i < targets.size(); i++) {
+            final int index = i;
+            final Lane lane = targets.get(i);
+            boolean queued = lane.offer(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        lane.link.send(frame);
+                        if (isUpdateUI) {
+                            MeshEvents.getInstance().postWritten(frame.getEncoded().length);
+                        }
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "write to " + lane.link.getAddress() + " failed", e);
+                    }
+                    result.finish(index, System.nanoTime() <= deadlineNanos);
+                }
+            }, writers, droppable);
+            if (!queued) {
+                //队列已满的语音帧：丢弃并记为晚到，计入LinkStats.getLateWrites()；积压时每帧都走到这里，不逐帧打日志
+                result.finish(index, false);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 逐条链路依次写入，作为对比和关闭并行发送时使用
+     */
+    public static void sequential(Frame frame, Collection<Lane> lanes, boolean isUpdateUI) {
+        if (frame.isTraced() && !lanes.isEmpty()) {
+            frame.markEnqueued(Tracer.now());
+        }
+        for (Lane lane : lanes) {
+            lane.link.send(frame);
+            if (isUpdateUI) {
+                MeshEvents.getInstance().postWritten(frame.getEncoded().length);
+            }
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
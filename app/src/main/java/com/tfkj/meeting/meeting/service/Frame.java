@@ -0,0 +1,324 @@
+package com.tfkj.meeting.meeting.service;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * 链路上传输的消息帧。
+ *
+ * <pre>
+ *  0  magic    1 byte  'M'
+ *  1  version  1 byte
+ *  2  type     1 byte
+ *  3  flags    1 byte
+ *  4  origin   8 bytes 发起节点ID
+ * 12  seq      4 bytes 发起节点内的序号
+ * 16  length   4 bytes 负载长度
+ * 20  payload
+ * </pre>
+ *
+ * 帧只编码一次，转发时直接写出同一个字节数组。
+ * 带FLAG_TRACED的帧在负载末尾附加逐跳的追踪记录（见Trace），getPayload不包含这部分。
+ * 带FLAG_STREAMED的帧是中继节点边收边转发的（见CutThrough），负载之后多一个状态字节，只在相邻两跳之间有效，
+ * 读取后清除标志。
+ */
+public class Frame {
+
+    public static final byte MAGIC = 'M';
+    public static final byte VERSION = 1;
+    public static final int HEADER_LENGTH = 20;
+    public static final int MAX_PAYLOAD_LENGTH = 64 * 1024;
+
+    // 标志位：负载末尾带逐跳追踪记录
+    public static final byte FLAG_TRACED = 1;
+    // 标志位：负载之后跟一个状态字节
+    public static final byte FLAG_STREAMED = 2;
+
+    // 直通转发的帧的状态字节：上游中断时负载不完整，用0补齐
+    static final byte STREAM_COMPLETE = 0;
+    static final byte STREAM_ABORTED = 1;
+
+    // 帧类型
+    public static final byte TYPE_DATA = 1;
+    public static final byte TYPE_REDIRECT = 2;
+    public static final byte TYPE_LOAD = 3;
+    public static final byte TYPE_ADVERT = 4;
+    public static final byte TYPE_PING = 5;
+    public static final byte TYPE_PONG = 6;
+    // 共享会议状态：增量、版本向量（全网转发），同步请求和同步响应（链路内）
+    public static final byte TYPE_STATE_DELTA = 7;
+    public static final byte TYPE_STATE_REPORT = 8;
+    public static final byte TYPE_STATE_SYNC = 9;
+    public static final byte TYPE_STATE_SNAPSHOT = 10;
+    // 实时语音帧（全网转发，不重传）
+    public static final byte TYPE_VOICE = 11;
+    // 参会名单：问候、名单更新（全网转发），同步请求和全量名单（链路内）
+    public static final byte TYPE_PRESENCE_HELLO = 12;
+    public static final byte TYPE_PRESENCE_UPDATE = 13;
+    public static final byte TYPE_PRESENCE_SYNC = 14;
+    public static final byte TYPE_PRESENCE_SNAPSHOT = 15;
+    // 投票：发起（链路内逐跳扩散）、子树的部分计票（链路内，发给父节点）、最终结果（全网转发）
+    public static final byte TYPE_POLL_OPEN = 16;
+    public static final byte TYPE_POLL_PARTIAL = 17;
+    public static final byte TYPE_POLL_RESULT = 18;
+    // 时钟同步的探测和回复（链路内）
+    public static final byte TYPE_CLOCK_PROBE = 19;
+    public static final byte TYPE_CLOCK_REPLY = 20;
+    // 概率转发的拉取补齐：最近收到的帧ID、缺少的帧ID（链路内）
+    public static final byte TYPE_GOSSIP_IHAVE = 21;
+    public static final byte TYPE_GOSSIP_IWANT = 22;
+    // 话题消息、订阅摘要（全网转发，话题消息只发往有订阅者的链路）
+    public static final byte TYPE_TOPIC = 23;
+    public static final byte TYPE_SUBSCRIPTION = 24;
+    // 附件：清单（全网转发）、按哈希请求分块和分块数据（链路内）
+    public static final byte TYPE_ATTACHMENT_MANIFEST = 25;
+    public static final byte TYPE_CHUNK_REQUEST = 26;
+    public static final byte TYPE_CHUNK_DATA = 27;
+    // 客户端在保留的连接上发出的第一帧（链路内），服务端收到后才接入这条连接
+    public static final byte TYPE_LINK_KEPT = 28;
+    // 会议状态的补发：收到落后的版本向量后补发对方缺少的操作或快照（全网转发，只由目标副本应用）
+    public static final byte TYPE_STATE_REPAIR = 29;
+    // 父链路断开后子树的部分计票（全网转发，只由发起节点计入）
+    public static final byte TYPE_POLL_ORPHAN = 30;
+
+    private final byte type;
+    private final byte flags;
+    private final long origin;
+    private final int seq;
+    private final byte[] encoded;
+    // 不含追踪记录的负载长度
+    private final int payloadLength;
+    // 追踪的帧在本机收到和交给发送队列的时间，参考时钟微秒，未追踪的帧不使用
+    private volatile long traceReceived;
+    private volatile long traceEnqueued;
+    // 已在接收时直通转发的链路地址，其他帧为null
+    private volatile List<String> streamedTo;
+    // 被中继限速延后的累计时间，纳秒；延后后重新交给MeshRouter的帧大于0
+    private volatile long relayWaited;
+
+    private Frame(byte type, byte flags, long origin, int seq, byte[] encoded) {
+        this.type = type;
+        this.flags = flags;
+        this.origin = origin;
+        this.seq = seq;
+        this.encoded = encoded;
+        if ((flags & FLAG_TRACED) != 0) {
+            int trailer = Trace.trailerLength(encoded);
+            if (trailer < 0 || trailer > encoded.length - HEADER_LENGTH) {
+                throw new IllegalArgumentException("bad trace trailer");
+            }
+            payloadLength = encoded.length - HEADER_LENGTH - trailer;
+        } else {
+            payloadLength = encoded.length - HEADER_LENGTH;
+        }
+    }
+
+    /**
+     * 创建新帧
+     */
+    public static Frame create(byte type, byte flags, long origin, int seq, byte[] payload, int offset, int length) {
+        if (length > MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("payload too large: " + length);
+        }
+        byte[] encoded = new byte[HEADER_LENGTH + length];
+        ByteBuffer.wrap(encoded)
+                .put(MAGIC)
+                .put(VERSION)
+                .put(type)
+                .put(flags)
+                .putLong(origin)
+                .putInt(seq)
+                .putInt(length);
+        System.arraycopy(payload, offset, encoded, HEADER_LENGTH, length);
+        return new Frame(type, flags, origin, seq, encoded);
+    }
+
+    public static Frame create(byte type, long origin, int seq, byte[] payload) {
+        return create(type, (byte) 0, origin, seq, payload, 0, payload.length);
+    }
+
+    /**
+     * 以本机为发起节点创建新帧。全网转发的类型占用去重用的序号，只在链路内有效的
+     * （PING、时钟、IHAVE、同步请求等）使用另一个计数器，不会把在途的全网帧挤出SeenCache的窗口
+     */
+    public static Frame createLocal(byte type, byte[] payload) {
+        MeshConfig config = MeshConfig.getInstance();
+        int seq = MeshRouter.getInstance().isRouted(type) ? config.nextSeq() : config.nextLinkSeq();
+        return create(type, config.getNodeId(), seq, payload);
+    }
+
+    /**
+     * 保留帧头，替换负载；追踪记录不保留
+     */
+    public Frame withPayload(byte[] payload) {
+        return create(type, (byte) (flags & ~FLAG_TRACED), origin, seq, payload, 0, payload.length);
+    }
+
+    /**
+     * 从输入流读取一个完整的帧，阻塞直到读完
+     *
+     * @return 帧，上游中断的直通帧返回null
+     * @throws IOException 链路断开或收到无法识别的数据
+     */
+    public static Frame read(DataInputStream in) throws IOException {
+        return readRest(readHeader(in), in);
+    }
+
+    /**
+     * 只读取并检查帧头
+     */
+    static byte[] readHeader(DataInputStream in) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        in.readFully(header);
+        checkHeader(header);
+        return header;
+    }
+
+    /**
+     * 读取readHeader之后的负载
+     *
+     * @return 帧，上游中断的直通帧返回null
+     */
+    static Frame readRest(byte[] header, DataInputStream in) throws IOException {
+        int length = lengthOf(header);
+        byte[] encoded = new byte[HEADER_LENGTH + length];
+        System.arraycopy(header, 0, encoded, 0, HEADER_LENGTH);
+        in.readFully(encoded, HEADER_LENGTH, length);
+        if ((header[3] & FLAG_STREAMED) != 0) {
+            if (in.readByte() != STREAM_COMPLETE) {
+                return null;
+            }
+            encoded[3] &= ~FLAG_STREAMED;
+        }
+        return parse(encoded);
+    }
+
+    /**
+     * @return 已检查过的帧头中的负载长度
+     */
+    static int lengthOf(byte[] header) {
+        return ByteBuffer.wrap(header).getInt(16);
+    }
+
+    /**
+     * 解析一个完整的已编码帧，如加密链路解密后的明文
+     *
+     * @throws IOException 帧头无法识别或长度不符
+     */
+    public static Frame decode(byte[] encoded) throws IOException {
+        if (encoded.length < HEADER_LENGTH || checkHeader(encoded) != encoded.length - HEADER_LENGTH) {
+            throw new IOException("bad frame length: " + encoded.length);
+        }
+        return parse(encoded);
+    }
+
+    /**
+     * @return 帧头中的负载长度
+     */
+    private static int checkHeader(byte[] header) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        byte magic = buffer.get();
+        byte version = buffer.get();
+        if (magic != MAGIC || version != VERSION) {
+            throw new IOException("bad frame header: " + magic + "/" + version);
+        }
+        int length = buffer.getInt(16);
+        if (length < 0 || length > MAX_PAYLOAD_LENGTH) {
+            throw new IOException("bad frame length: " + length);
+        }
+        return length;
+    }
+
+    static Frame parse(byte[] encoded) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(encoded);
+        try {
+            return new Frame(buffer.get(2), buffer.get(3), buffer.getLong(4), buffer.getInt(12), encoded);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    public static DataInputStream wrap(InputStream in) {
+        return in instanceof DataInputStream ? (DataInputStream) in : new DataInputStream(in);
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public byte getFlags() {
+        return flags;
+    }
+
+    public long getOrigin() {
+        return origin;
+    }
+
+    public int getSeq() {
+        return seq;
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    /**
+     * @return 负载的副本
+     */
+    public byte[] getPayload() {
+        byte[] payload = new byte[getPayloadLength()];
+        System.arraycopy(encoded, HEADER_LENGTH, payload, 0, payload.length);
+        return payload;
+    }
+
+    public boolean isTraced() {
+        return (flags & FLAG_TRACED) != 0;
+    }
+
+    long getTraceReceived() {
+        return traceReceived;
+    }
+
+    void markReceived(long micros) {
+        traceReceived = micros;
+    }
+
+    long getTraceEnqueued() {
+        return traceEnqueued;
+    }
+
+    /**
+     * 同一帧先后交给SService和CService发送时只记第一次
+     */
+    void markEnqueued(long micros) {
+        if (traceEnqueued == 0) {
+            traceEnqueued = micros;
+        }
+    }
+
+    List<String> getStreamedTo() {
+        return streamedTo;
+    }
+
+    void markStreamed(List<String> addresses) {
+        streamedTo = addresses;
+    }
+
+    long getRelayWaited() {
+        return relayWaited;
+    }
+
+    void markDeferred(long waitedNanos) {
+        relayWaited = waitedNanos;
+    }
+
+    /**
+     * @return 编码后的完整帧，调用方不能修改
+     */
+    public byte[] getEncoded() {
+        return encoded;
+    }
+}
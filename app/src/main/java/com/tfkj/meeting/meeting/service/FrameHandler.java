@@ -0,0 +1,15 @@
+package com.tfkj.meeting.meeting.service;
+
+/**
+ * 处理某一类型的帧，通过MeshRouter.register注册
+ */
+public interface FrameHandler {
+
+    /**
+     * 在链路的通信线程中调用，不能阻塞
+     *
+     * @param frame 收到的帧
+     * @param from  来源链路
+     */
+    void onFrame(Frame frame, Link from);
+}
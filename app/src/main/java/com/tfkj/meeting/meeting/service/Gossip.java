@@ -0,0 +1,330 @@
+package com.tfkj.meeting.meeting.service;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 概率转发（gossip），MeshConfig.getGossipFanout()大于0时代替全部转发。
+ *
+ * 收到的全网帧只转发给随机选出的fanout个邻居，发起节点仍发给所有邻居。
+ * 少数节点可能一帧也没收到，由拉取补齐：每REPAIR_INTERVAL_MS向一个随机邻居发送最近收到的帧ID（IHAVE），
+ * 对方回复自己没有的ID（IWANT），再单独补发这些帧。补发的帧按普通的全网帧处理，会继续转发。
+ * 语音帧过时即无用，不参与补齐。
+ *
+ * <pre>
+ * ids := groups:1 (origin:8 count:varint first:4 delta:varint*(count-1))*groups
+ * </pre>
+ */
+public class Gossip {
+    private static final String TAG = "Gossip";
+
+    public static final long REPAIR_INTERVAL_MS = 1000;
+    // 只补齐这段时间内的帧
+    static final long RECENT_MS = 10000;
+    static final int MAX_RECENT = 512;
+
+    private static class Entry {
+        final Frame frame;
+        final long time;
+
+        Entry(Frame frame, long time) {
+            this.frame = frame;
+            this.time = time;
+        }
+    }
+
+    private final Random random;
+    // 按收到的顺序，键为(origin, seq)
+    private final LinkedHashMap<String, Entry> recent = new LinkedHashMap<>();
+    private ScheduledExecutorService scheduler;
+    private long repaired;
+
+    private volatile static Gossip instance = null;
+
+    Gossip(Random random) {
+        this.random = random;
+    }
+
+    public static Gossip getInstance() {
+        if (instance == null) {
+            synchronized (Gossip.class) {
+                if (instance == null) {
+                    instance = new Gossip(new Random());
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 注册补齐帧的处理并开始定期补齐；全部转发模式下定时任务什么都不做
+     */
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        final MeshRouter router = MeshRouter.getInstance();
+        router.register(Frame.TYPE_GOSSIP_IHAVE, false, new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame, Link from) {
+                try {
+                    byte[] want = want(frame.getPayload(), router.getSeenCache());
+                    if (want != null) {
+                        from.send(Frame.createLocal(Frame.TYPE_GOSSIP_IWANT, want));
+                    }
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "bad digest from " + from.getAddress(), e);
+                }
+            }
+        });
+        router.register(Frame.TYPE_GOSSIP_IWANT, false, new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame, Link from) {
+                try {
+                    for (Frame missing : lookup(frame.getPayload())) {
+                        from.send(missing);
+                    }
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "bad request from " + from.getAddress(), e);
+                }
+            }
+        });
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    repair();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "repair failed", e);
+                }
+            }
+        }, REPAIR_INTERVAL_MS, REPAIR_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * 转发收到的全网帧：随机选fanout个邻居
+     *
+     * @param exclude 来源链路的地址
+     */
+    void forward(Frame frame, String exclude, int fanout) {
+        remember(frame, System.currentTimeMillis());
+        ArrayList<FanOut.Lane> lanes = SService.getInstance().getLanes(exclude);
+        lanes.addAll(CService.getInstance().getLanes(exclude));
+        List<FanOut.Lane> targets = pick(lanes, fanout);
+        MeshConfig config = MeshConfig.getInstance();
+        if (config.isParallelFanOut()) {
+            FanOut.getInstance().scatter(frame, targets, config.getFanOutDeadlineMs(), false);
+        } else {
+            FanOut.sequential(frame, targets, false);
+        }
+    }
+
+    private void repair() {
+        if (MeshConfig.getInstance().getGossipFanout() <= 0) {
+            return;
+        }
+        ArrayList<FanOut.Lane> lanes = SService.getInstance().getLanes(null);
+        lanes.addAll(CService.getInstance().getLanes(null));
+        byte[] digest = digest(System.currentTimeMillis());
+        if (lanes.isEmpty() || digest == null) {
+            return;
+        }
+        pick(lanes, 1).get(0).getLink().send(Frame.createLocal(Frame.TYPE_GOSSIP_IHAVE, digest));
+    }
+
+    /**
+     * 随机选出最多fanout个
+     */
+    synchronized <T> List<T> pick(List<T> candidates, int fanout) {
+        ArrayList<T> shuffled = new ArrayList<>(candidates);
+        int count = Math.min(fanout, shuffled.size());
+        for (int i = 0; i < count; i++) {
+            int j = i + random.nextInt(shuffled.size() - i);
+            T swap = shuffled.get(i);
+            shuffled.set(i, shuffled.get(j));
+            shuffled.set(j, swap);
+        }
+        return new ArrayList<>(shuffled.subList(0, count));
+    }
+
+    /**
+     * 记录收到或发出的全网帧，供邻居拉取
+     */
+    public synchronized void remember(Frame frame, long now) {
+        if (frame.getType() == Frame.TYPE_VOICE) {
+            return;
+        }
+        recent.put(key(frame.getOrigin(), frame.getSeq()), new Entry(frame, now));
+        expire(now);
+    }
+
+    private void expire(long now) {
+        Iterator<Entry> it = recent.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (recent.size() <= MAX_RECENT && now - entry.time <= RECENT_MS) {
+                break;
+            }
+            it.remove();
+        }
+    }
+
+    /**
+     * @return 最近收到的帧ID，没有时为null
+     */
+    synchronized byte[] digest(long now) {
+        expire(now);
+        if (recent.isEmpty()) {
+            return null;
+        }
+        LinkedHashMap<Long, List<Integer>> ids = new LinkedHashMap<>();
+        for (Entry entry : recent.values()) {
+            List<Integer> seqs = ids.get(entry.frame.getOrigin());
+            if (seqs == null) {
+                seqs = new ArrayList<>();
+                ids.put(entry.frame.getOrigin(), seqs);
+            }
+            seqs.add(entry.frame.getSeq());
+        }
+        return encodeIds(ids);
+    }
+
+    /**
+     * 邻居的IHAVE中本机没有收到过的帧
+     *
+     * @return IWANT的内容，都已收到时为null
+     */
+    byte[] want(byte[] digest, SeenCache seen) {
+        LinkedHashMap<Long, List<Integer>> missing = new LinkedHashMap<>();
+        for (Map.Entry<Long, List<Integer>> entry : decodeIds(digest).entrySet()) {
+            for (int seq : entry.getValue()) {
+                if (!seen.isSeen(entry.getKey(), seq)) {
+                    List<Integer> seqs = missing.get(entry.getKey());
+                    if (seqs == null) {
+                        seqs = new ArrayList<>();
+                        missing.put(entry.getKey(), seqs);
+                    }
+                    seqs.add(seq);
+                }
+            }
+        }
+        return missing.isEmpty() ? null : encodeIds(missing);
+    }
+
+    /**
+     * @return 邻居请求的帧中本机还保留的
+     */
+    synchronized List<Frame> lookup(byte[] want) {
+        ArrayList<Frame> frames = new ArrayList<>();
+        for (Map.Entry<Long, List<Integer>> entry : decodeIds(want).entrySet()) {
+            for (int seq : entry.getValue()) {
+                Entry found = recent.get(key(entry.getKey(), seq));
+                if (found != null) {
+                    frames.add(found.frame);
+                }
+            }
+        }
+        repaired += frames.size();
+        return frames;
+    }
+
+    /**
+     * @return 应邻居请求补发的帧数
+     */
+    public synchronized long getRepaired() {
+        return repaired;
+    }
+
+    private static String key(long origin, int seq) {
+        return origin + ":" + seq;
+    }
+
+    static byte[] encodeIds(Map<Long, List<Integer>> ids) {
+        int groups = Math.min(ids.size(), 255);
+        int size = 1;
+        for (List<Integer> seqs : ids.values()) {
+            size += 8 + 5 + 4 + 5 * seqs.size();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put((byte) groups);
+        int written = 0;
+        for (Map.Entry<Long, List<Integer>> entry : ids.entrySet()) {
+            if (written++ == groups) {
+                break;
+            }
+            List<Integer> seqs = entry.getValue();
+            buffer.putLong(entry.getKey());
+            putVarint(buffer, seqs.size());
+            buffer.putInt(seqs.get(0));
+            for (int i = 1; i < seqs.size(); i++) {
+                //zigzag，乱序到达时差值可能为负
+                int delta = seqs.get(i) - seqs.get(i - 1);
+                putVarint(buffer, (delta << 1) ^ (delta >> 31));
+            }
+        }
+        byte[] out = new byte[buffer.position()];
+        System.arraycopy(buffer.array(), 0, out, 0, out.length);
+        return out;
+    }
+
+    static LinkedHashMap<Long, List<Integer>> decodeIds(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        LinkedHashMap<Long, List<Integer>> ids = new LinkedHashMap<>();
+        int groups = buffer.get() & 0xFF;
+        for (int g = 0; g < groups; g++) {
+            long origin = buffer.getLong();
+            int count = getVarint(buffer);
+            if (count <= 0 || count > MAX_RECENT) {
+                throw new IllegalArgumentException("bad id count " + count);
+            }
+            ArrayList<Integer> seqs = new ArrayList<>(count);
+            int seq = buffer.getInt();
+            seqs.add(seq);
+            for (int i = 1; i < count; i++) {
+                int zigzag = getVarint(buffer);
+                seq += (zigzag >>> 1) ^ -(zigzag & 1);
+                seqs.add(seq);
+            }
+            ids.put(origin, seqs);
+        }
+        return ids;
+    }
+
+    private static void putVarint(ByteBuffer buffer, int v) {
+        while ((v & ~0x7F) != 0) {
+            buffer.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buffer.put((byte) v);
+    }
+
+    private static int getVarint(ByteBuffer buffer) {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = buffer.get() & 0xFF;
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IllegalArgumentException("bad varint");
+    }
+}
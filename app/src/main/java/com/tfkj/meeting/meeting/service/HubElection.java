@@ -0,0 +1,124 @@
+package com.tfkj.meeting.meeting.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 中心节点选举。
+ *
+ * 每个节点周期性广播自己的Capacity，所有节点据此得到相同的全网视图，
+ * 按评分从高到低选出 ceil(N / maxPeers) 个中心节点，评分相同时按节点ID排序，保证各节点结果一致。
+ * 上次当选的节点评分加上INCUMBENT_MARGIN再比较，电量和吞吐的小幅波动不会使中心节点来回更换。
+ */
+public class HubElection {
+
+    // 超过此时间未收到通告的节点视为已离开
+    public static final long EXPIRE_MS = 30000;
+    // 挑战者的评分要比已当选的节点高出这么多才能取代它，约为电量的15%
+    public static final int INCUMBENT_MARGIN = 15;
+
+    private final ConcurrentHashMap<Long, Capacity> capacities = new ConcurrentHashMap<>();
+    //上次选举的结果
+    private volatile Set<Long> incumbents = Collections.emptySet();
+
+    private volatile static HubElection instance = null;
+
+    private HubElection() {
+    }
+
+    public static HubElection getInstance() {
+        if (instance == null) {
+            synchronized (HubElection.class) {
+                if (instance == null) {
+                    instance = new HubElection();
+                }
+            }
+        }
+        return instance;
+    }
+
+    public void update(Capacity capacity) {
+        Capacity old = capacities.get(capacity.getNodeId());
+        if (old != null && capacity.getAddress() == null && old.getAddress() != null) {
+            //本机的通告没有地址，沿用邻居告知的地址
+            capacity = new Capacity(capacity.getNodeId(), old.getAddress(), capacity.getBattery(),
+                    capacity.isCharging(), capacity.getCpuClass(), capacity.getPeerCount(),
+                    capacity.getThroughput(), capacity.getLinkCount(), capacity.getUpdatedAt());
+        }
+        capacities.put(capacity.getNodeId(), capacity);
+    }
+
+    public Capacity get(long nodeId) {
+        return capacities.get(nodeId);
+    }
+
+    public Capacity findByAddress(String address) {
+        for (Capacity capacity : capacities.values()) {
+            if (address.equals(capacity.getAddress())) {
+                return capacity;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 删除过期的通告
+     */
+    public void expire(long now) {
+        for (Capacity capacity : capacities.values()) {
+            if (now - capacity.getUpdatedAt() > EXPIRE_MS) {
+                capacities.remove(capacity.getNodeId(), capacity);
+            }
+        }
+    }
+
+    public Collection<Capacity> getAll() {
+        return capacities.values();
+    }
+
+    /**
+     * @return 当选的中心节点，按评分从高到低
+     */
+    public synchronized List<Capacity> electHubs(int maxPeers) {
+        List<Capacity> hubs = electHubs(capacities.values(), maxPeers, incumbents);
+        incumbents = idsOf(hubs);
+        return hubs;
+    }
+
+    /**
+     * @param incumbents 上次当选的节点
+     */
+    static List<Capacity> electHubs(Collection<Capacity> all, int maxPeers, final Set<Long> incumbents) {
+        ArrayList<Capacity> sorted = new ArrayList<>(all);
+        if (sorted.isEmpty()) {
+            return sorted;
+        }
+        Collections.sort(sorted, new Comparator<Capacity>() {
+            @Override
+            public int compare(Capacity a, Capacity b) {
+                int c = Integer.compare(score(b, incumbents), score(a, incumbents));
+                return c != 0 ? c : Long.compare(a.getNodeId(), b.getNodeId());
+            }
+        });
+        int hubCount = Math.max(1, (sorted.size() + maxPeers - 1) / maxPeers);
+        return new ArrayList<>(sorted.subList(0, Math.min(hubCount, sorted.size())));
+    }
+
+    private static int score(Capacity capacity, Set<Long> incumbents) {
+        return capacity.score() + (incumbents.contains(capacity.getNodeId()) ? INCUMBENT_MARGIN : 0);
+    }
+
+    public static Set<Long> idsOf(List<Capacity> hubs) {
+        HashSet<Long> ids = new HashSet<>();
+        for (Capacity hub : hubs) {
+            ids.add(hub.getNodeId());
+        }
+        return ids;
+    }
+}
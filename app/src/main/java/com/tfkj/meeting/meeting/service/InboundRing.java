@@ -0,0 +1,163 @@
+package com.tfkj.meeting.meeting.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 收到的帧从各通信线程进入、由一个线程取出的环形队列。
+ *
+ * 槽位预先分配，生产者用getAndIncrement领取序号，写好槽位后再写入该槽位的发布序号；
+ * 消费者从上次的位置开始，一次取出所有已连续发布的槽位，取完后才推进消费序号，生产者只在队列满时等待消费序号。
+ * 除了领取序号外没有锁和CAS重试，同一条链路的帧按发布顺序取出。
+ * 只能有一个消费者。
+ */
+public class InboundRing {
+
+    // 等待时先让出CPU这么多次，仍然等不到再park，避免每帧都要唤醒线程
+    private static final int YIELD_TRIES = 64;
+    // 队列满时生产者每次等待的时间
+    private static final long PRODUCER_PARK_NANOS = 50000;
+
+    /**
+     * 消费者，在消费线程中调用
+     */
+    public interface Handler {
+        /**
+         * @param endOfBatch 本批的最后一帧
+         */
+        void onFrame(Frame frame, Link from, boolean endOfBatch);
+    }
+
+    private final int mask;
+    private final Frame[] frames;
+    private final Link[] links;
+    // 每个槽位最后发布的序号，未发布时为-1
+    private final AtomicLongArray published;
+    private final AtomicLong next = new AtomicLong();
+    // 已取出的最大序号
+    private volatile long consumed = -1;
+    private volatile Thread waiting;
+    private volatile boolean closed;
+
+    /**
+     * @param capacity 槽位数，必须是2的幂
+     */
+    public InboundRing(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        mask = capacity - 1;
+        frames = new Frame[capacity];
+        links = new Link[capacity];
+        published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            published.set(i, -1);
+        }
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * 放入一帧，队列满时等待消费者取出
+     *
+     * @return 队列已关闭时返回false，帧被丢弃
+     */
+    public boolean publish(Frame frame, Link from) {
+        long seq = next.getAndIncrement();
+        int tries = 0;
+        while (seq - consumed > mask + 1) {
+            if (closed) {
+                return false;
+            }
+            if (++tries < YIELD_TRIES) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(PRODUCER_PARK_NANOS);
+            }
+        }
+        int index = (int) seq & mask;
+        frames[index] = frame;
+        links[index] = from;
+        //写入发布序号之前的槽位内容对消费者可见
+        published.set(index, seq);
+        Thread consumer = waiting;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * 取出已发布的帧，不等待
+     *
+     * @param maxBatch 最多取出的帧数
+     * @return 取出的帧数
+     */
+    public int drain(Handler handler, int maxBatch) {
+        long start = consumed + 1;
+        long end = start;
+        while (end - start < maxBatch && published.get((int) end & mask) == end) {
+            end++;
+        }
+        long seq = start;
+        try {
+            while (seq < end) {
+                int index = (int) seq & mask;
+                Frame frame = frames[index];
+                Link from = links[index];
+                frames[index] = null;
+                links[index] = null;
+                seq++;
+                handler.onFrame(frame, from, seq == end);
+            }
+        } finally {
+            //整批处理完才推进一次；处理器抛出异常时跳过已取出的帧，之后的帧下次再取
+            consumed = seq - 1;
+        }
+        return (int) (end - start);
+    }
+
+    /**
+     * 没有待取出的帧时等待生产者发布，由消费线程调用
+     */
+    public void await(long timeoutNanos) {
+        long seq = consumed + 1;
+        int index = (int) seq & mask;
+        for (int i = 0; i < YIELD_TRIES; i++) {
+            if (published.get(index) == seq || closed) {
+                return;
+            }
+            Thread.yield();
+        }
+        waiting = Thread.currentThread();
+        if (published.get(index) != seq && !closed) {
+            LockSupport.parkNanos(this, timeoutNanos);
+        }
+        waiting = null;
+    }
+
+    /**
+     * @return 已发布未取出的帧数，含正在写入的槽位
+     */
+    public int size() {
+        return (int) Math.max(0, next.get() - 1 - consumed);
+    }
+
+    /**
+     * 关闭后等待空位的生产者放弃发布
+     */
+    public void close() {
+        closed = true;
+        Thread consumer = waiting;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+}
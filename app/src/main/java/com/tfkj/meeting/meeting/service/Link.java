@@ -0,0 +1,17 @@
+package com.tfkj.meeting.meeting.service;
+
+/**
+ * 一条已建立的蓝牙连接，SService和CService的通信线程都实现此接口
+ */
+public interface Link {
+
+    /**
+     * @return 对端的MAC地址
+     */
+    String getAddress();
+
+    /**
+     * 只在这条链路上发送一帧
+     */
+    void send(Frame frame);
+}
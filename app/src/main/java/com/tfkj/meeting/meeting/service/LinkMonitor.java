@@ -0,0 +1,116 @@
+package com.tfkj.meeting.meeting.service;
+
+import com.tfkj.meeting.meeting.Constants;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 按MAC地址保存所有链路的LinkStats，SService和CService共用
+ */
+public class LinkMonitor {
+
+    private final ConcurrentHashMap<String, LinkStats> links = new ConcurrentHashMap<>();
+
+    private volatile static LinkMonitor instance = null;
+
+    private LinkMonitor() {
+    }
+
+    public static LinkMonitor getInstance() {
+        if (instance == null) {
+            synchronized (LinkMonitor.class) {
+                if (instance == null) {
+                    instance = new LinkMonitor();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 获取链路状态，不存在时创建
+     */
+    public LinkStats obtain(String address) {
+        LinkStats stats = links.get(address);
+        if (stats == null) {
+            LinkStats created = new LinkStats(address);
+            stats = links.putIfAbsent(address, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * @return 链路状态，没有记录时返回null
+     */
+    public LinkStats get(String address) {
+        return links.get(address);
+    }
+
+    /**
+     * 挑选负载最低的已连接邻居，用于重定向新加入的设备
+     *
+     * @param exclude  排除的地址，一般为请求接入的设备
+     * @param maxPeers 负载达到此值的邻居不推荐
+     * @param limit    最多返回的数量
+     */
+    public List<String> leastLoaded(String exclude, int maxPeers, int limit) {
+        ArrayList<LinkStats> candidates = new ArrayList<>();
+        for (LinkStats stats : links.values()) {
+            if (stats.getState() == Constants.STATE_CONNECTED
+                    && stats.getReportedLoad() >= 0
+                    && stats.getReportedLoad() < maxPeers
+                    && !stats.getAddress().equals(exclude)) {
+                candidates.add(stats);
+            }
+        }
+        Collections.sort(candidates, new Comparator<LinkStats>() {
+            @Override
+            public int compare(LinkStats a, LinkStats b) {
+                return Integer.compare(a.getReportedLoad(), b.getReportedLoad());
+            }
+        });
+        ArrayList<String> addresses = new ArrayList<>();
+        for (int i = 0; i < candidates.size() && i < limit; i++) {
+            addresses.add(candidates.get(i).getAddress());
+        }
+        return addresses;
+    }
+
+    /**
+     * 对所有已连接的链路采样吞吐量
+     *
+     * @return 所有链路中的最大峰值吞吐，字节/秒
+     */
+    public long sampleAll(long now) {
+        long peak = 0;
+        for (LinkStats stats : links.values()) {
+            if (stats.getState() == Constants.STATE_CONNECTED) {
+                stats.sampleThroughput(now);
+                peak = Math.max(peak, stats.getPeakBytesPerSecond());
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * @return 已测得往返时延的链路的平均往返时延，没有时为-1
+     */
+    public long meanRttMillis() {
+        long sum = 0;
+        int count = 0;
+        for (LinkStats stats : links.values()) {
+            if (stats.getState() == Constants.STATE_CONNECTED && stats.getRttMillis() >= 0) {
+                sum += stats.getRttMillis();
+                count++;
+            }
+        }
+        return count == 0 ? -1 : sum / count;
+    }
+}
@@ -0,0 +1,52 @@
+package com.tfkj.meeting.meeting.service;
+
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * 已建立的RFCOMM连接。SService、CService的通信线程只通过它读写和关闭连接，
+ * 测试中可以用内存中的流代替蓝牙连接，驱动真实的接入、替换和断开流程。
+ */
+abstract class LinkSocket {
+
+    /**
+     * @return 对方的蓝牙地址
+     */
+    abstract String getAddress();
+
+    abstract InputStream getInputStream() throws IOException;
+
+    abstract OutputStream getOutputStream() throws IOException;
+
+    /**
+     * 关闭连接，阻塞在读取上的线程随后收到IOException
+     */
+    abstract void close() throws IOException;
+
+    static LinkSocket wrap(final BluetoothSocket socket) {
+        return new LinkSocket() {
+            @Override
+            String getAddress() {
+                return socket.getRemoteDevice().getAddress();
+            }
+
+            @Override
+            InputStream getInputStream() throws IOException {
+                return socket.getInputStream();
+            }
+
+            @Override
+            OutputStream getOutputStream() throws IOException {
+                return socket.getOutputStream();
+            }
+
+            @Override
+            void close() throws IOException {
+                socket.close();
+            }
+        };
+    }
+}
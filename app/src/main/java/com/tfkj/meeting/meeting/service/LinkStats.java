@@ -0,0 +1,124 @@
+package com.tfkj.meeting.meeting.service;
+
+import com.tfkj.meeting.meeting.Constants;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单条蓝牙链路的实时状态：连接状态、往返时延和吞吐量。
+ * 计数在通信线程中无锁累加，由LinkMonitor定期采样，界面只读取采样结果。
+ */
+public class LinkStats {
+    private final String address;
+    private volatile int state = Constants.STATE_NONE;
+    private volatile long rttMillis = -1;
+    //对端通告的负载（接入的客户端数），未知时为-1
+    private volatile int reportedLoad = -1;
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    //并行发送时未在截止时间前写完的次数
+    private final AtomicLong lateWrites = new AtomicLong();
+
+    //吞吐量采样
+    private long lastSampleTime;
+    private long lastSampleBytes;
+    private volatile long bytesPerSecond;
+    private volatile long peakBytesPerSecond;
+
+    public LinkStats(String address) {
+        this.address = address;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    public void setState(int state) {
+        this.state = state;
+        if (state != Constants.STATE_CONNECTED) {
+            bytesPerSecond = 0;
+        }
+    }
+
+    /**
+     * @return 往返时延，未测量时为-1
+     */
+    public long getRttMillis() {
+        return rttMillis;
+    }
+
+    public void setRttMillis(long rttMillis) {
+        this.rttMillis = rttMillis;
+    }
+
+    public int getReportedLoad() {
+        return reportedLoad;
+    }
+
+    public void setReportedLoad(int reportedLoad) {
+        this.reportedLoad = reportedLoad;
+    }
+
+    public void addBytesIn(int count) {
+        bytesIn.addAndGet(count);
+    }
+
+    public void addBytesOut(int count) {
+        bytesOut.addAndGet(count);
+    }
+
+    public void addLateWrite() {
+        lateWrites.incrementAndGet();
+    }
+
+    /**
+     * @return 未在截止时间前写完的帧数，持续增长说明这条链路跟不上
+     */
+    public long getLateWrites() {
+        return lateWrites.get();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    /**
+     * 按两次采样之间收发的字节数计算吞吐量。
+     * 采样窗口只有一个，只由LinkMonitor.sampleAll定期调用；其他地方读取getBytesPerSecond，
+     * 否则会缩短采样窗口，短时突发会抬高峰值吞吐
+     *
+     * @param now 当前时间，毫秒
+     * @return 每秒字节数
+     */
+    public synchronized long sampleThroughput(long now) {
+        long total = bytesIn.get() + bytesOut.get();
+        if (lastSampleTime > 0 && now > lastSampleTime) {
+            bytesPerSecond = (total - lastSampleBytes) * 1000 / (now - lastSampleTime);
+            if (bytesPerSecond > peakBytesPerSecond) {
+                peakBytesPerSecond = bytesPerSecond;
+            }
+        }
+        lastSampleTime = now;
+        lastSampleBytes = total;
+        return bytesPerSecond;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * @return 采样到的最大吞吐量，反映链路的实际能力
+     */
+    public long getPeakBytesPerSecond() {
+        return peakBytesPerSecond;
+    }
+}
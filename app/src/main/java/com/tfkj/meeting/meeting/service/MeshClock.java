@@ -0,0 +1,144 @@
+package com.tfkj.meeting.meeting.service;
+
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 全网统一的时钟：把ClockSync接入链路，定期向所有邻居发送探测。
+ *
+ * 本地时钟为System.nanoTime()加上启动时的墙上时间，不受系统改时间的影响；
+ * 参考时钟即参考节点的这一时钟，所以全网时间近似于参考节点的墙上时间。
+ * 跨设备的时延统计和按时间戳排序都应使用currentTimeMillis()。
+ */
+public class MeshClock {
+    private static final String TAG = "MeshClock";
+
+    // 探测间隔
+    public static final long PROBE_INTERVAL_MS = 2000;
+
+    private final long baseNanos = System.currentTimeMillis() * 1000000 - System.nanoTime();
+    private final ClockSync sync = new ClockSync(MeshConfig.getInstance().getNodeId());
+    private ScheduledExecutorService scheduler;
+
+    private volatile static MeshClock instance = null;
+
+    private MeshClock() {
+        MeshRouter router = MeshRouter.getInstance();
+        router.register(Frame.TYPE_CLOCK_PROBE, false, new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame, Link from) {
+                long received = localNanos();
+                if (frame.getPayloadLength() != ClockSync.PROBE_LENGTH) {
+                    Log.w(TAG, "bad clock probe from " + from.getAddress());
+                    return;
+                }
+                from.send(Frame.createLocal(Frame.TYPE_CLOCK_REPLY,
+                        sync.reply(from.getAddress(), frame.getPayload(), received, localNanos())));
+            }
+        });
+        router.register(Frame.TYPE_CLOCK_REPLY, false, new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame, Link from) {
+                long now = localNanos();
+                if (frame.getPayloadLength() != ClockSync.REPLY_LENGTH) {
+                    Log.w(TAG, "bad clock reply from " + from.getAddress());
+                    return;
+                }
+                sync.onReply(from.getAddress(), frame.getPayload(), now);
+            }
+        });
+        router.addLinkListener(new MeshRouter.LinkListener() {
+            @Override
+            public void onLinkUp(Link link) {
+                link.send(Frame.createLocal(Frame.TYPE_CLOCK_PROBE, ClockSync.encodeProbe(localNanos())));
+            }
+
+            @Override
+            public void onLinkDown(Link link) {
+            }
+        });
+    }
+
+    public static MeshClock getInstance() {
+        if (instance == null) {
+            synchronized (MeshClock.class) {
+                if (instance == null) {
+                    instance = new MeshClock();
+                }
+            }
+        }
+        return instance;
+    }
+
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sync.expire(localNanos());
+                    MeshRouter.getInstance().sendToNeighbors(
+                            Frame.createLocal(Frame.TYPE_CLOCK_PROBE, ClockSync.encodeProbe(localNanos())), null);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "probe failed", e);
+                }
+            }
+        }, 0, PROBE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * @return 本地的单调时钟，纳秒
+     */
+    public long localNanos() {
+        return System.nanoTime() + baseNanos;
+    }
+
+    /**
+     * @return 全网的参考时间，纳秒
+     */
+    public long nanoTime() {
+        return sync.toReference(localNanos());
+    }
+
+    /**
+     * @return 全网的参考时间，毫秒
+     */
+    public long currentTimeMillis() {
+        return nanoTime() / 1000000;
+    }
+
+    /**
+     * 本地时钟的时间点换算为参考时间，用于换算之前记录的时间戳
+     */
+    public long toReference(long localNanos) {
+        return sync.toReference(localNanos);
+    }
+
+    public ClockSync getSync() {
+        return sync;
+    }
+
+    /**
+     * @return 同步状态：参考节点、层级、偏移、误差和频差
+     */
+    public String getReport() {
+        long now = localNanos();
+        return String.format(Locale.US, "reference %x stratum %d offset %.2fms error ±%.2fms skew %.1fppm",
+                sync.getReference(), sync.getStratum(), sync.getReferenceOffset(now) / 1e6,
+                sync.getErrorNanos() / 1e6, sync.getSkewPpm());
+    }
+}
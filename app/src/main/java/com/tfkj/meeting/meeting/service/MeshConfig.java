@@ -0,0 +1,334 @@
+package com.tfkj.meeting.meeting.service;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 组网参数和本机节点标识
+ */
+public class MeshConfig {
+
+    // 蓝牙一个主设备最多同时保持7条活动连接
+    public static final int DEFAULT_MAX_PEERS = 7;
+    public static final double DEFAULT_CONNECT_RATE = 2;
+    public static final int DEFAULT_CONNECT_BURST = 3;
+    // 优先Secure连接时，这么久没有连上就同时尝试Insecure连接
+    public static final long DEFAULT_CONNECT_STAGGER_MS = 1500;
+    // 重定向时最多推荐的邻居数
+    public static final int MAX_REDIRECT_CANDIDATES = 5;
+    // 交换密钥和确认保留连接的期限，超时关闭连接
+    public static final long HANDSHAKE_TIMEOUT_MS = 5000;
+    // 并行发送时每条链路的写入截止时间，毫秒
+    public static final long DEFAULT_FAN_OUT_DEADLINE_MS = 200;
+    // 负载达到这个长度的帧在中继节点边收边转发
+    public static final int DEFAULT_CUT_THROUGH_MIN_BYTES = 8 * 1024;
+    // 中继限速，字节：每个发起节点够一路语音加上消息，每条链路够几个节点同时发送
+    public static final int DEFAULT_ORIGIN_RATE_BYTES = 48 * 1024;
+    public static final int DEFAULT_ORIGIN_BURST_BYTES = 64 * 1024;
+    public static final int DEFAULT_LINK_RATE_BYTES = 128 * 1024;
+    public static final int DEFAULT_LINK_BURST_BYTES = 256 * 1024;
+    // 附件分块缓存的上限，字节
+    public static final long DEFAULT_ATTACHMENT_CACHE_BYTES = 32 * 1024 * 1024;
+    // 帧序号每次预留并持久化的数量
+    static final int SEQ_BLOCK = 4096;
+
+    private volatile long nodeId;
+    private final AtomicInteger seq = new AtomicInteger();
+    private final AtomicInteger linkSeq = new AtomicInteger();
+    //已持久化的序号上限，发出的序号都小于它
+    private volatile int seqCeiling;
+
+    private volatile int maxPeers = DEFAULT_MAX_PEERS;
+    private volatile double connectRatePerSecond = DEFAULT_CONNECT_RATE;
+    private volatile int connectBurst = DEFAULT_CONNECT_BURST;
+    //默认使用需要配对的Secure RFCOMM；设置会议口令后才可改用Insecure RFCOMM，见isInsecureRfcommAllowed
+    private volatile boolean secureRfcomm = true;
+    private volatile boolean connectRace = true;
+    private volatile long connectStaggerMs = DEFAULT_CONNECT_STAGGER_MS;
+    private volatile boolean encryption = true;
+    private volatile byte[] meetingKey;
+    private volatile boolean parallelFanOut = true;
+    private volatile long fanOutDeadlineMs = DEFAULT_FAN_OUT_DEADLINE_MS;
+    private volatile boolean cutThrough = true;
+    private volatile int cutThroughMinBytes = DEFAULT_CUT_THROUGH_MIN_BYTES;
+    private volatile boolean routingStage = false;
+    private volatile long attachmentCacheBytes = DEFAULT_ATTACHMENT_CACHE_BYTES;
+    private volatile int gossipFanout = 0;
+    private volatile double originRateBytes = DEFAULT_ORIGIN_RATE_BYTES;
+    private volatile int originBurstBytes = DEFAULT_ORIGIN_BURST_BYTES;
+    private volatile double linkRateBytes = DEFAULT_LINK_RATE_BYTES;
+    private volatile int linkBurstBytes = DEFAULT_LINK_BURST_BYTES;
+    private volatile double traceSampleRate = 0;
+
+    private volatile static MeshConfig instance = null;
+
+    private MeshConfig() {
+        nodeId = new SecureRandom().nextLong();
+    }
+
+    public static MeshConfig getInstance() {
+        if (instance == null) {
+            synchronized (MeshConfig.class) {
+                if (instance == null) {
+                    instance = new MeshConfig();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @return 本机节点ID，写在本机发出的每一帧的origin字段
+     */
+    public long getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * @return 链路内帧的下一个序号，不参与去重，也不持久化
+     */
+    public int nextLinkSeq() {
+        return linkSeq.incrementAndGet();
+    }
+
+    /**
+     * @return 本机发出的下一帧全网转发的帧的序号
+     */
+    public int nextSeq() {
+        int next = seq.incrementAndGet();
+        if (next >= seqCeiling) {
+            reserveSeq(next);
+        }
+        return next;
+    }
+
+    private synchronized void reserveSeq(int next) {
+        if (next >= seqCeiling) {
+            seqCeiling = next + SEQ_BLOCK;
+            MeshSession.getInstance().saveSeqCeiling(seqCeiling);
+        }
+    }
+
+    /**
+     * 恢复上次会议的节点ID，序号从上次预留的上限继续；必须在建立任何链路之前调用
+     */
+    synchronized void restore(long nodeId, int seqCeiling) {
+        this.nodeId = nodeId;
+        seq.set(seqCeiling);
+        this.seqCeiling = seqCeiling;
+    }
+
+    /**
+     * @return 作为服务端最多接入的客户端数
+     */
+    public int getMaxPeers() {
+        return maxPeers;
+    }
+
+    public void setMaxPeers(int maxPeers) {
+        this.maxPeers = maxPeers;
+    }
+
+    /**
+     * @return 每秒允许接入的新连接数
+     */
+    public double getConnectRatePerSecond() {
+        return connectRatePerSecond;
+    }
+
+    public int getConnectBurst() {
+        return connectBurst;
+    }
+
+    /**
+     * @return 是否优先使用需要配对的Secure RFCOMM连接；不允许Insecure连接时总是true
+     */
+    public boolean isSecureRfcomm() {
+        return secureRfcomm || !isInsecureRfcommAllowed();
+    }
+
+    /**
+     * 未配对的Insecure连接没有认证，只有应用层加密并混入双方共有的会议口令时，
+     * 中间人才无法冒充对方完成密钥交换；没有口令时只使用Secure连接
+     *
+     * @return 是否允许Insecure RFCOMM连接，包括连接失败后改用和错开尝试
+     */
+    public boolean isInsecureRfcommAllowed() {
+        return encryption && meetingKey != null;
+    }
+
+    public void setSecureRfcomm(boolean secureRfcomm) {
+        this.secureRfcomm = secureRfcomm;
+    }
+
+    /**
+     * @return 优先Secure连接时，是否在getConnectStaggerMs()后同时尝试Insecure连接
+     */
+    public boolean isConnectRace() {
+        return connectRace;
+    }
+
+    public void setConnectRace(boolean connectRace) {
+        this.connectRace = connectRace;
+    }
+
+    public long getConnectStaggerMs() {
+        return connectStaggerMs;
+    }
+
+    public void setConnectStaggerMs(long connectStaggerMs) {
+        this.connectStaggerMs = connectStaggerMs;
+    }
+
+    /**
+     * @return 链路是否启用应用层AES-GCM加密，所有设备必须一致
+     */
+    public boolean isEncryption() {
+        return encryption;
+    }
+
+    public void setEncryption(boolean encryption) {
+        this.encryption = encryption;
+    }
+
+    /**
+     * @return 会议口令，参与密钥派生，口令不同的设备无法通信；未设置时为null
+     */
+    public byte[] getMeetingKey() {
+        return meetingKey;
+    }
+
+    /**
+     * @param meetingKey 会议口令，null或空数组表示不设置口令，此时只使用Secure连接
+     */
+    public void setMeetingKey(byte[] meetingKey) {
+        this.meetingKey = meetingKey == null || meetingKey.length == 0 ? null : meetingKey.clone();
+    }
+
+    /**
+     * @return 是否并行向多条链路发送，false时逐条写入
+     */
+    public boolean isParallelFanOut() {
+        return parallelFanOut;
+    }
+
+    public void setParallelFanOut(boolean parallelFanOut) {
+        this.parallelFanOut = parallelFanOut;
+    }
+
+    public long getFanOutDeadlineMs() {
+        return fanOutDeadlineMs;
+    }
+
+    public void setFanOutDeadlineMs(long fanOutDeadlineMs) {
+        this.fanOutDeadlineMs = fanOutDeadlineMs;
+    }
+
+    /**
+     * @return 中继节点是否边收边转发大帧，只对未加密的链路有效
+     */
+    public boolean isCutThrough() {
+        return cutThrough;
+    }
+
+    public void setCutThrough(boolean cutThrough) {
+        this.cutThrough = cutThrough;
+    }
+
+    public int getCutThroughMinBytes() {
+        return cutThroughMinBytes;
+    }
+
+    public void setCutThroughMinBytes(int cutThroughMinBytes) {
+        this.cutThroughMinBytes = cutThroughMinBytes;
+    }
+
+    /**
+     * @return 收到的帧是否交给单独的路由线程处理，false时由各通信线程自己处理；
+     * MeshService启动时读取，运行中通过MeshService.MeshBinder.setRoutingStage修改
+     */
+    public boolean isRoutingStage() {
+        return routingStage;
+    }
+
+    public void setRoutingStage(boolean routingStage) {
+        this.routingStage = routingStage;
+    }
+
+    /**
+     * @return 附件分块缓存的上限，创建AttachmentService时读取
+     */
+    public long getAttachmentCacheBytes() {
+        return attachmentCacheBytes;
+    }
+
+    public void setAttachmentCacheBytes(long attachmentCacheBytes) {
+        this.attachmentCacheBytes = attachmentCacheBytes;
+    }
+
+    /**
+     * @return 收到的全网帧随机转发给几个邻居，0表示转发给所有邻居
+     */
+    public int getGossipFanout() {
+        return gossipFanout;
+    }
+
+    /**
+     * 连接密集、邻居多的会场可以改用概率转发，所有设备不必一致
+     */
+    public void setGossipFanout(int gossipFanout) {
+        this.gossipFanout = gossipFanout;
+    }
+
+    /**
+     * 修改新连接限速，SService下次start()时生效
+     */
+    public void setConnectRate(double ratePerSecond, int burst) {
+        this.connectRatePerSecond = ratePerSecond;
+        this.connectBurst = burst;
+    }
+
+    /**
+     * @return 中继时每个发起节点每秒允许转发的字节数
+     */
+    public double getOriginRateBytes() {
+        return originRateBytes;
+    }
+
+    public int getOriginBurstBytes() {
+        return originBurstBytes;
+    }
+
+    /**
+     * @return 中继时每条来源链路每秒允许转发的字节数
+     */
+    public double getLinkRateBytes() {
+        return linkRateBytes;
+    }
+
+    public int getLinkBurstBytes() {
+        return linkBurstBytes;
+    }
+
+    /**
+     * 修改中继限速，RelayLimiter下次start()时生效
+     */
+    public void setRelayLimits(double originRateBytes, int originBurstBytes, double linkRateBytes,
+                               int linkBurstBytes) {
+        this.originRateBytes = originRateBytes;
+        this.originBurstBytes = originBurstBytes;
+        this.linkRateBytes = linkRateBytes;
+        this.linkBurstBytes = linkBurstBytes;
+    }
+
+    /**
+     * @return 本机发出的消息中带逐跳追踪的比例，0表示不追踪
+     */
+    public double getTraceSampleRate() {
+        return traceSampleRate;
+    }
+
+    public void setTraceSampleRate(double traceSampleRate) {
+        this.traceSampleRate = traceSampleRate;
+    }
+}
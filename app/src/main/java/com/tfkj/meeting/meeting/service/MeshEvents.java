@@ -0,0 +1,216 @@
+package com.tfkj.meeting.meeting.service;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import com.tfkj.meeting.meeting.Constants;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 通信线程到界面的事件总线。
+ *
+ * 通信线程只把事件放入无锁队列或原子变量，不会等待主线程；
+ * 主线程每帧最多处理一次：收到的消息按批次交付，连接状态只交付最新值且只在变化时交付，发送量合并为总数。
+ */
+public class MeshEvents {
+
+    /**
+     * 界面端接收事件，都在主线程中调用
+     */
+    public interface Listener {
+        /**
+         * 对应Constants.MESSAGE_STATE_CHANGE，多次变化合并为一次
+         *
+         * @param serverState SService的状态
+         * @param clientState CService的状态
+         * @param links       当前的链路数
+         */
+        void onStateChanged(int serverState, int clientState, int links);
+
+        /**
+         * 对应Constants.MESSAGE_READ
+         *
+         * @param messages 上一帧以来收到的消息，按到达顺序
+         * @param dropped  因界面处理不及时而丢弃的消息数
+         */
+        void onMessages(List<Message> messages, int dropped);
+
+        /**
+         * 对应Constants.MESSAGE_WRITE，上一帧以来发送的帧数和字节数
+         */
+        void onWritten(int frames, long bytes);
+    }
+
+    /**
+     * 收到的一条数据消息
+     */
+    public static class Message {
+        public final long origin;
+        public final String fromAddress;
+        public final byte[] payload;
+
+        Message(long origin, String fromAddress, byte[] payload) {
+            this.origin = origin;
+            this.fromAddress = fromAddress;
+            this.payload = payload;
+        }
+    }
+
+    // 界面长时间不处理时，最多积压的消息数，超出的丢弃并计数
+    private static final int MAX_PENDING_MESSAGES = 1024;
+
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final ConcurrentLinkedQueue<Message> messages = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingMessages = new AtomicInteger();
+    private final AtomicInteger droppedMessages = new AtomicInteger();
+
+    private final AtomicBoolean stateDirty = new AtomicBoolean();
+    private volatile int serverState = Constants.STATE_NONE;
+    private volatile int clientState = Constants.STATE_NONE;
+
+    private final AtomicInteger writtenFrames = new AtomicInteger();
+    private final AtomicLong writtenBytes = new AtomicLong();
+
+    //已请求在下一帧处理
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    // 以下字段只在主线程中访问
+    private int deliveredServerState = -1;
+    private int deliveredClientState = -1;
+    private int deliveredLinks = -1;
+
+    private volatile static MeshEvents instance = null;
+
+    private MeshEvents() {
+    }
+
+    public static MeshEvents getInstance() {
+        if (instance == null) {
+            synchronized (MeshEvents.class) {
+                if (instance == null) {
+                    instance = new MeshEvents();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 在主线程中调用，注册后会收到一次当前状态
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+        listener.onStateChanged(serverState, clientState, linkCount());
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * SService、CService的状态或链路数变化时调用
+     */
+    void postServerState(int state) {
+        serverState = state;
+        stateDirty.set(true);
+        schedule();
+    }
+
+    void postClientState(int state) {
+        clientState = state;
+        stateDirty.set(true);
+        schedule();
+    }
+
+    void postMessage(Frame frame, Link from) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        if (pendingMessages.incrementAndGet() > MAX_PENDING_MESSAGES) {
+            pendingMessages.decrementAndGet();
+            droppedMessages.incrementAndGet();
+        } else {
+            messages.offer(new Message(frame.getOrigin(), from.getAddress(), frame.getPayload()));
+        }
+        schedule();
+    }
+
+    void postWritten(int bytes) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        writtenFrames.incrementAndGet();
+        writtenBytes.addAndGet(bytes);
+        schedule();
+    }
+
+    private static int linkCount() {
+        return SService.getInstance().getLinkCount() + CService.getInstance().getLinkCount();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            mainHandler.post(armFrame);
+        }
+    }
+
+    private final Runnable armFrame = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(dispatch);
+        }
+    };
+
+    private final Choreographer.FrameCallback dispatch = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            //先清除标记，处理期间到达的事件会安排到下一帧
+            scheduled.set(false);
+
+            if (stateDirty.getAndSet(false)) {
+                int server = serverState;
+                int client = clientState;
+                int linkCount = linkCount();
+                if (server != deliveredServerState || client != deliveredClientState || linkCount != deliveredLinks) {
+                    deliveredServerState = server;
+                    deliveredClientState = client;
+                    deliveredLinks = linkCount;
+                    for (Listener listener : listeners) {
+                        listener.onStateChanged(server, client, linkCount);
+                    }
+                }
+            }
+
+            int dropped = droppedMessages.getAndSet(0);
+            ArrayList<Message> batch = new ArrayList<>();
+            Message message;
+            while ((message = messages.poll()) != null) {
+                batch.add(message);
+            }
+            pendingMessages.addAndGet(-batch.size());
+            if (!batch.isEmpty() || dropped > 0) {
+                for (Listener listener : listeners) {
+                    listener.onMessages(batch, dropped);
+                }
+            }
+
+            int frames = writtenFrames.getAndSet(0);
+            long bytes = writtenBytes.getAndSet(0);
+            if (frames > 0) {
+                for (Listener listener : listeners) {
+                    listener.onWritten(frames, bytes);
+                }
+            }
+        }
+    };
+}
@@ -0,0 +1,307 @@
+package com.tfkj.meeting.meeting.service;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 全网转发的帧（数据、能力通告）统一在这里去重、转发和本地处理，
+ * SService和CService的通信线程只处理链路内的控制帧。
+ * 其他模块通过register注册自己的帧类型。
+ *
+ * getInstance()是接入真实链路的实例；TrafficReplay等工具用new MeshRouter(Output)创建独立的实例，
+ * 有自己的去重窗口和处理器，转发的帧交给Output，不经过中继限速，也不会发给真实的邻居。
+ */
+public class MeshRouter {
+    private static final String TAG = "MeshRouter";
+
+    private final SeenCache seenCache = new SeenCache();
+    private final FrameHandler[] handlers = new FrameHandler[256];
+    private final boolean[] routedTypes = new boolean[256];
+    private final CopyOnWriteArrayList<LinkListener> linkListeners = new CopyOnWriteArrayList<>();
+    private final Output output;
+    //接入真实链路的实例：经过中继限速，计入会议恢复的耗时
+    private final boolean shared;
+
+    /**
+     * 链路建立和断开通知
+     */
+    public interface LinkListener {
+        void onLinkUp(Link link);
+
+        /**
+         * 在链路的通信线程退出时调用，之后这条链路上不会再收到帧
+         */
+        void onLinkDown(Link link);
+    }
+
+    /**
+     * 转发的去向
+     */
+    public interface Output {
+        /**
+         * 转发已去重的全网帧
+         *
+         * @param fromAddress 来源链路的地址，本机发出的帧为null
+         */
+        void relay(Frame frame, String fromAddress);
+
+        /**
+         * 发给除exclude外的所有直连邻居
+         *
+         * @param exclude 不发送的链路地址，为null时发给所有邻居
+         */
+        void send(Frame frame, String exclude);
+    }
+
+    /**
+     * SService和CService的所有链路，按话题订阅或概率转发时交给PubSub、Gossip
+     */
+    private static final Output NEIGHBORS = new Output() {
+        @Override
+        public void relay(Frame frame, String fromAddress) {
+            int fanout = MeshConfig.getInstance().getGossipFanout();
+            if (fromAddress == null && fanout > 0) {
+                Gossip.getInstance().remember(frame, System.currentTimeMillis());
+            }
+            if (frame.getType() == Frame.TYPE_TOPIC) {
+                PubSub.getInstance().forward(frame, fromAddress);
+            } else if (fromAddress != null && fanout > 0) {
+                Gossip.getInstance().forward(frame, fromAddress, fanout);
+            } else {
+                send(frame, fromAddress);
+            }
+        }
+
+        @Override
+        public void send(Frame frame, String exclude) {
+            SService.getInstance().writeFrameToAllClient(frame, exclude);
+            CService.getInstance().writeFrameToAllService(frame, exclude);
+        }
+    };
+
+    private volatile static MeshRouter instance = null;
+
+    private MeshRouter() {
+        output = NEIGHBORS;
+        shared = true;
+        register(Frame.TYPE_ADVERT, true, new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame, Link from) {
+                Capacity capacity = Capacity.decode(frame.getOrigin(), frame.getPayload(), System.currentTimeMillis());
+                if (capacity != null) {
+                    HubElection.getInstance().update(capacity);
+                } else {
+                    Log.w(TAG, "drop short advert from " + frame.getOrigin());
+                }
+            }
+        });
+        register(Frame.TYPE_DATA, true, new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame, Link from) {
+                MeshEvents.getInstance().postMessage(frame, from);
+            }
+        });
+    }
+
+    /**
+     * 独立的实例：全网转发的帧类型与getInstance()相同，没有处理器，转发的帧交给output
+     */
+    public MeshRouter(Output output) {
+        this.output = output;
+        shared = false;
+        MeshRouter live = getInstance();
+        System.arraycopy(live.routedTypes, 0, routedTypes, 0, routedTypes.length);
+    }
+
+    public static MeshRouter getInstance() {
+        if (instance == null) {
+            synchronized (MeshRouter.class) {
+                if (instance == null) {
+                    instance = new MeshRouter();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 注册帧类型的处理器
+     *
+     * @param type    帧类型
+     * @param routed  true表示全网转发，false表示只在链路内有效
+     * @param handler 处理器
+     */
+    public void register(byte type, boolean routed, FrameHandler handler) {
+        routedTypes[type & 0xFF] = routed;
+        handlers[type & 0xFF] = handler;
+    }
+
+    SeenCache getSeenCache() {
+        return seenCache;
+    }
+
+    public void addLinkListener(LinkListener listener) {
+        linkListeners.add(listener);
+    }
+
+    /**
+     * @return 需要全网转发的帧类型
+     */
+    public boolean isRouted(byte type) {
+        return routedTypes[type & 0xFF];
+    }
+
+    /**
+     * 链路建立后由SService和CService调用
+     */
+    public void linkUp(Link link) {
+        MeshSession.getInstance().onLinkUp();
+        for (LinkListener listener : linkListeners) {
+            listener.onLinkUp(link);
+        }
+    }
+
+    /**
+     * 链路断开后由SService和CService调用
+     */
+    public void linkDown(Link link) {
+        for (LinkListener listener : linkListeners) {
+            listener.onLinkDown(link);
+        }
+    }
+
+    /**
+     * 处理通信线程不认识的帧：全网转发的交给route，链路内的交给注册的处理器
+     */
+    public void onFrame(Frame frame, Link from) {
+        if (isRouted(frame.getType())) {
+            route(frame, from);
+            return;
+        }
+        FrameHandler handler = handlers[frame.getType() & 0xFF];
+        if (handler != null) {
+            handler.onFrame(frame, from);
+        } else {
+            Log.w(TAG, "drop frame type " + frame.getType());
+        }
+    }
+
+    /**
+     * 处理从链路收到的帧：重复的帧直接丢弃，否则转发给除来源外的所有链路，再交给本机处理
+     *
+     * @param frame 帧
+     * @param from  来源链路
+     */
+    public void route(Frame frame, Link from) {
+        List<String> streamed = frame.getStreamedTo();
+        if (streamed != null) {
+            //接收时已直通转发，去重和限速都已完成
+            relayRest(frame, from, streamed);
+            return;
+        }
+        //被RelayLimiter延后、重新交回的帧已去重
+        boolean deferred = frame.getRelayWaited() > 0;
+        if (!deferred && (frame.getOrigin() == MeshConfig.getInstance().getNodeId()
+                || !seenCache.markSeen(frame.getOrigin(), frame.getSeq()))) {
+            return;
+        }
+        //超限的帧被丢弃，或延后后由RelayLimiter重新交回这里
+        if (!shared || RelayLimiter.getInstance().admit(frame, from)) {
+            relay(frame, from);
+        }
+    }
+
+    /**
+     * 转发已去重、已通过限速的帧，再交给本机处理
+     */
+    private void relay(Frame frame, Link from) {
+        String fromAddress = from.getAddress();
+        if (shared) {
+            MeshSession.getInstance().onRelayed();
+        }
+        if (frame.getType() == Frame.TYPE_ADVERT && Capacity.hasNoAddress(frame.getEncoded(), Frame.HEADER_LENGTH)) {
+            //第一跳：填写发起节点的地址后再转发
+            frame = frame.withPayload(Capacity.withAddress(frame.getPayload(), fromAddress));
+        }
+        output.relay(frame, fromAddress);
+        deliver(frame, from);
+    }
+
+    /**
+     * 直通转发前的去重和限速，通过时已记为收到
+     *
+     * @return false时帧按原方式收完后交给onFrame
+     */
+    boolean admitStreamed(long origin, int seq, byte type, int bytes, Link from) {
+        if (origin == MeshConfig.getInstance().getNodeId() || seenCache.isSeen(origin, seq)) {
+            return false;
+        }
+        if (!RelayLimiter.getInstance().tryAdmit(origin, type, bytes, from)) {
+            return false;
+        }
+        return seenCache.markSeen(origin, seq);
+    }
+
+    /**
+     * 直通转发过的帧再发给其余链路（加密的、当时写锁被占用的），然后交给本机处理
+     */
+    private void relayRest(Frame frame, Link from, List<String> streamed) {
+        String fromAddress = from.getAddress();
+        MeshSession.getInstance().onRelayed();
+        ArrayList<FanOut.Lane> lanes = SService.getInstance().getLanes(fromAddress);
+        lanes.addAll(CService.getInstance().getLanes(fromAddress));
+        Iterator<FanOut.Lane> it = lanes.iterator();
+        while (it.hasNext()) {
+            if (streamed.contains(it.next().getLink().getAddress())) {
+                it.remove();
+            }
+        }
+        if (!lanes.isEmpty()) {
+            MeshConfig config = MeshConfig.getInstance();
+            if (config.isParallelFanOut()) {
+                FanOut.getInstance().scatter(frame, lanes, config.getFanOutDeadlineMs(), false);
+            } else {
+                FanOut.sequential(frame, lanes, false);
+            }
+        }
+        deliver(frame, from);
+    }
+
+    /**
+     * 向全网发送一条消息：只生成一帧，经两个服务发给所有邻居，其他节点按(origin, seq)去重后只收到一次
+     */
+    public void sendMessage(byte[] message) {
+        broadcast(Tracer.getInstance().sample(Frame.createLocal(Frame.TYPE_DATA, message)));
+    }
+
+    /**
+     * 发送本机产生的帧
+     */
+    public void broadcast(Frame frame) {
+        seenCache.markSeen(frame.getOrigin(), frame.getSeq());
+        output.relay(frame, null);
+    }
+
+    /**
+     * 发给除except外的所有直连邻居，不经过去重，供自己逐跳转发的模块使用
+     *
+     * @param except 不发送的链路，为null时发给所有邻居
+     */
+    public void sendToNeighbors(Frame frame, Link except) {
+        output.send(frame, except == null ? null : except.getAddress());
+    }
+
+    private void deliver(Frame frame, Link from) {
+        if (frame.isTraced()) {
+            Tracer.getInstance().onReceived(frame);
+        }
+        FrameHandler handler = handlers[frame.getType() & 0xFF];
+        if (handler != null) {
+            handler.onFrame(frame, from);
+        }
+    }
+}
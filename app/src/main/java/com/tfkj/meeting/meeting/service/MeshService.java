@@ -0,0 +1,286 @@
+package com.tfkj.meeting.meeting.service;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Build;
+import android.os.IBinder;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.content.ContextCompat;
+import android.util.Log;
+
+import com.tfkj.meeting.meeting.Constants;
+import com.tfkj.meeting.meeting.MainActivity;
+import com.tfkj.meeting.meeting.R;
+import com.tfkj.meeting.meeting.attachment.AttachmentService;
+import com.tfkj.meeting.meeting.state.PollService;
+import com.tfkj.meeting.meeting.state.PresenceService;
+import com.tfkj.meeting.meeting.state.StateReplicator;
+import com.tfkj.meeting.meeting.voice.VoiceChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 承载SService、CService等通信模块的前台服务。
+ *
+ * 界面通过bindService获取MeshBinder操作网络，Activity重建、切到后台时链路保持不断；
+ * 只有用户离开会议（MeshBinder.leave或通知栏的离开按钮）时才断开所有链路并停止服务。
+ */
+public class MeshService extends Service {
+    private static final String TAG = "MeshService";
+
+    private static final int NOTIFICATION_ID = 1;
+    private static final String CHANNEL_ID = "mesh";
+    private static final String ACTION_LEAVE = "com.tfkj.meeting.meeting.action.LEAVE";
+
+    private final MeshBinder mBinder = new MeshBinder();
+    private NotificationManager mNotificationManager;
+
+    /**
+     * 界面端使用的接口，在主线程中调用
+     */
+    public class MeshBinder extends Binder {
+
+        public void connect(BluetoothDevice device, boolean secure) {
+            CService.getInstance().connect(device, secure);
+        }
+
+        public void connectDevices(ArrayList<String> macAddresses) {
+            CService.getInstance().connectDevices(macAddresses);
+        }
+
+        /**
+         * 向所有链路发送消息
+         */
+        public void send(byte[] message) {
+            MeshRouter.getInstance().sendMessage(message);
+        }
+
+        public int getLinkCount() {
+            return SService.getInstance().getLinkCount() + CService.getInstance().getLinkCount();
+        }
+
+        /**
+         * @return 恢复上次会议的耗时，没有恢复时为null
+         */
+        public String getResumeReport() {
+            return MeshSession.getInstance().getResumeReport();
+        }
+
+        /**
+         * @return 时钟同步的状态，用于查看同步精度
+         */
+        public String getClockReport() {
+            return MeshClock.getInstance().getReport();
+        }
+
+        /**
+         * @return 中继限速的计数，用于找出发送过多的设备
+         */
+        public String getRelayLimitReport() {
+            return RelayLimiter.getInstance().getReport();
+        }
+
+        /**
+         * @return 路由线程处理的帧数、批大小和积压
+         */
+        public String getRoutingReport() {
+            return RoutingStage.getInstance().getReport();
+        }
+
+        /**
+         * 设置会议口令，之后新建的链路生效。所有设备使用相同口令时，才允许不需要配对的Insecure连接
+         *
+         * @param passphrase 为空表示不使用口令，只使用Secure连接
+         */
+        public void setMeetingKey(String passphrase) {
+            MeshConfig.getInstance().setMeetingKey(passphrase.getBytes(StandardCharsets.UTF_8));
+            MeshSession.getInstance().saveMeetingKey(passphrase);
+        }
+
+        public boolean hasMeetingKey() {
+            return MeshConfig.getInstance().getMeetingKey() != null;
+        }
+
+        /**
+         * 开启或关闭单独的路由线程，立即生效
+         */
+        public void setRoutingStage(boolean enabled) {
+            MeshConfig.getInstance().setRoutingStage(enabled);
+            if (enabled) {
+                RoutingStage.getInstance().start();
+            } else {
+                RoutingStage.getInstance().stop();
+            }
+        }
+
+        public boolean isRoutingStage() {
+            return RoutingStage.getInstance().isRunning();
+        }
+
+        /**
+         * @return 抽样追踪的消息在各节点、各链路上的延迟
+         */
+        public String getTraceReport() {
+            return Tracer.getInstance().getReport();
+        }
+
+        /**
+         * @return 附件分块缓存的命中率、节省的字节数和占用
+         */
+        public String getAttachmentReport() {
+            return AttachmentService.getInstance().getReport();
+        }
+
+        /**
+         * 开始记录所有链路收发的帧，文件在应用私有目录的capture下
+         */
+        public void startCapture() throws IOException {
+            TrafficCapture.getInstance().start(getCaptureDir(), TrafficCapture.DEFAULT_MAX_FILE_BYTES,
+                    TrafficCapture.DEFAULT_MAX_FILES);
+        }
+
+        public void stopCapture() {
+            TrafficCapture.getInstance().stop();
+        }
+
+        /**
+         * @return 抓包文件所在目录，供导出或TrafficReplay回放
+         */
+        public File getCaptureDir() {
+            return new File(getFilesDir(), "capture");
+        }
+
+        /**
+         * 离开会议：断开所有链路并停止服务
+         */
+        public void leave() {
+            MeshService.this.leave();
+        }
+    }
+
+    /**
+     * 启动服务，已启动时无影响
+     */
+    public static void start(Context context) {
+        ContextCompat.startForegroundService(context, new Intent(context, MeshService.class));
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        Log.d(TAG, "onCreate");
+        mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            mNotificationManager.createNotificationChannel(new NotificationChannel(CHANNEL_ID,
+                    getString(R.string.mesh_channel), NotificationManager.IMPORTANCE_LOW));
+        }
+        startForeground(NOTIFICATION_ID, buildNotification(0));
+
+        MeshSession.getInstance().start();
+        //先于通信线程启动，开启时收到的帧都经过路由线程
+        RoutingStage.getInstance().start();
+        if (CService.getInstance().getState() == Constants.STATE_NONE) {
+            CService.getInstance().start();
+        }
+        if (SService.getInstance().getState() == Constants.STATE_NONE) {
+            SService.getInstance().start();
+        }
+        TopologyBalancer.getInstance().start(this);
+        RelayLimiter.getInstance().start();
+        MeshClock.getInstance().start();
+        Gossip.getInstance().start();
+        PubSub.getInstance().start();
+        StateReplicator.getInstance().start();
+        PresenceService.getInstance().start();
+        PollService.getInstance().start();
+        AttachmentService.getInstance().start();
+        //注册语音帧的处理，本机不讲话时也要接收和转发
+        VoiceChannel.getInstance();
+        MeshEvents.getInstance().addListener(mMeshListener);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_LEAVE.equals(intent.getAction())) {
+            leave();
+            return START_NOT_STICKY;
+        }
+        //被系统回收后重新创建，重新开始监听
+        return START_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public void onDestroy() {
+        Log.d(TAG, "onDestroy");
+        MeshEvents.getInstance().removeListener(mMeshListener);
+        AttachmentService.getInstance().stop();
+        PollService.getInstance().stop();
+        PresenceService.getInstance().stop();
+        StateReplicator.getInstance().stop();
+        PubSub.getInstance().stop();
+        Gossip.getInstance().stop();
+        MeshClock.getInstance().stop();
+        RelayLimiter.getInstance().stop();
+        TopologyBalancer.getInstance().stop();
+        CService.getInstance().stop();
+        SService.getInstance().stop();
+        RoutingStage.getInstance().stop();
+        TrafficCapture.getInstance().stop();
+        super.onDestroy();
+    }
+
+    private void leave() {
+        //先停止定期保存组网信息，再清除，否则下次启动会恢复已离开的会议
+        TopologyBalancer.getInstance().stop();
+        MeshSession.getInstance().clear();
+        stopForeground(true);
+        stopSelf();
+    }
+
+    private final MeshEvents.Listener mMeshListener = new MeshEvents.Listener() {
+        @Override
+        public void onStateChanged(int serverState, int clientState, int links) {
+            mNotificationManager.notify(NOTIFICATION_ID, buildNotification(links));
+        }
+
+        @Override
+        public void onMessages(List<MeshEvents.Message> messages, int dropped) {
+        }
+
+        @Override
+        public void onWritten(int frames, long bytes) {
+        }
+    };
+
+    private Notification buildNotification(int links) {
+        PendingIntent content = PendingIntent.getActivity(this, 0,
+                new Intent(this, MainActivity.class), PendingIntent.FLAG_UPDATE_CURRENT);
+        PendingIntent leave = PendingIntent.getService(this, 0,
+                new Intent(this, MeshService.class).setAction(ACTION_LEAVE), PendingIntent.FLAG_UPDATE_CURRENT);
+        return new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(R.string.mesh_links, links))
+                .setContentIntent(content)
+                .addAction(0, getString(R.string.leave_meeting), leave)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .build();
+    }
+}
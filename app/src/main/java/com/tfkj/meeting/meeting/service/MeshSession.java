@@ -0,0 +1,207 @@
+package com.tfkj.meeting.meeting.service;
+
+import android.bluetooth.BluetoothAdapter;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 保存上次会议的组网信息，应用重启后直接恢复，不需要重新选择设备。
+ *
+ * 保存的内容：本机节点ID、帧序号的预留上限、本机主动连接的服务端地址、本机是否为中心节点和会议口令。
+ * 节点ID和序号跨重启保持连续，对端的去重窗口不会把重启后的新帧当作旧帧丢弃。
+ * 序号上限用SharedPreferences.commit()同步写入：进程在写入前被杀时重启后会重复使用序号，对端会当作重复帧丢弃；
+ * 每SEQ_BLOCK帧才写一次。其余写入使用apply()，不阻塞调用线程。
+ */
+public class MeshSession {
+    private static final String TAG = "MeshSession";
+
+    private static final String PREFS = "mesh_session";
+    private static final String KEY_NODE_ID = "node_id";
+    private static final String KEY_SEQ_CEILING = "seq_ceiling";
+    private static final String KEY_PEERS = "peers";
+    private static final String KEY_HUB = "hub";
+    private static final String KEY_MEETING_KEY = "meeting_key";
+
+    private SharedPreferences prefs;
+    private List<String> savedPeers = new ArrayList<>();
+    private boolean savedHub;
+    //已离开会议，不再保存组网信息，直到重新开始
+    private boolean left;
+
+    //启动耗时，单位毫秒，-1表示尚未发生
+    private long launchAt = -1;
+    private volatile long resumeStartedAt = -1;
+    private volatile long firstLinkAt = -1;
+    private volatile long firstRelayedAt = -1;
+
+    private volatile static MeshSession instance = null;
+
+    private MeshSession() {
+    }
+
+    public static MeshSession getInstance() {
+        if (instance == null) {
+            synchronized (MeshSession.class) {
+                if (instance == null) {
+                    instance = new MeshSession();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 在Application.onCreate中最先调用：恢复节点ID和序号，有上次的会议时立即开始监听并重连
+     */
+    public synchronized void restore(Context context) {
+        launchAt = SystemClock.elapsedRealtime();
+        prefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+
+        MeshConfig config = MeshConfig.getInstance();
+        long nodeId = prefs.getLong(KEY_NODE_ID, 0);
+        if (nodeId == 0) {
+            prefs.edit().putLong(KEY_NODE_ID, config.getNodeId()).apply();
+        } else {
+            config.restore(nodeId, prefs.getInt(KEY_SEQ_CEILING, 0));
+        }
+
+        String peers = prefs.getString(KEY_PEERS, "");
+        savedPeers = peers.isEmpty() ? new ArrayList<String>() : new ArrayList<>(Arrays.asList(peers.split(",")));
+        savedHub = prefs.getBoolean(KEY_HUB, false);
+        //口令在链路开始前恢复，重连时仍可以使用Insecure连接
+        String meetingKey = prefs.getString(KEY_MEETING_KEY, "");
+        config.setMeetingKey(meetingKey.getBytes(StandardCharsets.UTF_8));
+        if (!hasSession()) {
+            return;
+        }
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        if (adapter == null || !adapter.isEnabled()) {
+            return;
+        }
+
+        // 监听和重连同时开始，不等界面
+        resumeStartedAt = SystemClock.elapsedRealtime();
+        Log.i(TAG, "resume " + (savedHub ? "hub" : "leaf") + " session, peers " + savedPeers);
+        SService.getInstance().start();
+        CService.getInstance().resume(savedPeers);
+        MeshService.start(context);
+    }
+
+    /**
+     * @return 上次退出时仍在会议中
+     */
+    public synchronized boolean hasSession() {
+        return !savedPeers.isEmpty() || savedHub;
+    }
+
+    /**
+     * @return 上次会议中本机是否为中心节点
+     */
+    public synchronized boolean wasHub() {
+        return savedHub;
+    }
+
+    /**
+     * 开始会议时由MeshService调用，离开后重新加入时恢复保存
+     */
+    public synchronized void start() {
+        left = false;
+    }
+
+    /**
+     * 保存当前的服务端地址和角色，未变化或已离开会议时不写入
+     */
+    public synchronized void save(List<String> peers, boolean hub) {
+        if (prefs == null || left
+                || (hub == savedHub && peers.size() == savedPeers.size() && savedPeers.containsAll(peers))) {
+            return;
+        }
+        savedPeers = new ArrayList<>(peers);
+        savedHub = hub;
+        StringBuilder joined = new StringBuilder();
+        for (String peer : peers) {
+            if (joined.length() > 0) {
+                joined.append(',');
+            }
+            joined.append(peer);
+        }
+        prefs.edit().putString(KEY_PEERS, joined.toString()).putBoolean(KEY_HUB, hub).apply();
+    }
+
+    /**
+     * 保存会议口令，下次启动时恢复；离开会议时清除
+     *
+     * @param meetingKey 为空表示不使用口令
+     */
+    public synchronized void saveMeetingKey(String meetingKey) {
+        if (prefs != null) {
+            prefs.edit().putString(KEY_MEETING_KEY, meetingKey).apply();
+        }
+    }
+
+    /**
+     * 帧序号用到预留上限时由MeshConfig调用
+     */
+    synchronized void saveSeqCeiling(int ceiling) {
+        if (prefs != null) {
+            prefs.edit().putInt(KEY_SEQ_CEILING, ceiling).commit();
+        }
+    }
+
+    /**
+     * 离开会议，下次启动不再恢复，会议口令一并清除；之后TopologyBalancer仍在进行的保存被忽略
+     */
+    public synchronized void clear() {
+        left = true;
+        savedPeers = new ArrayList<>();
+        savedHub = false;
+        MeshConfig.getInstance().setMeetingKey(null);
+        if (prefs != null) {
+            prefs.edit().remove(KEY_PEERS).remove(KEY_HUB).remove(KEY_MEETING_KEY).apply();
+        }
+    }
+
+    void onLinkUp() {
+        if (firstLinkAt < 0 && resumeStartedAt >= 0) {
+            firstLinkAt = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * 第一次收到其他节点发出的全网帧
+     */
+    void onRelayed() {
+        if (firstRelayedAt >= 0 || resumeStartedAt < 0) {
+            return;
+        }
+        synchronized (this) {
+            if (firstRelayedAt >= 0) {
+                return;
+            }
+            firstRelayedAt = SystemClock.elapsedRealtime();
+        }
+        Log.i(TAG, "resumed: " + getResumeReport());
+    }
+
+    /**
+     * @return 从启动到开始重连、第一条链路建立、第一次收到转发帧的耗时；没有恢复会议时为null
+     */
+    public String getResumeReport() {
+        if (resumeStartedAt < 0) {
+            return null;
+        }
+        return "start " + (resumeStartedAt - launchAt) + "ms, first link " + since(firstLinkAt)
+                + ", first relayed message " + since(firstRelayedAt);
+    }
+
+    private String since(long at) {
+        return at < 0 ? "-" : (at - launchAt) + "ms";
+    }
+}
@@ -0,0 +1,269 @@
+package com.tfkj.meeting.meeting.service;
+
+import android.util.Log;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按话题发布和订阅。
+ *
+ * 订阅摘要由TopicTable维护，摘要帧全网转发；话题帧经过MeshRouter去重后交给forward，只发往可能有订阅者的链路。
+ * 新链路建立时把本机保存的各节点最新摘要发过去，新加入的节点不用等下一次刷新。
+ *
+ * <pre>
+ * topic := topicLength:1 topic:UTF-8 body
+ * </pre>
+ */
+public class PubSub {
+    private static final String TAG = "PubSub";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    public static final int MAX_TOPIC_LENGTH = 255;
+
+    /**
+     * 收到订阅的话题的消息，在通信线程中调用
+     */
+    public interface Listener {
+        void onMessage(String topic, long origin, byte[] body);
+    }
+
+    private final TopicTable table = new TopicTable(System.currentTimeMillis());
+    // 各节点最新的摘要帧，新链路建立时转发
+    private final ConcurrentHashMap<Long, Frame> summaries = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private volatile Frame ownSummary;
+    // 只在start和stop中修改，链路监听在通信线程中读取
+    private volatile ScheduledExecutorService scheduler;
+
+    private volatile static PubSub instance = null;
+
+    private PubSub() {
+        MeshRouter router = MeshRouter.getInstance();
+        router.register(Frame.TYPE_SUBSCRIPTION, true, new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame, Link from) {
+                try {
+                    if (table.onSummary(frame.getOrigin(), frame.getPayload(), from.getAddress(),
+                            System.currentTimeMillis())) {
+                        summaries.put(frame.getOrigin(), frame);
+                    }
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "bad summary from " + from.getAddress(), e);
+                }
+            }
+        });
+        router.register(Frame.TYPE_TOPIC, true, new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame, Link from) {
+                deliver(frame);
+            }
+        });
+        router.addLinkListener(new MeshRouter.LinkListener() {
+            @Override
+            public void onLinkUp(Link link) {
+                if (scheduler == null) {
+                    return;
+                }
+                Frame own = ownSummary;
+                if (own != null) {
+                    link.send(own);
+                }
+                for (Frame summary : summaries.values()) {
+                    link.send(summary);
+                }
+            }
+
+            @Override
+            public void onLinkDown(Link link) {
+            }
+        });
+    }
+
+    public static PubSub getInstance() {
+        if (instance == null) {
+            synchronized (PubSub.class) {
+                if (instance == null) {
+                    instance = new PubSub();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 开始定期刷新摘要，新链路建立时发送已知的摘要
+     */
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "refresh failed", e);
+                }
+            }
+        }, 0, TopicTable.SUMMARY_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public void subscribe(String topic) {
+        checkTopic(topic);
+        if (table.subscribe(topic)) {
+            advertise();
+        }
+    }
+
+    public void unsubscribe(String topic) {
+        if (table.unsubscribe(topic)) {
+            advertise();
+        }
+    }
+
+    public List<String> getTopics() {
+        return table.getTopics();
+    }
+
+    /**
+     * 发布消息，本机订阅了该话题时也会收到
+     */
+    public void publish(String topic, byte[] body) {
+        checkTopic(topic);
+        Frame frame = Tracer.getInstance().sample(Frame.createLocal(Frame.TYPE_TOPIC, encode(topic, body)));
+        MeshRouter.getInstance().broadcast(frame);
+        deliver(frame);
+    }
+
+    /**
+     * 转发话题帧，由MeshRouter在去重后调用
+     *
+     * @param exclude 来源链路的地址，本机发出的为null
+     */
+    void forward(Frame frame, String exclude) {
+        String topic;
+        try {
+            topic = topicOf(frame.getPayload());
+        } catch (RuntimeException e) {
+            Log.w(TAG, "bad topic frame from " + exclude, e);
+            return;
+        }
+        ArrayList<FanOut.Lane> lanes = SService.getInstance().getLanes(exclude);
+        lanes.addAll(CService.getInstance().getLanes(exclude));
+        ArrayList<String> addresses = new ArrayList<>(lanes.size());
+        for (FanOut.Lane lane : lanes) {
+            addresses.add(lane.getLink().getAddress());
+        }
+        Set<String> interested = table.linksFor(topic, addresses, exclude);
+        Iterator<FanOut.Lane> it = lanes.iterator();
+        while (it.hasNext()) {
+            if (!interested.contains(it.next().getLink().getAddress())) {
+                it.remove();
+            }
+        }
+        if (lanes.isEmpty()) {
+            return;
+        }
+        MeshConfig config = MeshConfig.getInstance();
+        if (config.isParallelFanOut()) {
+            FanOut.getInstance().scatter(frame, lanes, config.getFanOutDeadlineMs(), false);
+        } else {
+            FanOut.sequential(frame, lanes, false);
+        }
+    }
+
+    private void deliver(Frame frame) {
+        byte[] payload = frame.getPayload();
+        String topic;
+        try {
+            topic = topicOf(payload);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "bad topic frame from " + frame.getOrigin(), e);
+            return;
+        }
+        //Bloom过滤器可能误判，本机按订阅的话题精确过滤
+        if (!table.isSubscribed(topic)) {
+            return;
+        }
+        byte[] body = bodyOf(payload);
+        for (Listener listener : listeners) {
+            listener.onMessage(topic, frame.getOrigin(), body);
+        }
+    }
+
+    private void advertise() {
+        Frame frame = Frame.createLocal(Frame.TYPE_SUBSCRIPTION, table.encodeSummary());
+        ownSummary = frame;
+        MeshRouter.getInstance().broadcast(frame);
+    }
+
+    private void refresh() {
+        long now = System.currentTimeMillis();
+        table.expire(now);
+        Iterator<Frame> it = summaries.values().iterator();
+        while (it.hasNext()) {
+            long origin = it.next().getOrigin();
+            if (!table.hasSummary(origin)) {
+                it.remove();
+            }
+        }
+        advertise();
+    }
+
+    private static void checkTopic(String topic) {
+        int length = topic.getBytes(UTF_8).length;
+        if (length == 0 || length > MAX_TOPIC_LENGTH) {
+            throw new IllegalArgumentException("topic length " + length);
+        }
+    }
+
+    static byte[] encode(String topic, byte[] body) {
+        byte[] name = topic.getBytes(UTF_8);
+        byte[] out = new byte[1 + name.length + body.length];
+        out[0] = (byte) name.length;
+        System.arraycopy(name, 0, out, 1, name.length);
+        System.arraycopy(body, 0, out, 1 + name.length, body.length);
+        return out;
+    }
+
+    static String topicOf(byte[] payload) {
+        int length = payload[0] & 0xFF;
+        if (length == 0 || 1 + length > payload.length) {
+            throw new IllegalArgumentException("bad topic length " + length);
+        }
+        return new String(payload, 1, length, UTF_8);
+    }
+
+    static byte[] bodyOf(byte[] payload) {
+        int offset = 1 + (payload[0] & 0xFF);
+        byte[] body = new byte[payload.length - offset];
+        System.arraycopy(payload, offset, body, 0, body.length);
+        return body;
+    }
+}
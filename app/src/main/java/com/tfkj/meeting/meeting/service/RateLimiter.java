@@ -0,0 +1,240 @@
+package com.tfkj.meeting.meeting.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 中继节点按发起节点和来源链路限速，防止一台设备占满整个网络。
+ *
+ * 每个发起节点、每条链路各一个按字节计的TokenBucket，两个都有余量才放行，记账无锁且O(1)。
+ * 超限后按流量类别处理：语音过时即无用，直接丢弃；消息等普通帧延后重试，最多延后MAX_DEFER_NANOS；
+ * 状态同步、订阅摘要等控制帧很小，又是全网收敛所必需的，不限速。
+ * 桶装满后和新建的没有区别，expire定期清理，不会随离开的设备增长。
+ */
+public class RateLimiter {
+
+    public static final int CLASS_REALTIME = 0;
+    public static final int CLASS_BULK = 1;
+    public static final int CLASS_CONTROL = 2;
+    private static final String[] CLASS_NAMES = {"realtime", "bulk", "control"};
+
+    public static final long ACCEPT = 0;
+    public static final long DROP = -1;
+    // 超限的帧最多延后这么久，之后丢弃
+    public static final long MAX_DEFER_NANOS = 2000000000L;
+    // 同时延后的帧数上限，超过后直接丢弃
+    static final int MAX_DEFERRED = 256;
+
+    private final double originRate;
+    private final int originBurst;
+    private final double linkRate;
+    private final int linkBurst;
+    private final ConcurrentHashMap<Long, TokenBucket> origins = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, TokenBucket> links = new ConcurrentHashMap<>();
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final AtomicLong[] admitted = counters();
+    private final AtomicLong[] deferred = counters();
+    private final AtomicLong[] dropped = counters();
+    // 每个发起节点超限的帧数，用于找出发送过多的设备
+    private final ConcurrentHashMap<Long, AtomicLong> limitedByOrigin = new ConcurrentHashMap<>();
+
+    /**
+     * @param originRate  每个发起节点每秒的字节数
+     * @param originBurst 每个发起节点允许的突发字节数
+     * @param linkRate    每条链路每秒的字节数
+     * @param linkBurst   每条链路允许的突发字节数
+     */
+    public RateLimiter(double originRate, int originBurst, double linkRate, int linkBurst) {
+        if (originRate <= 0 || originBurst < 1 || linkRate <= 0 || linkBurst < 1) {
+            throw new IllegalArgumentException("origin " + originRate + "/" + originBurst
+                    + " link " + linkRate + "/" + linkBurst);
+        }
+        this.originRate = originRate;
+        this.originBurst = originBurst;
+        this.linkRate = linkRate;
+        this.linkBurst = linkBurst;
+    }
+
+    private static AtomicLong[] counters() {
+        return new AtomicLong[]{new AtomicLong(), new AtomicLong(), new AtomicLong()};
+    }
+
+    public static int classOf(byte type) {
+        switch (type) {
+            case Frame.TYPE_VOICE:
+                return CLASS_REALTIME;
+            case Frame.TYPE_DATA:
+            case Frame.TYPE_TOPIC:
+                return CLASS_BULK;
+            default:
+                return CLASS_CONTROL;
+        }
+    }
+
+    /**
+     * 判断收到的全网帧能否转发
+     *
+     * @param link   来源链路的地址
+     * @param bytes  帧的长度
+     * @param waited 已经延后的纳秒数，第一次为0；延后的帧重试时必须传入大于0的值
+     * @return ACCEPT放行，DROP丢弃，正数表示延后这么多纳秒后再调用
+     */
+    public long admit(long origin, String link, byte type, int bytes, long waited, long now) {
+        int trafficClass = classOf(type);
+        if (waited > 0) {
+            pending.decrementAndGet();
+        }
+        long wait = acquire(origin, link, trafficClass, bytes, now);
+        if (wait == 0) {
+            return ACCEPT;
+        }
+        if (waited == 0) {
+            counter(origin).incrementAndGet();
+        }
+        if (trafficClass == CLASS_REALTIME || waited + wait > MAX_DEFER_NANOS) {
+            dropped[trafficClass].incrementAndGet();
+            return DROP;
+        }
+        if (pending.incrementAndGet() > MAX_DEFERRED) {
+            pending.decrementAndGet();
+            dropped[trafficClass].incrementAndGet();
+            return DROP;
+        }
+        if (waited == 0) {
+            deferred[trafficClass].incrementAndGet();
+        }
+        return wait;
+    }
+
+    /**
+     * 不延后的admit，用于已经开始转发、无法延后的帧（见CutThrough）
+     *
+     * @return 现在就能放行时扣除并返回true；否则不扣除也不计数，帧改由admit处理
+     */
+    public boolean tryAdmit(long origin, String link, byte type, int bytes, long now) {
+        return acquire(origin, link, classOf(type), bytes, now) == 0;
+    }
+
+    /**
+     * @return 已扣除并计入放行时返回0，否则为还要等待的纳秒数
+     */
+    private long acquire(long origin, String link, int trafficClass, int bytes, long now) {
+        if (trafficClass == CLASS_CONTROL) {
+            admitted[trafficClass].incrementAndGet();
+            return 0;
+        }
+        TokenBucket originBucket = bucket(origins, origin, originRate, originBurst);
+        TokenBucket linkBucket = bucket(links, link, linkRate, linkBurst);
+        int originCost = Math.min(bytes, originBurst);
+        int linkCost = Math.min(bytes, linkBurst);
+        long wait = Math.max(originBucket.nanosUntilAvailable(originCost, now),
+                linkBucket.nanosUntilAvailable(linkCost, now));
+        if (wait == 0) {
+            //先检查再扣除，另一个桶不足时不会白扣；并发时偶尔多放行一帧
+            originBucket.tryAcquire(originCost, now);
+            linkBucket.tryAcquire(linkCost, now);
+            admitted[trafficClass].incrementAndGet();
+        }
+        return wait;
+    }
+
+    private static <K> TokenBucket bucket(ConcurrentHashMap<K, TokenBucket> buckets, K key, double rate,
+                                          int burst) {
+        TokenBucket bucket = buckets.get(key);
+        if (bucket == null) {
+            TokenBucket created = new TokenBucket(rate, burst);
+            bucket = buckets.putIfAbsent(key, created);
+            if (bucket == null) {
+                bucket = created;
+            }
+        }
+        return bucket;
+    }
+
+    private AtomicLong counter(long origin) {
+        AtomicLong counter = limitedByOrigin.get(origin);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = limitedByOrigin.putIfAbsent(origin, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * 定期调用，丢弃已经装满的桶
+     */
+    public void expire(long now) {
+        expire(origins, now);
+        expire(links, now);
+    }
+
+    private static <K> void expire(Map<K, TokenBucket> buckets, long now) {
+        Iterator<TokenBucket> it = buckets.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().isFull(now)) {
+                it.remove();
+            }
+        }
+    }
+
+    public long getAdmitted(int trafficClass) {
+        return admitted[trafficClass].get();
+    }
+
+    public long getDeferred(int trafficClass) {
+        return deferred[trafficClass].get();
+    }
+
+    public long getDropped(int trafficClass) {
+        return dropped[trafficClass].get();
+    }
+
+    /**
+     * @return 正在延后等待重试的帧数
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * @return 各发起节点超限的帧数
+     */
+    public long getLimited(long origin) {
+        AtomicLong counter = limitedByOrigin.get(origin);
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * @return 各类别的计数和超限最多的几个发起节点
+     */
+    public String getReport() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < CLASS_NAMES.length; i++) {
+            sb.append(String.format("%s: admitted %d deferred %d dropped %d\n", CLASS_NAMES[i],
+                    admitted[i].get(), deferred[i].get(), dropped[i].get()));
+        }
+        sb.append("pending ").append(pending.get()).append('\n');
+        List<Map.Entry<Long, AtomicLong>> limited = new ArrayList<>(limitedByOrigin.entrySet());
+        Collections.sort(limited, new Comparator<Map.Entry<Long, AtomicLong>>() {
+            @Override
+            public int compare(Map.Entry<Long, AtomicLong> a, Map.Entry<Long, AtomicLong> b) {
+                return Long.compare(b.getValue().get(), a.getValue().get());
+            }
+        });
+        for (int i = 0; i < Math.min(5, limited.size()); i++) {
+            sb.append(String.format("%016x limited %d\n", limited.get(i).getKey(), limited.get(i).getValue().get()));
+        }
+        return sb.toString();
+    }
+}
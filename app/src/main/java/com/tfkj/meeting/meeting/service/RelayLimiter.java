@@ -0,0 +1,121 @@
+package com.tfkj.meeting.meeting.service;
+
+import android.util.Log;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 把RateLimiter接入MeshRouter：去重后的全网帧先经过这里，延后的帧记下已等待的时间，到时间后经RoutingStage
+ * 重新交给MeshRouter，开启路由线程时转发决定仍在路由线程中进行。
+ * 未启动时不限速。
+ */
+public class RelayLimiter {
+    private static final String TAG = "RelayLimiter";
+
+    // 清理已装满的桶的间隔
+    private static final long EXPIRE_INTERVAL_MS = 60000;
+
+    private volatile RateLimiter limiter;
+    private ScheduledExecutorService scheduler;
+
+    private volatile static RelayLimiter instance = null;
+
+    private RelayLimiter() {
+    }
+
+    public static RelayLimiter getInstance() {
+        if (instance == null) {
+            synchronized (RelayLimiter.class) {
+                if (instance == null) {
+                    instance = new RelayLimiter();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 按MeshConfig中的限速参数开始限速
+     */
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        MeshConfig config = MeshConfig.getInstance();
+        limiter = new RateLimiter(config.getOriginRateBytes(), config.getOriginBurstBytes(),
+                config.getLinkRateBytes(), config.getLinkBurstBytes());
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                RateLimiter current = limiter;
+                if (current != null) {
+                    current.expire(System.nanoTime());
+                }
+            }
+        }, EXPIRE_INTERVAL_MS, EXPIRE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        limiter = null;
+    }
+
+    /**
+     * @return true表示现在转发；false表示已丢弃，或已延后、之后重新交给MeshRouter
+     */
+    boolean admit(final Frame frame, final Link from) {
+        RateLimiter current = limiter;
+        if (current == null) {
+            return true;
+        }
+        final long waited = frame.getRelayWaited();
+        long result = current.admit(frame.getOrigin(), from.getAddress(), frame.getType(),
+                frame.getEncoded().length, waited, System.nanoTime());
+        if (result == RateLimiter.ACCEPT) {
+            return true;
+        }
+        if (result == RateLimiter.DROP) {
+            return false;
+        }
+        final long delay = result;
+        synchronized (this) {
+            if (scheduler == null) {
+                return false;
+            }
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        frame.markDeferred(waited + delay);
+                        RoutingStage.getInstance().publish(frame, from);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "deferred relay failed", e);
+                    }
+                }
+            }, delay, TimeUnit.NANOSECONDS);
+        }
+        return false;
+    }
+
+    /**
+     * 直通转发前调用，只在现在就能放行时返回true，不会延后
+     */
+    boolean tryAdmit(long origin, byte type, int bytes, Link from) {
+        RateLimiter current = limiter;
+        return current == null || current.tryAdmit(origin, from.getAddress(), type, bytes, System.nanoTime());
+    }
+
+    /**
+     * @return 限速计数，未启动时为空字符串
+     */
+    public String getReport() {
+        RateLimiter current = limiter;
+        return current == null ? "" : current.getReport();
+    }
+}
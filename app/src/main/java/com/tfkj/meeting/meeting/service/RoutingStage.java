@@ -0,0 +1,149 @@
+package com.tfkj.meeting.meeting.service;
+
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 收到的全网帧和交给注册模块的帧由一个路由线程处理。
+ *
+ * 各ConnectedThread只负责读帧和链路内的控制帧（含接收时间参与计算的时钟探测），其余的放进InboundRing；
+ * 路由线程成批取出，依次交给MeshRouter去重、转发和本地处理，转发经FanOut放入各链路的发送队列。
+ * RelayLimiter延后的帧到时间后也放回这里，运行期间不使用CutThrough，去重和转发决定只在一个线程中进行，
+ * SeenCache等的锁不再有多个通信线程争用；通信线程读完一帧就能读下一帧，不再等待转发。
+ * 代价是每帧多一次线程间交接，路由线程空闲时要被唤醒，大帧也不再直通转发，所以由MeshConfig.isRoutingStage()开启，
+ * 可以在会议中通过MeshService.MeshBinder.setRoutingStage切换；未开启时通信线程直接调用MeshRouter。
+ */
+public class RoutingStage {
+    private static final String TAG = "RoutingStage";
+
+    static final int RING_SIZE = 1024;
+    static final int MAX_BATCH = 64;
+    // 没有帧时路由线程每次等待的最长时间，停止时最多晚这么久退出
+    private static final long IDLE_WAIT_MS = 100;
+
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    // 正在放入InboundRing的通信线程数，停止后路由线程等它归零才做最后一次取出
+    private final AtomicInteger publishing = new AtomicInteger();
+    private volatile InboundRing ring;
+    private Thread thread;
+
+    private volatile static RoutingStage instance = null;
+
+    private RoutingStage() {
+    }
+
+    public static RoutingStage getInstance() {
+        if (instance == null) {
+            synchronized (RoutingStage.class) {
+                if (instance == null) {
+                    instance = new RoutingStage();
+                }
+            }
+        }
+        return instance;
+    }
+
+    private static final InboundRing.Handler ROUTE = new InboundRing.Handler() {
+        @Override
+        public void onFrame(Frame frame, Link from, boolean endOfBatch) {
+            try {
+                MeshRouter.getInstance().onFrame(frame, from);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "route frame type " + frame.getType() + " from " + from.getAddress() + " failed", e);
+            }
+        }
+    };
+
+    /**
+     * MeshConfig.isRoutingStage()为false时不启动
+     */
+    public synchronized void start() {
+        if (thread != null || !MeshConfig.getInstance().isRoutingStage()) {
+            return;
+        }
+        final InboundRing started = new InboundRing(RING_SIZE);
+        ring = started;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long idleNanos = TimeUnit.MILLISECONDS.toNanos(IDLE_WAIT_MS);
+                while (ring == started) {
+                    int n = started.drain(ROUTE, MAX_BATCH);
+                    if (n > 0) {
+                        frames.addAndGet(n);
+                        batches.incrementAndGet();
+                    } else {
+                        started.await(idleNanos);
+                    }
+                }
+                //停止前已放入和正在放入的帧仍然处理：先确认没有通信线程还在放入，再取空
+                while (true) {
+                    boolean idle = publishing.get() == 0;
+                    int n = started.drain(ROUTE, MAX_BATCH);
+                    if (n > 0) {
+                        frames.addAndGet(n);
+                        batches.incrementAndGet();
+                    } else if (idle) {
+                        break;
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            }
+        }, TAG);
+        thread.start();
+    }
+
+    /**
+     * 停止后已放入的帧仍由路由线程处理完，这期间通信线程收到的帧已直接交给MeshRouter。
+     * 不关闭InboundRing：队列满时等待的通信线程仍能放入，由路由线程取出
+     */
+    public synchronized void stop() {
+        if (thread == null) {
+            return;
+        }
+        ring = null;
+        LockSupport.unpark(thread);
+        thread = null;
+    }
+
+    public boolean isRunning() {
+        return ring != null;
+    }
+
+    /**
+     * 由通信线程和RelayLimiter调用，队列满时等待路由线程取出，链路的读取随之放慢
+     */
+    void publish(Frame frame, Link from) {
+        InboundRing current = ring;
+        if (current != null) {
+            publishing.incrementAndGet();
+            try {
+                //计数之后ring仍未变，路由线程最后一次取出前一定等到这一帧放入
+                if (ring == current) {
+                    current.publish(frame, from);
+                    return;
+                }
+            } finally {
+                publishing.decrementAndGet();
+            }
+        }
+        MeshRouter.getInstance().onFrame(frame, from);
+    }
+
+    /**
+     * @return 处理的帧数、平均每批帧数和当前积压
+     */
+    public String getReport() {
+        long n = frames.get();
+        long b = batches.get();
+        InboundRing current = ring;
+        return String.format("frames %d, batches %d (%.1f per batch), queued %d", n, b,
+                b == 0 ? 0.0 : (double) n / b, current == null ? 0 : current.size());
+    }
+}
@@ -17,18 +17,29 @@
 package com.tfkj.meeting.meeting.service;
 
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
 import android.util.Log;
 
 import com.tfkj.meeting.meeting.Constants;
 
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class SService {
     // Debugging
@@ -38,20 +49,33 @@ public class SService {
     private static final String NAME_SECURE = "BluetoothChatSecure";
     private static final String NAME_INSECURE = "BluetoothChatInsecure";
 
+    // 被拒绝的连接发送重定向后，等待对方主动断开的时间
+    private static final long REDIRECT_LINGER_MS = 2000;
+
     // Member fields
     private final BluetoothAdapter mAdapter;
     private AcceptThread mSecureAcceptThread;
     private AcceptThread mInsecureAcceptThread;
-    private int mState;
 
     //所有接入的客户端连接线程
-    private HashMap<String, ConnectedThread> clientConnectedThread = new HashMap<>();
+    private final ConcurrentHashMap<String, ConnectedThread> clientConnectedThread = new ConcurrentHashMap<>();
+
+    //已占用的接入名额，握手前预留，连接断开后释放
+    private final AtomicInteger mPeerCount = new AtomicInteger();
+    //新连接限速
+    private volatile TokenBucket mConnectBucket;
+    //握手线程池，accept线程只负责接收，握手和接入判断不占用全局锁
+    private final ThreadPoolExecutor mHandshakeExecutor = new ThreadPoolExecutor(2, 2,
+            30, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(8));
+    //重定向后的等待和握手超时
+    private final ScheduledExecutorService mTimeoutScheduler = Executors.newSingleThreadScheduledExecutor();
 
     private volatile static SService instance = null;
 
     private SService() {
         mAdapter = BluetoothAdapter.getDefaultAdapter();
-        mState = Constants.STATE_NONE;
+        mHandshakeExecutor.allowCoreThreadTimeOut(true);
+        resetConnectBucket();
     }
 
     public static SService getInstance() {
@@ -65,8 +89,34 @@ public class SService {
         return instance;
     }
 
+    /**
+     * @return 由各条连接的状态汇总：有客户端接入时为STATE_CONNECTED，否则在监听时为STATE_LISTEN
+     */
     public synchronized int getState() {
-        return mState;
+        ArrayList<ConnectionState> states = new ArrayList<>();
+        for (ConnectedThread connectedThread : clientConnectedThread.values()) {
+            states.add(connectedThread.mmState);
+        }
+        boolean listening = mSecureAcceptThread != null || mInsecureAcceptThread != null;
+        return ConnectionState.aggregate(states, listening ? Constants.STATE_LISTEN : Constants.STATE_NONE);
+    }
+
+    /**
+     * 通知界面连接状态或链路数已变化，多次通知会合并
+     */
+    private void updateUserInterfaceTitle() {
+        MeshEvents.getInstance().postServerState(getState());
+    }
+
+    /**
+     * @return 当前接入的客户端数
+     */
+    public int getPeerCount() {
+        return clientConnectedThread.size();
+    }
+
+    int getLinkCount() {
+        return clientConnectedThread.size();
     }
 
     /**
@@ -75,6 +125,8 @@ public class SService {
     public synchronized void start() {
         Log.d(TAG, "start");
 
+        resetConnectBucket();
+
         // Start the thread to listen on a BluetoothServerSocket
         if (mSecureAcceptThread == null) {
             mSecureAcceptThread = new AcceptThread(true);
@@ -85,24 +137,114 @@ public class SService {
             mInsecureAcceptThread.start();
         }
 
-        mState = getState();
+        updateUserInterfaceTitle();
     }
 
     /**
-     * 客服端连接成功后，创建用于通信的线程
-     * @param socket
-     * @param device
+     * 按MeshConfig重新创建新连接限速
      */
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice device) {
-        Log.d(TAG, "connected, device address:" + device.getAddress());
+    void resetConnectBucket() {
+        MeshConfig config = MeshConfig.getInstance();
+        mConnectBucket = new TokenBucket(config.getConnectRatePerSecond(), config.getConnectBurst());
+    }
 
-        ConnectedThread mConnectedThread = new ConnectedThread(socket, device);
-        mConnectedThread.start();
-        clientConnectedThread.put(device.getAddress(), mConnectedThread);
+    /**
+     * accept到新连接后交给握手线程处理，握手队列已满时直接断开
+     */
+    private void admit(final BluetoothSocket socket) {
+        try {
+            mHandshakeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handshake(LinkSocket.wrap(socket));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "handshake queue full, drop " + socket.getRemoteDevice().getAddress());
+            closeQuietly(socket);
+        }
+    }
 
-        Log.e(TAG, "Connected to " + device.getName());
+    /**
+     * 在握手线程中建立连接。接入数已满或新连接过快时，不交换密钥，直接回复负载较低的邻居列表让对方改连。
+     * 握手超过MeshConfig.HANDSHAKE_TIMEOUT_MS时关闭连接，连上后不发言的客户端不会一直占用握手线程
+     */
+    void handshake(LinkSocket socket) {
+        final ConnectedThread connectedThread = new ConnectedThread(socket);
+
+        int maxPeers = MeshConfig.getInstance().getMaxPeers();
+        if (mPeerCount.incrementAndGet() > maxPeers) {
+            mPeerCount.decrementAndGet();
+            Log.w(TAG, "peer limit " + maxPeers + " reached, redirect " + connectedThread.getAddress());
+            redirect(connectedThread);
+            return;
+        }
+        if (!mConnectBucket.tryAcquire()) {
+            mPeerCount.decrementAndGet();
+            Log.w(TAG, "connect rate exceeded, redirect " + connectedThread.getAddress());
+            redirect(connectedThread);
+            return;
+        }
+
+        ScheduledFuture<?> deadline = mTimeoutScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Log.w(TAG, "handshake with " + connectedThread.getAddress() + " timed out");
+                connectedThread.abort();
+            }
+        }, MeshConfig.HANDSHAKE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        boolean established = connectedThread.establishSession() && connectedThread.awaitKept();
+        //取消失败说明已超时，连接已关闭
+        if (!deadline.cancel(false) || !established) {
+            mPeerCount.decrementAndGet();
+            connectedThread.abort();
+            return;
+        }
+        connected(connectedThread);
+    }
+
+    private void redirect(final ConnectedThread connectedThread) {
+        List<String> neighbors = LinkMonitor.getInstance().leastLoaded(connectedThread.getAddress(),
+                MeshConfig.getInstance().getMaxPeers(), MeshConfig.MAX_REDIRECT_CANDIDATES);
+        connectedThread.refuse(ControlCodec.encodeRedirect(neighbors));
+        mTimeoutScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                connectedThread.abort();
+            }
+        }, REDIRECT_LINGER_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 客服端连接成功后，启动用于通信的线程
+     * @param connectedThread
+     */
+    private synchronized void connected(ConnectedThread connectedThread) {
+        Log.d(TAG, "connected, device address:" + connectedThread.getAddress());
+
+        if (!connectedThread.mmState.markConnected()) {
+            //握手期间服务已停止
+            mPeerCount.decrementAndGet();
+            connectedThread.abort();
+            return;
+        }
+        connectedThread.mmStats.setState(Constants.STATE_CONNECTED);
+        //先发出本机的链路初始化帧（如状态同步请求），再开始接收对方的
+        MeshRouter.getInstance().linkUp(connectedThread);
+        connectedThread.start();
+        ConnectedThread replaced = clientConnectedThread.put(connectedThread.getAddress(), connectedThread);
+        if (replaced != null) {
+            //同一客户端重新接入，旧连接已失效但尚未检测到断开。
+            //只有客户端保留的连接会走到这里（见awaitKept），所以新连接总是替换旧连接
+            mPeerCount.decrementAndGet();
+            replaced.close();
+        }
+
+        Log.e(TAG, "Connected to " + connectedThread.getAddress());
+
+        updateUserInterfaceTitle();
 
-        mState = getState();
+        broadcastLoad();
     }
 
     /**
@@ -113,9 +255,10 @@ public class SService {
 
         //关闭所有客户端线程
         for (ConnectedThread connectedThread : clientConnectedThread.values()) {
-            connectedThread.cancel();
+            connectedThread.close();
         }
         clientConnectedThread.clear();
+        mPeerCount.set(0);
         if (mSecureAcceptThread != null) {
             mSecureAcceptThread.cancel();
             mSecureAcceptThread = null;
@@ -125,19 +268,55 @@ public class SService {
             mInsecureAcceptThread.cancel();
             mInsecureAcceptThread = null;
         }
-        mState = Constants.STATE_NONE;
-
-        mState = getState();
 
+        updateUserInterfaceTitle();
     }
 
     /**
-     * 向所有客服端发送消息
-     * @param out
+     * @param exclude 不包含的客户端地址，可为null
+     * @return 所有已连接客户端的发送队列
      */
-    public void writeToAllClient(byte[] out) {
+    ArrayList<FanOut.Lane> getLanes(String exclude) {
+        ArrayList<FanOut.Lane> lanes = new ArrayList<>(clientConnectedThread.size());
         for (Map.Entry<String, ConnectedThread> item : clientConnectedThread.entrySet()) {
-            item.getValue().write(out, true);
+            if (!item.getKey().equals(exclude)) {
+                lanes.add(item.getValue().mmLane);
+            }
+        }
+        return lanes;
+    }
+
+    /**
+     * 向所有客户端转发帧
+     *
+     * @param frame   帧
+     * @param exclude 不发送的客户端地址，可为null
+     * @return 并行发送时的完成情况，逐条发送时为null
+     */
+    FanOut.Result writeFrameToAllClient(Frame frame, String exclude) {
+        ArrayList<FanOut.Lane> lanes = getLanes(exclude);
+        MeshConfig config = MeshConfig.getInstance();
+        if (config.isParallelFanOut()) {
+            return FanOut.getInstance().scatter(frame, lanes, config.getFanOutDeadlineMs(), exclude == null);
+        }
+        FanOut.sequential(frame, lanes, exclude == null);
+        return null;
+    }
+
+    /**
+     * 接入数变化时通告给所有直连的邻居，供其重定向时参考
+     */
+    private void broadcastLoad() {
+        Frame frame = Frame.createLocal(Frame.TYPE_LOAD, ControlCodec.encodeLoad(clientConnectedThread.size()));
+        writeFrameToAllClient(frame, null);
+        CService.getInstance().writeFrameToAllService(frame, null);
+    }
+
+    private static void closeQuietly(BluetoothSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close() of rejected socket failed", e);
         }
     }
 
@@ -147,10 +326,12 @@ public class SService {
     private class AcceptThread extends Thread {
         // The local server socket
         private final BluetoothServerSocket mmServerSocket;
+        private final boolean mmSecure;
         private String mSocketType;
 
         public AcceptThread(boolean secure) {
             BluetoothServerSocket tmp = null;
+            mmSecure = secure;
             mSocketType = secure ? "Secure" : "Insecure";
 
             // Create a new listening server socket
@@ -166,7 +347,6 @@ public class SService {
                 Log.e(TAG, "Socket Type: " + mSocketType + "listen() failed", e);
             }
             mmServerSocket = tmp;
-            mState = Constants.STATE_LISTEN;
         }
 
         public void run() {
@@ -188,8 +368,12 @@ public class SService {
                 }
 
                 // If a connection was accepted
-                if (socket != null) {
-                    connected(socket, socket.getRemoteDevice());
+                if (socket != null && !mmSecure && !MeshConfig.getInstance().isInsecureRfcommAllowed()) {
+                    //没有会议口令时不接受未认证的连接，口令可在运行中设置，所以一直监听
+                    Log.w(TAG, "reject insecure connection from " + socket.getRemoteDevice().getAddress());
+                    closeQuietly(socket);
+                } else if (socket != null) {
+                    admit(socket);
                 }
             }
             Log.i(TAG, "END mAcceptThread, socket Type: " + mSocketType);
@@ -208,17 +392,22 @@ public class SService {
     /**
      * 通信线程  连接成功后，通过此线程与客服端进行通信
      */
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        //连接的蓝牙设备，此处为客户端
-        private final BluetoothDevice mmBluetoothDevice;
+    private class ConnectedThread extends Thread implements Link, CutThrough.Streamable {
+        private final LinkSocket mmSocket;
         private final InputStream mmInStream;
         private final OutputStream mmOutStream;
-
-        public ConnectedThread(BluetoothSocket socket, BluetoothDevice bluetoothDevice) {
-            Log.d(TAG, "create ConnectedThread: " + bluetoothDevice.getAddress());
+        //未加密时多个线程写同一条链路的锁，直通转发整帧期间持有
+        private final ReentrantLock mmWriteLock = new ReentrantLock();
+        private final LinkStats mmStats;
+        //并行发送时这条链路的发送队列
+        private final FanOut.Lane mmLane;
+        //应用层加密，未启用时为null
+        private SecureChannel mmChannel;
+        private final ConnectionState mmState = new ConnectionState();
+
+        public ConnectedThread(LinkSocket socket) {
+            Log.d(TAG, "create ConnectedThread: " + socket.getAddress());
             mmSocket = socket;
-            mmBluetoothDevice = bluetoothDevice;
             InputStream tmpIn = null;
             OutputStream tmpOut = null;
 
@@ -232,51 +421,188 @@ public class SService {
 
             mmInStream = tmpIn;
             mmOutStream = tmpOut;
-            mState = Constants.STATE_CONNECTED;
+            mmStats = LinkMonitor.getInstance().obtain(socket.getAddress());
+            mmLane = new FanOut.Lane(this, mmStats);
+        }
+
+        @Override
+        public String getAddress() {
+            return mmSocket.getAddress();
+        }
+
+        /**
+         * 交换会话密钥，在握手线程中调用
+         *
+         * @return 失败时返回false，连接应当关闭
+         */
+        public boolean establishSession() {
+            MeshConfig config = MeshConfig.getInstance();
+            if (!config.isEncryption()) {
+                return true;
+            }
+            try {
+                mmChannel = SecureChannel.handshake(mmInStream, mmOutStream, false, config.getMeetingKey());
+                return true;
+            } catch (IOException e) {
+                Log.e(TAG, "key exchange with " + getAddress() + " failed", e);
+                return false;
+            }
+        }
+
+        /**
+         * 在握手线程中拒绝连接：启用加密时代替交换密钥回复，否则发送明文的TYPE_REDIRECT帧
+         *
+         * @param redirect 负载较低的邻居列表
+         */
+        public void refuse(byte[] redirect) {
+            if (!MeshConfig.getInstance().isEncryption()) {
+                write(Frame.createLocal(Frame.TYPE_REDIRECT, redirect).getEncoded(), false);
+                return;
+            }
+            try {
+                SecureChannel.refuse(mmOutStream, redirect);
+            } catch (IOException e) {
+                Log.e(TAG, "refuse " + getAddress() + " failed", e);
+            }
+        }
+
+        /**
+         * 在握手线程中等待客户端的TYPE_LINK_KEPT。客户端同时尝试Secure和Insecure连接时只保留一条，
+         * 关闭另一条，落败的连接在这里读取失败，不会接入，也不会替换客户端保留的连接
+         *
+         * @return 收到时返回true
+         */
+        public boolean awaitKept() {
+            try {
+                DataInputStream in = Frame.wrap(mmInStream);
+                Frame frame = mmChannel != null ? Frame.decode(mmChannel.read(in)) : Frame.read(in);
+                if (frame != null && frame.getType() == Frame.TYPE_LINK_KEPT) {
+                    return true;
+                }
+                Log.w(TAG, "connection from " + getAddress() + " did not start with link confirmation");
+            } catch (IOException e) {
+                Log.i(TAG, "connection from " + getAddress() + " closed by client before confirmation");
+            }
+            return false;
         }
 
         public void run() {
             Log.i(TAG, "BEGIN mConnectedThread");
-            byte[] buffer = new byte[1024];
-            int bytes;
+            DataInputStream in = Frame.wrap(mmInStream);
 
             // Keep listening to the InputStream while connected
-            while (mState == Constants.STATE_CONNECTED) {
+            while (mmState.isConnected()) {
                 try {
                     // Read from the InputStream
-                    bytes = mmInStream.read(buffer);
-                    //转发消息给其他客户端
-                    for (Map.Entry<String, ConnectedThread> item : clientConnectedThread.entrySet()) {
-                        if (!item.getKey().equals(mmBluetoothDevice.getAddress())) {
-                            item.getValue().write((new String(buffer, 0, bytes)).getBytes(), false);
-                        }
+                    Frame frame = mmChannel != null ? Frame.decode(mmChannel.read(in)) : CutThrough.read(in, this);
+                    if (frame == null) {
+                        //上游中断的直通帧
+                        continue;
+                    }
+                    if (frame.isTraced()) {
+                        frame.markReceived(Tracer.now());
+                    }
+                    mmStats.addBytesIn(frame.getEncoded().length);
+                    TrafficCapture.getInstance().record(getAddress(), TrafficCapture.DIRECTION_IN, frame.getEncoded());
+
+                    switch (frame.getType()) {
+                        case Frame.TYPE_LOAD:
+                            mmStats.setReportedLoad(ControlCodec.decodeLoad(frame.getPayload()));
+                            break;
+                        case Frame.TYPE_PING:
+                            write(Frame.createLocal(Frame.TYPE_PONG, frame.getPayload()).getEncoded(), false);
+                            break;
+                        case Frame.TYPE_PONG:
+                            mmStats.setRttMillis(ControlCodec.rttMillis(frame.getPayload(), System.nanoTime()));
+                            break;
+                        case Frame.TYPE_CLOCK_PROBE:
+                        case Frame.TYPE_CLOCK_REPLY:
+                            //接收时间参与时钟同步，和PING一样在通信线程中处理，不在路由线程前排队
+                            MeshRouter.getInstance().onFrame(frame, this);
+                            break;
+                        default:
+                            //全网转发或交给注册的模块处理
+                            RoutingStage.getInstance().publish(frame, this);
+                            break;
                     }
-
-                    String message = new String(buffer, 0, bytes);
-                    Log.e(TAG, "read message:" + message);
-
-                    Log.e(TAG, "from CService to SService:" +message);
-                    CService.getInstance().writeToAllService(message.getBytes());
                 } catch (IOException e) {
-                    Log.e(TAG, "disconnected", e);
-                    clientConnectedThread.remove(mmBluetoothDevice.getAddress());
+                    if (mmState.isConnected()) {
+                        Log.e(TAG, "disconnected", e);
+                    }
                     break;
                 }
             }
+
+            mmState.markClosed();
+            if (clientConnectedThread.remove(getAddress(), this)) {
+                mPeerCount.decrementAndGet();
+                mmStats.setState(Constants.STATE_NONE);
+                broadcastLoad();
+            }
+            MeshRouter.getInstance().linkDown(this);
+            updateUserInterfaceTitle();
+        }
+
+        @Override
+        public CutThrough.Sink open(byte[] header) {
+            if (mmChannel != null || !mmState.isConnected()) {
+                return null;
+            }
+            return CutThrough.Sink.open(getAddress(), mmOutStream, mmWriteLock, mmStats, header);
+        }
+
+        @Override
+        public void send(Frame frame) {
+            if (frame.isTraced()) {
+                frame = Tracer.getInstance().stamp(frame);
+            }
+            write(frame.getEncoded(), false);
         }
 
         public void write(byte[] buffer, boolean isUpdateUI) {
+            if (mmState.get() >= ConnectionState.CLOSING) {
+                return;
+            }
             try {
-                mmOutStream.write(buffer);
+                //多个线程会同时向同一条链路写帧，必须整帧写出
+                if (mmChannel != null) {
+                    mmChannel.write(mmOutStream, buffer);
+                } else {
+                    mmWriteLock.lock();
+                    try {
+                        mmOutStream.write(buffer);
+                    } finally {
+                        mmWriteLock.unlock();
+                    }
+                }
+                mmStats.addBytesOut(buffer.length);
+                TrafficCapture.getInstance().record(getAddress(), TrafficCapture.DIRECTION_OUT, buffer);
 
                 if (isUpdateUI) {
-                    Log.e(TAG, "write message:"  + new String(buffer));
+                    MeshEvents.getInstance().postWritten(buffer.length);
                 }
             } catch (IOException e) {
                 Log.e(TAG, "Exception during write", e);
             }
         }
 
+        /**
+         * 主动关闭已启动的连接，通信线程随后退出
+         */
+        public void close() {
+            if (mmState.beginClose()) {
+                cancel();
+            }
+        }
+
+        /**
+         * 关闭尚未启动通信线程的连接（握手失败、被重定向）
+         */
+        public void abort() {
+            mmState.markClosed();
+            cancel();
+        }
+
         public void cancel() {
             try {
                 mmSocket.close();
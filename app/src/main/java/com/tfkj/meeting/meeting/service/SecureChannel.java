@@ -0,0 +1,250 @@
+package com.tfkj.meeting.meeting.service;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * 应用层加密链路，使不需要配对的Insecure RFCOMM也能保证机密性。
+ *
+ * 建立连接后双方交换临时ECDH(P-256)公钥，用HKDF-SHA256从共享密钥（混入会议口令）
+ * 派生两个方向各自的AES-256-GCM密钥和nonce前缀。公钥交换本身没有认证，防止中间人靠的是会议口令，
+ * 所以没有口令时不使用Insecure连接（MeshConfig.isInsecureRfcommAllowed）。每帧的nonce为 4字节前缀 + 8字节计数器，
+ * RFCOMM保证顺序，计数器不随帧发送，接收方按顺序递增，重放或乱序的帧无法通过校验。
+ *
+ * 线路格式：4字节密文长度 + 密文（含16字节认证标签）。
+ * 接受连接的一方可以不交换密钥直接拒绝（refuse），这时公钥长度为0，之后是明文的重定向内容。
+ * Cipher实例、nonce数组和密文缓冲区在连接内复用。
+ */
+public class SecureChannel {
+
+    private static final byte HANDSHAKE_MAGIC = 'K';
+    private static final byte HANDSHAKE_VERSION = 1;
+    private static final int MAX_PUBLIC_KEY_LENGTH = 512;
+
+    public static final int TAG_LENGTH = 16;
+    private static final int NONCE_LENGTH = 12;
+    private static final int NONCE_PREFIX_LENGTH = 4;
+    private static final int KEY_LENGTH = 32;
+
+    private static final byte[] INFO_INITIATOR = "meeting initiator".getBytes();
+    private static final byte[] INFO_RESPONDER = "meeting responder".getBytes();
+
+    private final SecretKeySpec sendKey;
+    private final SecretKeySpec receiveKey;
+    private final Cipher encryptCipher;
+    private final Cipher decryptCipher;
+    private final byte[] sendNonce = new byte[NONCE_LENGTH];
+    private final byte[] receiveNonce = new byte[NONCE_LENGTH];
+    private long sendCounter;
+    private long receiveCounter;
+
+    private byte[] sealBuffer = new byte[4 + 1024];
+    private byte[] openBuffer = new byte[1024];
+
+    SecureChannel(byte[] sendMaterial, byte[] receiveMaterial) throws GeneralSecurityException {
+        sendKey = new SecretKeySpec(sendMaterial, 0, KEY_LENGTH, "AES");
+        receiveKey = new SecretKeySpec(receiveMaterial, 0, KEY_LENGTH, "AES");
+        System.arraycopy(sendMaterial, KEY_LENGTH, sendNonce, 0, NONCE_PREFIX_LENGTH);
+        System.arraycopy(receiveMaterial, KEY_LENGTH, receiveNonce, 0, NONCE_PREFIX_LENGTH);
+        encryptCipher = Cipher.getInstance("AES/GCM/NoPadding");
+        decryptCipher = Cipher.getInstance("AES/GCM/NoPadding");
+    }
+
+    /**
+     * 对方拒绝了连接，没有交换密钥
+     */
+    public static class RefusedException extends IOException {
+        private final byte[] redirect;
+
+        RefusedException(byte[] redirect) {
+            super("refused by peer");
+            this.redirect = redirect;
+        }
+
+        /**
+         * @return 负载较低的邻居列表，按ControlCodec.encodeRedirect编码
+         */
+        public byte[] getRedirect() {
+            return redirect;
+        }
+    }
+
+    /**
+     * 接受连接的一方拒绝连接，不生成密钥也不读取对方的公钥。接入已满或新连接过快时使用，被拒绝的连接不占用ECDH的开销
+     *
+     * @param redirect 负载较低的邻居列表，按ControlCodec.encodeRedirect编码
+     */
+    public static void refuse(OutputStream out, byte[] redirect) throws IOException {
+        DataOutputStream dataOut = new DataOutputStream(out);
+        dataOut.writeByte(HANDSHAKE_MAGIC);
+        dataOut.writeByte(HANDSHAKE_VERSION);
+        dataOut.writeShort(0);
+        dataOut.writeShort(redirect.length);
+        dataOut.write(redirect);
+        dataOut.flush();
+    }
+
+    /**
+     * 在刚建立的连接上交换密钥，双方同时发送公钥再读取对方的公钥
+     *
+     * @param initiator 发起连接的一方（CService）为true，接受连接的一方（SService）为false
+     * @param psk       会议口令，双方必须相同。为null时不能防止中间人，只能在已认证的Secure RFCOMM连接上使用
+     * @throws RefusedException 对方拒绝了连接，只在initiator为true时抛出
+     * @throws IOException 链路断开或对方不是本应用
+     */
+    public static SecureChannel handshake(InputStream in, OutputStream out, boolean initiator, byte[] psk)
+            throws IOException {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec("secp256r1"));
+            KeyPair keyPair = generator.generateKeyPair();
+
+            byte[] localPublic = keyPair.getPublic().getEncoded();
+            DataOutputStream dataOut = new DataOutputStream(out);
+            dataOut.writeByte(HANDSHAKE_MAGIC);
+            dataOut.writeByte(HANDSHAKE_VERSION);
+            dataOut.writeShort(localPublic.length);
+            dataOut.write(localPublic);
+            dataOut.flush();
+
+            DataInputStream dataIn = Frame.wrap(in);
+            if (dataIn.readByte() != HANDSHAKE_MAGIC || dataIn.readByte() != HANDSHAKE_VERSION) {
+                throw new IOException("bad handshake");
+            }
+            int length = dataIn.readUnsignedShort();
+            if (length == 0 && initiator) {
+                byte[] redirect = new byte[dataIn.readUnsignedShort()];
+                dataIn.readFully(redirect);
+                throw new RefusedException(redirect);
+            }
+            if (length > MAX_PUBLIC_KEY_LENGTH) {
+                throw new IOException("bad handshake key length " + length);
+            }
+            byte[] remotePublic = new byte[length];
+            dataIn.readFully(remotePublic);
+            PublicKey remoteKey = KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(remotePublic));
+
+            KeyAgreement agreement = KeyAgreement.getInstance("ECDH");
+            agreement.init(keyPair.getPrivate());
+            agreement.doPhase(remoteKey, true);
+            byte[] shared = agreement.generateSecret();
+
+            //两个方向的密钥都绑定双方公钥，顺序以发起方在前
+            byte[] initiatorPublic = initiator ? localPublic : remotePublic;
+            byte[] responderPublic = initiator ? remotePublic : localPublic;
+            byte[] prk = hmac(psk != null ? psk : new byte[32], shared);
+            byte[] transcript = concat(initiatorPublic, responderPublic);
+            byte[] initiatorMaterial = expand(prk, concat(INFO_INITIATOR, transcript));
+            byte[] responderMaterial = expand(prk, concat(INFO_RESPONDER, transcript));
+            return initiator
+                    ? new SecureChannel(initiatorMaterial, responderMaterial)
+                    : new SecureChannel(responderMaterial, initiatorMaterial);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("key exchange failed", e);
+        }
+    }
+
+    /**
+     * 加密一帧并写出。多个线程共用一条链路，整个过程加锁以保证计数器和写出顺序一致
+     */
+    public synchronized void write(OutputStream out, byte[] plain) throws IOException {
+        int sealedLength = plain.length + TAG_LENGTH;
+        if (sealBuffer.length < 4 + sealedLength) {
+            sealBuffer = new byte[4 + sealedLength];
+        }
+        sealBuffer[0] = (byte) (sealedLength >>> 24);
+        sealBuffer[1] = (byte) (sealedLength >>> 16);
+        sealBuffer[2] = (byte) (sealedLength >>> 8);
+        sealBuffer[3] = (byte) sealedLength;
+        try {
+            setCounter(sendNonce, sendCounter++);
+            encryptCipher.init(Cipher.ENCRYPT_MODE, sendKey, new GCMParameterSpec(TAG_LENGTH * 8, sendNonce));
+            encryptCipher.doFinal(plain, 0, plain.length, sealBuffer, 4);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("encrypt failed", e);
+        }
+        out.write(sealBuffer, 0, 4 + sealedLength);
+    }
+
+    /**
+     * 读取并解密一帧，只由本链路的通信线程调用
+     *
+     * @return 明文
+     * @throws IOException 链路断开，或帧被篡改、重放
+     */
+    public byte[] read(DataInputStream in) throws IOException {
+        int sealedLength = in.readInt();
+        if (sealedLength < TAG_LENGTH || sealedLength > Frame.HEADER_LENGTH + Frame.MAX_PAYLOAD_LENGTH + TAG_LENGTH) {
+            throw new IOException("bad sealed length " + sealedLength);
+        }
+        if (openBuffer.length < sealedLength) {
+            openBuffer = new byte[sealedLength];
+        }
+        in.readFully(openBuffer, 0, sealedLength);
+        byte[] plain = new byte[sealedLength - TAG_LENGTH];
+        try {
+            setCounter(receiveNonce, receiveCounter++);
+            decryptCipher.init(Cipher.DECRYPT_MODE, receiveKey, new GCMParameterSpec(TAG_LENGTH * 8, receiveNonce));
+            decryptCipher.doFinal(openBuffer, 0, sealedLength, plain, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("decrypt failed", e);
+        }
+        return plain;
+    }
+
+    private static void setCounter(byte[] nonce, long counter) {
+        for (int i = 0; i < 8; i++) {
+            nonce[NONCE_LENGTH - 1 - i] = (byte) (counter >>> (8 * i));
+        }
+    }
+
+    private static byte[] hmac(byte[] key, byte[] data) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(data);
+    }
+
+    /**
+     * HKDF-Expand，输出密钥和nonce前缀共36字节
+     */
+    private static byte[] expand(byte[] prk, byte[] info) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+        byte[] output = new byte[KEY_LENGTH + NONCE_PREFIX_LENGTH];
+        byte[] block = new byte[0];
+        int offset = 0;
+        for (byte counter = 1; offset < output.length; counter++) {
+            mac.update(block);
+            mac.update(info);
+            mac.update(counter);
+            block = mac.doFinal();
+            int n = Math.min(block.length, output.length - offset);
+            System.arraycopy(block, 0, output, offset, n);
+            offset += n;
+        }
+        return output;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}
@@ -0,0 +1,134 @@
+package com.tfkj.meeting.meeting.service;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 按(origin, seq)去重。
+ *
+ * 每个发起节点只保存最大序号和其下1024个序号的位图，内存和发起节点数成正比，判断为O(1)。
+ * 比窗口更早的序号一律视为已收到。只有全网转发的帧占用序号（见Frame.createLocal），
+ * 窗口按每秒50帧的语音也能覆盖约20秒，被RelayLimiter延后或走了慢路径的帧不会被误判为重复。
+ */
+public class SeenCache {
+
+    static final int WINDOW = 1024;
+
+    private final ConcurrentHashMap<Long, Window> windows = new ConcurrentHashMap<>();
+
+    /**
+     * 环形位图，序号seq对应第seq % WINDOW位
+     */
+    private static class Window {
+        int highest;
+        final long[] bits = new long[WINDOW / 64];
+        boolean empty = true;
+
+        boolean get(int seq) {
+            int index = seq & (WINDOW - 1);
+            return (bits[index >>> 6] & (1L << index)) != 0;
+        }
+
+        void set(int seq) {
+            int index = seq & (WINDOW - 1);
+            bits[index >>> 6] |= 1L << index;
+        }
+
+        void clear(int seq) {
+            int index = seq & (WINDOW - 1);
+            bits[index >>> 6] &= ~(1L << index);
+        }
+
+        /**
+         * 窗口前移到seq，移出的位清零
+         */
+        void advance(int seq) {
+            int delta = seq - highest;
+            if (delta >= WINDOW) {
+                Arrays.fill(bits, 0);
+            } else {
+                for (int i = 1; i <= delta; i++) {
+                    clear(highest + i);
+                }
+            }
+            highest = seq;
+        }
+    }
+
+    /**
+     * 记录一帧
+     *
+     * @return 第一次收到时返回true
+     */
+    public boolean markSeen(long origin, int seq) {
+        Window window = windows.get(origin);
+        if (window == null) {
+            Window created = new Window();
+            window = windows.putIfAbsent(origin, created);
+            if (window == null) {
+                window = created;
+            }
+        }
+        synchronized (window) {
+            if (window.empty) {
+                window.empty = false;
+                window.highest = seq;
+                window.set(seq);
+                return true;
+            }
+            int delta = seq - window.highest;
+            if (delta > 0) {
+                window.advance(seq);
+                window.set(seq);
+                return true;
+            }
+            if (-delta >= WINDOW || window.get(seq)) {
+                return false;
+            }
+            window.set(seq);
+            return true;
+        }
+    }
+
+    /**
+     * 只判断，不记录
+     *
+     * @return 已收到过，或早于窗口
+     */
+    public boolean isSeen(long origin, int seq) {
+        Window window = windows.get(origin);
+        if (window == null) {
+            return false;
+        }
+        synchronized (window) {
+            if (window.empty) {
+                return false;
+            }
+            int delta = seq - window.highest;
+            if (delta > 0) {
+                return false;
+            }
+            return -delta >= WINDOW || window.get(seq);
+        }
+    }
+
+    /**
+     * 撤销markSeen，之后再收到同一帧时重新处理；早于窗口的序号不变
+     */
+    public void forget(long origin, int seq) {
+        Window window = windows.get(origin);
+        if (window == null) {
+            return;
+        }
+        synchronized (window) {
+            int delta = seq - window.highest;
+            if (!window.empty && delta <= 0 && -delta < WINDOW) {
+                window.clear(seq);
+            }
+        }
+    }
+
+    public void clear() {
+        windows.clear();
+    }
+}
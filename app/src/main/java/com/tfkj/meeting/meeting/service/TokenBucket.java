@@ -0,0 +1,81 @@
+package com.tfkj.meeting.meeting.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 无锁令牌桶。
+ *
+ * 按GCRA算法只保存一个"理论到达时间"，每次申请一次CAS，O(1)且不需要加锁。
+ */
+public class TokenBucket {
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final AtomicLong theoreticalArrival = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * @param ratePerSecond 每秒补充的令牌数
+     * @param burst         桶容量，允许的最大突发数
+     */
+    public TokenBucket(double ratePerSecond, int burst) {
+        if (ratePerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("rate=" + ratePerSecond + " burst=" + burst);
+        }
+        intervalNanos = (long) (1000000000L / ratePerSecond);
+        burstNanos = intervalNanos * burst;
+    }
+
+    public boolean tryAcquire() {
+        return tryAcquire(1, System.nanoTime());
+    }
+
+    public boolean tryAcquire(int permits) {
+        return tryAcquire(permits, System.nanoTime());
+    }
+
+    /**
+     * @param permits 申请的令牌数
+     * @param now     当前时间，纳秒
+     * @return 令牌足够时扣除并返回true
+     */
+    public boolean tryAcquire(int permits, long now) {
+        long cost = intervalNanos * permits;
+        while (true) {
+            long tat = theoreticalArrival.get();
+            long start = tat == Long.MIN_VALUE || tat - now < 0 ? now : tat;
+            long next = start + cost;
+            if (next - now > burstNanos) {
+                return false;
+            }
+            if (theoreticalArrival.compareAndSet(tat, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return 距离下一个令牌可用还需等待的纳秒数，0表示现在可用
+     */
+    public long nanosUntilAvailable(long now) {
+        return nanosUntilAvailable(1, now);
+    }
+
+    /**
+     * @return 距离permits个令牌可用还需等待的纳秒数，0表示现在可用
+     */
+    public long nanosUntilAvailable(int permits, long now) {
+        long tat = theoreticalArrival.get();
+        if (tat == Long.MIN_VALUE) {
+            return 0;
+        }
+        long wait = tat + intervalNanos * permits - now - burstNanos;
+        return wait > 0 ? wait : 0;
+    }
+
+    /**
+     * @return 桶已经装满，和新建的桶没有区别，可以丢弃
+     */
+    public boolean isFull(long now) {
+        long tat = theoreticalArrival.get();
+        return tat == Long.MIN_VALUE || tat - now <= 0;
+    }
+}
@@ -0,0 +1,192 @@
+package com.tfkj.meeting.meeting.service;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 话题订阅的路由表。
+ *
+ * 每个节点把自己订阅的话题做成Bloom过滤器摘要，带版本号全网广播（订阅变化时立即广播，之后定期刷新）。
+ * 全网帧按首次收到去重，摘要第一次到达本机的链路就是通往该节点的反向路径，
+ * 所以按链路合并各节点的摘要，就得到这条链路后面有哪些话题的订阅者。
+ * 转发话题帧时只发给可能有订阅者的链路；订阅者的链路已断开时退回全部转发，直到下次刷新学到新路径。
+ *
+ * <pre>
+ * summary := version:8 filter:BloomFilter.BYTES
+ * </pre>
+ */
+public class TopicTable {
+
+    public static final long SUMMARY_INTERVAL_MS = 30000;
+    // 超过这个时间没有刷新的摘要视为节点已离开
+    public static final long EXPIRE_MS = 3 * SUMMARY_INTERVAL_MS;
+    static final int SUMMARY_LENGTH = 8 + BloomFilter.BYTES;
+
+    private static class Summary {
+        long version;
+        BloomFilter filter;
+        String link;
+        long heard;
+    }
+
+    private final Set<String> topics = new HashSet<>();
+    private BloomFilter local = new BloomFilter();
+    private long version;
+    private final HashMap<Long, Summary> summaries = new HashMap<>();
+    // 按链路合并的摘要，摘要变化时重建
+    private HashMap<String, BloomFilter> byLink;
+
+    /**
+     * @param version 起始版本，用启动时间，重启后的摘要不会被当作旧版本
+     */
+    public TopicTable(long version) {
+        this.version = version;
+    }
+
+    /**
+     * @return 订阅发生变化，需要重新广播摘要
+     */
+    public synchronized boolean subscribe(String topic) {
+        if (!topics.add(topic)) {
+            return false;
+        }
+        local.add(topic);
+        version++;
+        return true;
+    }
+
+    /**
+     * @return 订阅发生变化，需要重新广播摘要
+     */
+    public synchronized boolean unsubscribe(String topic) {
+        if (!topics.remove(topic)) {
+            return false;
+        }
+        //Bloom过滤器不能删除，重建
+        BloomFilter rebuilt = new BloomFilter();
+        for (String remaining : topics) {
+            rebuilt.add(remaining);
+        }
+        local = rebuilt;
+        version++;
+        return true;
+    }
+
+    public synchronized boolean isSubscribed(String topic) {
+        return topics.contains(topic);
+    }
+
+    public synchronized List<String> getTopics() {
+        return new ArrayList<>(topics);
+    }
+
+    /**
+     * @return 本机的订阅摘要
+     */
+    public synchronized byte[] encodeSummary() {
+        byte[] out = new byte[SUMMARY_LENGTH];
+        ByteBuffer.wrap(out).putLong(version);
+        local.encode(out, 8);
+        return out;
+    }
+
+    /**
+     * 收到其他节点的摘要
+     *
+     * @param link 摘要到达的链路
+     * @return 比已有的新或相同（刷新）时返回true
+     */
+    public synchronized boolean onSummary(long origin, byte[] payload, String link, long now) {
+        if (payload.length != SUMMARY_LENGTH) {
+            throw new IllegalArgumentException("bad summary length " + payload.length);
+        }
+        long summaryVersion = ByteBuffer.wrap(payload).getLong();
+        Summary summary = summaries.get(origin);
+        if (summary != null && summaryVersion < summary.version) {
+            return false;
+        }
+        BloomFilter filter = BloomFilter.decode(payload, 8);
+        if (summary == null) {
+            summary = new Summary();
+            summaries.put(origin, summary);
+            byLink = null;
+        } else if (!link.equals(summary.link) || !filter.equals(summary.filter)) {
+            byLink = null;
+        }
+        summary.version = summaryVersion;
+        summary.filter = filter;
+        summary.link = link;
+        summary.heard = now;
+        return true;
+    }
+
+    /**
+     * 定期调用，丢弃长时间没有刷新的摘要
+     */
+    public synchronized void expire(long now) {
+        Iterator<Summary> it = summaries.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().heard > EXPIRE_MS) {
+                it.remove();
+                byLink = null;
+            }
+        }
+    }
+
+    /**
+     * 话题帧应转发到的链路
+     *
+     * @param links   当前所有链路的地址
+     * @param exclude 帧的来源链路，可为null
+     */
+    public synchronized Set<String> linksFor(String topic, Collection<String> links, String exclude) {
+        if (byLink == null) {
+            byLink = new HashMap<>();
+            for (Summary summary : summaries.values()) {
+                BloomFilter merged = byLink.get(summary.link);
+                if (merged == null) {
+                    byLink.put(summary.link, new BloomFilter(summary.filter));
+                } else {
+                    merged.or(summary.filter);
+                }
+            }
+        }
+        LinkedHashSet<String> result = new LinkedHashSet<>();
+        for (Map.Entry<String, BloomFilter> entry : byLink.entrySet()) {
+            if (entry.getKey().equals(exclude) || !entry.getValue().mightContain(topic)) {
+                continue;
+            }
+            if (!links.contains(entry.getKey())) {
+                //通往订阅者的链路已断开，不知道新的路径，全部转发
+                result.clear();
+                for (String address : links) {
+                    if (!address.equals(exclude)) {
+                        result.add(address);
+                    }
+                }
+                return result;
+            }
+            result.add(entry.getKey());
+        }
+        return result;
+    }
+
+    public synchronized boolean hasSummary(long origin) {
+        return summaries.containsKey(origin);
+    }
+
+    /**
+     * @return 已知订阅摘要的节点数
+     */
+    public synchronized int size() {
+        return summaries.size();
+    }
+}
@@ -0,0 +1,204 @@
+package com.tfkj.meeting.meeting.service;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.util.Log;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 周期性广播本机能力、探测链路时延，并根据选举结果逐步调整拓扑：
+ * 非中心节点如果挂在未当选的节点下，就迁移到负载最低的中心节点；本机是对方唯一的链路时不迁移，以免对方与全网断开。
+ */
+public class TopologyBalancer {
+    private static final String TAG = "TopologyBalancer";
+
+    private static final long TICK_INTERVAL_MS = 5000;
+    // 每个周期以1/MIGRATE_CHANCE的概率尝试迁移，避免所有节点同时迁移
+    private static final int MIGRATE_CHANCE = 3;
+
+    private final Random random = new Random();
+    private ScheduledExecutorService scheduler;
+    private Context appContext;
+
+    //迁移开始前的负载快照，迁移完成后与之对比输出
+    private Report migrationBaseline;
+    private volatile String lastReport;
+
+    private volatile static TopologyBalancer instance = null;
+
+    private TopologyBalancer() {
+    }
+
+    public static TopologyBalancer getInstance() {
+        if (instance == null) {
+            synchronized (TopologyBalancer.class) {
+                if (instance == null) {
+                    instance = new TopologyBalancer();
+                }
+            }
+        }
+        return instance;
+    }
+
+    public synchronized void start(Context context) {
+        if (scheduler != null) {
+            return;
+        }
+        appContext = context.getApplicationContext();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    tick();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "tick failed", e);
+                }
+            }
+        }, TICK_INTERVAL_MS, TICK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * @return 最近一次迁移前后的中心节点负载和链路时延对比
+     */
+    public String getLastReport() {
+        return lastReport;
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        long peakThroughput = LinkMonitor.getInstance().sampleAll(now);
+
+        Capacity local = measureLocal(peakThroughput, now);
+        HubElection election = HubElection.getInstance();
+        election.update(local);
+        MeshRouter.getInstance().broadcast(Frame.createLocal(Frame.TYPE_ADVERT, local.encode()));
+
+        Frame ping = Frame.createLocal(Frame.TYPE_PING, ControlCodec.encodePing(System.nanoTime()));
+        SService.getInstance().writeFrameToAllClient(ping, null);
+        CService.getInstance().writeFrameToAllService(ping, null);
+
+        election.expire(now);
+        rebalance(election);
+    }
+
+    private Capacity measureLocal(long peakThroughput, long now) {
+        int battery = 100;
+        boolean charging = true;
+        Intent status = appContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (status != null) {
+            int level = status.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = status.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            if (level >= 0 && scale > 0) {
+                battery = level * 100 / scale;
+            }
+            int plugged = status.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+            charging = plugged == BatteryManager.BATTERY_STATUS_CHARGING
+                    || plugged == BatteryManager.BATTERY_STATUS_FULL;
+        }
+        SService server = SService.getInstance();
+        return new Capacity(MeshConfig.getInstance().getNodeId(), null, battery, charging,
+                Runtime.getRuntime().availableProcessors(), server.getPeerCount(),
+                (int) Math.min(peakThroughput, Integer.MAX_VALUE),
+                server.getLinkCount() + CService.getInstance().getLinkCount(), now);
+    }
+
+    private void rebalance(HubElection election) {
+        int maxPeers = MeshConfig.getInstance().getMaxPeers();
+        List<Capacity> hubs = election.electHubs(maxPeers);
+        CService client = CService.getInstance();
+
+        if (migrationBaseline != null && !client.isMigrating()) {
+            Report after = Report.of(hubs);
+            lastReport = "before " + migrationBaseline + ", after " + after;
+            Log.i(TAG, "rebalanced: " + lastReport);
+            migrationBaseline = null;
+        }
+
+        Set<Long> hubIds = HubElection.idsOf(hubs);
+        boolean hub = hubIds.contains(MeshConfig.getInstance().getNodeId());
+        MeshSession.getInstance().save(client.getConnectedAddresses(), hub);
+        if (hub || client.isMigrating()) {
+            return;
+        }
+
+        List<String> uplinks = client.getConnectedAddresses();
+        for (String uplink : uplinks) {
+            Capacity current = election.findByAddress(uplink);
+            if (current == null || hubIds.contains(current.getNodeId())) {
+                continue;
+            }
+            if (current.getLinkCount() <= 1) {
+                //本机是它唯一的链路，断开后它就与全网断开了
+                continue;
+            }
+            Capacity target = leastLoadedHub(hubs, uplinks, maxPeers);
+            if (target != null && random.nextInt(MIGRATE_CHANCE) == 0) {
+                Report before = Report.of(hubs);
+                if (client.migrate(uplink, target.getAddress())) {
+                    migrationBaseline = before;
+                }
+            }
+            // 每个周期最多迁移一条连接
+            return;
+        }
+    }
+
+    private static Capacity leastLoadedHub(List<Capacity> hubs, List<String> uplinks, int maxPeers) {
+        Capacity best = null;
+        for (Capacity hub : hubs) {
+            if (hub.getAddress() == null || uplinks.contains(hub.getAddress())
+                    || hub.getPeerCount() >= maxPeers) {
+                continue;
+            }
+            if (best == null || hub.getPeerCount() < best.getPeerCount()) {
+                best = hub;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * 中心节点负载和链路时延的快照
+     */
+    private static class Report {
+        int hubCount;
+        int maxLoad;
+        float meanLoad;
+        long meanRttMillis;
+
+        static Report of(List<Capacity> hubs) {
+            Report report = new Report();
+            report.hubCount = hubs.size();
+            int total = 0;
+            for (Capacity hub : hubs) {
+                total += hub.getPeerCount();
+                report.maxLoad = Math.max(report.maxLoad, hub.getPeerCount());
+            }
+            report.meanLoad = hubs.isEmpty() ? 0 : (float) total / hubs.size();
+            report.meanRttMillis = LinkMonitor.getInstance().meanRttMillis();
+            return report;
+        }
+
+        @Override
+        public String toString() {
+            return "hubs=" + hubCount + " maxLoad=" + maxLoad + " meanLoad=" + meanLoad
+                    + " meanRtt=" + meanRttMillis + "ms";
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.tfkj.meeting.meeting.service;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 逐跳追踪记录的编码和延迟分解。
+ *
+ * 抽样的帧带FLAG_TRACED，每经过一个节点、每写入一条链路前追加一条记录：
+ * 节点、收到的时间、交给发送队列的时间、开始写入链路的时间。写完的时间无法写进已经发出的帧，
+ * 用下一跳收到的时间代替，所以每一跳分为处理（收到到入队）、排队（入队到开始写）、链路（开始写到下一跳收到）。
+ * 时间都是MeshClock的参考时钟，跨设备的链路时间含有时钟同步的误差。
+ *
+ * <pre>
+ * trailer := hop* count:1
+ * hop     := node:8 received:8 enqueued:4 written:4
+ * </pre>
+ * received为参考时钟微秒，enqueued和written为相对received的微秒数。
+ */
+public class Trace {
+
+    public static final int HOP_LENGTH = 24;
+    // 超过这个跳数后不再追加记录，帧照常转发
+    public static final int MAX_HOPS = 32;
+
+    /**
+     * 一个节点上的记录，时间为参考时钟微秒
+     */
+    public static class Hop {
+        public final long node;
+        public final long received;
+        public final long enqueued;
+        public final long written;
+
+        Hop(long node, long received, long enqueued, long written) {
+            this.node = node;
+            this.received = received;
+            this.enqueued = enqueued;
+            this.written = written;
+        }
+    }
+
+    /**
+     * 从发起节点到本机的一条路径
+     */
+    public static class Path {
+        public final long origin;
+        public final int seq;
+        public final List<Hop> hops;
+        public final long destination;
+        public final long received;
+
+        Path(long origin, int seq, List<Hop> hops, long destination, long received) {
+            this.origin = origin;
+            this.seq = seq;
+            this.hops = hops;
+            this.destination = destination;
+            this.received = received;
+        }
+
+        /**
+         * @return 从发起节点发出到本机收到的微秒数
+         */
+        public long getTotalMicros() {
+            return hops.isEmpty() ? 0 : received - hops.get(0).received;
+        }
+
+        public long getProcessingMicros(int hop) {
+            return hops.get(hop).enqueued - hops.get(hop).received;
+        }
+
+        public long getQueueingMicros(int hop) {
+            return hops.get(hop).written - hops.get(hop).enqueued;
+        }
+
+        /**
+         * @return 开始写入到下一跳收到的微秒数
+         */
+        public long getLinkMicros(int hop) {
+            long next = hop + 1 < hops.size() ? hops.get(hop + 1).received : received;
+            return next - hops.get(hop).written;
+        }
+
+        /**
+         * @return 下一跳的节点
+         */
+        public long getNext(int hop) {
+            return hop + 1 < hops.size() ? hops.get(hop + 1).node : destination;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(String.format("%016x#%d total %.1fms",
+                    origin, seq, getTotalMicros() / 1000.0));
+            for (int i = 0; i < hops.size(); i++) {
+                sb.append(String.format("\n  %016x process %.1fms queue %.1fms link %.1fms",
+                        hops.get(i).node, getProcessingMicros(i) / 1000.0, getQueueingMicros(i) / 1000.0,
+                        getLinkMicros(i) / 1000.0));
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * @return 追踪记录的总长度，格式错误时为-1
+     */
+    static int trailerLength(byte[] encoded) {
+        if (encoded.length <= Frame.HEADER_LENGTH) {
+            return -1;
+        }
+        int count = encoded[encoded.length - 1] & 0xFF;
+        return count > MAX_HOPS ? -1 : 1 + count * HOP_LENGTH;
+    }
+
+    /**
+     * @return 带空追踪记录的帧，负载已接近上限时返回原帧，不追踪
+     */
+    static Frame start(Frame frame) {
+        if (frame.isTraced()) {
+            return frame;
+        }
+        int length = frame.getPayloadLength();
+        if (length + 1 + MAX_HOPS * HOP_LENGTH > Frame.MAX_PAYLOAD_LENGTH) {
+            return frame;
+        }
+        byte[] payload = new byte[length + 1];
+        System.arraycopy(frame.getEncoded(), Frame.HEADER_LENGTH, payload, 0, length);
+        return Frame.create(frame.getType(), (byte) (frame.getFlags() | Frame.FLAG_TRACED), frame.getOrigin(),
+                frame.getSeq(), payload, 0, payload.length);
+    }
+
+    /**
+     * @return 追加一条记录后的帧，已达到MAX_HOPS时返回原帧
+     */
+    static Frame append(Frame frame, long node, long received, long enqueued, long written) {
+        byte[] encoded = frame.getEncoded();
+        int count = encoded[encoded.length - 1] & 0xFF;
+        if (count >= MAX_HOPS) {
+            return frame;
+        }
+        int length = encoded.length - Frame.HEADER_LENGTH;
+        byte[] payload = new byte[length + HOP_LENGTH];
+        System.arraycopy(encoded, Frame.HEADER_LENGTH, payload, 0, length - 1);
+        ByteBuffer.wrap(payload, length - 1, HOP_LENGTH + 1)
+                .putLong(node)
+                .putLong(received)
+                .putInt(offset(received, enqueued))
+                .putInt(offset(received, written))
+                .put((byte) (count + 1));
+        return Frame.create(frame.getType(), frame.getFlags(), frame.getOrigin(), frame.getSeq(),
+                payload, 0, payload.length);
+    }
+
+    private static int offset(long base, long time) {
+        long delta = time - base;
+        return (int) Math.max(0, Math.min(delta, 0xFFFFFFFFL));
+    }
+
+    public static List<Hop> hops(Frame frame) {
+        if (!frame.isTraced()) {
+            return Collections.emptyList();
+        }
+        byte[] encoded = frame.getEncoded();
+        int count = encoded[encoded.length - 1] & 0xFF;
+        ByteBuffer buffer = ByteBuffer.wrap(encoded);
+        buffer.position(Frame.HEADER_LENGTH + frame.getPayloadLength());
+        ArrayList<Hop> hops = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long node = buffer.getLong();
+            long received = buffer.getLong();
+            long enqueued = received + (buffer.getInt() & 0xFFFFFFFFL);
+            long written = received + (buffer.getInt() & 0xFFFFFFFFL);
+            hops.add(new Hop(node, received, enqueued, written));
+        }
+        return hops;
+    }
+
+    /**
+     * @param destination 本机节点
+     * @param received    本机收到的时间
+     */
+    public static Path path(Frame frame, long destination, long received) {
+        return new Path(frame.getOrigin(), frame.getSeq(), hops(frame), destination, received);
+    }
+}
@@ -0,0 +1,148 @@
+package com.tfkj.meeting.meeting.service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 按MeshConfig.getTraceSampleRate()抽样本机发出的消息，在收发路径上追加Trace记录，
+ * 收到追踪的帧时还原出路径，按节点和链路累计各段延迟。
+ * 未抽中的帧只多一次标志位判断。
+ */
+public class Tracer {
+
+    // 保留的最近路径数
+    static final int MAX_PATHS = 64;
+
+    private final ArrayDeque<Trace.Path> recent = new ArrayDeque<>();
+    // 节点 -> {次数, 处理微秒, 排队微秒}
+    private final HashMap<Long, long[]> nodes = new HashMap<>();
+    // "发送节点>接收节点" -> {次数, 链路微秒}
+    private final HashMap<String, long[]> links = new HashMap<>();
+
+    private volatile static Tracer instance = null;
+
+    private Tracer() {
+    }
+
+    public static Tracer getInstance() {
+        if (instance == null) {
+            synchronized (Tracer.class) {
+                if (instance == null) {
+                    instance = new Tracer();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @return 参考时钟的微秒数
+     */
+    static long now() {
+        return MeshClock.getInstance().nanoTime() / 1000;
+    }
+
+    /**
+     * 本机发出消息前调用，抽中时返回带追踪标志的帧
+     */
+    public Frame sample(Frame frame) {
+        double rate = MeshConfig.getInstance().getTraceSampleRate();
+        if (rate <= 0 || ThreadLocalRandom.current().nextDouble() >= rate) {
+            return frame;
+        }
+        Frame traced = Trace.start(frame);
+        traced.markReceived(now());
+        return traced;
+    }
+
+    /**
+     * 写入链路前调用，追加本机的记录
+     */
+    Frame stamp(Frame frame) {
+        long written = now();
+        long received = frame.getTraceReceived();
+        long enqueued = frame.getTraceEnqueued();
+        //补发等不经过发送队列的帧，缺少的时间按写入时间记
+        if (received == 0) {
+            received = written;
+        }
+        if (enqueued == 0) {
+            enqueued = written;
+        }
+        return Trace.append(frame, MeshConfig.getInstance().getNodeId(), received, enqueued, written);
+    }
+
+    /**
+     * 收到追踪的全网帧时调用
+     */
+    void onReceived(Frame frame) {
+        Trace.Path path = Trace.path(frame, MeshConfig.getInstance().getNodeId(), frame.getTraceReceived());
+        synchronized (this) {
+            recent.addLast(path);
+            if (recent.size() > MAX_PATHS) {
+                recent.removeFirst();
+            }
+            for (int i = 0; i < path.hops.size(); i++) {
+                long[] node = nodes.get(path.hops.get(i).node);
+                if (node == null) {
+                    node = new long[3];
+                    nodes.put(path.hops.get(i).node, node);
+                }
+                node[0]++;
+                node[1] += path.getProcessingMicros(i);
+                node[2] += path.getQueueingMicros(i);
+                String key = String.format("%016x>%016x", path.hops.get(i).node, path.getNext(i));
+                long[] link = links.get(key);
+                if (link == null) {
+                    link = new long[2];
+                    links.put(key, link);
+                }
+                link[0]++;
+                link[1] += path.getLinkMicros(i);
+            }
+        }
+    }
+
+    /**
+     * @return 最近收到的追踪路径，旧的在前
+     */
+    public synchronized List<Trace.Path> getRecent() {
+        return new ArrayList<>(recent);
+    }
+
+    public synchronized void clear() {
+        recent.clear();
+        nodes.clear();
+        links.clear();
+    }
+
+    /**
+     * @return 各节点的平均处理和排队时间、各链路的平均传输时间
+     */
+    public synchronized String getReport() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("paths ").append(recent.size());
+        if (!recent.isEmpty()) {
+            long total = 0;
+            for (Trace.Path path : recent) {
+                total += path.getTotalMicros();
+            }
+            sb.append(String.format(", average %.1fms", total / 1000.0 / recent.size()));
+        }
+        sb.append('\n');
+        for (Map.Entry<Long, long[]> entry : nodes.entrySet()) {
+            long[] v = entry.getValue();
+            sb.append(String.format("node %016x x%d process %.1fms queue %.1fms\n", entry.getKey(), v[0],
+                    v[1] / 1000.0 / v[0], v[2] / 1000.0 / v[0]));
+        }
+        for (Map.Entry<String, long[]> entry : links.entrySet()) {
+            long[] v = entry.getValue();
+            sb.append(String.format("link %s x%d %.1fms\n", entry.getKey(), v[0], v[1] / 1000.0 / v[0]));
+        }
+        return sb.toString();
+    }
+}
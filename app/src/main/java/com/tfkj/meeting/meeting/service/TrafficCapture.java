@@ -0,0 +1,344 @@
+package com.tfkj.meeting.meeting.service;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 抓包：记录SService、CService每条链路实际收发的帧，用于复现现场问题和回放压测。
+ *
+ * 文件格式：文件头为魔数"MCAP"、版本、抓包开始时的系统时间（毫秒）；
+ * 之后每条记录为：相对抓包开始的时间（纳秒，8字节）、对端MAC（6字节）、方向（1字节）、帧长度（4字节）、帧的编码。
+ * 记录的是加密前、解密后的帧，抓包文件包含会议内容，只在调试时开启。
+ * 通信线程只把记录放入有界队列，由单独的线程批量写文件；队列满时丢弃并计数，不阻塞通信。
+ * 文件超过上限后滚动：capture-0.bin为最新，依次改名为capture-1.bin……，超过个数的删除。
+ */
+public class TrafficCapture {
+    private static final String TAG = "TrafficCapture";
+
+    public static final int DIRECTION_IN = 0;
+    public static final int DIRECTION_OUT = 1;
+
+    static final int MAGIC = 0x4D434150;
+    static final byte VERSION = 1;
+    private static final int RECORD_HEADER_LENGTH = 8 + 6 + 1 + 4;
+    private static final int QUEUE_CAPACITY = 4096;
+
+    public static final long DEFAULT_MAX_FILE_BYTES = 4 * 1024 * 1024;
+    public static final int DEFAULT_MAX_FILES = 4;
+
+    private volatile boolean enabled;
+    private volatile ArrayBlockingQueue<Record> queue;
+    private volatile long startNanos;
+    private final AtomicLong dropped = new AtomicLong();
+    private Thread writerThread;
+
+    private volatile static TrafficCapture instance = null;
+
+    TrafficCapture() {
+    }
+
+    public static TrafficCapture getInstance() {
+        if (instance == null) {
+            synchronized (TrafficCapture.class) {
+                if (instance == null) {
+                    instance = new TrafficCapture();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 一条收发记录
+     */
+    public static class Record {
+        public final long timeNanos;
+        public final String address;
+        public final int direction;
+        public final byte[] frame;
+
+        public Record(long timeNanos, String address, int direction, byte[] frame) {
+            this.timeNanos = timeNanos;
+            this.address = address;
+            this.direction = direction;
+            this.frame = frame;
+        }
+    }
+
+    /**
+     * 开始抓包，已在抓包时先停止
+     *
+     * @param dir          抓包文件目录
+     * @param maxFileBytes 单个文件的大小上限
+     * @param maxFiles     最多保留的文件数
+     */
+    public synchronized void start(File dir, long maxFileBytes, int maxFiles) throws IOException {
+        stop();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        final RollingWriter writer = new RollingWriter(dir, maxFileBytes, maxFiles, System.currentTimeMillis());
+        final ArrayBlockingQueue<Record> records = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        dropped.set(0);
+        startNanos = System.nanoTime();
+        queue = records;
+        writerThread = new Thread("TrafficCapture") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Record record = records.poll(100, TimeUnit.MILLISECONDS);
+                        if (record == null) {
+                            if (!enabled || isInterrupted()) {
+                                break;
+                            }
+                            writer.flush();
+                            continue;
+                        }
+                        writer.write(record);
+                    }
+                } catch (InterruptedException e) {
+                    // stop
+                } catch (IOException e) {
+                    Log.e(TAG, "capture write failed", e);
+                    enabled = false;
+                }
+                //写出停止前已入队的记录
+                try {
+                    Record record;
+                    while ((record = records.poll()) != null) {
+                        writer.write(record);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "capture write failed", e);
+                }
+                writer.close();
+            }
+        };
+        writerThread.setDaemon(true);
+        enabled = true;
+        writerThread.start();
+        Log.i(TAG, "capture to " + dir);
+    }
+
+    /**
+     * 停止抓包，等待已记录的帧写入文件
+     */
+    public synchronized void stop() {
+        if (writerThread == null) {
+            return;
+        }
+        enabled = false;
+        writerThread.interrupt();
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writerThread = null;
+        queue = null;
+        if (dropped.get() > 0) {
+            Log.w(TAG, "dropped " + dropped.get() + " records");
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return 因写文件跟不上而丢弃的记录数
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * 通信线程收到或发出一帧后调用，未开启抓包时立即返回
+     *
+     * @param address   对端MAC地址
+     * @param direction DIRECTION_IN或DIRECTION_OUT
+     * @param frame     帧的编码，调用后不能再修改
+     */
+    public void record(String address, int direction, byte[] frame) {
+        if (!enabled) {
+            return;
+        }
+        ArrayBlockingQueue<Record> records = queue;
+        if (records == null
+                || !records.offer(new Record(System.nanoTime() - startNanos, address, direction, frame))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return 目录中的抓包文件，按时间从旧到新
+     */
+    public static List<File> listFiles(File dir) {
+        List<File> files = new ArrayList<>();
+        for (int i = 0; ; i++) {
+            File file = fileAt(dir, i);
+            if (!file.exists()) {
+                break;
+            }
+            files.add(0, file);
+        }
+        return files;
+    }
+
+    static File fileAt(File dir, int index) {
+        return new File(dir, "capture-" + index + ".bin");
+    }
+
+    static byte[] encodeAddress(String address) {
+        byte[] mac = new byte[6];
+        String[] parts = address.split(":");
+        if (parts.length != 6) {
+            throw new IllegalArgumentException("not a MAC address: " + address);
+        }
+        for (int i = 0; i < 6; i++) {
+            mac[i] = (byte) Integer.parseInt(parts[i], 16);
+        }
+        return mac;
+    }
+
+    static String decodeAddress(byte[] mac) {
+        return String.format(Locale.US, "%02X:%02X:%02X:%02X:%02X:%02X",
+                mac[0], mac[1], mac[2], mac[3], mac[4], mac[5]);
+    }
+
+    /**
+     * 只在写线程中使用
+     */
+    private static class RollingWriter {
+        private final File dir;
+        private final long maxFileBytes;
+        private final int maxFiles;
+        private final long startMillis;
+        private DataOutputStream out;
+        private long written;
+
+        RollingWriter(File dir, long maxFileBytes, int maxFiles, long startMillis) throws IOException {
+            this.dir = dir;
+            this.maxFileBytes = maxFileBytes;
+            this.maxFiles = maxFiles;
+            this.startMillis = startMillis;
+            //上次抓包的文件全部删除，避免时间基准混在一起
+            for (int i = 0; fileAt(dir, i).exists(); i++) {
+                fileAt(dir, i).delete();
+            }
+            open();
+        }
+
+        private void open() throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileAt(dir, 0)), 16 * 1024));
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(startMillis);
+            written = 13;
+        }
+
+        void write(Record record) throws IOException {
+            int length = RECORD_HEADER_LENGTH + record.frame.length;
+            if (written + length > maxFileBytes && written > 13) {
+                roll();
+            }
+            out.writeLong(record.timeNanos);
+            out.write(encodeAddress(record.address));
+            out.writeByte(record.direction);
+            out.writeInt(record.frame.length);
+            out.write(record.frame);
+            written += length;
+        }
+
+        private void roll() throws IOException {
+            out.close();
+            fileAt(dir, maxFiles - 1).delete();
+            for (int i = maxFiles - 2; i >= 0; i--) {
+                File file = fileAt(dir, i);
+                if (file.exists() && !file.renameTo(fileAt(dir, i + 1))) {
+                    throw new IOException("cannot rename " + file);
+                }
+            }
+            open();
+        }
+
+        void flush() throws IOException {
+            out.flush();
+        }
+
+        void close() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close capture failed", e);
+            }
+        }
+    }
+
+    /**
+     * 顺序读取一个抓包文件
+     */
+    public static class Reader implements Closeable {
+        private final DataInputStream in;
+        private final long startMillis;
+
+        public Reader(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 16 * 1024));
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                in.close();
+                throw new IOException("not a capture file: " + file);
+            }
+            startMillis = in.readLong();
+        }
+
+        /**
+         * @return 抓包开始时的系统时间，毫秒
+         */
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        /**
+         * @return 下一条记录，文件结束（包括最后一条记录不完整）时为null
+         */
+        public Record next() throws IOException {
+            try {
+                long timeNanos = in.readLong();
+                byte[] mac = new byte[6];
+                in.readFully(mac);
+                int direction = in.readUnsignedByte();
+                int length = in.readInt();
+                if (length < 0 || length > Frame.HEADER_LENGTH + Frame.MAX_PAYLOAD_LENGTH) {
+                    throw new IOException("bad record length " + length);
+                }
+                byte[] frame = new byte[length];
+                in.readFully(frame);
+                return new Record(timeNanos, decodeAddress(mac), direction, frame);
+            } catch (EOFException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
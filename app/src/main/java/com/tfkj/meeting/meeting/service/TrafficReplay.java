@@ -0,0 +1,191 @@
+package com.tfkj.meeting.meeting.service;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 把抓包文件中收到的帧重新交给MeshRouter处理，用于复现现场问题和压测转发逻辑。
+ *
+ * 只回放DIRECTION_IN的记录，发出的记录由回放时的转发逻辑重新产生；
+ * 链路内的控制帧（LOAD、PING、PONG）由通信线程直接处理，回放时跳过。
+ * 每个对端地址对应一条ReplayLink，本机模块回复给它的帧只计数不发送。
+ *
+ * 回放交给独立的MeshRouter：去重窗口每次回放都是新的，转发的帧只计数，不会发给真实的邻居。
+ * 需要处理的帧类型在run之前通过getRouter().register注册；
+ * 处理器里再通过MeshRouter.getInstance()发出的帧不在隔离范围内。
+ */
+public class TrafficReplay {
+    private static final String TAG = "TrafficReplay";
+
+    private final List<File> files;
+    private final MeshRouter router;
+    private final Map<String, ReplayLink> links = new HashMap<>();
+    private final AtomicLong relayed = new AtomicLong();
+
+    private long frames;
+    private long bytes;
+    private long skipped;
+    private long elapsedNanos;
+
+    /**
+     * @param files 按时间从旧到新的抓包文件，见TrafficCapture.listFiles
+     */
+    public TrafficReplay(List<File> files) {
+        this.files = files;
+        this.router = new MeshRouter(new MeshRouter.Output() {
+            @Override
+            public void relay(Frame frame, String fromAddress) {
+                relayed.incrementAndGet();
+            }
+
+            @Override
+            public void send(Frame frame, String exclude) {
+                relayed.incrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * @return 处理回放帧的MeshRouter，在run之前注册处理器
+     */
+    public MeshRouter getRouter() {
+        return router;
+    }
+
+    /**
+     * 回放时代替真实链路
+     */
+    public static class ReplayLink implements Link {
+        private final String address;
+        private final AtomicLong sent = new AtomicLong();
+
+        ReplayLink(String address) {
+            this.address = address;
+        }
+
+        @Override
+        public String getAddress() {
+            return address;
+        }
+
+        @Override
+        public void send(Frame frame) {
+            sent.incrementAndGet();
+        }
+
+        /**
+         * @return 本机模块回复给这个对端的帧数
+         */
+        public long getSent() {
+            return sent.get();
+        }
+    }
+
+    /**
+     * 在调用线程中回放，回放结束后返回
+     *
+     * @param realTime true按抓包时的时间间隔回放，false尽快回放
+     */
+    public void run(boolean realTime) throws IOException, InterruptedException {
+        frames = 0;
+        bytes = 0;
+        skipped = 0;
+        long start = System.nanoTime();
+        long firstRecordNanos = -1;
+        for (File file : files) {
+            TrafficCapture.Reader reader = new TrafficCapture.Reader(file);
+            try {
+                TrafficCapture.Record record;
+                while ((record = reader.next()) != null) {
+                    if (record.direction != TrafficCapture.DIRECTION_IN) {
+                        continue;
+                    }
+                    if (realTime) {
+                        if (firstRecordNanos < 0) {
+                            firstRecordNanos = record.timeNanos;
+                        }
+                        long waitNanos = (record.timeNanos - firstRecordNanos) - (System.nanoTime() - start);
+                        if (waitNanos > 0) {
+                            Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                        }
+                    }
+                    replay(record);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        elapsedNanos = System.nanoTime() - start;
+        Log.i(TAG, "replayed " + frames + " frames, " + bytes + " bytes in " + elapsedNanos / 1000000 + "ms");
+    }
+
+    private void replay(TrafficCapture.Record record) {
+        Frame frame;
+        try {
+            frame = Frame.decode(record.frame);
+        } catch (IOException e) {
+            Log.w(TAG, "skip bad frame from " + record.address, e);
+            skipped++;
+            return;
+        }
+        switch (frame.getType()) {
+            case Frame.TYPE_LOAD:
+            case Frame.TYPE_PING:
+            case Frame.TYPE_PONG:
+                skipped++;
+                return;
+            default:
+                break;
+        }
+        ReplayLink link = links.get(record.address);
+        if (link == null) {
+            link = new ReplayLink(record.address);
+            links.put(record.address, link);
+        }
+        frames++;
+        bytes += record.frame.length;
+        router.onFrame(frame, link);
+    }
+
+    /**
+     * @return 交给MeshRouter的帧数
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return 跳过的控制帧和无法解析的帧数
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * @return 回放时本应转发给邻居的帧数
+     */
+    public long getRelayed() {
+        return relayed.get();
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return 回放时出现的对端，按地址
+     */
+    public Map<String, ReplayLink> getLinks() {
+        return links;
+    }
+}
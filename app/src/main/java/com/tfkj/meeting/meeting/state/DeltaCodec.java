@@ -0,0 +1,302 @@
+package com.tfkj.meeting.meeting.state;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 操作批次的紧凑编码。整数使用变长编码，本地增量批次只写一次发起节点ID。
+ *
+ * <pre>
+ * batch  := flags:1 [versions 当FLAG_RESET] [origin:8 当FLAG_MIXED未设置] count:varint op*
+ * versions := count:varint (node:8 counter:varint)*
+ * op     := kind:1 [node:8 当FLAG_MIXED] counter:varint lamport:varint body
+ * MAP_SET    := map:1 key:str hasValue:1 [value:str]
+ * SEQ_INSERT := seq:1 hasRef:1 [refLamport:varint refNode:8] value:str
+ * SEQ_DELETE := seq:1 lamport:varint node:8
+ * COUNTER    := name:str positive:varint negative:varint
+ * </pre>
+ */
+class DeltaCodec {
+
+    // 批次中的操作来自不同节点（快照、补发）
+    static final int FLAG_MIXED = 1;
+    // 接收方清空本地状态后再应用，批次头带发送方的版本向量
+    static final int FLAG_RESET = 2;
+    // 快照中的操作，不更新版本向量
+    static final int FLAG_SNAPSHOT = 4;
+
+    // 单个批次的大小上限，留出帧头的空间
+    static final int MAX_BATCH_BYTES = 60 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private DeltaCodec() {
+    }
+
+    static class Batch {
+        final int flags;
+        final Map<Long, Integer> versions;
+        final List<Op> ops;
+
+        Batch(int flags, Map<Long, Integer> versions, List<Op> ops) {
+            this.flags = flags;
+            this.versions = versions;
+            this.ops = ops;
+        }
+    }
+
+    /**
+     * 编码，超过MAX_BATCH_BYTES时拆成多个批次，FLAG_RESET只写在第一个批次上
+     */
+    static List<byte[]> encode(List<Op> ops, int flags, long origin) {
+        return encode(ops, flags, origin, null);
+    }
+
+    static List<byte[]> encode(List<Op> ops, int flags, long origin, Map<Long, Integer> versions) {
+        ArrayList<byte[]> batches = new ArrayList<>();
+        Writer body = new Writer();
+        int count = 0;
+        boolean mixed = (flags & FLAG_MIXED) != 0;
+        for (Op op : ops) {
+            int mark = body.length;
+            writeOp(body, op, mixed);
+            if (body.length > MAX_BATCH_BYTES && count > 0) {
+                body.length = mark;
+                batches.add(finish(flags, origin, versions, count, body));
+                flags &= ~FLAG_RESET;
+                body = new Writer();
+                count = 0;
+                writeOp(body, op, mixed);
+            }
+            count++;
+        }
+        if (count > 0 || (flags & FLAG_RESET) != 0) {
+            batches.add(finish(flags, origin, versions, count, body));
+        }
+        return batches;
+    }
+
+    private static byte[] finish(int flags, long origin, Map<Long, Integer> versions, int count, Writer body) {
+        Writer out = new Writer();
+        out.writeByte(flags);
+        if ((flags & FLAG_RESET) != 0) {
+            writeVersions(out, versions);
+        }
+        if ((flags & FLAG_MIXED) == 0) {
+            out.writeLong(origin);
+        }
+        out.writeVarint(count);
+        out.write(body.buffer, 0, body.length);
+        return out.toByteArray();
+    }
+
+    private static void writeOp(Writer out, Op op, boolean mixed) {
+        out.writeByte(op.kind);
+        if (mixed) {
+            out.writeLong(op.node);
+        }
+        out.writeVarint(op.counter);
+        out.writeVarint(op.lamport);
+        switch (op.kind) {
+            case Op.MAP_SET:
+                out.writeByte(op.target);
+                out.writeString(op.key);
+                out.writeByte(op.value != null ? 1 : 0);
+                if (op.value != null) {
+                    out.writeString(op.value);
+                }
+                break;
+            case Op.SEQ_INSERT:
+                out.writeByte(op.target);
+                out.writeByte(op.ref != null ? 1 : 0);
+                if (op.ref != null) {
+                    out.writeVarint(op.ref.lamport);
+                    out.writeLong(op.ref.node);
+                }
+                out.writeString(op.value);
+                break;
+            case Op.SEQ_DELETE:
+                out.writeByte(op.target);
+                out.writeVarint(op.ref.lamport);
+                out.writeLong(op.ref.node);
+                break;
+            case Op.COUNTER:
+                out.writeString(op.key);
+                out.writeVarint(op.positive);
+                out.writeVarint(op.negative);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown op " + op.kind);
+        }
+    }
+
+    static void writeVersions(Writer out, Map<Long, Integer> versions) {
+        out.writeVarint(versions.size());
+        for (Map.Entry<Long, Integer> item : versions.entrySet()) {
+            out.writeLong(item.getKey());
+            out.writeVarint(item.getValue());
+        }
+    }
+
+    static HashMap<Long, Integer> readVersions(Reader in) throws IOException {
+        int count = (int) in.readVarint();
+        HashMap<Long, Integer> versions = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            versions.put(in.readLong(), (int) in.readVarint());
+        }
+        return versions;
+    }
+
+    static Batch decode(byte[] data) throws IOException {
+        Reader in = new Reader(data);
+        int flags = in.readByte();
+        Map<Long, Integer> versions = (flags & FLAG_RESET) != 0 ? readVersions(in) : null;
+        boolean mixed = (flags & FLAG_MIXED) != 0;
+        long origin = mixed ? 0 : in.readLong();
+        int count = (int) in.readVarint();
+        ArrayList<Op> ops = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte kind = (byte) in.readByte();
+            long node = mixed ? in.readLong() : origin;
+            int counter = (int) in.readVarint();
+            long lamport = in.readVarint();
+            switch (kind) {
+                case Op.MAP_SET: {
+                    byte map = (byte) in.readByte();
+                    String key = in.readString();
+                    String value = in.readByte() != 0 ? in.readString() : null;
+                    ops.add(Op.mapSet(node, counter, lamport, map, key, value));
+                    break;
+                }
+                case Op.SEQ_INSERT: {
+                    byte seq = (byte) in.readByte();
+                    Stamp ref = in.readByte() != 0 ? new Stamp(in.readVarint(), in.readLong()) : null;
+                    ops.add(Op.seqInsert(node, counter, lamport, seq, ref, in.readString()));
+                    break;
+                }
+                case Op.SEQ_DELETE: {
+                    byte seq = (byte) in.readByte();
+                    Stamp element = new Stamp(in.readVarint(), in.readLong());
+                    ops.add(Op.seqDelete(node, counter, lamport, seq, element));
+                    break;
+                }
+                case Op.COUNTER: {
+                    String name = in.readString();
+                    ops.add(Op.counter(node, counter, lamport, name, in.readVarint(), in.readVarint()));
+                    break;
+                }
+                default:
+                    throw new IOException("unknown op " + kind);
+            }
+        }
+        return new Batch(flags, versions, ops);
+    }
+
+    static class Writer {
+        byte[] buffer = new byte[64];
+        int length;
+
+        private void ensure(int extra) {
+            if (length + extra > buffer.length) {
+                byte[] grown = new byte[Math.max(buffer.length * 2, length + extra)];
+                System.arraycopy(buffer, 0, grown, 0, length);
+                buffer = grown;
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buffer[length++] = (byte) b;
+        }
+
+        void write(byte[] bytes, int offset, int count) {
+            ensure(count);
+            System.arraycopy(bytes, offset, buffer, length, count);
+            length += count;
+        }
+
+        void writeLong(long v) {
+            ensure(8);
+            for (int i = 7; i >= 0; i--) {
+                buffer[length++] = (byte) (v >>> (8 * i));
+            }
+        }
+
+        void writeVarint(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buffer[length++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buffer[length++] = (byte) v;
+        }
+
+        void writeString(String s) {
+            byte[] bytes = s.getBytes(UTF8);
+            writeVarint(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        byte[] toByteArray() {
+            byte[] result = new byte[length];
+            System.arraycopy(buffer, 0, result, 0, length);
+            return result;
+        }
+    }
+
+    static class Reader {
+        private final byte[] data;
+        private int position;
+
+        Reader(byte[] data) {
+            this.data = data;
+        }
+
+        private void require(int count) throws IOException {
+            if (position + count > data.length) {
+                throw new IOException("truncated batch");
+            }
+        }
+
+        int readByte() throws IOException {
+            require(1);
+            return data[position++] & 0xFF;
+        }
+
+        long readLong() throws IOException {
+            require(8);
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v = (v << 8) | (data[position++] & 0xFF);
+            }
+            return v;
+        }
+
+        long readVarint() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+            throw new IOException("bad varint");
+        }
+
+        String readString() throws IOException {
+            int length = (int) readVarint();
+            if (length < 0) {
+                throw new IOException("bad string length");
+            }
+            require(length);
+            String s = new String(data, position, length, UTF8);
+            position += length;
+            return s;
+        }
+    }
+}
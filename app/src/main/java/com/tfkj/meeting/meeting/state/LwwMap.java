@@ -0,0 +1,99 @@
+package com.tfkj.meeting.meeting.state;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 后写者胜的键值表，删除记为值为null的墓碑，墓碑稳定后由compact清除
+ */
+class LwwMap {
+
+    static class Entry {
+        String value;
+        long lamport;
+        long node;
+        //写入这个值的操作序号，尚未发出的本地修改为0
+        int counter;
+
+        boolean wins(long lamport, long node) {
+            return lamport > this.lamport || (lamport == this.lamport && node > this.node);
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+
+    /**
+     * @return 值被修改时返回true
+     */
+    boolean apply(String key, String value, long lamport, long node, int counter) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(key, entry);
+        } else if (!entry.wins(lamport, node)) {
+            return false;
+        }
+        entry.value = value;
+        entry.lamport = lamport;
+        entry.node = node;
+        entry.counter = counter;
+        return true;
+    }
+
+    Entry getEntry(String key) {
+        return entries.get(key);
+    }
+
+    String get(String key) {
+        Entry entry = entries.get(key);
+        return entry == null ? null : entry.value;
+    }
+
+    Map<String, String> values() {
+        LinkedHashMap<String, String> values = new LinkedHashMap<>();
+        for (Map.Entry<String, Entry> item : entries.entrySet()) {
+            if (item.getValue().value != null) {
+                values.put(item.getKey(), item.getValue().value);
+            }
+        }
+        return values;
+    }
+
+    int compact(MeetingState.Stability stability) {
+        int removed = 0;
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.value == null && stability.isStable(entry.node, entry.counter)) {
+                iterator.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * 以操作的形式导出全部内容（含墓碑），用于快照
+     */
+    void export(byte map, List<Op> out) {
+        for (Map.Entry<String, Entry> item : entries.entrySet()) {
+            Entry entry = item.getValue();
+            out.add(Op.mapSet(entry.node, entry.counter, entry.lamport, map, item.getKey(), entry.value));
+        }
+    }
+
+    List<String> keys() {
+        return new ArrayList<>(entries.keySet());
+    }
+}
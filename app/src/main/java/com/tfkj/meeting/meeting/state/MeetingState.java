@@ -0,0 +1,617 @@
+package com.tfkj.meeting.meeting.state;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * 会议共享状态的一个副本：议程、参会人（LWW表）、纪要（RGA列表）和计数器（PN计数器）。
+ *
+ * 本地修改立即生效并放入待发送队列，drainDelta()把一段时间内的修改合并成一个增量批次；
+ * 被后续修改覆盖的表项和计数器在发送前合并掉，操作序号在发送时才分配，所以合并不会产生序号空洞。
+ * 收到的增量按(节点, 序号)去重，并发修改按Lamport时间戳确定性合并，所有副本收到相同的操作后状态一致。
+ *
+ * 副本定期互相通告版本向量。所有副本都已收到的删除操作视为稳定，compact()据此清除墓碑和已稳定的操作日志，
+ * 保证长时间会议中内存有界。收到的版本向量落后时补发对方缺少的操作，补齐丢失的增量；
+ * 落后于日志下限的副本在同步或补发时收到完整快照。
+ *
+ * 所有方法线程安全。
+ */
+public class MeetingState {
+
+    // LWW表
+    public static final byte AGENDA = 0;
+    public static final byte ATTENDEES = 1;
+    // RGA列表
+    public static final byte NOTES = 0;
+
+    // 操作日志的最大长度，超出后丢弃最早的操作，落后的副本改为同步快照
+    static final int LOG_LIMIT = 4096;
+    // 依赖尚未到达的操作最多缓存的数量
+    static final int PENDING_LIMIT = 1024;
+    // 超过此时间没有通告版本向量的副本不再参与稳定性判断
+    public static final long REPORT_EXPIRE_MS = 120000;
+
+    interface Stability {
+        boolean isStable(long node, int counter);
+    }
+
+    private static class Report {
+        final Map<Long, Integer> versions;
+        final long receivedAt;
+
+        Report(Map<Long, Integer> versions, long receivedAt) {
+            this.versions = versions;
+            this.receivedAt = receivedAt;
+        }
+    }
+
+    private final long nodeId;
+    private long lamport;
+    private int counter;
+
+    private final LwwMap[] maps = {new LwwMap(), new LwwMap()};
+    private final RgaSequence[] sequences = {new RgaSequence()};
+    private final HashMap<String, PnCounter> counters = new HashMap<>();
+
+    //版本向量：每个节点已连续收到的最大操作序号，以及提前到达的序号
+    private final HashMap<Long, Integer> versions = new HashMap<>();
+    private final HashMap<Long, TreeSet<Integer>> ahead = new HashMap<>();
+
+    //已应用的带序号操作，用于给落后的副本补发
+    private final ArrayList<Op> log = new ArrayList<>();
+    //每个节点已从日志中清除的最大序号
+    private final HashMap<Long, Integer> logFloor = new HashMap<>();
+
+    private final ArrayList<Op> outbox = new ArrayList<>();
+    private final ArrayList<Op> resend = new ArrayList<>();
+    private final ArrayList<Op> pending = new ArrayList<>();
+
+    private final HashMap<Long, Report> reports = new HashMap<>();
+    //本轮同步中已向其发送重置快照的副本
+    private final HashSet<Long> resetSentTo = new HashSet<>();
+    private long ignoringSnapshotFrom;
+
+    private final Stability stability = new Stability() {
+        @Override
+        public boolean isStable(long node, int counter) {
+            return MeetingState.this.isStable(node, counter);
+        }
+    };
+
+    public MeetingState(long nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    public long getNodeId() {
+        return nodeId;
+    }
+
+    // ---------------------------------------------------------------- 本地修改
+
+    public synchronized void put(byte map, String key, String value) {
+        Op op = Op.mapSet(nodeId, 0, ++lamport, map, key, value);
+        maps[map].apply(key, value, op.lamport, nodeId, 0);
+        outbox.add(op);
+    }
+
+    public synchronized void remove(byte map, String key) {
+        put(map, key, null);
+    }
+
+    /**
+     * 在第index个可见元素之前插入
+     */
+    public synchronized void insert(byte seq, int index, String value) {
+        Stamp ref = null;
+        if (index > 0) {
+            RgaSequence.Element previous = sequences[seq].visible(index - 1);
+            if (previous == null) {
+                throw new IndexOutOfBoundsException("index " + index);
+            }
+            ref = previous.id;
+        }
+        Op op = Op.seqInsert(nodeId, 0, ++lamport, seq, ref, value);
+        sequences[seq].insert(op.stamp(), 0, ref, value);
+        outbox.add(op);
+    }
+
+    public synchronized void delete(byte seq, int index) {
+        RgaSequence.Element element = sequences[seq].visible(index);
+        if (element == null) {
+            throw new IndexOutOfBoundsException("index " + index);
+        }
+        Op op = Op.seqDelete(nodeId, 0, ++lamport, seq, element.id);
+        sequences[seq].delete(element.id, nodeId, 0);
+        outbox.add(op);
+    }
+
+    public synchronized void increment(String name, long delta) {
+        long[] total = counter(name).totalsOf(nodeId);
+        if (delta >= 0) {
+            total[0] += delta;
+        } else {
+            total[1] -= delta;
+        }
+        outbox.add(Op.counter(nodeId, 0, ++lamport, name, total[0], total[1]));
+    }
+
+    // ---------------------------------------------------------------- 读取
+
+    public synchronized String get(byte map, String key) {
+        return maps[map].get(key);
+    }
+
+    public synchronized Map<String, String> entries(byte map) {
+        return maps[map].values();
+    }
+
+    public synchronized List<String> values(byte seq) {
+        return sequences[seq].values();
+    }
+
+    public synchronized long counterValue(String name) {
+        PnCounter pnCounter = counters.get(name);
+        return pnCounter == null ? 0 : pnCounter.value();
+    }
+
+    /**
+     * @return 墓碑、操作日志等占用的条目数，用于观察压缩效果
+     */
+    public synchronized int retainedSize() {
+        int size = log.size() + pending.size();
+        for (LwwMap map : maps) {
+            size += map.size();
+        }
+        for (RgaSequence sequence : sequences) {
+            size += sequence.size();
+        }
+        return size;
+    }
+
+    // ---------------------------------------------------------------- 复制
+
+    /**
+     * 取出待发送的本地修改，编码为增量批次
+     *
+     * @return 批次列表，没有修改时为空
+     */
+    public synchronized List<byte[]> drainDelta() {
+        if (outbox.isEmpty() && resend.isEmpty()) {
+            return new ArrayList<>();
+        }
+        ArrayList<Op> ops = new ArrayList<>(resend);
+        resend.clear();
+
+        // 同一键、同一计数器只保留最后一次修改
+        HashSet<String> superseded = new HashSet<>();
+        boolean[] keep = new boolean[outbox.size()];
+        for (int i = outbox.size() - 1; i >= 0; i--) {
+            Op op = outbox.get(i);
+            if (op.kind == Op.MAP_SET) {
+                keep[i] = superseded.add("m" + op.target + op.key);
+            } else if (op.kind == Op.COUNTER) {
+                keep[i] = superseded.add("c" + op.key);
+            } else {
+                keep[i] = true;
+            }
+        }
+        for (int i = 0; i < outbox.size(); i++) {
+            if (!keep[i]) {
+                continue;
+            }
+            Op local = outbox.get(i);
+            Op op = new Op(local.kind, nodeId, ++counter, local.lamport, local.target, local.key,
+                    local.value, local.ref, local.positive, local.negative);
+            assignDot(op);
+            recordVersion(nodeId, op.counter);
+            log.add(op);
+            ops.add(op);
+        }
+        outbox.clear();
+        trimLog();
+        return DeltaCodec.encode(ops, 0, nodeId);
+    }
+
+    /**
+     * 本地修改发出时，把分配的序号记到对应的表项、元素和墓碑上，用于稳定性判断
+     */
+    private void assignDot(Op op) {
+        if (op.kind == Op.MAP_SET) {
+            LwwMap.Entry entry = maps[op.target].getEntry(op.key);
+            if (entry != null && entry.lamport == op.lamport && entry.node == nodeId) {
+                entry.counter = op.counter;
+            }
+        } else if (op.kind == Op.SEQ_INSERT) {
+            RgaSequence.Element element = sequences[op.target].get(op.stamp());
+            if (element != null) {
+                element.counter = op.counter;
+            }
+        } else if (op.kind == Op.SEQ_DELETE) {
+            RgaSequence.Element element = sequences[op.target].get(op.ref);
+            if (element != null && element.deleteNode == nodeId && element.deleteCounter == 0) {
+                element.deleteCounter = op.counter;
+            }
+        }
+    }
+
+    /**
+     * 应用其他副本广播的增量批次
+     *
+     * @return 状态有变化时返回true
+     */
+    public synchronized boolean applyDelta(byte[] data) throws IOException {
+        DeltaCodec.Batch batch = DeltaCodec.decode(data);
+        boolean changed = false;
+        for (Op op : batch.ops) {
+            changed |= applyRemote(op);
+        }
+        return changed | retryPending();
+    }
+
+    private boolean applyRemote(Op op) {
+        if (op.node == nodeId || hasVersion(op.node, op.counter)) {
+            return false;
+        }
+        lamport = Math.max(lamport, op.lamport);
+        if (!applyOp(op)) {
+            if (pending.size() < PENDING_LIMIT) {
+                pending.add(op);
+            }
+            return false;
+        }
+        recordVersion(op.node, op.counter);
+        log.add(op);
+        return true;
+    }
+
+    private boolean retryPending() {
+        boolean changed = false;
+        boolean progress = true;
+        while (progress && !pending.isEmpty()) {
+            progress = false;
+            Iterator<Op> iterator = pending.iterator();
+            while (iterator.hasNext()) {
+                Op op = iterator.next();
+                if (applyOp(op)) {
+                    iterator.remove();
+                    if (op.counter > 0 && !hasVersion(op.node, op.counter)) {
+                        recordVersion(op.node, op.counter);
+                        log.add(op);
+                    }
+                    changed = true;
+                    progress = true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return 依赖的元素不存在时返回false
+     */
+    private boolean applyOp(Op op) {
+        switch (op.kind) {
+            case Op.MAP_SET:
+                maps[op.target].apply(op.key, op.value, op.lamport, op.node, op.counter);
+                return true;
+            case Op.SEQ_INSERT:
+                return sequences[op.target].insert(op.stamp(), op.counter, op.ref, op.value);
+            case Op.SEQ_DELETE:
+                return sequences[op.target].delete(op.ref, op.node, op.counter);
+            case Op.COUNTER:
+                counter(op.key).apply(op.node, op.positive, op.negative);
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    private PnCounter counter(String name) {
+        PnCounter pnCounter = counters.get(name);
+        if (pnCounter == null) {
+            pnCounter = new PnCounter();
+            counters.put(name, pnCounter);
+        }
+        return pnCounter;
+    }
+
+    private boolean hasVersion(long node, int counter) {
+        Integer version = versions.get(node);
+        if (version != null && counter <= version) {
+            return true;
+        }
+        TreeSet<Integer> early = ahead.get(node);
+        return early != null && early.contains(counter);
+    }
+
+    private void recordVersion(long node, int counter) {
+        int version = versionOf(versions, node);
+        if (counter != version + 1) {
+            if (counter > version) {
+                TreeSet<Integer> early = ahead.get(node);
+                if (early == null) {
+                    early = new TreeSet<>();
+                    ahead.put(node, early);
+                }
+                early.add(counter);
+            }
+            return;
+        }
+        version = counter;
+        TreeSet<Integer> early = ahead.get(node);
+        while (early != null && !early.isEmpty() && early.first() == version + 1) {
+            version = early.pollFirst();
+        }
+        versions.put(node, version);
+    }
+
+    private static int versionOf(Map<Long, Integer> versions, long node) {
+        Integer version = versions.get(node);
+        return version == null ? 0 : version;
+    }
+
+    // ---------------------------------------------------------------- 版本向量和压缩
+
+    /**
+     * @return 本副本的版本向量，定期广播，也作为同步请求
+     */
+    public synchronized byte[] encodeReport() {
+        DeltaCodec.Writer out = new DeltaCodec.Writer();
+        DeltaCodec.writeVersions(out, versions);
+        return out.toByteArray();
+    }
+
+    /**
+     * 收到其他副本广播的版本向量。对方缺少本副本负责补发的操作时，返回补发的批次，只发给对方；
+     * 补发的操作已从日志中清除时返回完整快照。增量丢失后靠这里补齐，版本向量才能继续前进，墓碑和日志才能被压缩
+     *
+     * @return 发给对方的批次，按applySync应用；不需要补发时为空
+     */
+    public synchronized List<byte[]> onReport(long node, byte[] data, long now) throws IOException {
+        if (node == nodeId) {
+            return new ArrayList<>();
+        }
+        Map<Long, Integer> theirs = DeltaCodec.readVersions(new DeltaCodec.Reader(data));
+        reports.put(node, new Report(theirs, now));
+
+        HashSet<Long> origins = new HashSet<>();
+        for (Map.Entry<Long, Integer> version : versions.entrySet()) {
+            long origin = version.getKey();
+            if (version.getValue() > versionOf(theirs, origin) && isRepairer(origin, node, theirs)) {
+                if (versionOf(logFloor, origin) > versionOf(theirs, origin)) {
+                    return snapshot();
+                }
+                origins.add(origin);
+            }
+        }
+        ArrayList<Op> ops = new ArrayList<>();
+        for (Op op : log) {
+            if (origins.contains(op.node) && op.counter > versionOf(theirs, op.node)) {
+                ops.add(op);
+            }
+        }
+        return DeltaCodec.encode(ops, DeltaCodec.FLAG_MIXED, nodeId);
+    }
+
+    /**
+     * 每个节点的操作只由一个副本补发，避免所有副本同时回复：操作的发起方仍在通告时由它补发，
+     * 否则由已知持有这些操作的副本中节点ID最小的一个补发
+     */
+    private boolean isRepairer(long origin, long requester, Map<Long, Integer> theirs) {
+        if (origin == nodeId) {
+            return true;
+        }
+        if (reports.containsKey(origin)) {
+            return false;
+        }
+        for (Map.Entry<Long, Report> item : reports.entrySet()) {
+            long holder = item.getKey();
+            if (holder < nodeId && holder != requester
+                    && versionOf(item.getValue().versions, origin) > versionOf(theirs, origin)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 所有已知副本都收到了这个操作，并且本副本已收到这些副本通告时已有的全部操作
+     */
+    private boolean isStable(long node, int counter) {
+        if (counter <= 0 || versionOf(versions, node) < counter) {
+            return false;
+        }
+        for (Map.Entry<Long, Report> item : reports.entrySet()) {
+            Map<Long, Integer> reported = item.getValue().versions;
+            if (versionOf(reported, node) < counter
+                    || versionOf(versions, item.getKey()) < versionOf(reported, item.getKey())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 清除已稳定的墓碑和操作日志
+     *
+     * @return 清除的条目数
+     */
+    public synchronized int compact(long now) {
+        Iterator<Report> iterator = reports.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().receivedAt > REPORT_EXPIRE_MS) {
+                iterator.remove();
+            }
+        }
+        int removed = 0;
+        for (LwwMap map : maps) {
+            removed += map.compact(stability);
+        }
+        for (RgaSequence sequence : sequences) {
+            removed += sequence.compact(stability);
+        }
+        ArrayList<Op> retained = new ArrayList<>(log.size());
+        for (Op op : log) {
+            if (isStable(op.node, op.counter)) {
+                raiseFloor(op.node, op.counter);
+                removed++;
+            } else {
+                retained.add(op);
+            }
+        }
+        log.clear();
+        log.addAll(retained);
+        trimLog();
+        return removed;
+    }
+
+    private void trimLog() {
+        int excess = log.size() - LOG_LIMIT;
+        if (excess <= 0) {
+            return;
+        }
+        for (int i = 0; i < excess; i++) {
+            Op op = log.get(i);
+            raiseFloor(op.node, op.counter);
+        }
+        log.subList(0, excess).clear();
+    }
+
+    private void raiseFloor(long node, int counter) {
+        if (counter > versionOf(logFloor, node)) {
+            logFloor.put(node, counter);
+        }
+    }
+
+    // ---------------------------------------------------------------- 链路同步
+
+    /**
+     * 响应新连接的副本的同步请求：补发对方缺少的操作；对方缺少的操作已从日志中清除时，发送完整快照
+     *
+     * @param requester 请求方节点ID
+     * @param request   请求方的版本向量
+     */
+    public synchronized List<byte[]> syncResponse(long requester, byte[] request, long now) throws IOException {
+        Map<Long, Integer> theirs = DeltaCodec.readVersions(new DeltaCodec.Reader(request));
+        reports.put(requester, new Report(theirs, now));
+
+        boolean reset = false;
+        for (Map.Entry<Long, Integer> floor : logFloor.entrySet()) {
+            if (versionOf(theirs, floor.getKey()) < floor.getValue()) {
+                reset = true;
+                break;
+            }
+        }
+        if (reset) {
+            resetSentTo.add(requester);
+            return snapshot();
+        }
+        ArrayList<Op> ops = new ArrayList<>();
+        for (Op op : log) {
+            if (op.counter > versionOf(theirs, op.node)) {
+                ops.add(op);
+            }
+        }
+        return DeltaCodec.encode(ops, DeltaCodec.FLAG_MIXED, nodeId);
+    }
+
+    /**
+     * 完整快照，对方应用后以快照的版本向量为准重置
+     */
+    private List<byte[]> snapshot() {
+        ArrayList<Op> ops = new ArrayList<>();
+        for (byte i = 0; i < maps.length; i++) {
+            maps[i].export(i, ops);
+        }
+        for (byte i = 0; i < sequences.length; i++) {
+            sequences[i].export(i, ops);
+        }
+        for (Map.Entry<String, PnCounter> item : counters.entrySet()) {
+            item.getValue().export(item.getKey(), ops);
+        }
+        return DeltaCodec.encode(ops, DeltaCodec.FLAG_MIXED | DeltaCodec.FLAG_SNAPSHOT | DeltaCodec.FLAG_RESET,
+                nodeId, versions);
+    }
+
+    /**
+     * 应用同步响应或补发的批次
+     *
+     * @param sender 响应方节点ID
+     * @return 状态有变化时返回true
+     */
+    public synchronized boolean applySync(long sender, byte[] data) throws IOException {
+        DeltaCodec.Batch batch = DeltaCodec.decode(data);
+        boolean sentReset = resetSentTo.remove(sender);
+        if ((batch.flags & DeltaCodec.FLAG_RESET) != 0) {
+            // 双方互相发送了重置快照时，只由节点ID较小的一方重置
+            if (sentReset && nodeId > sender) {
+                ignoringSnapshotFrom = sender;
+                return false;
+            }
+            ignoringSnapshotFrom = 0;
+            reset(batch.versions);
+        } else if ((batch.flags & DeltaCodec.FLAG_SNAPSHOT) != 0 && ignoringSnapshotFrom == sender) {
+            return false;
+        }
+
+        boolean changed = (batch.flags & DeltaCodec.FLAG_RESET) != 0;
+        boolean snapshot = (batch.flags & DeltaCodec.FLAG_SNAPSHOT) != 0;
+        for (Op op : batch.ops) {
+            if (snapshot) {
+                lamport = Math.max(lamport, op.lamport);
+                if (!applyOp(op) && pending.size() < PENDING_LIMIT) {
+                    pending.add(op);
+                }
+                changed = true;
+            } else {
+                changed |= applyRemote(op);
+            }
+        }
+        return changed | retryPending();
+    }
+
+    /**
+     * 清空状态，以快照的版本向量为准，然后重新应用本副本尚未被快照包含的修改
+     */
+    private void reset(Map<Long, Integer> snapshotVersions) {
+        for (LwwMap map : maps) {
+            map.clear();
+        }
+        for (RgaSequence sequence : sequences) {
+            sequence.clear();
+        }
+        counters.clear();
+        pending.clear();
+        ahead.clear();
+        versions.clear();
+        versions.putAll(snapshotVersions);
+        logFloor.clear();
+        logFloor.putAll(snapshotVersions);
+
+        int included = versionOf(snapshotVersions, nodeId);
+        ArrayList<Op> own = new ArrayList<>();
+        for (Op op : log) {
+            if (op.node == nodeId && op.counter > included) {
+                own.add(op);
+            }
+        }
+        log.clear();
+        counter = Math.max(counter, included);
+        for (Op op : own) {
+            pending.add(op);
+            recordVersion(nodeId, op.counter);
+            log.add(op);
+            resend.add(op);
+        }
+        // 尚未发出的本地修改
+        for (Op op : outbox) {
+            pending.add(op);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.tfkj.meeting.meeting.state;
+
+/**
+ * 一个增量操作。
+ *
+ * node/counter是操作的点（每个节点连续递增的操作序号），用于版本向量和去重；
+ * lamport决定并发操作的先后。快照中的操作counter为0。
+ */
+public final class Op {
+    public static final byte MAP_SET = 1;
+    public static final byte SEQ_INSERT = 2;
+    public static final byte SEQ_DELETE = 3;
+    public static final byte COUNTER = 4;
+
+    public final byte kind;
+    public final long node;
+    public final int counter;
+    public final long lamport;
+
+    // MAP_SET: 结构ID、键、值(null表示删除)
+    // SEQ_INSERT: 结构ID、引用元素(null表示开头)、值(null表示快照中已删除的元素)
+    // SEQ_DELETE: 结构ID、被删除的元素
+    // COUNTER: 计数器名称(key)、该节点的累计增加值和减少值
+    public final byte target;
+    public final String key;
+    public final String value;
+    public final Stamp ref;
+    public final long positive;
+    public final long negative;
+
+    Op(byte kind, long node, int counter, long lamport, byte target, String key, String value,
+       Stamp ref, long positive, long negative) {
+        this.kind = kind;
+        this.node = node;
+        this.counter = counter;
+        this.lamport = lamport;
+        this.target = target;
+        this.key = key;
+        this.value = value;
+        this.ref = ref;
+        this.positive = positive;
+        this.negative = negative;
+    }
+
+    public Stamp stamp() {
+        return new Stamp(lamport, node);
+    }
+
+    static Op mapSet(long node, int counter, long lamport, byte map, String key, String value) {
+        return new Op(MAP_SET, node, counter, lamport, map, key, value, null, 0, 0);
+    }
+
+    static Op seqInsert(long node, int counter, long lamport, byte seq, Stamp ref, String value) {
+        return new Op(SEQ_INSERT, node, counter, lamport, seq, null, value, ref, 0, 0);
+    }
+
+    static Op seqDelete(long node, int counter, long lamport, byte seq, Stamp element) {
+        return new Op(SEQ_DELETE, node, counter, lamport, seq, null, null, element, 0, 0);
+    }
+
+    static Op counter(long node, int counter, long lamport, String name, long positive, long negative) {
+        return new Op(COUNTER, node, counter, lamport, (byte) 0, name, null, null, positive, negative);
+    }
+}
@@ -0,0 +1,49 @@
+package com.tfkj.meeting.meeting.state;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 可增可减的计数器，每个节点只修改自己的累计增加值和减少值，合并时取最大值
+ */
+class PnCounter {
+
+    private final HashMap<Long, long[]> totals = new HashMap<>();
+
+    long[] totalsOf(long node) {
+        long[] total = totals.get(node);
+        if (total == null) {
+            total = new long[2];
+            totals.put(node, total);
+        }
+        return total;
+    }
+
+    /**
+     * @return 值被修改时返回true
+     */
+    boolean apply(long node, long positive, long negative) {
+        long[] total = totalsOf(node);
+        if (positive <= total[0] && negative <= total[1]) {
+            return false;
+        }
+        total[0] = Math.max(total[0], positive);
+        total[1] = Math.max(total[1], negative);
+        return true;
+    }
+
+    long value() {
+        long value = 0;
+        for (long[] total : totals.values()) {
+            value += total[0] - total[1];
+        }
+        return value;
+    }
+
+    void export(String name, List<Op> out) {
+        for (Map.Entry<Long, long[]> item : totals.entrySet()) {
+            out.add(Op.counter(item.getKey(), 0, 0, name, item.getValue()[0], item.getValue()[1]));
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package com.tfkj.meeting.meeting.state;
+
+import com.tfkj.meeting.meeting.service.Link;
+import com.tfkj.meeting.meeting.service.MeshConfig;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 投票的网内聚合。
+ *
+ * 发起节点把投票逐跳扩散出去，每个节点以第一次收到投票的链路为父链路，形成以发起节点为根的树；
+ * 截止前各节点把自己的选择和子树的部分计票合并后只向父节点发送一次，深度越大的节点越早发送
+ * （截止时间前depth * SLOT_MS），根节点在截止时汇总并全网广播一次结果。
+ * 每条链路上扩散、上报、结果各约一帧，总帧数为O(N)，而每人的选择都全网广播时为O(N²)。
+ * 计票只是各选项的计数相加，与到达顺序无关，结果是确定的。
+ *
+ * 父链路在上报前断开时，子树的部分计票改为全网转发的orphan帧，只由根节点计入，其他节点照常转发。
+ * orphan帧要多走几跳，最深处的子树可能在截止后才到达，计为迟到。
+ *
+ * <pre>
+ * open    := poll:8 depth:varint remainingMs:varint question:str count:varint option:str*
+ * partial := poll:8 voters:varint count:varint tally:varint*
+ * orphan  := partial
+ * result  := poll:8 voters:varint count:varint tally:varint*
+ * </pre>
+ */
+public class PollAggregator {
+
+    // 每一层预留的上报时间。各节点从收到发起帧时开始计时，每一层要容纳下行扩散和上行上报各一跳，
+    // 单跳延迟按不超过FanOut的期限（200ms）计
+    public static final long SLOT_MS = 2 * MeshConfig.DEFAULT_FAN_OUT_DEADLINE_MS + 100;
+    // 结果广播后保留投票状态的时间，用于丢弃迟到的帧
+    private static final long RETAIN_MS = 60000;
+
+    /**
+     * 收发和定时，由PollService或模拟测试实现
+     */
+    public interface Transport {
+        /**
+         * 只发给一个直连邻居
+         */
+        void send(Link link, byte type, byte[] payload);
+
+        /**
+         * 发给除except外的所有直连邻居，except为null时发给所有邻居
+         */
+        void sendToNeighbors(Link except, byte type, byte[] payload);
+
+        /**
+         * 全网广播
+         */
+        void broadcast(byte type, byte[] payload);
+
+        void schedule(long delayMs, Runnable task);
+    }
+
+    public interface Listener {
+        void onPollOpened(long poll, String question, List<String> options);
+
+        void onPollResult(long poll, int voters, int[] tally);
+    }
+
+    private class Poll {
+        final long id;
+        final Link parent;
+        final int depth;
+        final String question;
+        final List<String> options;
+        final int[] tally;
+        int voters;
+        int choice = -1;
+        boolean reported;
+        // 父链路已断开，上报改为全网转发
+        boolean orphaned;
+        int[] result;
+
+        Poll(long id, Link parent, int depth, String question, List<String> options) {
+            this.id = id;
+            this.parent = parent;
+            this.depth = depth;
+            this.question = question;
+            this.options = options;
+            tally = new int[options.size()];
+        }
+    }
+
+    private final long nodeId;
+    private final Transport transport;
+    private final byte openType;
+    private final byte partialType;
+    private final byte resultType;
+    private final byte orphanType;
+    private final Map<Long, Poll> polls = new HashMap<>();
+    private Listener listener;
+    // 每次启动从随机值开始编号，重启后新发起的投票不会与其他节点仍保留的旧投票重号
+    private long counter = new SecureRandom().nextLong();
+    private long latePartials;
+
+    public PollAggregator(long nodeId, Transport transport, byte openType, byte partialType, byte resultType,
+                          byte orphanType) {
+        this.nodeId = nodeId;
+        this.transport = transport;
+        this.openType = openType;
+        this.partialType = partialType;
+        this.resultType = resultType;
+        this.orphanType = orphanType;
+    }
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * 发起投票，本机为根节点
+     *
+     * @return 投票ID
+     */
+    public long open(String question, List<String> options, long durationMs) {
+        final Poll poll;
+        synchronized (this) {
+            long id = nodeId + (++counter);
+            poll = new Poll(id, null, 0, question, new ArrayList<>(options));
+            polls.put(id, poll);
+            transport.sendToNeighbors(null, openType, encodeOpen(poll, 1, durationMs));
+        }
+        transport.schedule(durationMs, new Runnable() {
+            @Override
+            public void run() {
+                finish(poll);
+            }
+        });
+        notifyOpened(poll);
+        return poll.id;
+    }
+
+    /**
+     * 本机的选择，上报之前可以修改
+     *
+     * @return 投票已上报或不存在时返回false
+     */
+    public synchronized boolean vote(long pollId, int option) {
+        Poll poll = polls.get(pollId);
+        if (poll == null || poll.reported || option < 0 || option >= poll.tally.length) {
+            return false;
+        }
+        poll.choice = option;
+        return true;
+    }
+
+    public void onOpen(Link from, byte[] payload) throws IOException {
+        DeltaCodec.Reader in = new DeltaCodec.Reader(payload);
+        long id = in.readLong();
+        int depth = (int) in.readVarint();
+        long remaining = in.readVarint();
+        String question = in.readString();
+        int count = (int) in.readVarint();
+        if (count < 0 || count > 255) {
+            throw new IOException("bad option count " + count);
+        }
+        List<String> options = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            options.add(in.readString());
+        }
+        final Poll poll;
+        synchronized (this) {
+            if (polls.containsKey(id)) {
+                //从其他路径重复收到
+                return;
+            }
+            poll = new Poll(id, from, depth, question, options);
+            polls.put(id, poll);
+            transport.sendToNeighbors(from, openType, encodeOpen(poll, depth + 1, remaining));
+        }
+        transport.schedule(Math.max(0, remaining - depth * SLOT_MS), new Runnable() {
+            @Override
+            public void run() {
+                report(poll);
+            }
+        });
+        notifyOpened(poll);
+    }
+
+    public void onPartial(Link from, byte[] payload) throws IOException {
+        DeltaCodec.Reader in = new DeltaCodec.Reader(payload);
+        long id = in.readLong();
+        int voters = (int) in.readVarint();
+        int[] counts = readTally(in);
+        synchronized (this) {
+            Poll poll = polls.get(id);
+            if (poll == null || counts.length != poll.tally.length || poll.result != null) {
+                latePartials++;
+                return;
+            }
+            if (!poll.reported) {
+                poll.voters += voters;
+                for (int i = 0; i < counts.length; i++) {
+                    poll.tally[i] += counts[i];
+                }
+            } else if (poll.parent != null) {
+                //本机已上报，迟到的子树计票直接转给父节点
+                latePartials++;
+                sendUp(poll, payload);
+            } else {
+                latePartials++;
+            }
+        }
+    }
+
+    /**
+     * 全网转发来的orphan帧，只有根节点计入
+     */
+    public void onOrphan(byte[] payload) throws IOException {
+        DeltaCodec.Reader in = new DeltaCodec.Reader(payload);
+        long id = in.readLong();
+        int voters = (int) in.readVarint();
+        int[] counts = readTally(in);
+        synchronized (this) {
+            Poll poll = polls.get(id);
+            if (poll == null || poll.parent != null) {
+                return;
+            }
+            if (counts.length != poll.tally.length || poll.result != null) {
+                latePartials++;
+                return;
+            }
+            poll.voters += voters;
+            for (int i = 0; i < counts.length; i++) {
+                poll.tally[i] += counts[i];
+            }
+        }
+    }
+
+    /**
+     * 链路断开：以它为父链路、尚未结束的投票改为全网转发上报
+     */
+    public synchronized void onLinkDown(Link link) {
+        for (Poll poll : polls.values()) {
+            if (poll.parent != null && poll.result == null && poll.parent.getAddress().equals(link.getAddress())) {
+                poll.orphaned = true;
+            }
+        }
+    }
+
+    public void onResult(byte[] payload) throws IOException {
+        DeltaCodec.Reader in = new DeltaCodec.Reader(payload);
+        long id = in.readLong();
+        int voters = (int) in.readVarint();
+        int[] counts = readTally(in);
+        Poll poll;
+        synchronized (this) {
+            poll = polls.get(id);
+            if (poll == null || poll.result != null || counts.length != poll.tally.length) {
+                return;
+            }
+            poll.result = counts;
+            poll.voters = voters;
+            poll.reported = true;
+        }
+        retire(poll);
+        notifyResult(poll);
+    }
+
+    /**
+     * @return 投票结果，尚未结束时为null
+     */
+    public synchronized int[] getResult(long pollId) {
+        Poll poll = polls.get(pollId);
+        return poll == null || poll.result == null ? null : Arrays.copyOf(poll.result, poll.result.length);
+    }
+
+    /**
+     * @return 上报或截止之后才到达的部分计票数
+     */
+    public synchronized long getLatePartials() {
+        return latePartials;
+    }
+
+    private void report(Poll poll) {
+        synchronized (this) {
+            if (poll.reported) {
+                return;
+            }
+            poll.reported = true;
+            addOwnChoice(poll);
+            sendUp(poll, encodeTally(poll.id, poll.voters, poll.tally));
+        }
+    }
+
+    private void sendUp(Poll poll, byte[] partial) {
+        if (poll.orphaned) {
+            transport.broadcast(orphanType, partial);
+        } else {
+            transport.send(poll.parent, partialType, partial);
+        }
+    }
+
+    private void finish(Poll poll) {
+        byte[] result;
+        synchronized (this) {
+            if (poll.result != null) {
+                return;
+            }
+            poll.reported = true;
+            addOwnChoice(poll);
+            poll.result = Arrays.copyOf(poll.tally, poll.tally.length);
+            result = encodeTally(poll.id, poll.voters, poll.result);
+        }
+        transport.broadcast(resultType, result);
+        retire(poll);
+        notifyResult(poll);
+    }
+
+    private void addOwnChoice(Poll poll) {
+        if (poll.choice >= 0) {
+            poll.tally[poll.choice]++;
+            poll.voters++;
+        }
+    }
+
+    private void retire(final Poll poll) {
+        transport.schedule(RETAIN_MS, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (PollAggregator.this) {
+                    polls.remove(poll.id);
+                }
+            }
+        });
+    }
+
+    private byte[] encodeOpen(Poll poll, int depth, long remainingMs) {
+        DeltaCodec.Writer out = new DeltaCodec.Writer();
+        out.writeLong(poll.id);
+        out.writeVarint(depth);
+        out.writeVarint(remainingMs);
+        out.writeString(poll.question);
+        out.writeVarint(poll.options.size());
+        for (String option : poll.options) {
+            out.writeString(option);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] encodeTally(long id, int voters, int[] tally) {
+        DeltaCodec.Writer out = new DeltaCodec.Writer();
+        out.writeLong(id);
+        out.writeVarint(voters);
+        out.writeVarint(tally.length);
+        for (int count : tally) {
+            out.writeVarint(count);
+        }
+        return out.toByteArray();
+    }
+
+    private static int[] readTally(DeltaCodec.Reader in) throws IOException {
+        int count = (int) in.readVarint();
+        if (count < 0 || count > 255) {
+            throw new IOException("bad option count " + count);
+        }
+        int[] tally = new int[count];
+        for (int i = 0; i < count; i++) {
+            tally[i] = (int) in.readVarint();
+        }
+        return tally;
+    }
+
+    private void notifyOpened(Poll poll) {
+        Listener current;
+        synchronized (this) {
+            current = listener;
+        }
+        if (current != null) {
+            current.onPollOpened(poll.id, poll.question, poll.options);
+        }
+    }
+
+    private void notifyResult(Poll poll) {
+        Listener current;
+        int[] result;
+        int voters;
+        synchronized (this) {
+            current = listener;
+            result = Arrays.copyOf(poll.result, poll.result.length);
+            voters = poll.voters;
+        }
+        if (current != null) {
+            current.onPollResult(poll.id, voters, result);
+        }
+    }
+}
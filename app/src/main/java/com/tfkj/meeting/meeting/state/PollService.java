@@ -0,0 +1,169 @@
+package com.tfkj.meeting.meeting.state;
+
+import android.util.Log;
+
+import com.tfkj.meeting.meeting.service.Frame;
+import com.tfkj.meeting.meeting.service.FrameHandler;
+import com.tfkj.meeting.meeting.service.Link;
+import com.tfkj.meeting.meeting.service.MeshConfig;
+import com.tfkj.meeting.meeting.service.MeshRouter;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 把PollAggregator接入网络：发起和部分计票走链路内的帧，由聚合器逐跳处理，最终结果全网转发。
+ * 父链路断开后的部分计票也全网转发。
+ */
+public class PollService {
+    private static final String TAG = "PollService";
+
+    private final PollAggregator aggregator;
+    private ScheduledExecutorService scheduler;
+
+    private volatile static PollService instance = null;
+
+    private PollService() {
+        aggregator = new PollAggregator(MeshConfig.getInstance().getNodeId(), new PollAggregator.Transport() {
+            @Override
+            public void send(Link link, byte type, byte[] payload) {
+                link.send(Frame.createLocal(type, payload));
+            }
+
+            @Override
+            public void sendToNeighbors(Link except, byte type, byte[] payload) {
+                MeshRouter.getInstance().sendToNeighbors(Frame.createLocal(type, payload), except);
+            }
+
+            @Override
+            public void broadcast(byte type, byte[] payload) {
+                MeshRouter.getInstance().broadcast(Frame.createLocal(type, payload));
+            }
+
+            @Override
+            public void schedule(long delayMs, Runnable task) {
+                PollService.this.schedule(delayMs, task);
+            }
+        }, Frame.TYPE_POLL_OPEN, Frame.TYPE_POLL_PARTIAL, Frame.TYPE_POLL_RESULT, Frame.TYPE_POLL_ORPHAN);
+
+        MeshRouter router = MeshRouter.getInstance();
+        router.register(Frame.TYPE_POLL_OPEN, false, new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame, Link from) {
+                try {
+                    aggregator.onOpen(from, frame.getPayload());
+                } catch (IOException e) {
+                    Log.e(TAG, "bad poll from " + from.getAddress(), e);
+                }
+            }
+        });
+        router.register(Frame.TYPE_POLL_PARTIAL, false, new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame, Link from) {
+                try {
+                    aggregator.onPartial(from, frame.getPayload());
+                } catch (IOException e) {
+                    Log.e(TAG, "bad partial tally from " + from.getAddress(), e);
+                }
+            }
+        });
+        router.register(Frame.TYPE_POLL_ORPHAN, true, new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame, Link from) {
+                try {
+                    aggregator.onOrphan(frame.getPayload());
+                } catch (IOException e) {
+                    Log.e(TAG, "bad orphan tally from " + from.getAddress(), e);
+                }
+            }
+        });
+        router.register(Frame.TYPE_POLL_RESULT, true, new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame, Link from) {
+                try {
+                    aggregator.onResult(frame.getPayload());
+                } catch (IOException e) {
+                    Log.e(TAG, "bad poll result from " + from.getAddress(), e);
+                }
+            }
+        });
+        router.addLinkListener(new MeshRouter.LinkListener() {
+            @Override
+            public void onLinkUp(Link link) {
+            }
+
+            @Override
+            public void onLinkDown(Link link) {
+                aggregator.onLinkDown(link);
+            }
+        });
+    }
+
+    public static PollService getInstance() {
+        if (instance == null) {
+            synchronized (PollService.class) {
+                if (instance == null) {
+                    instance = new PollService();
+                }
+            }
+        }
+        return instance;
+    }
+
+    public synchronized void start() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor();
+        }
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * 回调在通信线程或定时线程中调用
+     */
+    public void setListener(PollAggregator.Listener listener) {
+        aggregator.setListener(listener);
+    }
+
+    /**
+     * 发起投票，durationMs后在全网公布结果
+     *
+     * @return 投票ID
+     */
+    public long open(String question, List<String> options, long durationMs) {
+        return aggregator.open(question, options, durationMs);
+    }
+
+    public boolean vote(long poll, int option) {
+        return aggregator.vote(poll, option);
+    }
+
+    public int[] getResult(long poll) {
+        return aggregator.getResult(poll);
+    }
+
+    private synchronized void schedule(long delayMs, final Runnable task) {
+        if (scheduler == null) {
+            Log.w(TAG, "poll task dropped, service stopped");
+            return;
+        }
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "poll task failed", e);
+                }
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,193 @@
+package com.tfkj.meeting.meeting.state;
+
+import android.util.Log;
+
+import com.tfkj.meeting.meeting.service.Frame;
+import com.tfkj.meeting.meeting.service.FrameHandler;
+import com.tfkj.meeting.meeting.service.Link;
+import com.tfkj.meeting.meeting.service.MeshConfig;
+import com.tfkj.meeting.meeting.service.MeshRouter;
+
+import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 把Roster接入网络：定期问候，权威节点广播名单更新，缺少版本时向邻居请求全量名单。
+ */
+public class PresenceService {
+    private static final String TAG = "PresenceService";
+
+    // 权威节点合并名单变化的时间窗口
+    private static final long TICK_MS = 200;
+    // 向邻居请求全量名单的最小间隔
+    private static final long SYNC_INTERVAL_MS = 1000;
+
+    /**
+     * 名单变化通知，在通信线程中调用
+     */
+    public interface Listener {
+        void onRosterChanged(Roster roster);
+    }
+
+    private final Roster roster = new Roster(MeshConfig.getInstance().getNodeId());
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService scheduler;
+    private volatile long lastSyncRequest;
+
+    private volatile static PresenceService instance = null;
+
+    private PresenceService() {
+        MeshRouter router = MeshRouter.getInstance();
+        router.register(Frame.TYPE_PRESENCE_HELLO, true, new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame, Link from) {
+                try {
+                    if (roster.onHello(frame.getOrigin(), frame.getPayload(), System.currentTimeMillis())) {
+                        requestSync(from);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "bad hello from " + from.getAddress(), e);
+                }
+            }
+        });
+        router.register(Frame.TYPE_PRESENCE_UPDATE, true, new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame, Link from) {
+                apply(frame, from);
+            }
+        });
+        router.register(Frame.TYPE_PRESENCE_SYNC, false, new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame, Link from) {
+                try {
+                    byte[] full = roster.syncResponse(frame.getPayload());
+                    if (full != null) {
+                        from.send(Frame.createLocal(Frame.TYPE_PRESENCE_SNAPSHOT, full));
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "bad sync request from " + from.getAddress(), e);
+                }
+            }
+        });
+        router.register(Frame.TYPE_PRESENCE_SNAPSHOT, false, new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame, Link from) {
+                apply(frame, from);
+            }
+        });
+        router.addLinkListener(new MeshRouter.LinkListener() {
+            @Override
+            public void onLinkUp(Link link) {
+                link.send(Frame.createLocal(Frame.TYPE_PRESENCE_SYNC, roster.encodeSyncRequest()));
+            }
+
+            @Override
+            public void onLinkDown(Link link) {
+            }
+        });
+    }
+
+    public static PresenceService getInstance() {
+        if (instance == null) {
+            synchronized (PresenceService.class) {
+                if (instance == null) {
+                    instance = new PresenceService();
+                }
+            }
+        }
+        return instance;
+    }
+
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    tick();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "tick failed", e);
+                }
+            }
+        }, 0, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 停止前通知其他节点本机离开，不必等超时
+     */
+    public synchronized void stop() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdownNow();
+        scheduler = null;
+        MeshRouter.getInstance().broadcast(Frame.createLocal(Frame.TYPE_PRESENCE_HELLO,
+                roster.encodeHello(System.currentTimeMillis(), true)));
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return 本机的名单副本
+     */
+    public Roster getRoster() {
+        return roster;
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        MeshRouter router = MeshRouter.getInstance();
+        if (roster.helloDue(now)) {
+            router.broadcast(Frame.createLocal(Frame.TYPE_PRESENCE_HELLO, roster.encodeHello(now, false)));
+        }
+        byte[] update = roster.tick(now);
+        if (update != null) {
+            router.broadcast(Frame.createLocal(Frame.TYPE_PRESENCE_UPDATE, update));
+            notifyChanged();
+        }
+    }
+
+    private void apply(Frame frame, Link from) {
+        try {
+            switch (roster.applyUpdate(frame.getPayload())) {
+                case Roster.APPLIED:
+                    notifyChanged();
+                    break;
+                case Roster.GAP:
+                    requestSync(from);
+                    break;
+                default:
+                    break;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "bad roster update from " + from.getAddress(), e);
+        }
+    }
+
+    private void requestSync(Link link) {
+        long now = System.currentTimeMillis();
+        if (now - lastSyncRequest < SYNC_INTERVAL_MS) {
+            return;
+        }
+        lastSyncRequest = now;
+        link.send(Frame.createLocal(Frame.TYPE_PRESENCE_SYNC, roster.encodeSyncRequest()));
+    }
+
+    private void notifyChanged() {
+        for (Listener listener : listeners) {
+            listener.onRosterChanged(roster);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.tfkj.meeting.meeting.state;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * RGA有序列表，用于会议纪要等多人同时插入、删除的列表。
+ *
+ * 元素按插入时的时间戳全序排列：新元素放在引用元素之后，跳过时间戳比自己大的元素。
+ * 删除只做标记；删除操作稳定后，之后的插入时间戳都比墓碑大，如果墓碑之后的元素时间戳比墓碑小，
+ * 或者它的插入操作也已稳定，移除墓碑就不会改变之后插入的位置。
+ */
+class RgaSequence {
+
+    static class Element {
+        final Stamp id;
+        //插入操作的序号，尚未发出的本地插入为0
+        int counter;
+        String value;
+        boolean deleted;
+        long deleteNode;
+        int deleteCounter;
+
+        Element(Stamp id, int counter, String value) {
+            this.id = id;
+            this.counter = counter;
+            this.value = value;
+        }
+    }
+
+    private final ArrayList<Element> elements = new ArrayList<>();
+    private final HashMap<Stamp, Element> index = new HashMap<>();
+
+    /**
+     * @param ref 引用元素，null表示插在开头
+     * @return 引用元素不存在（依赖的操作还没收到）时返回false，调用方稍后重试
+     */
+    boolean insert(Stamp id, int counter, Stamp ref, String value) {
+        if (index.containsKey(id)) {
+            return true;
+        }
+        int position;
+        if (ref == null) {
+            position = 0;
+        } else {
+            Element refElement = index.get(ref);
+            if (refElement == null) {
+                return false;
+            }
+            position = elements.indexOf(refElement) + 1;
+        }
+        while (position < elements.size() && elements.get(position).id.compareTo(id) > 0) {
+            position++;
+        }
+        Element element = new Element(id, counter, value);
+        elements.add(position, element);
+        index.put(id, element);
+        return true;
+    }
+
+    /**
+     * @return 元素不存在时返回false，调用方稍后重试
+     */
+    boolean delete(Stamp id, long node, int counter) {
+        Element element = index.get(id);
+        if (element == null) {
+            return false;
+        }
+        if (!element.deleted) {
+            element.deleted = true;
+            element.value = null;
+            element.deleteNode = node;
+            element.deleteCounter = counter;
+        }
+        return true;
+    }
+
+    Element get(Stamp id) {
+        return index.get(id);
+    }
+
+    /**
+     * @return 第index个可见元素，越界时返回null
+     */
+    Element visible(int visibleIndex) {
+        int i = 0;
+        for (Element element : elements) {
+            if (!element.deleted) {
+                if (i == visibleIndex) {
+                    return element;
+                }
+                i++;
+            }
+        }
+        return null;
+    }
+
+    List<String> values() {
+        ArrayList<String> values = new ArrayList<>();
+        for (Element element : elements) {
+            if (!element.deleted) {
+                values.add(element.value);
+            }
+        }
+        return values;
+    }
+
+    int compact(MeetingState.Stability stability) {
+        int removed = 0;
+        // 从后往前，连续的墓碑可以在一次遍历中清除
+        for (int i = elements.size() - 1; i >= 0; i--) {
+            Element element = elements.get(i);
+            if (!element.deleted || !stability.isStable(element.deleteNode, element.deleteCounter)) {
+                continue;
+            }
+            Element next = i == elements.size() - 1 ? null : elements.get(i + 1);
+            if (next == null || next.id.compareTo(element.id) < 0 || stability.isStable(next.id.node, next.counter)) {
+                elements.remove(i);
+                index.remove(element.id);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    void clear() {
+        elements.clear();
+        index.clear();
+    }
+
+    int size() {
+        return elements.size();
+    }
+
+    /**
+     * 以操作的形式导出全部元素（含墓碑），每个元素引用前一个元素，按顺序应用即可重建
+     */
+    void export(byte seq, List<Op> out) {
+        Stamp previous = null;
+        for (Element element : elements) {
+            out.add(Op.seqInsert(element.id.node, element.counter, element.id.lamport, seq, previous,
+                    element.deleted ? "" : element.value));
+            if (element.deleted) {
+                out.add(new Op(Op.SEQ_DELETE, element.deleteNode, element.deleteCounter, element.id.lamport,
+                        seq, null, null, element.id, 0, 0));
+            }
+            previous = element.id;
+        }
+    }
+}
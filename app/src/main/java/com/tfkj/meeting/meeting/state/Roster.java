@@ -0,0 +1,386 @@
+package com.tfkj.meeting.meeting.state;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 全网的参会名单。
+ *
+ * 每个参会者有一个紧凑的编号，名单用编号的位图表示，带版本号。
+ * 节点ID最小的在线节点是权威节点，只有它修改名单：收到新节点的问候时加入，收到离开通知或超时未问候时移除，
+ * 每个tick把期间的变化合并成一个增量（只含变化的编号）全网广播；成为权威节点时广播一次全量。
+ * 其他节点按版本号应用增量，发现缺少版本（问候中的版本比本地新、增量的起始版本对不上）时向邻居请求全量。
+ *
+ * <pre>
+ * hello    := flags:1 version:varint
+ * update   := kind:1 version:varint authority:8 body
+ * DIFF     := base:varint count:varint (index:varint present:1 [node:8 当index为新编号])*
+ * FULL     := size:varint node:8*size bitmap:(size+7)/8
+ * </pre>
+ */
+public class Roster {
+
+    // 问候间隔，问候同时用于在线检测
+    public static final long HELLO_INTERVAL_MS = 10000;
+    // 超过这个时间没有问候的节点视为离开
+    public static final long EXPIRE_MS = 3 * HELLO_INTERVAL_MS;
+    // 启动后多久才可以成为权威节点
+    public static final long TAKEOVER_DELAY_MS = HELLO_INTERVAL_MS * 3 / 2;
+
+    // applyUpdate的结果
+    public static final int APPLIED = 0;
+    public static final int STALE = 1;
+    public static final int GAP = 2;
+
+    static final int HELLO_LEAVING = 1;
+    static final int KIND_DIFF = 0;
+    static final int KIND_FULL = 1;
+
+    private final long nodeId;
+
+    private long version;
+    private long authority;
+    // 编号 -> 节点ID，编号分配后不回收，重新加入的节点使用原来的编号
+    private final ArrayList<Long> nodes = new ArrayList<>();
+    private final HashMap<Long, Integer> indexes = new HashMap<>();
+    private final BitSet present = new BitSet();
+
+    // 最近一次收到问候的时间，用于选出权威节点和超时检测
+    private final HashMap<Long, Long> heard = new HashMap<>();
+    // 问候中见过的最大版本
+    private long maxSeenVersion;
+    private boolean authoritative;
+    // 作为权威节点时，尚未广播的变化：节点ID -> 是否在线
+    private final LinkedHashMap<Long, Boolean> pending = new LinkedHashMap<>();
+    private long lastHello = -1;
+    private long firstTick = -1;
+    private long sentBytes;
+
+    public Roster(long nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    public long getNodeId() {
+        return nodeId;
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return 维护名单的节点，尚未收到名单时为0
+     */
+    public synchronized long getAuthority() {
+        return authority;
+    }
+
+    public synchronized boolean isPresent(long node) {
+        Integer index = indexes.get(node);
+        return index != null && present.get(index);
+    }
+
+    /**
+     * @return 参会者的编号，没有编号时为-1
+     */
+    public synchronized int indexOf(long node) {
+        Integer index = indexes.get(node);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * @return 在线的参会者，按编号
+     */
+    public synchronized List<Long> getPresent() {
+        ArrayList<Long> result = new ArrayList<>(present.cardinality());
+        for (int i = present.nextSetBit(0); i >= 0; i = present.nextSetBit(i + 1)) {
+            result.add(nodes.get(i));
+        }
+        return result;
+    }
+
+    public synchronized int size() {
+        return present.cardinality();
+    }
+
+    /**
+     * @return 本机作为权威节点广播的名单字节数
+     */
+    public synchronized long getSentBytes() {
+        return sentBytes;
+    }
+
+    /**
+     * @return 距上次问候已超过HELLO_INTERVAL_MS
+     */
+    public synchronized boolean helloDue(long now) {
+        return lastHello < 0 || now - lastHello >= HELLO_INTERVAL_MS;
+    }
+
+    /**
+     * @param leaving 离开会议前的最后一次问候
+     */
+    public synchronized byte[] encodeHello(long now, boolean leaving) {
+        lastHello = now;
+        heard.put(nodeId, now);
+        DeltaCodec.Writer out = new DeltaCodec.Writer();
+        out.writeByte(leaving ? HELLO_LEAVING : 0);
+        out.writeVarint(version);
+        return out.toByteArray();
+    }
+
+    /**
+     * 收到其他节点的问候
+     *
+     * @return 对方的名单版本比本地新，需要请求全量
+     */
+    public synchronized boolean onHello(long origin, byte[] data, long now) throws IOException {
+        DeltaCodec.Reader in = new DeltaCodec.Reader(data);
+        boolean leaving = (in.readByte() & HELLO_LEAVING) != 0;
+        long helloVersion = in.readVarint();
+        maxSeenVersion = Math.max(maxSeenVersion, helloVersion);
+        if (leaving) {
+            heard.remove(origin);
+        } else {
+            heard.put(origin, now);
+        }
+        if (authoritative) {
+            change(origin, !leaving);
+        }
+        return helloVersion > version;
+    }
+
+    /**
+     * 定期调用：检测超时的节点；作为权威节点时生成要广播的名单更新
+     *
+     * @return 需要全网广播的更新，没有时为null
+     */
+    public synchronized byte[] tick(long now) {
+        if (firstTick < 0) {
+            firstTick = now;
+        }
+        heard.put(nodeId, lastHello >= 0 ? lastHello : now);
+        Iterator<Map.Entry<Long, Long>> it = heard.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Long> entry = it.next();
+            if (entry.getKey() != nodeId && now - entry.getValue() > EXPIRE_MS) {
+                it.remove();
+                if (authoritative) {
+                    change(entry.getKey(), false);
+                }
+            }
+        }
+
+        long elected = nodeId;
+        for (long node : heard.keySet()) {
+            elected = Math.min(elected, node);
+        }
+        if (elected != nodeId) {
+            authoritative = false;
+            pending.clear();
+            return null;
+        }
+        //刚启动时还没有收到所有节点的问候，等待超过一个问候间隔再接管，避免广播不完整的名单
+        if (!authoritative && now - firstTick < TAKEOVER_DELAY_MS) {
+            return null;
+        }
+        //其他节点有更新的名单（之前的权威节点离开、网络合并），以本机收到的问候为准重新接管
+        if (!authoritative || maxSeenVersion > version) {
+            return takeOver();
+        }
+        if (pending.isEmpty()) {
+            return null;
+        }
+        return drainDiff();
+    }
+
+    /**
+     * 成为权威节点：以收到问候的节点为准重建在线状态，版本跳过所有见过的版本，广播全量。
+     * 编号表沿用本地的名单，已分配的编号不变
+     */
+    private byte[] takeOver() {
+        authoritative = true;
+        pending.clear();
+        present.clear();
+        for (long node : heard.keySet()) {
+            present.set(assignIndex(node));
+        }
+        version = Math.max(version, maxSeenVersion) + 1;
+        authority = nodeId;
+        byte[] update = encodeFull(KIND_FULL);
+        sentBytes += update.length;
+        return update;
+    }
+
+    /**
+     * 记录一个变化，与已广播的状态相同时撤销
+     */
+    private void change(long node, boolean online) {
+        if (online == isPresent(node)) {
+            pending.remove(node);
+        } else {
+            pending.put(node, online);
+        }
+    }
+
+    private byte[] drainDiff() {
+        DeltaCodec.Writer out = new DeltaCodec.Writer();
+        out.writeByte(KIND_DIFF);
+        out.writeVarint(version + 1);
+        out.writeLong(authority);
+        out.writeVarint(version);
+        out.writeVarint(pending.size());
+        for (Map.Entry<Long, Boolean> change : pending.entrySet()) {
+            Integer index = indexes.get(change.getKey());
+            if (index == null) {
+                index = assignIndex(change.getKey());
+                out.writeVarint(index);
+                out.writeByte(change.getValue() ? 1 : 0);
+                out.writeLong(change.getKey());
+            } else {
+                out.writeVarint(index);
+                out.writeByte(change.getValue() ? 1 : 0);
+            }
+            present.set(index, change.getValue());
+        }
+        pending.clear();
+        version++;
+        byte[] update = out.toByteArray();
+        sentBytes += update.length;
+        return update;
+    }
+
+    private int assignIndex(long node) {
+        Integer index = indexes.get(node);
+        if (index == null) {
+            index = nodes.size();
+            nodes.add(node);
+            indexes.put(node, index);
+        }
+        return index;
+    }
+
+    /**
+     * 应用权威节点广播的更新
+     *
+     * @return APPLIED、STALE（已有此版本）或GAP（缺少之前的版本，需要请求全量）
+     */
+    public synchronized int applyUpdate(byte[] data) throws IOException {
+        DeltaCodec.Reader in = new DeltaCodec.Reader(data);
+        int kind = in.readByte();
+        long updateVersion = in.readVarint();
+        long updateAuthority = in.readLong();
+        if (updateVersion <= version || authoritative) {
+            return STALE;
+        }
+        if (kind == KIND_FULL) {
+            readFull(in, updateVersion, updateAuthority);
+            return APPLIED;
+        }
+        long base = in.readVarint();
+        if (base != version || updateAuthority != authority) {
+            maxSeenVersion = Math.max(maxSeenVersion, updateVersion);
+            return GAP;
+        }
+        int count = (int) in.readVarint();
+        //先读完再修改，截断的更新不会留下一半
+        int[] changed = new int[count];
+        boolean[] online = new boolean[count];
+        long[] added = new long[count];
+        int next = nodes.size();
+        for (int i = 0; i < count; i++) {
+            changed[i] = (int) in.readVarint();
+            online[i] = in.readByte() != 0;
+            if (changed[i] == next) {
+                added[i] = in.readLong();
+                next++;
+            } else if (changed[i] > next) {
+                throw new IOException("bad roster index " + changed[i]);
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            if (changed[i] == nodes.size()) {
+                nodes.add(added[i]);
+                indexes.put(added[i], changed[i]);
+            }
+            present.set(changed[i], online[i]);
+        }
+        version = updateVersion;
+        return APPLIED;
+    }
+
+    /**
+     * @return 同步请求，内容为本地版本
+     */
+    public synchronized byte[] encodeSyncRequest() {
+        DeltaCodec.Writer out = new DeltaCodec.Writer();
+        out.writeVarint(version);
+        return out.toByteArray();
+    }
+
+    /**
+     * 响应邻居的同步请求
+     *
+     * @return 全量名单，本地不比对方新时为null
+     */
+    public synchronized byte[] syncResponse(byte[] request) throws IOException {
+        long requested = new DeltaCodec.Reader(request).readVarint();
+        if (authority == 0 || version <= requested) {
+            return null;
+        }
+        return encodeFull(KIND_FULL);
+    }
+
+    private byte[] encodeFull(int kind) {
+        DeltaCodec.Writer out = new DeltaCodec.Writer();
+        out.writeByte(kind);
+        out.writeVarint(version);
+        out.writeLong(authority);
+        out.writeVarint(nodes.size());
+        for (long node : nodes) {
+            out.writeLong(node);
+        }
+        byte[] bitmap = new byte[(nodes.size() + 7) / 8];
+        for (int i = present.nextSetBit(0); i >= 0; i = present.nextSetBit(i + 1)) {
+            bitmap[i >> 3] |= 1 << (i & 7);
+        }
+        out.write(bitmap, 0, bitmap.length);
+        return out.toByteArray();
+    }
+
+    private void readFull(DeltaCodec.Reader in, long fullVersion, long fullAuthority) throws IOException {
+        int size = (int) in.readVarint();
+        if (size < 0 || size > 0xFFFF) {
+            throw new IOException("bad roster size " + size);
+        }
+        long[] read = new long[size];
+        for (int i = 0; i < size; i++) {
+            read[i] = in.readLong();
+        }
+        BitSet bits = new BitSet(size);
+        for (int i = 0; i < (size + 7) / 8; i++) {
+            int b = in.readByte();
+            for (int bit = 0; bit < 8; bit++) {
+                if ((b & (1 << bit)) != 0) {
+                    bits.set(i * 8 + bit);
+                }
+            }
+        }
+        nodes.clear();
+        indexes.clear();
+        for (int i = 0; i < size; i++) {
+            nodes.add(read[i]);
+            indexes.put(read[i], i);
+        }
+        present.clear();
+        present.or(bits);
+        version = fullVersion;
+        authority = fullAuthority;
+    }
+}
@@ -0,0 +1,45 @@
+package com.tfkj.meeting.meeting.state;
+
+/**
+ * Lamport时间戳加节点ID，全序，用于并发修改的确定性排序
+ */
+public final class Stamp implements Comparable<Stamp> {
+    public final long lamport;
+    public final long node;
+
+    public Stamp(long lamport, long node) {
+        this.lamport = lamport;
+        this.node = node;
+    }
+
+    @Override
+    public int compareTo(Stamp other) {
+        if (lamport != other.lamport) {
+            return lamport < other.lamport ? -1 : 1;
+        }
+        return Long.compare(node, other.node);
+    }
+
+    public boolean after(Stamp other) {
+        return other == null || compareTo(other) > 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Stamp)) {
+            return false;
+        }
+        Stamp other = (Stamp) o;
+        return lamport == other.lamport && node == other.node;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (lamport ^ (lamport >>> 32) ^ node ^ (node >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return lamport + "@" + Long.toHexString(node);
+    }
+}
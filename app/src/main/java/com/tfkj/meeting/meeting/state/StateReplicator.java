@@ -0,0 +1,261 @@
+package com.tfkj.meeting.meeting.state;
+
+import android.util.Log;
+
+import com.tfkj.meeting.meeting.service.Frame;
+import com.tfkj.meeting.meeting.service.FrameHandler;
+import com.tfkj.meeting.meeting.service.Link;
+import com.tfkj.meeting.meeting.service.MeshRouter;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 把本机的会议状态副本接入网络：
+ * 本地修改合并FLUSH_DELAY_MS后作为增量全网广播；新链路建立时双方交换版本向量，补发对方缺少的操作；
+ * 定期广播版本向量并压缩，收到落后的版本向量时补发对方缺少的操作（TYPE_STATE_REPAIR），补齐途中丢失的增量。
+ *
+ * 状态不持久化，所以副本ID每次启动重新生成，不使用跨重启保持不变的节点ID；
+ * 版本向量、同步请求和同步响应的负载前8字节是发送方的副本ID；补发的负载前16字节是发送方和目标的副本ID。
+ */
+public class StateReplicator {
+    private static final String TAG = "StateReplicator";
+
+    // 本地修改合并发送的时间窗口
+    private static final long FLUSH_DELAY_MS = 50;
+    private static final long REPORT_INTERVAL_MS = 30000;
+
+    /**
+     * 状态变化通知，在通信线程中调用
+     */
+    public interface Listener {
+        void onStateChanged(MeetingState state);
+    }
+
+    private final MeetingState state = new MeetingState(new SecureRandom().nextLong());
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService scheduler;
+    private boolean flushScheduled;
+
+    private volatile static StateReplicator instance = null;
+
+    private StateReplicator() {
+        MeshRouter router = MeshRouter.getInstance();
+        router.register(Frame.TYPE_STATE_DELTA, true, new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame, Link from) {
+                try {
+                    if (state.applyDelta(frame.getPayload())) {
+                        notifyChanged();
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "bad delta from " + from.getAddress(), e);
+                }
+            }
+        });
+        router.register(Frame.TYPE_STATE_REPORT, true, new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame, Link from) {
+                try {
+                    ByteBuffer payload = ByteBuffer.wrap(frame.getPayload());
+                    long reporter = payload.getLong();
+                    List<byte[]> batches = state.onReport(reporter, remaining(payload), System.currentTimeMillis());
+                    for (byte[] batch : batches) {
+                        MeshRouter.getInstance().broadcast(Frame.createLocal(Frame.TYPE_STATE_REPAIR,
+                                ByteBuffer.allocate(16 + batch.length).putLong(state.getNodeId())
+                                        .putLong(reporter).put(batch).array()));
+                    }
+                } catch (IOException | BufferUnderflowException e) {
+                    Log.e(TAG, "bad report from " + from.getAddress(), e);
+                }
+            }
+        });
+        router.register(Frame.TYPE_STATE_REPAIR, true, new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame, Link from) {
+                try {
+                    ByteBuffer payload = ByteBuffer.wrap(frame.getPayload());
+                    long sender = payload.getLong();
+                    if (payload.getLong() != state.getNodeId()) {
+                        return;
+                    }
+                    if (state.applySync(sender, remaining(payload))) {
+                        notifyChanged();
+                        scheduleFlush();
+                    }
+                } catch (IOException | BufferUnderflowException e) {
+                    Log.e(TAG, "bad repair from " + from.getAddress(), e);
+                }
+            }
+        });
+        router.register(Frame.TYPE_STATE_SYNC, false, new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame, Link from) {
+                try {
+                    ByteBuffer payload = ByteBuffer.wrap(frame.getPayload());
+                    List<byte[]> batches = state.syncResponse(payload.getLong(), remaining(payload),
+                            System.currentTimeMillis());
+                    for (byte[] batch : batches) {
+                        from.send(Frame.createLocal(Frame.TYPE_STATE_SNAPSHOT, withReplicaId(batch)));
+                    }
+                } catch (IOException | BufferUnderflowException e) {
+                    Log.e(TAG, "bad sync request from " + from.getAddress(), e);
+                }
+            }
+        });
+        router.register(Frame.TYPE_STATE_SNAPSHOT, false, new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame, Link from) {
+                try {
+                    ByteBuffer payload = ByteBuffer.wrap(frame.getPayload());
+                    if (state.applySync(payload.getLong(), remaining(payload))) {
+                        notifyChanged();
+                        //重置后需要补发的本机修改
+                        scheduleFlush();
+                    }
+                } catch (IOException | BufferUnderflowException e) {
+                    Log.e(TAG, "bad sync response from " + from.getAddress(), e);
+                }
+            }
+        });
+        router.addLinkListener(new MeshRouter.LinkListener() {
+            @Override
+            public void onLinkUp(Link link) {
+                link.send(Frame.createLocal(Frame.TYPE_STATE_SYNC, withReplicaId(state.encodeReport())));
+            }
+
+            @Override
+            public void onLinkDown(Link link) {
+            }
+        });
+    }
+
+    public static StateReplicator getInstance() {
+        if (instance == null) {
+            synchronized (StateReplicator.class) {
+                if (instance == null) {
+                    instance = new StateReplicator();
+                }
+            }
+        }
+        return instance;
+    }
+
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    MeshRouter.getInstance().broadcast(
+                            Frame.createLocal(Frame.TYPE_STATE_REPORT, withReplicaId(state.encodeReport())));
+                    int removed = state.compact(System.currentTimeMillis());
+                    Log.d(TAG, "compacted " + removed + ", retained " + state.retainedSize());
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "report failed", e);
+                }
+            }
+        }, REPORT_INTERVAL_MS, REPORT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+            flushScheduled = false;
+        }
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return 本机副本，只读；修改请使用本类的方法，以便广播
+     */
+    public MeetingState getState() {
+        return state;
+    }
+
+    public void put(byte map, String key, String value) {
+        state.put(map, key, value);
+        localChange();
+    }
+
+    public void remove(byte map, String key) {
+        state.remove(map, key);
+        localChange();
+    }
+
+    public void insert(byte seq, int index, String value) {
+        state.insert(seq, index, value);
+        localChange();
+    }
+
+    public void delete(byte seq, int index) {
+        state.delete(seq, index);
+        localChange();
+    }
+
+    public void increment(String name, long delta) {
+        state.increment(name, delta);
+        localChange();
+    }
+
+    private void localChange() {
+        notifyChanged();
+        scheduleFlush();
+    }
+
+    private synchronized void scheduleFlush() {
+        if (scheduler == null || flushScheduled) {
+            return;
+        }
+        flushScheduled = true;
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (StateReplicator.this) {
+                    flushScheduled = false;
+                }
+                flush();
+            }
+        }, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush() {
+        for (byte[] batch : state.drainDelta()) {
+            MeshRouter.getInstance().broadcast(Frame.createLocal(Frame.TYPE_STATE_DELTA, batch));
+        }
+    }
+
+    private byte[] withReplicaId(byte[] data) {
+        return ByteBuffer.allocate(8 + data.length).putLong(state.getNodeId()).put(data).array();
+    }
+
+    private static byte[] remaining(ByteBuffer buffer) {
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        return data;
+    }
+
+    private void notifyChanged() {
+        for (Listener listener : listeners) {
+            listener.onStateChanged(state);
+        }
+    }
+}
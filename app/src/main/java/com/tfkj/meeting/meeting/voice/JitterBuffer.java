@@ -0,0 +1,257 @@
+package com.tfkj.meeting.meeting.voice;
+
+/**
+ * 一个讲话者的自适应抖动缓冲。
+ *
+ * 接收线程调用put放入帧，播放线程每隔一帧时长调用poll取出下一帧。
+ * 抖动按RFC 3550的方法估计，目标延迟为一帧时长加4倍抖动，限制在[minDelayMs, maxDelayMs]内：
+ * 缓冲的帧超过目标时每次poll多丢弃一帧以降低延迟；缓冲播空时不前进序号，等待迟到的帧，延迟随之增加。
+ * 缺失而后续帧已到达的帧视为丢失，poll返回MISSING，由调用方做丢包补偿。
+ *
+ * 帧数据存放在创建时分配好的帧池中，放入和取出都只复制数据，不分配内存。
+ * 方法都是同步的，接收线程和播放线程可以同时调用。
+ */
+public class JitterBuffer {
+
+    // poll没有可播放的帧：需要补偿，或尚未开始播放
+    public static final int MISSING = -1;
+
+    private static class Slot {
+        final byte[] data;
+        int length;
+        int seq;
+        long timestamp;
+        long arrival;
+        boolean end;
+        boolean filled;
+
+        Slot(int capacity) {
+            data = new byte[capacity];
+        }
+    }
+
+    private final int frameMs;
+    private final int minDelayMs;
+    private final int maxDelayMs;
+    // 帧池，按序号取模存放
+    private final Slot[] slots;
+
+    private double jitterMs;
+    private long prevArrival = -1;
+    private long prevTimestamp;
+    private int targetDelayMs;
+
+    private boolean started;
+    private boolean primed;
+    private int nextSeq;
+    private int highestSeq;
+    private int underruns;
+
+    private long received;
+    private long played;
+    private long concealed;
+    private long late;
+    private long discarded;
+    private long latencySum;
+    private long latencyMax;
+
+    /**
+     * @param frameMs       每帧时长，毫秒
+     * @param minDelayMs    最小缓冲延迟
+     * @param maxDelayMs    最大缓冲延迟，决定帧池大小
+     * @param maxFrameBytes 一帧编码后的最大字节数
+     */
+    public JitterBuffer(int frameMs, int minDelayMs, int maxDelayMs, int maxFrameBytes) {
+        this.frameMs = frameMs;
+        this.minDelayMs = minDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        int capacity = Integer.highestOneBit(Math.max(4, maxDelayMs / frameMs * 2) * 2 - 1);
+        slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot(maxFrameBytes);
+        }
+        targetDelayMs = Math.max(minDelayMs, frameMs);
+    }
+
+    /**
+     * 放入收到的一帧
+     *
+     * @param seq       帧序号
+     * @param timestamp 发送端的采集时间，毫秒
+     * @param arrival   本机收到的时间，毫秒
+     * @param end       一段讲话的最后一帧
+     * @return 放入缓冲时返回true，迟到、超出帧池或过大时返回false
+     */
+    public synchronized boolean put(int seq, long timestamp, long arrival, boolean end,
+                                    byte[] data, int offset, int length) {
+        received++;
+        updateJitter(timestamp, arrival);
+        if (length > slots[0].data.length) {
+            discarded++;
+            return false;
+        }
+        if (!primed) {
+            primed = true;
+            nextSeq = seq;
+            highestSeq = seq;
+        } else if (seq - nextSeq < 0) {
+            if (started) {
+                late++;
+                return false;
+            }
+            //开始播放前乱序到达的更早的帧
+            if (highestSeq - seq >= slots.length) {
+                discarded++;
+                return false;
+            }
+            nextSeq = seq;
+        } else if (seq - nextSeq >= slots.length) {
+            discarded++;
+            return false;
+        }
+        if (seq - highestSeq > 0) {
+            highestSeq = seq;
+        }
+
+        Slot slot = slots[seq & (slots.length - 1)];
+        System.arraycopy(data, offset, slot.data, 0, length);
+        slot.length = length;
+        slot.seq = seq;
+        slot.timestamp = timestamp;
+        slot.arrival = arrival;
+        slot.end = end;
+        slot.filled = true;
+        return true;
+    }
+
+    private void updateJitter(long timestamp, long arrival) {
+        if (prevArrival >= 0) {
+            long d = (arrival - prevArrival) - (timestamp - prevTimestamp);
+            jitterMs += (Math.abs(d) - jitterMs) / 16;
+        }
+        prevArrival = arrival;
+        prevTimestamp = timestamp;
+        int target = frameMs + (int) Math.ceil(4 * jitterMs);
+        targetDelayMs = Math.max(minDelayMs, Math.min(maxDelayMs, target));
+    }
+
+    /**
+     * 每隔一帧时长调用一次
+     *
+     * @param now 当前时间，毫秒，与put的arrival使用同一时钟
+     * @param out 接收帧数据，长度不小于maxFrameBytes
+     * @return 帧数据的长度，没有可播放的帧时为MISSING
+     */
+    public synchronized int poll(long now, byte[] out) {
+        if (!started) {
+            Slot first = slotOf(nextSeq);
+            if (first == null || now - first.arrival < targetDelayMs - frameMs) {
+                return MISSING;
+            }
+            started = true;
+            underruns = 0;
+        }
+
+        //缓冲过多：丢弃最早的一帧追上目标延迟，每次最多一帧
+        int buffered = highestSeq - nextSeq + 1;
+        if (buffered * frameMs > targetDelayMs + frameMs && slotOf(nextSeq) != null && !slotOf(nextSeq).end) {
+            slotOf(nextSeq).filled = false;
+            nextSeq++;
+            discarded++;
+        }
+
+        Slot slot = slotOf(nextSeq);
+        if (slot == null) {
+            concealed++;
+            if (highestSeq - nextSeq > 0) {
+                //丢失，跳过
+                nextSeq++;
+            } else if (++underruns * frameMs > 2 * maxDelayMs) {
+                //发送端已停止而没有收到结束帧
+                reset();
+            }
+            return MISSING;
+        }
+
+        underruns = 0;
+        System.arraycopy(slot.data, 0, out, 0, slot.length);
+        slot.filled = false;
+        nextSeq++;
+        played++;
+        long latency = now - slot.timestamp;
+        latencySum += latency;
+        latencyMax = Math.max(latencyMax, latency);
+        if (slot.end) {
+            reset();
+        }
+        return slot.length;
+    }
+
+    private Slot slotOf(int seq) {
+        Slot slot = slots[seq & (slots.length - 1)];
+        return slot.filled && slot.seq == seq ? slot : null;
+    }
+
+    private void reset() {
+        started = false;
+        primed = false;
+        for (Slot slot : slots) {
+            slot.filled = false;
+        }
+    }
+
+    public synchronized double getJitterMs() {
+        return jitterMs;
+    }
+
+    public synchronized int getTargetDelayMs() {
+        return targetDelayMs;
+    }
+
+    /**
+     * @return 正在播放一段讲话
+     */
+    public synchronized boolean isPlaying() {
+        return started;
+    }
+
+    public synchronized long getReceived() {
+        return received;
+    }
+
+    public synchronized long getPlayed() {
+        return played;
+    }
+
+    /**
+     * @return 需要丢包补偿的次数（丢失和播空）
+     */
+    public synchronized long getConcealed() {
+        return concealed;
+    }
+
+    /**
+     * @return 播放时间已过才到达的帧数
+     */
+    public synchronized long getLate() {
+        return late;
+    }
+
+    /**
+     * @return 为降低延迟丢弃的帧和放不下的帧数
+     */
+    public synchronized long getDiscarded() {
+        return discarded;
+    }
+
+    /**
+     * @return 平均的采集到播放的时间，毫秒；发送端与本机时钟一致时即为端到端延迟
+     */
+    public synchronized double getMeanLatencyMs() {
+        return played == 0 ? 0 : (double) latencySum / played;
+    }
+
+    public synchronized long getMaxLatencyMs() {
+        return latencyMax;
+    }
+}
@@ -0,0 +1,114 @@
+package com.tfkj.meeting.meeting.voice;
+
+import android.util.Log;
+
+import com.tfkj.meeting.meeting.service.Frame;
+import com.tfkj.meeting.meeting.service.FrameHandler;
+import com.tfkj.meeting.meeting.service.Link;
+import com.tfkj.meeting.meeting.service.MeshClock;
+import com.tfkj.meeting.meeting.service.MeshConfig;
+import com.tfkj.meeting.meeting.service.MeshRouter;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 按住说话的实时语音通道。
+ *
+ * 发送端把编码后的固定时长音频帧加上序号和采集时间全网广播，丢失的帧不重传；
+ * 接收端每个讲话者一个JitterBuffer，播放线程按帧时长调用poll取帧。
+ * 通道不关心编码格式，音频数据原样传递。
+ * 采集时间和到达时间都使用MeshClock的全网时间，延迟统计即为端到端延迟。
+ */
+public class VoiceChannel {
+    private static final String TAG = "VoiceChannel";
+
+    public static final int FRAME_MS = 20;
+    public static final int MIN_DELAY_MS = 40;
+    public static final int MAX_DELAY_MS = 400;
+    // 20ms的16位单声道PCM，16kHz时为640字节；压缩编码的帧更小
+    public static final int MAX_FRAME_BYTES = 640;
+
+    private final ConcurrentHashMap<Long, JitterBuffer> speakers = new ConcurrentHashMap<>();
+    private final AtomicInteger sendSeq = new AtomicInteger();
+
+    private volatile static VoiceChannel instance = null;
+
+    private VoiceChannel() {
+        MeshRouter.getInstance().register(Frame.TYPE_VOICE, true, new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame, Link from) {
+                receive(frame.getOrigin(), frame.getEncoded(), Frame.HEADER_LENGTH,
+                        frame.getPayloadLength(), MeshClock.getInstance().currentTimeMillis());
+            }
+        });
+    }
+
+    public static VoiceChannel getInstance() {
+        if (instance == null) {
+            synchronized (VoiceChannel.class) {
+                if (instance == null) {
+                    instance = new VoiceChannel();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 发送一帧，在采集线程中调用
+     *
+     * @param audio 编码后的音频
+     * @param last  松开按键时的最后一帧
+     */
+    public void send(byte[] audio, int offset, int length, boolean last) {
+        MeshConfig config = MeshConfig.getInstance();
+        byte[] payload = VoiceFrame.encode(last ? VoiceFrame.FLAG_END : 0, sendSeq.getAndIncrement(),
+                MeshClock.getInstance().currentTimeMillis(), FRAME_MS, audio, offset, length);
+        MeshRouter.getInstance().broadcast(Frame.create(Frame.TYPE_VOICE, config.getNodeId(), config.nextSeq(), payload));
+    }
+
+    void receive(long speaker, byte[] data, int offset, int length, long now) {
+        if (length < VoiceFrame.HEADER_LENGTH) {
+            Log.w(TAG, "short voice frame from " + speaker);
+            return;
+        }
+        JitterBuffer buffer = speakers.get(speaker);
+        if (buffer == null) {
+            JitterBuffer created = new JitterBuffer(FRAME_MS, MIN_DELAY_MS, MAX_DELAY_MS, MAX_FRAME_BYTES);
+            buffer = speakers.putIfAbsent(speaker, created);
+            if (buffer == null) {
+                buffer = created;
+            }
+        }
+        buffer.put(VoiceFrame.seq(data, offset), VoiceFrame.timestamp(data, offset), now,
+                (VoiceFrame.flags(data, offset) & VoiceFrame.FLAG_END) != 0,
+                data, offset + VoiceFrame.HEADER_LENGTH, length - VoiceFrame.HEADER_LENGTH);
+    }
+
+    /**
+     * @return 收到过语音的节点ID
+     */
+    public Set<Long> getSpeakers() {
+        return speakers.keySet();
+    }
+
+    /**
+     * @return 讲话者的抖动缓冲，没有收到过时为null
+     */
+    public JitterBuffer getBuffer(long speaker) {
+        return speakers.get(speaker);
+    }
+
+    /**
+     * 播放线程每隔FRAME_MS调用
+     *
+     * @param out 长度不小于MAX_FRAME_BYTES
+     * @return 帧长度，需要补偿或没有在讲话时为JitterBuffer.MISSING
+     */
+    public int poll(long speaker, byte[] out) {
+        JitterBuffer buffer = speakers.get(speaker);
+        return buffer == null ? JitterBuffer.MISSING : buffer.poll(MeshClock.getInstance().currentTimeMillis(), out);
+    }
+}
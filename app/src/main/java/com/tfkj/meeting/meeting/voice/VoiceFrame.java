@@ -0,0 +1,54 @@
+package com.tfkj.meeting.meeting.voice;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 语音帧负载的格式，与编码器无关：
+ * 标志(1) 序号(4) 采集时间(8，毫秒) 时长(2，毫秒) 编码后的音频数据
+ */
+public final class VoiceFrame {
+    public static final int HEADER_LENGTH = 15;
+
+    // 一段讲话的最后一帧，接收端播完后结束这段播放
+    public static final byte FLAG_END = 1;
+
+    private VoiceFrame() {
+    }
+
+    public static byte[] encode(byte flags, int seq, long timestamp, int durationMs,
+                                byte[] audio, int offset, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + length);
+        buffer.put(flags);
+        buffer.putInt(seq);
+        buffer.putLong(timestamp);
+        buffer.putShort((short) durationMs);
+        buffer.put(audio, offset, length);
+        return buffer.array();
+    }
+
+    public static byte flags(byte[] data, int offset) {
+        return data[offset];
+    }
+
+    // 以下读取方法在接收线程中逐帧调用，直接按大端读取，不创建对象
+
+    public static int seq(byte[] data, int offset) {
+        return (int) readBigEndian(data, offset + 1, 4);
+    }
+
+    public static long timestamp(byte[] data, int offset) {
+        return readBigEndian(data, offset + 5, 8);
+    }
+
+    public static int durationMs(byte[] data, int offset) {
+        return (int) readBigEndian(data, offset + 13, 2);
+    }
+
+    private static long readBigEndian(byte[] data, int offset, int length) {
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
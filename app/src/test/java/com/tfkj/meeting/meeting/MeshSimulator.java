@@ -0,0 +1,146 @@
+package com.tfkj.meeting.meeting;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * 测试中模拟组网用的离散事件模拟器：虚拟时间下按时间顺序执行事件，同一时间的按加入顺序执行。
+ * 另外生成随机的连通拓扑和每跳的延迟，所有随机数都来自random，同一个种子的结果完全相同。
+ * 各测试继承它，只实现自己的节点和帧的处理。
+ */
+public class MeshSimulator {
+
+    public final Random random;
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private long now;
+    private long order;
+
+    public MeshSimulator(long seed) {
+        this(new Random(seed));
+    }
+
+    public MeshSimulator(Random random) {
+        this.random = random;
+    }
+
+    private class Event implements Comparable<Event> {
+        final long time;
+        final long seq = order++;
+        final Runnable action;
+
+        Event(long time, Runnable action) {
+            this.time = time;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            return time != other.time ? Long.compare(time, other.time) : Long.compare(seq, other.seq);
+        }
+    }
+
+    /**
+     * @return 当前的虚拟时间，毫秒
+     */
+    public long now() {
+        return now;
+    }
+
+    public void schedule(long delayMs, Runnable action) {
+        events.add(new Event(now + delayMs, action));
+    }
+
+    /**
+     * @return 没有待执行的事件
+     */
+    public boolean isIdle() {
+        return events.isEmpty();
+    }
+
+    /**
+     * @return 下一个事件的时间，没有事件时为Long.MAX_VALUE
+     */
+    public long nextTime() {
+        return events.isEmpty() ? Long.MAX_VALUE : events.peek().time;
+    }
+
+    /**
+     * 执行下一个事件
+     *
+     * @return 没有事件时返回false
+     */
+    public boolean step() {
+        Event event = events.poll();
+        if (event == null) {
+            return false;
+        }
+        now = event.time;
+        event.action.run();
+        return true;
+    }
+
+    /**
+     * 执行时间不晚于end的事件，包括执行中新加入的，之后当前时间为end
+     */
+    public void runUntil(long end) {
+        while (!events.isEmpty() && events.peek().time <= end) {
+            step();
+        }
+        now = Math.max(now, end);
+    }
+
+    /**
+     * 执行到没有事件为止
+     */
+    public void runAll() {
+        while (step()) {
+        }
+    }
+
+    /**
+     * @return 每跳的延迟，[minMs, maxMs)内均匀分布
+     */
+    public long hop(int minMs, int maxMs) {
+        return minMs + random.nextInt(maxMs - minMs);
+    }
+
+    /**
+     * 随机连通拓扑：先连成树，每个节点连到之前的一个连接数小于treeDegree的节点；
+     * 再随机选两个节点加边extraAttempts次，两端的连接数都要小于maxDegree（蓝牙一个设备最多7条连接）
+     *
+     * @return 按连接顺序的边，每条边是两端的下标
+     */
+    public List<int[]> randomMesh(int nodes, int treeDegree, int maxDegree, int extraAttempts) {
+        List<Set<Integer>> neighbors = new ArrayList<>();
+        List<int[]> edges = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) {
+            neighbors.add(new HashSet<Integer>());
+        }
+        for (int i = 1; i < nodes; i++) {
+            int parent;
+            do {
+                parent = random.nextInt(i);
+            } while (neighbors.get(parent).size() >= treeDegree);
+            connect(neighbors, edges, i, parent);
+        }
+        for (int attempt = 0; attempt < extraAttempts; attempt++) {
+            int a = random.nextInt(nodes);
+            int b = random.nextInt(nodes);
+            if (a != b && !neighbors.get(a).contains(b) && neighbors.get(a).size() < maxDegree
+                    && neighbors.get(b).size() < maxDegree) {
+                connect(neighbors, edges, a, b);
+            }
+        }
+        return edges;
+    }
+
+    private static void connect(List<Set<Integer>> neighbors, List<int[]> edges, int a, int b) {
+        neighbors.get(a).add(b);
+        neighbors.get(b).add(a);
+        edges.add(new int[]{a, b});
+    }
+}
@@ -0,0 +1,375 @@
+package com.tfkj.meeting.meeting.attachment;
+
+import com.tfkj.meeting.meeting.MeshSimulator;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 分块缓存、清单编码，以及模拟组网中分享附件时链路上传输的分块字节数，与整个附件全网广播相比较
+ */
+public class ChunkFetcherTest {
+
+    @Test
+    public void storeEvictsLeastRecentlyUsed() {
+        ChunkStore store = new ChunkStore(300);
+        assertTrue(store.put("a", new byte[100]));
+        assertTrue(store.put("b", new byte[100]));
+        assertTrue(store.put("c", new byte[100]));
+        assertFalse(store.put("a", new byte[100]));
+        //contains不影响淘汰顺序，get会
+        assertTrue(store.contains("a"));
+        assertNotNull(store.get("b"));
+        assertTrue(store.put("d", new byte[100]));
+        assertFalse(store.contains("a"));
+        assertTrue(store.contains("b"));
+        assertTrue(store.put("e", new byte[150]));
+        assertFalse(store.contains("c"));
+        assertFalse(store.contains("b"));
+        assertEquals(250, store.getBytes());
+        assertEquals(3, store.getEvicted());
+        assertFalse(store.put("f", new byte[301]));
+    }
+
+    @Test
+    public void manifestRoundTrip() throws IOException {
+        byte[] data = new byte[Manifest.CHUNK_SIZE * 2 + 100];
+        new Random(1).nextBytes(data);
+        List<byte[]> chunks = new ArrayList<>();
+        Manifest manifest = Manifest.of("季度汇报.pdf", data, chunks);
+        assertEquals(3, chunks.size());
+        assertEquals(100, manifest.chunkLength(2));
+        assertEquals(Manifest.hash(chunks.get(2)), manifest.chunks.get(2));
+
+        Manifest decoded = Manifest.decode(manifest.encode());
+        assertEquals(manifest.id, decoded.id);
+        assertEquals(manifest.name, decoded.name);
+        assertEquals(manifest.size, decoded.size);
+        assertEquals(manifest.chunks, decoded.chunks);
+        //内容相同名称不同的附件ID相同
+        assertEquals(manifest.id, Manifest.of("副本.pdf", data, null).id);
+
+        List<String> hashes = manifest.chunks.subList(0, 2);
+        assertEquals(hashes, AttachmentService.decodeRequest(AttachmentService.encodeRequest(hashes)));
+        byte[] chunk = AttachmentService.encodeChunk(manifest.chunks.get(1), chunks.get(1));
+        assertEquals(manifest.chunks.get(1), AttachmentService.chunkHash(chunk));
+        assertArrayEquals(chunks.get(1), AttachmentService.chunkData(chunk));
+    }
+
+    @Test
+    public void rejectsInconsistentManifest() {
+        byte[] encoded = Manifest.of("a", new byte[Manifest.CHUNK_SIZE + 1], null).encode();
+        try {
+            Manifest.decode(Arrays.copyOf(encoded, encoded.length - 1));
+            fail("truncated manifest accepted");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsCorruptedChunk() {
+        final List<Manifest> completed = new ArrayList<>();
+        ChunkFetcher fetcher = new ChunkFetcher(new ChunkStore(1 << 20), new ChunkFetcher.Callback() {
+            @Override
+            public void request(String link, List<String> hashes) {
+            }
+
+            @Override
+            public void sendChunk(String link, String hash, byte[] data) {
+            }
+
+            @Override
+            public void onComplete(Manifest manifest, byte[] data) {
+                completed.add(manifest);
+            }
+        });
+        byte[] data = new byte[1000];
+        Manifest manifest = Manifest.of("a", data, null);
+        fetcher.onManifest(manifest, "peer", 0);
+        byte[] corrupted = data.clone();
+        corrupted[10] = 1;
+        assertFalse(fetcher.onChunk("peer", manifest.chunks.get(0), corrupted, 1));
+        assertTrue(completed.isEmpty());
+        assertTrue(fetcher.onChunk("peer", manifest.chunks.get(0), data, 2));
+        assertEquals(1, completed.size());
+    }
+
+    @Test
+    public void lostSourceIsReplacedByTheFirstNeighbourToAnswer() {
+        final List<String> requestedFrom = new ArrayList<>();
+        final List<String> servedTo = new ArrayList<>();
+        ChunkFetcher fetcher = new ChunkFetcher(new ChunkStore(1 << 20), new ChunkFetcher.Callback() {
+            @Override
+            public void request(String link, List<String> hashes) {
+                requestedFrom.add(link);
+            }
+
+            @Override
+            public void sendChunk(String link, String hash, byte[] data) {
+                servedTo.add(link);
+            }
+
+            @Override
+            public void onComplete(Manifest manifest, byte[] data) {
+            }
+        });
+        byte[] data = new byte[(ChunkFetcher.WINDOW + 2) * Manifest.CHUNK_SIZE];
+        new Random(1).nextBytes(data);
+        List<byte[]> chunks = new ArrayList<>();
+        Manifest manifest = Manifest.of("a", data, chunks);
+        fetcher.onManifest(manifest, "source", 0);
+        //邻居请求的分块本机还没有
+        fetcher.onRequest("source", Arrays.asList(manifest.chunks.get(0)), 0);
+        assertEquals(Arrays.asList("source"), requestedFrom);
+
+        //转来清单的邻居断开：在途的分块立即向所有邻居请求，它的请求不再回复
+        fetcher.onLinkDown("source", 1);
+        assertEquals(Arrays.asList("source", null), requestedFrom);
+        assertTrue(fetcher.onChunk("other", manifest.chunks.get(0), chunks.get(0), 2));
+        assertTrue(servedTo.isEmpty());
+        //之后的分块向最先回复的邻居请求
+        assertEquals(Arrays.asList("source", null, "other"), requestedFrom);
+    }
+
+    /**
+     * 模拟的网络：随机树加上少量额外连接形成环，每跳有延迟。
+     * 清单与MeshRouter一样按首次收到去重转发，先转发再交给本机处理；分块的请求和数据只发给指定的邻居
+     */
+    private static class Simulation extends MeshSimulator {
+        static final long EXPIRE_INTERVAL_MS = 1000;
+        // 没有事件后最多再检查超时的次数，足够让所有重试和放弃都发生
+        static final long MAX_IDLE_EXPIRES =
+                (ChunkFetcher.MAX_RETRIES + 1) * ChunkFetcher.REQUEST_TIMEOUT_MS / EXPIRE_INTERVAL_MS + 1;
+
+        final double chunkLoss;
+        final List<Node> nodes = new ArrayList<>();
+        int edges;
+        long chunkBytes;
+        long requestBytes;
+        long manifestBytes;
+
+        Simulation(int size, long seed, double chunkLoss) {
+            super(seed);
+            this.chunkLoss = chunkLoss;
+            for (int i = 0; i < size; i++) {
+                nodes.add(new Node(String.valueOf(i)));
+            }
+            for (int[] edge : randomMesh(size, 6, 7, size / 5)) {
+                connect(nodes.get(edge[0]), nodes.get(edge[1]));
+            }
+        }
+
+        void connect(Node a, Node b) {
+            a.links.put(b.name, b);
+            b.links.put(a.name, a);
+            edges++;
+        }
+
+        void send(Runnable delivery) {
+            schedule(hop(5, 25), delivery);
+        }
+
+        void share(Node from, String name, byte[] data) {
+            List<byte[]> chunks = new ArrayList<>();
+            Manifest manifest = Manifest.of(name, data, chunks);
+            from.fetcher.addLocal(manifest, chunks);
+            from.seen.put(manifest.id + name, true);
+            from.flood(manifest, name, null);
+            run();
+        }
+
+        /**
+         * 执行到没有事件，其间每秒让各节点检查超时；没有事件后仍在下载时继续检查，让剩余的重试和放弃都发生
+         */
+        void run() {
+            long nextExpire = now() + EXPIRE_INTERVAL_MS;
+            int idleExpires = 0;
+            while (!isIdle() || (fetching() && idleExpires++ < MAX_IDLE_EXPIRES)) {
+                runUntil(nextExpire);
+                for (Node node : nodes) {
+                    node.fetcher.expire(nextExpire);
+                }
+                nextExpire += EXPIRE_INTERVAL_MS;
+            }
+        }
+
+        boolean fetching() {
+            for (Node node : nodes) {
+                if (node.fetcher.isFetching()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        class Node {
+            final String name;
+            final Map<String, Node> links = new LinkedHashMap<>();
+            final ChunkFetcher fetcher;
+            // 收到过的清单，按清单ID和名称去重，代替帧的(origin, seq)
+            final Map<String, Boolean> seen = new HashMap<>();
+            final Map<String, byte[]> received = new HashMap<>();
+
+            Node(String name) {
+                this.name = name;
+                fetcher = new ChunkFetcher(new ChunkStore(4 << 20), new ChunkFetcher.Callback() {
+                    @Override
+                    public void request(String link, final List<String> hashes) {
+                        for (final Node peer : link == null ? links.values() : Arrays.asList(links.get(link))) {
+                            requestBytes += 2 + hashes.size() * Manifest.HASH_LENGTH;
+                            send(new Runnable() {
+                                @Override
+                                public void run() {
+                                    peer.fetcher.onRequest(Node.this.name, hashes, now());
+                                }
+                            });
+                        }
+                    }
+
+                    @Override
+                    public void sendChunk(String link, final String hash, final byte[] data) {
+                        final Node peer = links.get(link);
+                        chunkBytes += data.length;
+                        if (random.nextDouble() < chunkLoss) {
+                            return;
+                        }
+                        send(new Runnable() {
+                            @Override
+                            public void run() {
+                                assertTrue(peer.fetcher.onChunk(Node.this.name, hash, data, now()));
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onComplete(Manifest manifest, byte[] data) {
+                        received.put(manifest.name, data);
+                    }
+                });
+            }
+
+            void flood(final Manifest manifest, final String name, String except) {
+                final int length = manifest.encode().length;
+                for (final Node peer : links.values()) {
+                    if (peer.name.equals(except)) {
+                        continue;
+                    }
+                    manifestBytes += length;
+                    send(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (peer.seen.put(manifest.id + name, true) == null) {
+                                peer.flood(manifest, name, Node.this.name);
+                                peer.fetcher.onManifest(manifest, Node.this.name, now());
+                            }
+                        }
+                    });
+                }
+            }
+        }
+
+        /**
+         * @return 整个附件按全网帧广播时链路上的传输字节数：每个节点发给除来源外的所有邻居
+         */
+        long floodBytes(long size) {
+            return size * (2L * edges - (nodes.size() - 1));
+        }
+
+        void reset() {
+            chunkBytes = 0;
+            requestBytes = 0;
+            manifestBytes = 0;
+        }
+
+        void assertAllReceived(String name, byte[] data, Node sender) {
+            for (Node node : nodes) {
+                if (node != sender) {
+                    assertArrayEquals(data, node.received.get(name));
+                }
+            }
+        }
+    }
+
+    private static long totalSaved(Simulation sim) {
+        long saved = 0;
+        for (Simulation.Node node : sim.nodes) {
+            saved += node.fetcher.getBytesSaved();
+        }
+        return saved;
+    }
+
+    private static long totalDuplicate(Simulation sim) {
+        long duplicate = 0;
+        for (Simulation.Node node : sim.nodes) {
+            duplicate += node.fetcher.getBytesDuplicate();
+        }
+        return duplicate;
+    }
+
+    @Test
+    public void sharesOnlyMissingChunks() {
+        int size = 30;
+        Simulation sim = new Simulation(size, 7, 0);
+        Random random = new Random(3);
+        byte[] deck = new byte[40 * Manifest.CHUNK_SIZE + 5000];
+        random.nextBytes(deck);
+        long others = size - 1;
+
+        //首次分享：每个分块沿一棵生成树传到每个节点，每个节点恰好收到一次
+        sim.share(sim.nodes.get(0), "deck-v1", deck);
+        sim.assertAllReceived("deck-v1", deck, sim.nodes.get(0));
+        assertEquals(others * deck.length, sim.chunkBytes);
+        //清单全网转发、请求逐跳发送，都只含分块的散列，远小于分块本身
+        assertTrue(sim.requestBytes < sim.chunkBytes / 100);
+        assertTrue(sim.manifestBytes < sim.chunkBytes / 100);
+        assertTrue(sim.floodBytes(deck.length) > sim.chunkBytes);
+        assertEquals(0, totalDuplicate(sim));
+
+        //另一个节点再次分享同一份附件：只传清单
+        sim.reset();
+        sim.share(sim.nodes.get(size / 2), "deck-v1 again", deck);
+        sim.assertAllReceived("deck-v1 again", deck, sim.nodes.get(size / 2));
+        assertEquals(0, sim.chunkBytes);
+        assertEquals(0, sim.requestBytes);
+        assertEquals(others * deck.length, totalSaved(sim));
+
+        //修改一页后分享：只传改动的分块
+        sim.reset();
+        byte[] edited = deck.clone();
+        for (int i = 0; i < 100; i++) {
+            edited[7 * Manifest.CHUNK_SIZE + i] ^= 1;
+        }
+        sim.share(sim.nodes.get(size - 1), "deck-v2", edited);
+        sim.assertAllReceived("deck-v2", edited, sim.nodes.get(size - 1));
+        assertEquals(others * Manifest.CHUNK_SIZE, sim.chunkBytes);
+
+        //没有分享过的节点：第一次41块都缺，第二次全部命中，第三次只缺改动的一块
+        assertEquals(81.0 / 123, sim.nodes.get(1).fetcher.getHitRate(), 1e-9);
+    }
+
+    @Test
+    public void recoversLostChunksWithFewDuplicates() {
+        int size = 30;
+        Simulation sim = new Simulation(size, 11, 0.05);
+        byte[] deck = new byte[40 * Manifest.CHUNK_SIZE];
+        new Random(5).nextBytes(deck);
+        long useful = (size - 1L) * deck.length;
+
+        sim.share(sim.nodes.get(0), "deck", deck);
+        sim.assertAllReceived("deck", deck, sim.nodes.get(0));
+        //多传的主要是丢失的分块本身；向所有邻居重新请求时才会多收到
+        assertTrue(sim.chunkBytes < useful * 1.1);
+        assertTrue(totalDuplicate(sim) < useful * 0.03);
+        assertTrue(sim.chunkBytes < sim.floodBytes(deck.length));
+    }
+}
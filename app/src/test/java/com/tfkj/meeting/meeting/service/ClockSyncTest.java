@@ -0,0 +1,255 @@
+package com.tfkj.meeting.meeting.service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 模拟各自漂移的设备时钟和不对称、有排队尖峰的链路，统计同步到参考时钟的精度
+ */
+public class ClockSyncTest {
+
+    private static final long MS = 1000000;
+    private static final long SECOND = 1000 * MS;
+
+    /**
+     * 设备时钟：local(t) = offset + (1 + skew) * t，t为真实时间
+     */
+    private static class Device {
+        final ClockSync sync;
+        final long offset;
+        final double skew;
+        final List<Device> neighbors = new ArrayList<>();
+        boolean alive = true;
+
+        Device(long id, long offset, double skew) {
+            sync = new ClockSync(id);
+            this.offset = offset;
+            this.skew = skew;
+        }
+
+        long local(long t) {
+            return offset + t + Math.round(skew * t);
+        }
+
+        String address() {
+            return "dev-" + sync.getNodeId();
+        }
+    }
+
+    private static class Accuracy {
+        double meanMs;
+        double maxMs;
+        double maxErrorEstimateMs;
+
+        @Override
+        public String toString() {
+            return String.format("mean %.3fms max %.3fms (estimated ±%.3fms)", meanMs, maxMs, maxErrorEstimateMs);
+        }
+    }
+
+    private static class Simulation {
+        final Random random;
+        final List<Device> devices = new ArrayList<>();
+        // 单程的固定时延、指数分布的抖动均值和出现排队尖峰的概率
+        final long baseDelay;
+        final long meanJitter;
+        final double spikeRate;
+        long t;
+
+        Simulation(long seed, long baseDelay, long meanJitter, double spikeRate) {
+            random = new Random(seed);
+            this.baseDelay = baseDelay;
+            this.meanJitter = meanJitter;
+            this.spikeRate = spikeRate;
+        }
+
+        Device add(long id) {
+            //时钟相差数分钟，频差在±100ppm以内
+            Device device = new Device(id, (long) (random.nextDouble() * 600 * SECOND),
+                    (random.nextDouble() - 0.5) * 200e-6);
+            devices.add(device);
+            return device;
+        }
+
+        void connect(Device a, Device b) {
+            a.neighbors.add(b);
+            b.neighbors.add(a);
+        }
+
+        long oneWay() {
+            long delay = baseDelay + (long) (-Math.log(1 - random.nextDouble()) * meanJitter);
+            if (random.nextDouble() < spikeRate) {
+                delay += 20 * MS + random.nextInt(200) * MS;
+            }
+            return delay;
+        }
+
+        void probe(Device from, Device to) {
+            long t1 = from.local(t);
+            long arrive = t + oneWay();
+            long t2 = to.local(arrive);
+            long leave = arrive + 200000;
+            byte[] reply = to.sync.reply(from.address(), ClockSync.encodeProbe(t1), t2, to.local(leave));
+            long back = leave + oneWay();
+            from.sync.onReply(to.address(), reply, from.local(back));
+        }
+
+        /**
+         * 运行一段时间，每个设备每PROBE_INTERVAL_MS探测一次所有邻居
+         */
+        void run(long duration) {
+            long end = t + duration;
+            long interval = MeshClock.PROBE_INTERVAL_MS * MS;
+            for (; t < end; t += interval) {
+                for (Device device : devices) {
+                    if (!device.alive) {
+                        continue;
+                    }
+                    device.sync.expire(device.local(t));
+                    for (Device neighbor : device.neighbors) {
+                        if (neighbor.alive) {
+                            probe(device, neighbor);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * 运行一段时间，每10秒统计各设备换算出的参考时间与参考设备时钟的差
+         */
+        Accuracy measure(Device reference, long duration) {
+            Accuracy accuracy = new Accuracy();
+            double sum = 0;
+            int count = 0;
+            long end = t + duration;
+            while (t < end) {
+                run(10 * SECOND);
+                for (Device device : devices) {
+                    if (!device.alive || device == reference) {
+                        continue;
+                    }
+                    long error = Math.abs(device.sync.toReference(device.local(t)) - reference.local(t));
+                    sum += error / 1e6;
+                    count++;
+                    accuracy.maxMs = Math.max(accuracy.maxMs, error / 1e6);
+                    accuracy.maxErrorEstimateMs = Math.max(accuracy.maxErrorEstimateMs,
+                            device.sync.getErrorNanos() / 1e6);
+                }
+            }
+            accuracy.meanMs = sum / count;
+            return accuracy;
+        }
+    }
+
+    @Test
+    public void chainOfSixConvergesToTheSmallestId() {
+        Simulation sim = new Simulation(1, 15 * MS, 5 * MS, 0.05);
+        Device previous = null;
+        for (int i = 0; i < 6; i++) {
+            Device device = sim.add(100 + i);
+            if (previous != null) {
+                sim.connect(previous, device);
+            }
+            previous = device;
+        }
+        sim.run(120 * SECOND);
+        for (int i = 0; i < 6; i++) {
+            ClockSync sync = sim.devices.get(i).sync;
+            assertEquals(100, sync.getReference());
+            assertEquals(i, sync.getStratum());
+        }
+        Accuracy accuracy = sim.measure(sim.devices.get(0), 300 * SECOND);
+        assertTrue(accuracy.toString(), accuracy.meanMs < 1);
+        assertTrue(accuracy.toString(), accuracy.maxMs < 3);
+        //报告的误差估计不低于实测的最大误差
+        assertTrue(accuracy.maxErrorEstimateMs > accuracy.maxMs);
+    }
+
+    @Test
+    public void treeOfThirtyWithHeavyQueueing() {
+        Simulation sim = new Simulation(2, 20 * MS, 10 * MS, 0.2);
+        for (int i = 0; i < 30; i++) {
+            Device device = sim.add(1000 + (i * 37) % 30);
+            if (i > 0) {
+                sim.connect(sim.devices.get(sim.random.nextInt(i)), device);
+            }
+        }
+        sim.run(120 * SECOND);
+        Device reference = null;
+        for (Device device : sim.devices) {
+            if (device.sync.getNodeId() == 1000) {
+                reference = device;
+            }
+        }
+        for (Device device : sim.devices) {
+            assertEquals(1000, device.sync.getReference());
+        }
+        int depth = 0;
+        for (Device device : sim.devices) {
+            depth = Math.max(depth, device.sync.getStratum());
+        }
+        Accuracy accuracy = sim.measure(reference, 300 * SECOND);
+        //每跳的误差来自被选中样本残留的往返不对称，随深度累积
+        assertTrue(accuracy.toString(), accuracy.meanMs < 3);
+        assertTrue("depth " + depth + ": " + accuracy, accuracy.maxMs < 3 * depth);
+    }
+
+    @Test
+    public void skewIsEstimated() {
+        Simulation sim = new Simulation(3, 10 * MS, 2 * MS, 0);
+        Device a = sim.add(1);
+        Device b = sim.add(2);
+        sim.connect(a, b);
+        sim.run(120 * SECOND);
+        assertEquals("dev-1", b.sync.getSource());
+        double expected = (a.skew - b.skew) * 1e6;
+        assertEquals(expected, b.sync.getSkewPpm(), 2);
+        //参考节点自己不换算
+        assertEquals(0, a.sync.getStratum());
+        assertEquals(1000L, a.sync.toReference(1000));
+    }
+
+    @Test
+    public void nextSmallestIdTakesOverWhenTheReferenceLeaves() {
+        Simulation sim = new Simulation(4, 10 * MS, 3 * MS, 0.05);
+        //环：1-2-3-4-5-1，参考节点1离开后剩下的是一条链，不能互相以对方为源
+        for (int i = 1; i <= 5; i++) {
+            sim.add(i);
+        }
+        for (int i = 0; i < 5; i++) {
+            sim.connect(sim.devices.get(i), sim.devices.get((i + 1) % 5));
+        }
+        sim.run(60 * SECOND);
+        assertEquals(1, sim.devices.get(3).sync.getReference());
+
+        sim.devices.get(0).alive = false;
+        sim.run(ClockSync.STALE_NANOS + 60 * SECOND);
+        for (int i = 1; i < 5; i++) {
+            ClockSync sync = sim.devices.get(i).sync;
+            assertEquals(2, sync.getReference());
+            assertTrue(sync.getStratum() < 4);
+        }
+        Accuracy accuracy = sim.measure(sim.devices.get(1), 120 * SECOND);
+        assertTrue(accuracy.toString(), accuracy.maxMs < 3);
+    }
+
+    @Test
+    public void neighborsDoNotUseEachOtherAsSource() {
+        ClockSync a = new ClockSync(5);
+        ClockSync b = new ClockSync(7);
+        byte[] reply = a.reply("b", ClockSync.encodeProbe(0), 10 * MS, 10 * MS);
+        b.onReply("a", reply, 20 * MS);
+        assertEquals("a", b.getSource());
+        assertEquals(5, b.getReference());
+        //b回复a时标记a是自己的时钟源，a不会反过来以b为源
+        a.onReply("b", b.reply("a", ClockSync.encodeProbe(0), 5 * MS, 5 * MS), 20 * MS);
+        assertNull(a.getSource());
+        assertEquals(0, a.getStratum());
+    }
+}
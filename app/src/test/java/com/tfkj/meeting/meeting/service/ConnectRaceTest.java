@@ -0,0 +1,343 @@
+package com.tfkj.meeting.meeting.service;
+
+import com.tfkj.meeting.meeting.MeshSimulator;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 按一组设备的连接时延模型比较只用Secure、失败后改用Insecure、错开尝试和记住胜出方式的连接时延分布
+ */
+public class ConnectRaceTest {
+
+    private static final int DEVICES = 2000;
+
+    /**
+     * 一台设备两种方式的连接结果：耗时和是否成功。
+     * 一半设备已配对；未配对的设备上Secure连接要等配对对话框，多数超时失败。
+     * 每次连接另有5%的概率寻呼超时失败。
+     */
+    private static class Device {
+        final String address;
+        final boolean paired;
+
+        Device(int index, boolean paired) {
+            address = "dev-" + index;
+            this.paired = paired;
+        }
+    }
+
+    private static class Outcome {
+        final long delayMs;
+        final boolean success;
+
+        Outcome(long delayMs, boolean success) {
+            this.delayMs = delayMs;
+            this.success = success;
+        }
+    }
+
+    private static Outcome outcome(Random random, Device device, int mode) {
+        //SDP查询加上建立ACL链路，对数正态，中位数约700ms；Secure多一次认证
+        long base = (long) (700 * Math.exp(random.nextGaussian() * 0.35));
+        if (random.nextDouble() < 0.05) {
+            return new Outcome(5000 + random.nextInt(500), false);
+        }
+        if (mode == ConnectRace.INSECURE) {
+            return new Outcome(base, true);
+        }
+        if (device.paired) {
+            return new Outcome(base + 250 + random.nextInt(200), true);
+        }
+        //未配对：弹出配对对话框，20%的用户及时确认，其余超时
+        if (random.nextDouble() < 0.2) {
+            return new Outcome(base + 3000 + random.nextInt(5000), true);
+        }
+        return new Outcome(base + 10000 + random.nextInt(3000), false);
+    }
+
+    private static class Report {
+        final String name;
+        final List<Long> latencies = new ArrayList<>();
+        int failures;
+        int secondAttempts;
+        int total;
+
+        Report(String name) {
+            this.name = name;
+        }
+
+        long percentile(double p) {
+            List<Long> sorted = new ArrayList<>(latencies);
+            Collections.sort(sorted);
+            return sorted.get(Math.min(sorted.size() - 1, (int) (p * sorted.size())));
+        }
+
+        double failureRate() {
+            return (double) failures / total;
+        }
+    }
+
+    /**
+     * 虚拟时间下运行一次连接
+     */
+    private static class Run extends MeshSimulator implements ConnectRace.Callback {
+        final Device device;
+        // 只用Secure，和改动前的CService一样，失败后不再尝试
+        final boolean secureOnly;
+        final boolean[] started = new boolean[2];
+        ConnectRace race;
+        long doneAt = -1;
+        boolean won;
+
+        Run(Random random, Device device, boolean secureOnly) {
+            super(random);
+            this.device = device;
+            this.secureOnly = secureOnly;
+        }
+
+        @Override
+        public void start(final int mode) {
+            if (secureOnly && mode == ConnectRace.INSECURE) {
+                doneAt = now();
+                return;
+            }
+            started[mode] = true;
+            final Outcome outcome = outcome(random, device, mode);
+            schedule(outcome.delayMs, new Runnable() {
+                @Override
+                public void run() {
+                    if (outcome.success) {
+                        race.onConnected(mode);
+                    } else {
+                        race.onFailed(mode);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void cancel(int mode) {
+            //虚拟时间下取消即丢弃之后的结果，ConnectRace会忽略
+        }
+
+        @Override
+        public void onWon(int mode) {
+            won = true;
+            doneAt = now();
+        }
+
+        @Override
+        public void onFailed() {
+            doneAt = now();
+        }
+
+        void run(final ConnectRace race) {
+            this.race = race;
+            race.start();
+            long stagger = race.getStaggerMs();
+            if (stagger >= 0) {
+                schedule(stagger, new Runnable() {
+                    @Override
+                    public void run() {
+                        race.onTimer();
+                    }
+                });
+            }
+            while (doneAt < 0 && step()) {
+            }
+        }
+    }
+
+    private static List<Device> devices(long seed) {
+        Random random = new Random(seed);
+        List<Device> devices = new ArrayList<>();
+        for (int i = 0; i < DEVICES; i++) {
+            devices.add(new Device(i, random.nextBoolean()));
+        }
+        return devices;
+    }
+
+    /**
+     * @param memory 为null时不记录胜出方式
+     */
+    private static Report measure(String name, List<Device> devices, long seed, boolean secureOnly,
+                                  long staggerMs, ConnectRace.Memory memory) {
+        Random random = new Random(seed);
+        Report report = new Report(name);
+        for (Device device : devices) {
+            Run run = new Run(random, device, secureOnly);
+            run.run(memory != null
+                    ? memory.create(device.address, ConnectRace.SECURE, staggerMs, run)
+                    : new ConnectRace(ConnectRace.SECURE, staggerMs, run));
+            report.total++;
+            if (run.won) {
+                report.latencies.add(run.doneAt);
+            } else {
+                report.failures++;
+            }
+            if (run.started[0] && run.started[1]) {
+                report.secondAttempts++;
+            }
+        }
+        return report;
+    }
+
+    @Test
+    public void staggeredRaceCutsTailLatencyAndFailures() {
+        List<Device> devices = devices(1);
+        Report secureOnly = measure("secure only", devices, 1, true, ConnectRace.NO_STAGGER, null);
+        Report fallback = measure("insecure on failure", devices, 1, false, ConnectRace.NO_STAGGER, null);
+        Report race = measure("race", devices, 1, false, 0, null);
+        List<Report> staggered = new ArrayList<>();
+        for (long stagger : new long[]{500, 1000, 1500, 2000, 3000}) {
+            staggered.add(measure("stagger " + stagger + "ms", devices, 1, false, stagger, null));
+        }
+        Report chosen = measure("stagger default", devices, 1, false, MeshConfig.DEFAULT_CONNECT_STAGGER_MS, null);
+
+        //只用Secure时未配对的设备大多连不上
+        assertTrue(secureOnly.failureRate() > 0.35);
+        //两种方式都会寻呼超时，剩下约2%连不上
+        assertTrue(fallback.failureRate() < 0.03);
+        //失败后再改用Insecure能连上，但要先等配对超时
+        assertTrue(fallback.percentile(0.9) > 10000);
+        //同时尝试最快，但几乎每次都多建立一条连接
+        assertTrue(race.percentile(0.9) < 1500);
+        assertTrue(race.secondAttempts > DEVICES * 0.95);
+        //错开后大部分已配对的设备只用Secure，未配对的在stagger后由Insecure连上
+        assertTrue(chosen.failureRate() < 0.03);
+        assertTrue(chosen.percentile(0.9) < fallback.percentile(0.9) / 4);
+        assertTrue(chosen.secondAttempts < race.secondAttempts * 0.7);
+        for (Report report : staggered) {
+            assertTrue(report.failureRate() < 0.03);
+        }
+    }
+
+    @Test
+    public void rememberedModeGoesStraightToTheWinner() {
+        ConnectRace.Memory memory = new ConnectRace.Memory();
+        List<Device> devices = devices(2);
+        Report first = measure("first connect", devices, 2, false, MeshConfig.DEFAULT_CONNECT_STAGGER_MS, memory);
+        Report again = measure("remembered", devices, 3, false, MeshConfig.DEFAULT_CONNECT_STAGGER_MS, memory);
+        //之后的连接只用上次胜出的方式，寻呼超时时才尝试另一种
+        assertTrue(again.secondAttempts < DEVICES * 0.1);
+        assertTrue(again.percentile(0.5) < first.percentile(0.5));
+        assertTrue(again.failureRate() < 0.03);
+    }
+
+    private static class Recorder implements ConnectRace.Callback {
+        final List<String> calls = new ArrayList<>();
+
+        @Override
+        public void start(int mode) {
+            calls.add("start " + ConnectRace.nameOf(mode));
+        }
+
+        @Override
+        public void cancel(int mode) {
+            calls.add("cancel " + ConnectRace.nameOf(mode));
+        }
+
+        @Override
+        public void onWon(int mode) {
+            calls.add("won " + ConnectRace.nameOf(mode));
+        }
+
+        @Override
+        public void onFailed() {
+            calls.add("failed");
+        }
+    }
+
+    @Test
+    public void loserIsCancelledAndLateConnectionClosed() {
+        Recorder recorder = new Recorder();
+        ConnectRace race = new ConnectRace(ConnectRace.SECURE, 100, recorder);
+        race.start();
+        race.onTimer();
+        race.onConnected(ConnectRace.INSECURE);
+        //Secure的connect()被取消前已经返回
+        race.onConnected(ConnectRace.SECURE);
+        race.onFailed(ConnectRace.SECURE);
+        assertEquals(ConnectRace.INSECURE, race.getWinner());
+        assertEquals(Arrays.asList("start Secure", "start Insecure", "cancel Secure", "won Insecure",
+                "cancel Secure"), recorder.calls);
+    }
+
+    @Test
+    public void disabledModeIsNeverStarted() {
+        //没有会议口令时禁用Insecure：Secure失败后不改用，错开的计时也不开始Insecure
+        Recorder recorder = new Recorder();
+        ConnectRace race = new ConnectRace(ConnectRace.SECURE, 100, recorder);
+        race.disable(ConnectRace.INSECURE);
+        race.start();
+        race.onTimer();
+        race.onFailed(ConnectRace.SECURE);
+        assertEquals(Arrays.asList("start Secure", "failed"), recorder.calls);
+
+        //上次胜出的是Insecure，禁用后直接使用Secure
+        Recorder remembered = new Recorder();
+        ConnectRace direct = new ConnectRace(ConnectRace.INSECURE, ConnectRace.NO_STAGGER, remembered);
+        direct.disable(ConnectRace.INSECURE);
+        direct.start();
+        direct.onConnected(ConnectRace.SECURE);
+        assertEquals(ConnectRace.SECURE, direct.getWinner());
+        assertEquals(Arrays.asList("start Secure", "won Secure"), remembered.calls);
+    }
+
+    @Test
+    public void meetingKeyEnablesTheStaggeredInsecureAttempt() {
+        MeshConfig config = MeshConfig.getInstance();
+        ConnectRace.Memory memory = new ConnectRace.Memory();
+        try {
+            config.setMeetingKey(null);
+            Recorder withoutKey = new Recorder();
+            ConnectRace race = memory.create("a", config.isSecureRfcomm(), config, withoutKey);
+            race.start();
+            race.onTimer();
+            assertEquals(Arrays.asList("start Secure"), withoutKey.calls);
+
+            //会议中设置口令，之后的连接错开后同时尝试Insecure
+            config.setMeetingKey("口令".getBytes());
+            Recorder withKey = new Recorder();
+            race = memory.create("b", config.isSecureRfcomm(), config, withKey);
+            assertEquals(config.getConnectStaggerMs(), race.getStaggerMs());
+            race.start();
+            race.onTimer();
+            race.onConnected(ConnectRace.INSECURE);
+            assertEquals(Arrays.asList("start Secure", "start Insecure", "cancel Secure", "won Insecure"),
+                    withKey.calls);
+        } finally {
+            config.setMeetingKey(null);
+        }
+    }
+
+    @Test
+    public void bothFailingReportsOnceAndCancelStopsRunningAttempts() {
+        Recorder recorder = new Recorder();
+        ConnectRace race = new ConnectRace(ConnectRace.INSECURE, ConnectRace.NO_STAGGER, recorder);
+        race.start();
+        race.onTimer();
+        race.onFailed(ConnectRace.INSECURE);
+        race.onFailed(ConnectRace.SECURE);
+        race.cancel();
+        assertEquals(Arrays.asList("start Insecure", "start Secure", "failed"), recorder.calls);
+
+        Recorder cancelled = new Recorder();
+        ConnectRace pending = new ConnectRace(ConnectRace.SECURE, 0, cancelled);
+        pending.start();
+        pending.onTimer();
+        pending.cancel();
+        pending.onConnected(ConnectRace.SECURE);
+        assertEquals(-1, pending.getWinner());
+        assertEquals(Arrays.asList("start Secure", "start Insecure", "cancel Secure", "cancel Insecure",
+                "failed", "cancel Secure"), cancelled.calls);
+    }
+}
@@ -0,0 +1,376 @@
+package com.tfkj.meeting.meeting.service;
+
+import com.tfkj.meeting.meeting.Constants;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * 连接状态机的转换规则，以及并发连接、断开对其他已建立连接的影响
+ */
+public class ConnectionStateTest {
+
+    @Test
+    public void transitionsOnlyMoveForward() {
+        ConnectionState state = new ConnectionState();
+        assertEquals(ConnectionState.CONNECTING, state.get());
+        assertTrue(state.markConnected());
+        assertFalse(state.markConnected());
+        assertTrue(state.beginClose());
+        assertFalse(state.beginClose());
+        assertEquals(ConnectionState.CLOSING, state.markClosed());
+        assertFalse(state.markConnected());
+        assertFalse(state.beginClose());
+    }
+
+    @Test
+    public void cancelDuringConnectPreventsLink() {
+        ConnectionState state = new ConnectionState();
+        assertTrue(state.beginClose());
+        assertFalse(state.markConnected());
+        assertEquals(ConnectionState.CLOSING, state.markClosed());
+    }
+
+    @Test
+    public void unexpectedDropIsDistinguishedFromClose() {
+        ConnectionState dropped = new ConnectionState();
+        dropped.markConnected();
+        assertEquals(ConnectionState.CONNECTED, dropped.markClosed());
+
+        ConnectionState closed = new ConnectionState();
+        closed.markConnected();
+        closed.beginClose();
+        assertEquals(ConnectionState.CLOSING, closed.markClosed());
+    }
+
+    @Test
+    public void concurrentClosesHaveSingleWinner() throws Exception {
+        for (int round = 0; round < 200; round++) {
+            final ConnectionState state = new ConnectionState();
+            state.markConnected();
+            final AtomicInteger winners = new AtomicInteger();
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                Thread thread = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        if (state.beginClose()) {
+                            winners.incrementAndGet();
+                        }
+                    }
+                };
+                thread.start();
+                threads.add(thread);
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(1, winners.get());
+        }
+    }
+
+    @Test
+    public void aggregatePrefersConnected() {
+        List<ConnectionState> states = new ArrayList<>();
+        assertEquals(Constants.STATE_LISTEN, ConnectionState.aggregate(states, Constants.STATE_LISTEN));
+        ConnectionState connecting = new ConnectionState();
+        states.add(connecting);
+        assertEquals(Constants.STATE_CONNECTING, ConnectionState.aggregate(states, Constants.STATE_NONE));
+        ConnectionState connected = new ConnectionState();
+        connected.markConnected();
+        states.add(connected);
+        assertEquals(Constants.STATE_CONNECTED, ConnectionState.aggregate(states, Constants.STATE_NONE));
+        connected.markClosed();
+        connecting.markClosed();
+        assertEquals(Constants.STATE_NONE, ConnectionState.aggregate(states, Constants.STATE_NONE));
+    }
+
+    /**
+     * 内存中的对方输入：测试线程写入对方发来的字节，对方断开或本机关闭后读取返回-1
+     */
+    private static class RemoteInput extends InputStream {
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        private int position;
+        private boolean finished;
+
+        synchronized void feed(byte[] bytes) {
+            data.write(bytes, 0, bytes.length);
+            notifyAll();
+        }
+
+        synchronized void finish() {
+            finished = true;
+            notifyAll();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+            while (position == data.size() && !finished) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (position == data.size()) {
+                return -1;
+            }
+            int n = Math.min(length, data.size() - position);
+            System.arraycopy(data.toByteArray(), position, buffer, offset, n);
+            position += n;
+            return n;
+        }
+    }
+
+    /**
+     * 代替蓝牙连接，驱动SService、CService真实的接入、替换和断开流程
+     */
+    private static class FakeSocket extends LinkSocket {
+        private final String address;
+        private final RemoteInput in = new RemoteInput();
+        private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        private final OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) {
+                synchronized (written) {
+                    written.write(b);
+                }
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) {
+                synchronized (written) {
+                    written.write(buffer, offset, length);
+                }
+            }
+        };
+        private volatile boolean closed;
+
+        FakeSocket(String address) {
+            this.address = address;
+        }
+
+        @Override
+        String getAddress() {
+            return address;
+        }
+
+        @Override
+        InputStream getInputStream() {
+            return in;
+        }
+
+        @Override
+        OutputStream getOutputStream() {
+            return out;
+        }
+
+        @Override
+        void close() {
+            closed = true;
+            in.finish();
+        }
+
+        boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * 对方发来一帧
+         */
+        void receive(Frame frame) {
+            in.feed(frame.getEncoded());
+        }
+
+        /**
+         * 对方断开，本机没有主动关闭
+         */
+        void dropRemote() {
+            in.finish();
+        }
+
+        /**
+         * @return 本机是否已向对方发出这种类型、这个负载的帧
+         */
+        boolean hasSent(byte type, byte[] payload) throws IOException {
+            byte[] bytes;
+            synchronized (written) {
+                bytes = written.toByteArray();
+            }
+            DataInputStream frames = new DataInputStream(new ByteArrayInputStream(bytes));
+            while (frames.available() > 0) {
+                Frame frame = Frame.read(frames);
+                if (frame != null && frame.getType() == type && Arrays.equals(frame.getPayload(), payload)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return 客户端已确认保留的接入连接
+     */
+    private static FakeSocket kept(String address) {
+        FakeSocket socket = new FakeSocket(address);
+        socket.receive(Frame.createLocal(Frame.TYPE_LINK_KEPT, new byte[0]));
+        return socket;
+    }
+
+    private static void awaitSent(FakeSocket socket, byte type, byte[] payload) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!socket.hasSent(type, payload)) {
+            assertTrue(socket.getAddress() + " did not answer", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * 若干条健康的接入和主动连接保持通信，同时多个线程经SService.handshake和CService.connected
+     * 反复接入、确认前断开、取消、意外断开和同地址替换其他设备的连接。
+     * 健康连接不应被关闭，通信线程仍在读取（回复PING），两个服务的汇总状态始终为已连接。
+     */
+    @Test
+    public void churnNeverInterruptsHealthyLinks() throws Exception {
+        final int healthyCount = 3;
+        final int churnThreads = 6;
+        final int cycles = 200;
+
+        MeshConfig config = MeshConfig.getInstance();
+        boolean encryption = config.isEncryption();
+        int maxPeers = config.getMaxPeers();
+        double connectRate = config.getConnectRatePerSecond();
+        int connectBurst = config.getConnectBurst();
+        config.setEncryption(false);
+        config.setMaxPeers(1000);
+        config.setConnectRate(1000000, 1000000);
+        final SService server = SService.getInstance();
+        final CService client = CService.getInstance();
+        server.resetConnectBucket();
+        //工作线程中的断言失败交回测试线程
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        try {
+            List<FakeSocket> healthy = new ArrayList<>();
+            for (int i = 0; i < healthyCount; i++) {
+                FakeSocket accepted = kept("healthy-in-" + i);
+                server.handshake(accepted);
+                healthy.add(accepted);
+                FakeSocket dialed = new FakeSocket("healthy-out-" + i);
+                client.connected(dialed, "Fake", null, new ConnectionState());
+                healthy.add(dialed);
+            }
+            assertEquals(healthyCount, server.getPeerCount());
+
+            List<Thread> churn = new ArrayList<>();
+            for (int t = 0; t < churnThreads; t++) {
+                final int seed = t;
+                Thread thread = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            churn(server, client, new Random(seed), cycles);
+                        } catch (Throwable e) {
+                            failures.add(e);
+                        }
+                    }
+                };
+                thread.start();
+                churn.add(thread);
+            }
+            for (Thread thread : churn) {
+                thread.join();
+            }
+            assertTrue(failures.toString(), failures.isEmpty());
+
+            for (int i = 0; i < healthy.size(); i++) {
+                FakeSocket socket = healthy.get(i);
+                assertFalse(socket.getAddress() + " closed", socket.isClosed());
+                socket.receive(Frame.createLocal(Frame.TYPE_PING, new byte[]{(byte) i}));
+            }
+            for (int i = 0; i < healthy.size(); i++) {
+                awaitSent(healthy.get(i), Frame.TYPE_PONG, new byte[]{(byte) i});
+            }
+            assertEquals(Constants.STATE_CONNECTED, server.getState());
+            assertEquals(Constants.STATE_CONNECTED, client.getState());
+        } finally {
+            server.stop();
+            client.stop();
+            config.setEncryption(encryption);
+            config.setMaxPeers(maxPeers);
+            config.setConnectRate(connectRate, connectBurst);
+            server.resetConnectBucket();
+        }
+    }
+
+    private static void churn(SService server, CService client, Random random, int cycles) throws Exception {
+        for (int cycle = 0; cycle < cycles; cycle++) {
+            String address = "churn-" + random.nextInt(8);
+            boolean incoming = random.nextBoolean();
+            switch (random.nextInt(4)) {
+                case 0:
+                    //接入的连接在确认前被客户端关闭（连接竞争中落败）；主动连接在建立过程中被取消
+                    FakeSocket cancelled = new FakeSocket(address);
+                    if (incoming) {
+                        cancelled.dropRemote();
+                        server.handshake(cancelled);
+                    } else {
+                        ConnectionState state = new ConnectionState();
+                        state.beginClose();
+                        client.connected(cancelled, "Fake", null, state);
+                    }
+                    assertTrue(cancelled.isClosed());
+                    break;
+                case 1:
+                    //连接成功后意外断开
+                    connect(server, client, address, incoming).dropRemote();
+                    break;
+                default:
+                    //连接成功后保持，稍后被同地址的新连接替换
+                    connect(server, client, address, incoming);
+                    break;
+            }
+            assertEquals(Constants.STATE_CONNECTED, server.getState());
+            assertEquals(Constants.STATE_CONNECTED, client.getState());
+        }
+    }
+
+    private static FakeSocket connect(SService server, CService client, String address, boolean incoming) {
+        if (incoming) {
+            FakeSocket socket = kept(address);
+            server.handshake(socket);
+            return socket;
+        }
+        FakeSocket socket = new FakeSocket(address);
+        client.connected(socket, "Fake", null, new ConnectionState());
+        return socket;
+    }
+}
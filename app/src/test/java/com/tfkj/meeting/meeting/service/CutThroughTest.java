@@ -0,0 +1,351 @@
+package com.tfkj.meeting.meeting.service;
+
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.Assert.*;
+
+/**
+ * 用限速的管道模拟多跳链路，比较大帧在存储转发和直通转发下的端到端延迟，并检查上游中断时下游的处理
+ */
+public class CutThroughTest {
+
+    // 模拟链路的带宽，字节/秒
+    private static final int LINK_RATE = 1024 * 1024;
+    private static final int PAYLOAD = 60 * 1024;
+    private static final long STALL_MS = MeshConfig.DEFAULT_FAN_OUT_DEADLINE_MS;
+
+    /**
+     * 按固定速率写出的输出流
+     */
+    private static class ThrottledOutputStream extends OutputStream {
+        private final OutputStream out;
+        private long nextFreeNanos = System.nanoTime();
+
+        ThrottledOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, 256);
+                nextFreeNanos = Math.max(nextFreeNanos, System.nanoTime()) + n * 1000000000L / LINK_RATE;
+                long wait = nextFreeNanos - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                out.write(b, off, n);
+                //PipedInputStream在flush时才唤醒等待的读线程
+                out.flush();
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private static class Pipe {
+        final OutputStream out;
+        final DataInputStream in;
+
+        Pipe() throws IOException {
+            PipedOutputStream raw = new PipedOutputStream();
+            in = new DataInputStream(new PipedInputStream(raw, 4096));
+            out = new ThrottledOutputStream(raw);
+        }
+    }
+
+    /**
+     * 中继节点：从上一条链路读帧，写到下一条链路
+     */
+    private static Thread relay(final Pipe upstream, final Pipe downstream, final boolean cutThrough,
+                                final int frames) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ReentrantLock lock = new ReentrantLock();
+                try {
+                    for (int i = 0; i < frames; i++) {
+                        byte[] header = Frame.readHeader(upstream.in);
+                        if (cutThrough) {
+                            byte[] streamed = header.clone();
+                            streamed[3] |= Frame.FLAG_STREAMED;
+                            CutThrough.Sink sink = CutThrough.Sink.open("next", downstream.out, lock, null, streamed);
+                            CutThrough.stream(header, upstream.in, Collections.singletonList(sink), STALL_MS);
+                        } else {
+                            Frame frame = Frame.readRest(header, upstream.in);
+                            downstream.out.write(frame.getEncoded());
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * @return 每帧从开始发送到末端收完的毫秒数
+     */
+    private static List<Double> measure(int hops, boolean cutThrough, int frames) throws Exception {
+        List<Pipe> pipes = new ArrayList<>();
+        for (int i = 0; i < hops; i++) {
+            pipes.add(new Pipe());
+        }
+        List<Thread> relays = new ArrayList<>();
+        for (int i = 0; i + 1 < hops; i++) {
+            relays.add(relay(pipes.get(i), pipes.get(i + 1), cutThrough, frames));
+        }
+        final DataInputStream last = pipes.get(hops - 1).in;
+        final long[] receivedNanos = new long[frames];
+        final CountDownLatch done = new CountDownLatch(frames);
+        Thread receiver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < frames; i++) {
+                        Frame frame = Frame.read(last);
+                        assertEquals(PAYLOAD, frame.getPayloadLength());
+                        assertEquals(0, frame.getFlags());
+                        receivedNanos[i] = System.nanoTime();
+                        done.countDown();
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        receiver.start();
+
+        List<Double> latencies = new ArrayList<>();
+        byte[] payload = new byte[PAYLOAD];
+        for (int i = 0; i < frames; i++) {
+            Arrays.fill(payload, (byte) i);
+            Frame frame = Frame.create(Frame.TYPE_DATA, 1, i, payload);
+            long start = System.nanoTime();
+            pipes.get(0).out.write(frame.getEncoded());
+            while (done.getCount() > frames - 1 - i) {
+                Thread.sleep(1);
+            }
+            latencies.add((receivedNanos[i] - start) / 1e6);
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (Thread relay : relays) {
+            relay.join(1000);
+        }
+        receiver.join(1000);
+        return latencies;
+    }
+
+    private static double median(List<Double> values) {
+        List<Double> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        return sorted.get(sorted.size() / 2);
+    }
+
+    @Test
+    public void cutThroughLatencyStaysFlatWithHopCount() throws Exception {
+        double oneHop = median(measure(1, false, 3));
+        double storeForward = 0;
+        double cutThrough = 0;
+        for (int hops = 2; hops <= 4; hops++) {
+            storeForward = median(measure(hops, false, 3));
+            cutThrough = median(measure(hops, true, 3));
+        }
+        //存储转发每跳多一整帧的传输时间，直通转发只多几个分块的时间
+        assertTrue(storeForward > oneHop * 3);
+        assertTrue(cutThrough < oneHop * 2);
+        assertTrue(cutThrough < storeForward / 2);
+    }
+
+    @Test
+    public void upstreamBreakAbortsFrameButKeepsDownstreamLink() throws Exception {
+        final Pipe upstream = new Pipe();
+        Pipe downstream = new Pipe();
+        ReentrantLock lock = new ReentrantLock();
+        final Frame frame = Frame.create(Frame.TYPE_DATA, 1, 1, new byte[PAYLOAD]);
+        //上游只发出一半就断开
+        Thread sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    upstream.out.write(frame.getEncoded(), 0, Frame.HEADER_LENGTH + PAYLOAD / 2);
+                    upstream.out.close();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        sender.start();
+
+        byte[] header = Frame.readHeader(upstream.in);
+        byte[] streamed = header.clone();
+        streamed[3] |= Frame.FLAG_STREAMED;
+        CutThrough.Sink sink = CutThrough.Sink.open("next", downstream.out, lock, null, streamed);
+        Frame[] received = new Frame[2];
+        Thread reader = readTwo(downstream.in, received);
+        try {
+            CutThrough.stream(header, upstream.in, Collections.singletonList(sink), STALL_MS);
+            fail("upstream break not reported");
+        } catch (IOException expected) {
+        }
+        assertFalse(lock.isLocked());
+
+        //之后的帧照常收到
+        Frame next = Frame.create(Frame.TYPE_DATA, 1, 2, new byte[]{1, 2, 3});
+        downstream.out.write(next.getEncoded());
+        reader.join(5000);
+        assertNull(received[0]);
+        assertEquals(2, received[1].getSeq());
+    }
+
+    @Test
+    public void stalledUpstreamReleasesDownstreamLink() throws Exception {
+        final Pipe upstream = new Pipe();
+        Pipe downstream = new Pipe();
+        final ReentrantLock lock = new ReentrantLock();
+        final Frame frame = Frame.create(Frame.TYPE_DATA, 1, 1, new byte[PAYLOAD]);
+        final CountDownLatch released = new CountDownLatch(1);
+        //上游发出一半后停顿，下游的写锁释放之后才发出剩余部分
+        Thread sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    upstream.out.write(frame.getEncoded(), 0, Frame.HEADER_LENGTH + PAYLOAD / 2);
+                    released.await(5, TimeUnit.SECONDS);
+                    upstream.out.write(frame.getEncoded(), Frame.HEADER_LENGTH + PAYLOAD / 2, PAYLOAD / 2);
+                } catch (IOException | InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        sender.start();
+
+        byte[] header = Frame.readHeader(upstream.in);
+        byte[] streamed = header.clone();
+        streamed[3] |= Frame.FLAG_STREAMED;
+        final CutThrough.Sink sink = CutThrough.Sink.open("next", downstream.out, lock, null, streamed);
+        Thread watcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (lock.isLocked()) {
+                    Thread.yield();
+                }
+                released.countDown();
+            }
+        });
+        watcher.start();
+        Frame[] received = new Frame[2];
+        Thread reader = readTwo(downstream.in, received);
+
+        Frame whole = CutThrough.stream(header, upstream.in, Collections.singletonList(sink), 50);
+        //上游的帧照常收完，下游没有收到完整的直通帧，由调用方按原方式发送
+        assertNotNull(whole);
+        assertEquals(PAYLOAD, whole.getPayloadLength());
+        assertFalse(sink.isCompleted());
+        assertFalse(lock.isLocked());
+        downstream.out.write(whole.getEncoded());
+        reader.join(5000);
+        assertNull(received[0]);
+        assertEquals(1, received[1].getSeq());
+        sender.join();
+        watcher.join();
+    }
+
+    @Test
+    public void abortedStreamIsPassedOnAndBusyLinkIsSkipped() throws Exception {
+        Pipe upstream = new Pipe();
+        Pipe downstream = new Pipe();
+        ReentrantLock lock = new ReentrantLock();
+        //上一跳已经中断的直通帧
+        byte[] encoded = Frame.create(Frame.TYPE_DATA, 1, 1, new byte[100]).getEncoded();
+        encoded[3] |= Frame.FLAG_STREAMED;
+        upstream.out.write(encoded);
+        upstream.out.write(Frame.STREAM_ABORTED);
+        upstream.out.write(Frame.create(Frame.TYPE_DATA, 1, 2, new byte[100]).getEncoded());
+
+        Frame[] received = new Frame[2];
+        Thread reader = readTwo(downstream.in, received);
+        for (int i = 0; i < 2; i++) {
+            byte[] header = Frame.readHeader(upstream.in);
+            byte[] streamed = header.clone();
+            streamed[3] |= Frame.FLAG_STREAMED;
+            CutThrough.Sink sink = CutThrough.Sink.open("next", downstream.out, lock, null, streamed);
+            Frame frame = CutThrough.stream(header, upstream.in, Collections.singletonList(sink), STALL_MS);
+            assertEquals(i == 0, frame == null);
+        }
+        reader.join(5000);
+        assertNull(received[0]);
+        assertEquals(2, received[1].getSeq());
+        assertEquals(0, received[1].getFlags());
+
+        //写锁被其他线程占用时不等待
+        final CountDownLatch held = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ReentrantLock busy = new ReentrantLock();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                busy.lock();
+                held.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                } finally {
+                    busy.unlock();
+                }
+            }
+        });
+        writer.start();
+        held.await();
+        assertNull(CutThrough.Sink.open("busy", downstream.out, busy, null, new byte[Frame.HEADER_LENGTH]));
+        release.countDown();
+        writer.join();
+    }
+
+    private static Thread readTwo(final DataInputStream in, final Frame[] received) {
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    received[0] = Frame.read(in);
+                    received[1] = Frame.read(in);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        reader.start();
+        return reader;
+    }
+}
@@ -0,0 +1,216 @@
+package com.tfkj.meeting.meeting.service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * 并行发送的完成跟踪、截止时间，以及与逐条写入的耗时对比
+ */
+public class FanOutTest {
+
+    /**
+     * 模拟蓝牙链路：每次写入阻塞固定时间
+     */
+    private static class SlowLink implements Link {
+        private final String address;
+        private volatile long writeMillis;
+        private final List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+        private final CountDownLatch release;
+
+        SlowLink(String address, long writeMillis, CountDownLatch release) {
+            this.address = address;
+            this.writeMillis = writeMillis;
+            this.release = release;
+        }
+
+        @Override
+        public String getAddress() {
+            return address;
+        }
+
+        @Override
+        public void send(Frame frame) {
+            try {
+                if (release != null) {
+                    release.await();
+                }
+                Thread.sleep(writeMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            received.add(frame.getSeq());
+        }
+    }
+
+    private static Frame frame(int seq) {
+        return Frame.create(Frame.TYPE_DATA, 1, seq, new byte[512]);
+    }
+
+    private static List<FanOut.Lane> lanes(List<SlowLink> links) {
+        List<FanOut.Lane> lanes = new ArrayList<>();
+        for (SlowLink link : links) {
+            lanes.add(new FanOut.Lane(link, new LinkStats(link.getAddress())));
+        }
+        return lanes;
+    }
+
+    @Test
+    public void completesWhenEveryLinkIsWritten() throws Exception {
+        List<SlowLink> links = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            links.add(new SlowLink("peer" + i, 2, null));
+        }
+        FanOut.Result result = new FanOut().scatter(frame(1), lanes(links), 1000, false);
+        assertTrue(result.await(1000));
+        assertTrue(result.isComplete());
+        assertTrue(result.getCompletedNanos() > 0);
+        assertTrue(result.getLate().isEmpty());
+        for (SlowLink link : links) {
+            assertEquals(Collections.singletonList(1), link.received);
+        }
+    }
+
+    @Test
+    public void stalledLinkIsFlaggedLateWithoutDelayingOthers() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<SlowLink> links = new ArrayList<>();
+        links.add(new SlowLink("healthy0", 1, null));
+        links.add(new SlowLink("stalled", 1, release));
+        links.add(new SlowLink("healthy1", 1, null));
+        List<FanOut.Lane> lanes = lanes(links);
+
+        FanOut.Result result = new FanOut().scatter(frame(1), lanes, 50, false);
+        assertFalse(result.await(200));
+        assertEquals(Collections.singletonList("stalled"), result.getLate());
+        assertEquals(1, links.get(0).received.size());
+        assertEquals(1, links.get(2).received.size());
+
+        release.countDown();
+        assertTrue(result.await(1000));
+        //截止后才写完，仍只记一次超时
+        assertEquals(Collections.singletonList("stalled"), result.getLate());
+        assertEquals(1, links.get(1).received.size());
+    }
+
+    @Test
+    public void lateWritesAreCountedInLinkStats() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        SlowLink stalled = new SlowLink("stalled", 0, release);
+        LinkStats stats = new LinkStats("stalled");
+        List<FanOut.Lane> lanes = Collections.singletonList(new FanOut.Lane(stalled, stats));
+        FanOut fanOut = new FanOut();
+
+        FanOut.Result first = fanOut.scatter(frame(1), lanes, 20, false);
+        FanOut.Result second = fanOut.scatter(frame(2), lanes, 20, false);
+        Thread.sleep(100);
+        assertEquals(2, stats.getLateWrites());
+
+        release.countDown();
+        assertTrue(first.await(1000));
+        assertTrue(second.await(1000));
+        assertEquals(2, stats.getLateWrites());
+    }
+
+    @Test
+    public void framesStayInOrderPerLink() throws Exception {
+        List<SlowLink> links = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            links.add(new SlowLink("peer" + i, 0, null));
+        }
+        List<FanOut.Lane> lanes = lanes(links);
+        FanOut fanOut = new FanOut();
+        FanOut.Result last = null;
+        for (int seq = 1; seq <= FanOut.MAX_QUEUED; seq++) {
+            last = fanOut.scatter(frame(seq), lanes, 1000, false);
+        }
+        assertTrue(last.await(2000));
+        for (SlowLink link : links) {
+            assertEquals(FanOut.MAX_QUEUED, link.received.size());
+            for (int i = 0; i < link.received.size(); i++) {
+                assertEquals(i + 1, (int) link.received.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void backloggedLinkDropsOnlyVoice() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        SlowLink stalled = new SlowLink("stalled", 0, release);
+        LinkStats stats = new LinkStats("stalled");
+        List<FanOut.Lane> lanes = Collections.singletonList(new FanOut.Lane(stalled, stats));
+        FanOut fanOut = new FanOut();
+
+        //第一帧被写线程取出后阻塞，队列中最多再积压MAX_QUEUED帧
+        fanOut.scatter(frame(0), lanes, 10000, false);
+        Thread.sleep(50);
+        int dropped = 0;
+        for (int seq = 1; seq <= FanOut.MAX_QUEUED + 10; seq++) {
+            Frame voice = Frame.create(Frame.TYPE_VOICE, 1, seq, new byte[64]);
+            FanOut.Result result = fanOut.scatter(voice, lanes, 10000, false);
+            if (result.isComplete()) {
+                dropped++;
+                assertEquals(Collections.singletonList("stalled"), result.getLate());
+            }
+        }
+        assertEquals(10, dropped);
+        assertEquals(10, stats.getLateWrites());
+
+        //积压时控制帧和普通数据仍然排队，放行后全部写出
+        List<FanOut.Result> queued = new ArrayList<>();
+        for (byte type : new byte[]{Frame.TYPE_STATE_DELTA, Frame.TYPE_LOAD, Frame.TYPE_DATA}) {
+            FanOut.Result result = fanOut.scatter(Frame.create(type, 2, type, new byte[16]), lanes, 10000, false);
+            assertFalse(result.isComplete());
+            queued.add(result);
+        }
+        release.countDown();
+        for (FanOut.Result result : queued) {
+            assertTrue(result.await(5000));
+        }
+        assertEquals(10, stats.getLateWrites());
+        assertEquals(1 + FanOut.MAX_QUEUED + 3, stalled.received.size());
+    }
+
+    /**
+     * 每条链路写入一帧约3毫秒（约1KB在RFCOMM上的耗时），对比逐条写入和并行写入的完成时间
+     */
+    @Test
+    public void parallelWritesStayNearOneLinkAsPeersGrow() throws Exception {
+        final long writeMillis = 3;
+        final int rounds = 20;
+        FanOut fanOut = new FanOut();
+        for (int peers : new int[]{1, 2, 4, 7, 10, 14}) {
+            List<SlowLink> links = new ArrayList<>();
+            for (int i = 0; i < peers; i++) {
+                links.add(new SlowLink("peer" + i, writeMillis, null));
+            }
+            List<FanOut.Lane> lanes = lanes(links);
+
+            //预热写线程
+            fanOut.scatter(frame(0), lanes, 1000, false).await(1000);
+
+            long sequential = 0;
+            long parallel = 0;
+            for (int round = 1; round <= rounds; round++) {
+                long start = System.nanoTime();
+                FanOut.sequential(frame(round), lanes, false);
+                sequential += System.nanoTime() - start;
+
+                FanOut.Result result = fanOut.scatter(frame(round), lanes, 1000, false);
+                assertTrue(result.await(1000));
+                parallel += result.getCompletedNanos();
+            }
+            double sequentialMs = sequential / 1e6 / rounds;
+            double parallelMs = parallel / 1e6 / rounds;
+            if (peers >= 4) {
+                //逐条写入随人数线性增长，并行写入接近单条链路的耗时
+                assertTrue(peers + " peers: " + sequentialMs + " vs " + parallelMs, parallelMs * 2 < sequentialMs);
+            }
+        }
+    }
+}
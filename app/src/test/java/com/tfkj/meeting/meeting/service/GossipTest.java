@@ -0,0 +1,279 @@
+package com.tfkj.meeting.meeting.service;
+
+import com.tfkj.meeting.meeting.MeshSimulator;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 密集拓扑（每个设备7条连接）中比较全部转发和不同fanout的概率转发：送达率、冗余度和带宽
+ */
+public class GossipTest {
+
+    private static final int NODES = 40;
+    private static final int MESSAGES = 200;
+    private static final int PAYLOAD = 200;
+
+    private static class Report {
+        int fanout;
+        boolean repair;
+        double delivery;
+        // 每个节点平均收到同一帧的次数
+        double redundancy;
+        long dataBytes;
+        long repairBytes;
+        // 最后一帧发出后到最后一次送达的时间
+        long lastDeliveryMs;
+    }
+
+    private static class Simulation extends MeshSimulator {
+        final int fanout;
+        final boolean repair;
+        final double loss;
+        final List<Node> nodes = new ArrayList<>();
+        long dataBytes;
+        long repairBytes;
+        long receptions;
+        long deliveries;
+        long lastDelivery;
+
+        Simulation(long seed, int fanout, boolean repair, double loss) {
+            super(seed);
+            this.fanout = fanout;
+            this.repair = repair;
+            this.loss = loss;
+            for (int i = 0; i < NODES; i++) {
+                nodes.add(new Node(i, new Random(seed * 1000 + i)));
+            }
+            //多次随机加边，接近蓝牙的7条连接上限
+            for (int[] edge : randomMesh(NODES, 5, 7, NODES * 20)) {
+                connect(nodes.get(edge[0]), nodes.get(edge[1]));
+            }
+        }
+
+        void connect(Node a, Node b) {
+            a.neighbors.add(b);
+            b.neighbors.add(a);
+        }
+
+        class Node {
+            final int index;
+            final Gossip gossip;
+            final SeenCache seen = new SeenCache();
+            final List<Node> neighbors = new ArrayList<>();
+            int nextSeq;
+
+            Node(int index, Random random) {
+                this.index = index;
+                gossip = new Gossip(random);
+            }
+
+            void publish() {
+                Frame frame = Frame.create(Frame.TYPE_DATA, index, ++nextSeq, new byte[PAYLOAD]);
+                seen.markSeen(frame.getOrigin(), frame.getSeq());
+                gossip.remember(frame, now());
+                for (Node neighbor : neighbors) {
+                    transmit(this, neighbor, frame);
+                }
+            }
+
+            void receive(Node from, Frame frame) {
+                receptions++;
+                if (!seen.markSeen(frame.getOrigin(), frame.getSeq())) {
+                    return;
+                }
+                deliveries++;
+                lastDelivery = now();
+                gossip.remember(frame, now());
+                ArrayList<Node> others = new ArrayList<>(neighbors);
+                others.remove(from);
+                for (Node target : fanout == 0 ? others : gossip.pick(others, fanout)) {
+                    transmit(this, target, frame);
+                }
+            }
+
+            void repairTick() {
+                final byte[] digest = gossip.digest(now());
+                if (digest != null) {
+                    final Node target = gossip.pick(neighbors, 1).get(0);
+                    control(digest, new Runnable() {
+                        @Override
+                        public void run() {
+                            target.onDigest(Node.this, digest);
+                        }
+                    });
+                }
+                schedule(Gossip.REPAIR_INTERVAL_MS, new Runnable() {
+                    @Override
+                    public void run() {
+                        repairTick();
+                    }
+                });
+            }
+
+            void onDigest(final Node from, byte[] digest) {
+                byte[] want = gossip.want(digest, seen);
+                if (want == null) {
+                    return;
+                }
+                final byte[] request = want;
+                control(want, new Runnable() {
+                    @Override
+                    public void run() {
+                        for (Frame frame : from.gossip.lookup(request)) {
+                            transmit(from, Node.this, frame);
+                        }
+                    }
+                });
+            }
+        }
+
+        void transmit(final Node from, final Node to, final Frame frame) {
+            dataBytes += frame.getEncoded().length;
+            if (random.nextDouble() < loss) {
+                return;
+            }
+            schedule(hop(15, 40), new Runnable() {
+                @Override
+                public void run() {
+                    to.receive(from, frame);
+                }
+            });
+        }
+
+        void control(byte[] payload, Runnable action) {
+            repairBytes += Frame.HEADER_LENGTH + payload.length;
+            if (random.nextDouble() < loss) {
+                return;
+            }
+            schedule(hop(15, 40), action);
+        }
+
+        Report run() {
+            for (int i = 0; i < MESSAGES; i++) {
+                final Node origin = nodes.get(random.nextInt(NODES));
+                schedule(i * 50L, new Runnable() {
+                    @Override
+                    public void run() {
+                        origin.publish();
+                    }
+                });
+            }
+            if (repair) {
+                for (final Node node : nodes) {
+                    schedule(random.nextInt((int) Gossip.REPAIR_INTERVAL_MS), new Runnable() {
+                        @Override
+                        public void run() {
+                            node.repairTick();
+                        }
+                    });
+                }
+            }
+            long end = MESSAGES * 50L + 3 * Gossip.RECENT_MS;
+            runUntil(end);
+            Report report = new Report();
+            report.fanout = fanout;
+            report.repair = repair;
+            report.delivery = (double) deliveries / (MESSAGES * (NODES - 1));
+            report.redundancy = (double) receptions / Math.max(1, deliveries);
+            report.dataBytes = dataBytes;
+            report.repairBytes = repairBytes;
+            report.lastDeliveryMs = lastDelivery - (MESSAGES - 1) * 50L;
+            return report;
+        }
+    }
+
+    private static Map<String, Report> sweep(double loss) {
+        Map<String, Report> reports = new LinkedHashMap<>();
+        for (int fanout : new int[]{0, 1, 2, 3}) {
+            for (boolean repair : new boolean[]{false, true}) {
+                if (fanout == 0 && repair) {
+                    continue;
+                }
+                reports.put(fanout + (repair ? "+" : ""), new Simulation(42, fanout, repair, loss).run());
+            }
+        }
+        return reports;
+    }
+
+    @Test
+    public void gossipWithRepairDeliversEverythingWithLessTraffic() {
+        Map<String, Report> reports = sweep(0.01);
+        Report flood = reports.get("0");
+        assertTrue(flood.delivery > 0.999);
+        assertTrue(flood.redundancy > 4);
+
+        //只靠推送，fanout越小漏掉的越多
+        assertTrue(reports.get("1").delivery < reports.get("2").delivery);
+        assertTrue(reports.get("1").delivery < 0.99);
+        for (int fanout = 1; fanout <= 3; fanout++) {
+            Report repaired = reports.get(fanout + "+");
+            assertEquals("fanout " + fanout, 1.0, repaired.delivery, 1e-9);
+            assertTrue(repaired.redundancy < flood.redundancy);
+            //补齐最多晚几个补齐周期，远在帧过期之前
+            assertTrue(repaired.lastDeliveryMs < Gossip.RECENT_MS);
+        }
+        //只靠推送时送达的都在几跳的延迟内
+        assertTrue(flood.lastDeliveryMs < Gossip.REPAIR_INTERVAL_MS);
+        assertTrue(reports.get("2").lastDeliveryMs < Gossip.REPAIR_INTERVAL_MS);
+        //fanout 2加上补齐，总流量不到全部转发的一半
+        Report two = reports.get("2+");
+        assertTrue(two.dataBytes + two.repairBytes < (flood.dataBytes + flood.repairBytes) / 2);
+    }
+
+    @Test
+    public void repairClosesGapsFromHeavyLoss() {
+        Map<String, Report> reports = sweep(0.05);
+        assertTrue(reports.get("2").delivery < 0.99);
+        assertEquals(1.0, reports.get("2+").delivery, 1e-9);
+        assertEquals(1.0, reports.get("3+").delivery, 1e-9);
+    }
+
+    @Test
+    public void idsRoundTripWithGapsAndReordering() {
+        Map<Long, List<Integer>> ids = new LinkedHashMap<>();
+        ids.put(7L, Arrays.asList(10, 11, 12, 40, 39, 1000));
+        ids.put(-3L, Arrays.asList(Integer.MAX_VALUE - 1, Integer.MAX_VALUE));
+        byte[] encoded = Gossip.encodeIds(ids);
+        assertEquals(ids, Gossip.decodeIds(encoded));
+        //每组13字节的头，之后的序号按差值编码：1、1、28、-1各1字节，961占2字节
+        assertEquals(1 + 13 + 6 + 13 + 1, encoded.length);
+    }
+
+    @Test
+    public void wantListsOnlyUnseenFrames() {
+        Gossip gossip = new Gossip(new Random(1));
+        SeenCache seen = new SeenCache();
+        for (int seq = 1; seq <= 5; seq++) {
+            gossip.remember(Frame.create(Frame.TYPE_DATA, 9, seq, new byte[1]), 0);
+        }
+        gossip.remember(Frame.create(Frame.TYPE_VOICE, 9, 6, new byte[1]), 0);
+        seen.markSeen(9, 1);
+        seen.markSeen(9, 3);
+        byte[] want = new Gossip(new Random(2)).want(gossip.digest(0), seen);
+        Map<Long, List<Integer>> expected = new HashMap<>();
+        expected.put(9L, Arrays.asList(2, 4, 5));
+        assertEquals(expected, Gossip.decodeIds(want));
+        assertEquals(3, gossip.lookup(want).size());
+        assertNull(new Gossip(new Random(3)).want(gossip.digest(0), seenAll()));
+        //过期后不再提供
+        assertNull(gossip.digest(Gossip.RECENT_MS + 1));
+    }
+
+    private static SeenCache seenAll() {
+        SeenCache seen = new SeenCache();
+        for (int seq = 1; seq <= 6; seq++) {
+            seen.markSeen(9, seq);
+        }
+        return seen;
+    }
+}
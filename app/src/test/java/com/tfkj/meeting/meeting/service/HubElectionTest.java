@@ -0,0 +1,60 @@
+package com.tfkj.meeting.meeting.service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * 中心节点选举的迟滞和通告的编解码
+ */
+public class HubElectionTest {
+
+    private static Capacity capacity(long nodeId, int battery) {
+        return new Capacity(nodeId, null, battery, false, 4, 3, 0, 4, 0);
+    }
+
+    @Test
+    public void smallScoreChangesKeepTheElectedHubs() {
+        List<Capacity> all = new ArrayList<>();
+        for (int i = 1; i <= 14; i++) {
+            all.add(capacity(i, 50 + i));
+        }
+        Set<Long> hubs = HubElection.idsOf(HubElection.electHubs(all, 7, Collections.<Long>emptySet()));
+        assertEquals(new HashSet<>(Arrays.asList(14L, 13L)), hubs);
+
+        //当选节点的电量下降了几个百分点，其他节点的评分已经更高
+        all.set(13, capacity(14, 55));
+        all.set(12, capacity(13, 60));
+        assertEquals(hubs, HubElection.idsOf(HubElection.electHubs(all, 7, hubs)));
+
+        //比未当选的最高分（节点12，电量62）低出INCUMBENT_MARGIN以上时才更换
+        all.set(13, capacity(14, 62 - HubElection.INCUMBENT_MARGIN - 1));
+        assertEquals(new HashSet<>(Arrays.asList(13L, 12L)),
+                HubElection.idsOf(HubElection.electHubs(all, 7, hubs)));
+    }
+
+    @Test
+    public void advertRoundTripAndShortPayloadIsRejected() {
+        Capacity capacity = new Capacity(9, null, 80, true, 8, 2, 65536, 3, 0);
+        byte[] encoded = Capacity.withAddress(capacity.encode(), "00:11:22:33:44:55");
+        Capacity decoded = Capacity.decode(9, encoded, 100);
+        assertEquals("00:11:22:33:44:55", decoded.getAddress());
+        assertEquals(80, decoded.getBattery());
+        assertTrue(decoded.isCharging());
+        assertEquals(2, decoded.getPeerCount());
+        assertEquals(65536, decoded.getThroughput());
+        assertEquals(3, decoded.getLinkCount());
+        assertEquals(capacity.score(), decoded.score());
+
+        byte[] truncated = new byte[Capacity.ENCODED_LENGTH - 1];
+        System.arraycopy(encoded, 0, truncated, 0, truncated.length);
+        assertNull(Capacity.decode(9, truncated, 100));
+    }
+}
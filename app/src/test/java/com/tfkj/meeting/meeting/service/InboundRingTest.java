@@ -0,0 +1,355 @@
+package com.tfkj.meeting.meeting.service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+
+/**
+ * InboundRing的正确性，以及路由线程和各通信线程各自转发的吞吐量、延迟对比
+ */
+public class InboundRingTest {
+
+    private static class SimLink implements Link {
+        final String address;
+        final ConcurrentLinkedQueue<Frame> queue = new ConcurrentLinkedQueue<>();
+
+        SimLink(String address) {
+            this.address = address;
+        }
+
+        @Override
+        public String getAddress() {
+            return address;
+        }
+
+        @Override
+        public void send(Frame frame) {
+            queue.offer(frame);
+        }
+    }
+
+    @Test
+    public void keepsPerLinkOrderAcrossWrapAround() throws Exception {
+        final InboundRing ring = new InboundRing(64);
+        final int producers = 6;
+        final int perProducer = 20000;
+        final int[] lastSeq = new int[producers];
+        Arrays.fill(lastSeq, -1);
+        final AtomicInteger received = new AtomicInteger();
+        final List<SimLink> links = new ArrayList<>();
+        for (int i = 0; i < producers; i++) {
+            links.add(new SimLink(String.valueOf(i)));
+        }
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int index = p;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int seq = 0; seq < perProducer; seq++) {
+                        assertTrue(ring.publish(Frame.create(Frame.TYPE_DATA, index, seq, new byte[0]),
+                                links.get(index)));
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        final boolean[] ordered = {true};
+        InboundRing.Handler handler = new InboundRing.Handler() {
+            @Override
+            public void onFrame(Frame frame, Link from, boolean endOfBatch) {
+                int producer = Integer.parseInt(from.getAddress());
+                ordered[0] &= frame.getOrigin() == producer && frame.getSeq() == lastSeq[producer] + 1;
+                lastSeq[producer] = frame.getSeq();
+                received.incrementAndGet();
+            }
+        };
+        long deadline = System.currentTimeMillis() + 20000;
+        while (received.get() < producers * perProducer && System.currentTimeMillis() < deadline) {
+            if (ring.drain(handler, 16) == 0) {
+                ring.await(1000000);
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join(1000);
+        }
+        assertEquals(producers * perProducer, received.get());
+        assertTrue(ordered[0]);
+        assertEquals(0, ring.size());
+    }
+
+    @Test
+    public void closeReleasesBlockedProducers() throws Exception {
+        final InboundRing ring = new InboundRing(2);
+        final SimLink link = new SimLink("a");
+        assertTrue(ring.publish(Frame.create(Frame.TYPE_DATA, 1, 1, new byte[0]), link));
+        assertTrue(ring.publish(Frame.create(Frame.TYPE_DATA, 1, 2, new byte[0]), link));
+        final boolean[] result = {true};
+        Thread blocked = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result[0] = ring.publish(Frame.create(Frame.TYPE_DATA, 1, 3, new byte[0]), link);
+            }
+        });
+        blocked.start();
+        Thread.sleep(50);
+        assertTrue(blocked.isAlive());
+        ring.close();
+        blocked.join(1000);
+        assertFalse(blocked.isAlive());
+        assertFalse(result[0]);
+    }
+
+    /**
+     * 通信线程放入时路由线程被反复停止、启动，每一帧仍恰好处理一次
+     */
+    @Test
+    public void stoppingTheStageLosesNoFrames() throws Exception {
+        final byte type = 0x61;
+        final AtomicInteger handled = new AtomicInteger();
+        MeshRouter.getInstance().register(type, false, new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame, Link from) {
+                handled.incrementAndGet();
+            }
+        });
+        MeshConfig config = MeshConfig.getInstance();
+        boolean wasStaged = config.isRoutingStage();
+        config.setRoutingStage(true);
+        final RoutingStage stage = RoutingStage.getInstance();
+        final int producers = 4;
+        final int perProducer = 50000;
+        final CountDownLatch finished = new CountDownLatch(producers);
+        try {
+            for (int p = 0; p < producers; p++) {
+                final SimLink link = new SimLink(String.valueOf(p));
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int seq = 0; seq < perProducer; seq++) {
+                            stage.publish(Frame.create(type, 1, seq, new byte[0]), link);
+                        }
+                        finished.countDown();
+                    }
+                }).start();
+            }
+            while (finished.getCount() > 0) {
+                stage.start();
+                Thread.sleep(1);
+                stage.stop();
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (handled.get() < producers * perProducer && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(producers * perProducer, handled.get());
+        } finally {
+            stage.stop();
+            config.setRoutingStage(wasStaged);
+        }
+    }
+
+    /**
+     * 转发的模型：按(origin, seq)去重，遍历两张邻居表，把帧放进除来源外各邻居的发送队列
+     */
+    private static class Router {
+        final SeenCache seen = new SeenCache();
+        final Map<String, SimLink> clients = new ConcurrentHashMap<>();
+        final Map<String, SimLink> services = new ConcurrentHashMap<>();
+        final AtomicInteger relayed = new AtomicInteger();
+
+        Router(List<SimLink> links) {
+            for (int i = 0; i < links.size(); i++) {
+                (i % 2 == 0 ? clients : services).put(links.get(i).address, links.get(i));
+            }
+        }
+
+        void route(Frame frame, Link from) {
+            if (!seen.markSeen(frame.getOrigin(), frame.getSeq())) {
+                return;
+            }
+            relayed.incrementAndGet();
+            for (SimLink link : clients.values()) {
+                if (!link.address.equals(from.getAddress())) {
+                    link.send(frame);
+                }
+            }
+            for (SimLink link : services.values()) {
+                if (!link.address.equals(from.getAddress())) {
+                    link.send(frame);
+                }
+            }
+        }
+    }
+
+    private static class Result {
+        final String name;
+        final double framesPerSecond;
+        final long[] latencies;
+        final long[] readerBusy;
+
+        Result(String name, double framesPerSecond, long[] latencies, long[] readerBusy) {
+            this.name = name;
+            this.framesPerSecond = framesPerSecond;
+            this.latencies = latencies;
+            this.readerBusy = readerBusy;
+            Arrays.sort(latencies);
+            Arrays.sort(readerBusy);
+        }
+
+        long latency(double p) {
+            return latencies[Math.min(latencies.length - 1, (int) (p * latencies.length))];
+        }
+
+        long busy(double p) {
+            return readerBusy[Math.min(readerBusy.length - 1, (int) (p * readerBusy.length))];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-10s %8.0f frames/s  latency p50 %6.1fus p99 %7.1fus  reader busy p99 %6.1fus",
+                    name, framesPerSecond, latency(0.5) / 1e3, latency(0.99) / 1e3, busy(0.99) / 1e3);
+        }
+    }
+
+    /**
+     * 每条链路收到同一组帧的一份副本（网状网络中同一帧从多条链路到达），各自的通信线程交给转发
+     *
+     * @param paceEvery 每读这么多帧停顿一次，0表示不停顿
+     */
+    private static Result run(final boolean ring, final int linkCount, final int frameCount, final int paceEvery)
+            throws Exception {
+        final List<SimLink> links = new ArrayList<>();
+        for (int i = 0; i < linkCount; i++) {
+            links.add(new SimLink("link-" + i));
+        }
+        final Router router = new Router(links);
+        final Frame[] frames = new Frame[frameCount];
+        for (int i = 0; i < frameCount; i++) {
+            frames[i] = Frame.create(Frame.TYPE_DATA, i % 4, i / 4, new byte[16]);
+        }
+        final long[][] arrived = new long[linkCount][frameCount];
+        final long[][] routed = new long[linkCount][frameCount];
+        final long[][] busy = new long[linkCount][frameCount];
+        final InboundRing inbound = new InboundRing(RoutingStage.RING_SIZE);
+        final AtomicInteger remaining = new AtomicInteger(linkCount * frameCount);
+
+        Thread consumer = null;
+        if (ring) {
+            consumer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    InboundRing.Handler handler = new InboundRing.Handler() {
+                        @Override
+                        public void onFrame(Frame frame, Link from, boolean endOfBatch) {
+                            router.route(frame, from);
+                            int link = Integer.parseInt(from.getAddress().substring(5));
+                            routed[link][frame.getSeq() * 4 + (int) frame.getOrigin()] = System.nanoTime();
+                            remaining.decrementAndGet();
+                        }
+                    };
+                    while (remaining.get() > 0) {
+                        if (inbound.drain(handler, RoutingStage.MAX_BATCH) == 0) {
+                            inbound.await(1000000);
+                        }
+                    }
+                }
+            });
+            consumer.start();
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> readers = new ArrayList<>();
+        for (int l = 0; l < linkCount; l++) {
+            final int link = l;
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    SimLink from = links.get(link);
+                    for (int i = 0; i < frameCount; i++) {
+                        if (paceEvery > 0 && i % paceEvery == 0) {
+                            LockSupport.parkNanos(200000);
+                        }
+                        long now = System.nanoTime();
+                        arrived[link][i] = now;
+                        if (ring) {
+                            inbound.publish(frames[i], from);
+                        } else {
+                            router.route(frames[i], from);
+                            routed[link][i] = System.nanoTime();
+                            remaining.decrementAndGet();
+                        }
+                        busy[link][i] = System.nanoTime() - now;
+                    }
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        if (consumer != null) {
+            consumer.join(20000);
+        }
+        long elapsed = System.nanoTime() - begin;
+        assertEquals(0, remaining.get());
+        assertEquals(frameCount, router.relayed.get());
+        //每帧转发给除最先收到的链路外的所有链路
+        int sent = 0;
+        for (SimLink link : links) {
+            sent += link.queue.size();
+        }
+        assertEquals(frameCount * (linkCount - 1), sent);
+
+        long[] latencies = new long[linkCount * frameCount];
+        long[] readerBusy = new long[linkCount * frameCount];
+        for (int l = 0; l < linkCount; l++) {
+            for (int i = 0; i < frameCount; i++) {
+                latencies[l * frameCount + i] = routed[l][i] - arrived[l][i];
+                readerBusy[l * frameCount + i] = busy[l][i];
+            }
+        }
+        Result result = new Result((ring ? "ring" : "per-thread") + (paceEvery > 0 ? " paced" : ""),
+                linkCount * frameCount * 1e9 / elapsed, latencies, readerBusy);
+        return result;
+    }
+
+    @Test
+    public void routingStageAgainstPerThreadRelaying() throws Exception {
+        int links = 7;
+        int frameCount = 40000;
+        //预热
+        run(false, links, frameCount / 4, 0);
+        run(true, links, frameCount / 4, 0);
+
+        Result direct = run(false, links, frameCount, 0);
+        Result staged = run(true, links, frameCount, 0);
+        Result directPaced = run(false, links, frameCount / 4, 16);
+        Result stagedPaced = run(true, links, frameCount / 4, 16);
+
+        //通信线程交出一帧比自己转发快，可以接着读下一帧
+        assertTrue(staged + "\n" + direct, staged.busy(0.99) < direct.busy(0.99));
+        assertTrue(stagedPaced + "\n" + directPaced, stagedPaced.busy(0.99) < directPaced.busy(0.99));
+        //单核上转发本身没有争用，交给路由线程多了线程切换，吞吐量只做下限检查
+        assertTrue(staged + "\n" + direct, staged.framesPerSecond > direct.framesPerSecond / 10);
+    }
+}
@@ -0,0 +1,153 @@
+package com.tfkj.meeting.meeting.service;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 加密链路的正确性和单帧加解密耗时
+ */
+public class SecureChannelTest {
+
+    private static SecureChannel[] pair(final byte[] initiatorKey, byte[] responderKey) throws Exception {
+        final PipedInputStream initiatorIn = new PipedInputStream(4096);
+        final PipedOutputStream responderOut = new PipedOutputStream(initiatorIn);
+        PipedInputStream responderIn = new PipedInputStream(4096);
+        final PipedOutputStream initiatorOut = new PipedOutputStream(responderIn);
+
+        final SecureChannel[] result = new SecureChannel[2];
+        final IOException[] error = new IOException[1];
+        Thread initiator = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    result[0] = SecureChannel.handshake(initiatorIn, initiatorOut, true, initiatorKey);
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+        };
+        initiator.start();
+        result[1] = SecureChannel.handshake(responderIn, responderOut, false, responderKey);
+        initiator.join();
+        if (error[0] != null) {
+            throw error[0];
+        }
+        return result;
+    }
+
+    private static byte[] roundTrip(SecureChannel from, SecureChannel to, byte[] plain) throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        from.write(wire, plain);
+        return to.read(new DataInputStream(new ByteArrayInputStream(wire.toByteArray())));
+    }
+
+    @Test
+    public void framesRoundTripInBothDirections() throws Exception {
+        SecureChannel[] channels = pair(null, null);
+        for (int i = 0; i < 10; i++) {
+            byte[] plain = ("frame " + i).getBytes();
+            assertArrayEquals(plain, roundTrip(channels[0], channels[1], plain));
+            assertArrayEquals(plain, roundTrip(channels[1], channels[0], plain));
+        }
+    }
+
+    @Test
+    public void tamperedFrameIsRejected() throws Exception {
+        SecureChannel[] channels = pair(null, null);
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        channels[0].write(wire, "hello".getBytes());
+        byte[] sealed = wire.toByteArray();
+        sealed[6] ^= 1;
+        try {
+            channels[1].read(new DataInputStream(new ByteArrayInputStream(sealed)));
+            fail("tampered frame accepted");
+        } catch (IOException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void replayedFrameIsRejected() throws Exception {
+        SecureChannel[] channels = pair(null, null);
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        channels[0].write(wire, "hello".getBytes());
+        byte[] sealed = wire.toByteArray();
+        channels[1].read(new DataInputStream(new ByteArrayInputStream(sealed)));
+        try {
+            channels[1].read(new DataInputStream(new ByteArrayInputStream(sealed)));
+            fail("replayed frame accepted");
+        } catch (IOException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void differentMeetingKeysCannotTalk() throws Exception {
+        SecureChannel[] channels = pair("a".getBytes(), "b".getBytes());
+        try {
+            roundTrip(channels[0], channels[1], "hello".getBytes());
+            fail("frame accepted with a different meeting key");
+        } catch (IOException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void refusedInitiatorGetsTheRedirectWithoutKeyExchange() throws Exception {
+        ByteArrayOutputStream refusal = new ByteArrayOutputStream();
+        byte[] redirect = ControlCodec.encodeRedirect(Collections.singletonList("00:11:22:33:44:55"));
+        SecureChannel.refuse(refusal, redirect);
+        try {
+            SecureChannel.handshake(new ByteArrayInputStream(refusal.toByteArray()), new ByteArrayOutputStream(),
+                    true, null);
+            fail("refusal accepted as a key");
+        } catch (SecureChannel.RefusedException e) {
+            assertEquals(Collections.singletonList("00:11:22:33:44:55"),
+                    ControlCodec.decodeRedirect(e.getRedirect()));
+        }
+    }
+
+    /**
+     * 每帧的开销主要是固定部分，帧越大每字节越便宜
+     */
+    @Test
+    public void perFrameCostIsMostlyFixed() throws Exception {
+        SecureChannel[] channels = pair(null, null);
+        int[] sizes = {64, 1024, 16 * 1024};
+        long[] perFrame = new long[sizes.length];
+        for (int s = 0; s < sizes.length; s++) {
+            int size = sizes[s];
+            byte[] plain = new byte[size];
+            new Random(size).nextBytes(plain);
+            ByteArrayOutputStream wire = new ByteArrayOutputStream(size + 64);
+            int warmup = 2000;
+            int frames = 5000;
+            for (int i = 0; i < warmup; i++) {
+                wire.reset();
+                channels[0].write(wire, plain);
+                channels[1].read(new DataInputStream(new ByteArrayInputStream(wire.toByteArray())));
+            }
+            byte[] opened = null;
+            long start = System.nanoTime();
+            for (int i = 0; i < frames; i++) {
+                wire.reset();
+                channels[0].write(wire, plain);
+                opened = channels[1].read(new DataInputStream(new ByteArrayInputStream(wire.toByteArray())));
+            }
+            perFrame[s] = (System.nanoTime() - start) / frames;
+            assertArrayEquals(plain, opened);
+        }
+        //大小相差256倍，耗时远不到256倍
+        assertTrue(perFrame[0] + "ns vs " + perFrame[2] + "ns", perFrame[2] < perFrame[0] * 32);
+    }
+}
@@ -0,0 +1,55 @@
+package com.tfkj.meeting.meeting.service;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 去重窗口：窗口内乱序到达的帧只处理一次，早于窗口的视为已收到
+ */
+public class SeenCacheTest {
+
+    @Test
+    public void lateFrameWithinTheWindowIsStillNew() {
+        SeenCache cache = new SeenCache();
+        assertTrue(cache.markSeen(1, 10));
+        //被限速延后的帧：之后同一节点又发出了两秒的语音
+        for (int seq = 11; seq <= 110; seq++) {
+            assertTrue(cache.markSeen(1, seq));
+        }
+        assertFalse(cache.isSeen(1, 5));
+        assertTrue(cache.markSeen(1, 5));
+        assertFalse(cache.markSeen(1, 5));
+        assertFalse(cache.markSeen(1, 110));
+        //其他节点互不影响
+        assertTrue(cache.markSeen(2, 5));
+    }
+
+    @Test
+    public void bitsAreClearedAsTheWindowMoves() {
+        SeenCache cache = new SeenCache();
+        assertTrue(cache.markSeen(1, 0));
+        assertTrue(cache.markSeen(1, SeenCache.WINDOW - 1));
+        //和0占用同一位，窗口前移后是新的序号
+        assertTrue(cache.markSeen(1, SeenCache.WINDOW));
+        assertTrue(cache.isSeen(1, 0));
+        assertFalse(cache.isSeen(1, SeenCache.WINDOW + 1));
+        assertTrue(cache.markSeen(1, 3 * SeenCache.WINDOW));
+        assertTrue(cache.isSeen(1, SeenCache.WINDOW));
+        assertFalse(cache.isSeen(1, 3 * SeenCache.WINDOW - 1));
+
+        cache.forget(1, 3 * SeenCache.WINDOW);
+        assertTrue(cache.markSeen(1, 3 * SeenCache.WINDOW));
+    }
+
+    @Test
+    public void linkLocalFramesDoNotUseRoutedSeqs() {
+        MeshConfig config = MeshConfig.getInstance();
+        Frame routed = Frame.createLocal(Frame.TYPE_DATA, new byte[0]);
+        for (int i = 0; i < 100; i++) {
+            Frame.createLocal(Frame.TYPE_PING, new byte[0]);
+        }
+        assertEquals(routed.getSeq() + 1, Frame.createLocal(Frame.TYPE_DATA, new byte[0]).getSeq());
+        assertEquals(config.getNodeId(), routed.getOrigin());
+    }
+}
@@ -0,0 +1,346 @@
+package com.tfkj.meeting.meeting.service;
+
+import com.tfkj.meeting.meeting.MeshSimulator;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * 多话题负载下比较全部转发和按订阅摘要转发的流量，并检查每个订阅者都收到了自己话题的所有消息
+ */
+public class TopicTableTest {
+
+    private static final int NODES = 40;
+    private static final int GROUPS = 8;
+    private static final int MESSAGES = 400;
+    private static final int BODY = 200;
+
+    private static class Report {
+        boolean filtered;
+        long topicBytes;
+        long summaryBytes;
+        long expected;
+        long delivered;
+        long duplicates;
+    }
+
+    private static class Simulation extends MeshSimulator {
+        final boolean filtered;
+        final List<Node> nodes = new ArrayList<>();
+        long topicBytes;
+        long summaryBytes;
+        long expected;
+        long delivered;
+        long duplicates;
+
+        Simulation(long seed, boolean filtered) {
+            super(seed);
+            this.filtered = filtered;
+            for (int i = 0; i < NODES; i++) {
+                nodes.add(new Node(i));
+            }
+            for (int[] edge : randomMesh(NODES, 5, 7, NODES * 4)) {
+                connect(nodes.get(edge[0]), nodes.get(edge[1]));
+            }
+            //每个设备属于一个小组，都订阅全体广播，四分之一订阅控制话题
+            for (Node node : nodes) {
+                node.table.subscribe("group-" + node.index % GROUPS);
+                node.table.subscribe("all");
+                if (random.nextInt(4) == 0) {
+                    node.table.subscribe("control");
+                }
+            }
+        }
+
+        void connect(Node a, Node b) {
+            a.neighbors.add(b);
+            b.neighbors.add(a);
+        }
+
+        class Node {
+            final int index;
+            final TopicTable table = new TopicTable(1000);
+            final SeenCache seen = new SeenCache();
+            final List<Node> neighbors = new ArrayList<>();
+            final Set<Node> down = new HashSet<>();
+            final Set<String> received = new HashSet<>();
+            int nextSeq;
+
+            Node(int index) {
+                this.index = index;
+            }
+
+            String address() {
+                return "node-" + index;
+            }
+
+            List<Node> links() {
+                ArrayList<Node> up = new ArrayList<>(neighbors);
+                up.removeAll(down);
+                return up;
+            }
+
+            void advertise() {
+                Frame frame = Frame.create(Frame.TYPE_SUBSCRIPTION, index, ++nextSeq, table.encodeSummary());
+                seen.markSeen(frame.getOrigin(), frame.getSeq());
+                for (Node neighbor : links()) {
+                    transmit(this, neighbor, frame);
+                }
+            }
+
+            void publish(String topic) {
+                Frame frame = Frame.create(Frame.TYPE_TOPIC, index, ++nextSeq,
+                        PubSub.encode(topic, new byte[BODY]));
+                seen.markSeen(frame.getOrigin(), frame.getSeq());
+                for (Node subscriber : nodes) {
+                    if (subscriber != this && subscriber.table.isSubscribed(topic)) {
+                        expected++;
+                    }
+                }
+                forward(frame, null);
+            }
+
+            void receive(Node from, Frame frame) {
+                if (!seen.markSeen(frame.getOrigin(), frame.getSeq())) {
+                    return;
+                }
+                if (frame.getType() == Frame.TYPE_SUBSCRIPTION) {
+                    table.onSummary(frame.getOrigin(), frame.getPayload(), from.address(), now());
+                    for (Node neighbor : links()) {
+                        if (neighbor != from) {
+                            transmit(this, neighbor, frame);
+                        }
+                    }
+                    return;
+                }
+                forward(frame, from);
+                String topic = PubSub.topicOf(frame.getPayload());
+                if (table.isSubscribed(topic)) {
+                    if (received.add(frame.getOrigin() + ":" + frame.getSeq())) {
+                        delivered++;
+                    } else {
+                        duplicates++;
+                    }
+                }
+            }
+
+            void forward(Frame frame, Node from) {
+                List<Node> up = links();
+                List<Node> targets = new ArrayList<>();
+                if (filtered) {
+                    List<String> addresses = new ArrayList<>();
+                    for (Node neighbor : up) {
+                        addresses.add(neighbor.address());
+                    }
+                    //断开的链路不在addresses中，摘要指向它时退回全部转发
+                    Set<String> interested = table.linksFor(PubSub.topicOf(frame.getPayload()), addresses,
+                            from == null ? null : from.address());
+                    for (Node neighbor : up) {
+                        if (interested.contains(neighbor.address())) {
+                            targets.add(neighbor);
+                        }
+                    }
+                } else {
+                    targets.addAll(up);
+                    targets.remove(from);
+                }
+                for (Node target : targets) {
+                    transmit(this, target, frame);
+                }
+            }
+        }
+
+        void transmit(final Node from, final Node to, final Frame frame) {
+            if (frame.getType() == Frame.TYPE_SUBSCRIPTION) {
+                summaryBytes += frame.getEncoded().length;
+            } else {
+                topicBytes += frame.getEncoded().length;
+            }
+            schedule(hop(15, 40), new Runnable() {
+                @Override
+                public void run() {
+                    if (!from.down.contains(to)) {
+                        to.receive(from, frame);
+                    }
+                }
+            });
+        }
+
+        void advertiseAll() {
+            if (!filtered) {
+                return;
+            }
+            for (final Node node : nodes) {
+                schedule(random.nextInt(1000), new Runnable() {
+                    @Override
+                    public void run() {
+                        node.advertise();
+                    }
+                });
+            }
+        }
+
+        /**
+         * 80%发往小组话题，其余一半发全体广播、一半发控制话题
+         */
+        void publishAll(int count) {
+            long start = now();
+            for (int i = 0; i < count; i++) {
+                final Node origin = nodes.get(random.nextInt(NODES));
+                int kind = random.nextInt(10);
+                final String topic = kind < 8 ? "group-" + random.nextInt(GROUPS) : kind == 8 ? "all" : "control";
+                schedule(i * 20L, new Runnable() {
+                    @Override
+                    public void run() {
+                        origin.publish(topic);
+                    }
+                });
+            }
+            runUntil(start + count * 20L + 5000);
+        }
+
+        Report report() {
+            Report report = new Report();
+            report.filtered = filtered;
+            report.topicBytes = topicBytes;
+            report.summaryBytes = summaryBytes;
+            report.expected = expected;
+            report.delivered = delivered;
+            report.duplicates = duplicates;
+            return report;
+        }
+    }
+
+    private static Report run(boolean filtered) {
+        Simulation sim = new Simulation(7, filtered);
+        sim.advertiseAll();
+        sim.runUntil(3000);
+        sim.publishAll(MESSAGES);
+        return sim.report();
+    }
+
+    @Test
+    public void filteredRelayingDeliversEverythingWithLessTraffic() {
+        Report flood = run(false);
+        Report filtered = run(true);
+        assertEquals(flood.expected, flood.delivered);
+        assertEquals(filtered.expected, filtered.delivered);
+        assertEquals(0, filtered.duplicates);
+        //小组话题只有八分之一的设备订阅，但全体广播仍要发给所有人，路径按摘要首次到达的链路学习也不是最短的；
+        //摘要的开销也算上，总流量约为全部转发的57%
+        assertTrue(filtered.topicBytes + filtered.summaryBytes < flood.topicBytes * 0.65);
+    }
+
+    @Test
+    public void brokenPathFallsBackToFloodingUntilRelearned() {
+        Simulation sim = new Simulation(11, true);
+        sim.advertiseAll();
+        sim.runUntil(3000);
+        //断开一些链路，但保持连通
+        int cut = 0;
+        for (Simulation.Node node : sim.nodes) {
+            for (Simulation.Node neighbor : node.neighbors) {
+                if (cut < 5 && node.links().size() > 2 && neighbor.links().size() > 2 && connectedWithout(sim,
+                        node, neighbor)) {
+                    node.down.add(neighbor);
+                    neighbor.down.add(node);
+                    cut++;
+                    break;
+                }
+            }
+        }
+        assertEquals(5, cut);
+        sim.publishAll(100);
+        assertEquals(sim.expected, sim.delivered);
+
+        //下次刷新后学到新的路径，不再全部转发，每次送达的流量减少
+        long before = sim.topicBytes;
+        long expectedBefore = sim.expected;
+        sim.advertiseAll();
+        sim.runUntil(sim.now() + 3000);
+        sim.publishAll(100);
+        assertEquals(sim.expected, sim.delivered);
+        double afterCut = (double) before / expectedBefore;
+        double relearned = (double) (sim.topicBytes - before) / (sim.expected - expectedBefore);
+        assertTrue(afterCut + " vs " + relearned, relearned < afterCut);
+    }
+
+    private static boolean connectedWithout(Simulation sim, Simulation.Node a, Simulation.Node b) {
+        a.down.add(b);
+        b.down.add(a);
+        Set<Simulation.Node> reached = new HashSet<>();
+        List<Simulation.Node> queue = new ArrayList<>(Collections.singletonList(sim.nodes.get(0)));
+        reached.add(sim.nodes.get(0));
+        while (!queue.isEmpty()) {
+            Simulation.Node node = queue.remove(queue.size() - 1);
+            for (Simulation.Node neighbor : node.links()) {
+                if (reached.add(neighbor)) {
+                    queue.add(neighbor);
+                }
+            }
+        }
+        a.down.remove(b);
+        b.down.remove(a);
+        return reached.size() == sim.nodes.size();
+    }
+
+    @Test
+    public void newerSummaryReplacesOlderAndStaleOnesExpire() {
+        TopicTable sender = new TopicTable(5);
+        sender.subscribe("a");
+        byte[] first = sender.encodeSummary();
+        sender.unsubscribe("a");
+        sender.subscribe("b");
+        byte[] second = sender.encodeSummary();
+
+        TopicTable table = new TopicTable(0);
+        List<String> links = Arrays.asList("x", "y");
+        assertTrue(table.onSummary(9, second, "x", 0));
+        //乱序到达的旧摘要被忽略
+        assertFalse(table.onSummary(9, first, "y", 0));
+        assertEquals(Collections.singleton("x"), table.linksFor("b", links, null));
+        assertTrue(table.linksFor("a", links, null).isEmpty());
+        //不发回来源链路
+        assertTrue(table.linksFor("b", links, "x").isEmpty());
+
+        table.expire(TopicTable.EXPIRE_MS + 1);
+        assertFalse(table.hasSummary(9));
+        assertTrue(table.linksFor("b", links, null).isEmpty());
+    }
+
+    @Test
+    public void topicPayloadRoundTrip() {
+        byte[] payload = PubSub.encode("会议/小组", new byte[]{1, 2, 3});
+        assertEquals("会议/小组", PubSub.topicOf(payload));
+        assertArrayEquals(new byte[]{1, 2, 3}, PubSub.bodyOf(payload));
+    }
+
+    @Test
+    public void bloomFilterRoundTripAndFalsePositives() {
+        BloomFilter filter = new BloomFilter();
+        for (int i = 0; i < 20; i++) {
+            filter.add("topic-" + i);
+        }
+        byte[] encoded = new byte[BloomFilter.BYTES + 3];
+        filter.encode(encoded, 3);
+        BloomFilter decoded = BloomFilter.decode(encoded, 3);
+        assertEquals(filter, decoded);
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(i >= 20 || decoded.mightContain("topic-" + i));
+            if (i >= 20 && decoded.mightContain("topic-" + i)) {
+                falsePositives++;
+            }
+        }
+        //512位、3个散列、20个话题，理论误判率约0.1%
+        assertTrue(falsePositives < 100);
+    }
+}
@@ -0,0 +1,202 @@
+package com.tfkj.meeting.meeting.service;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * 抓包文件的读写、滚动，以及通过MeshRouter回放
+ */
+public class TrafficCaptureTest {
+    private static final String PEER_A = "00:11:22:33:44:55";
+    private static final String PEER_B = "66:77:88:99:AA:BB";
+    // 测试用的帧类型，不与正式的类型冲突
+    private static final byte TYPE_TEST = 0x60;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] frame(byte type, long origin, int seq, int payloadLength) {
+        return Frame.create(type, origin, seq, new byte[payloadLength]).getEncoded();
+    }
+
+    private static List<TrafficCapture.Record> readAll(List<File> files) throws Exception {
+        List<TrafficCapture.Record> records = new ArrayList<>();
+        for (File file : files) {
+            TrafficCapture.Reader reader = new TrafficCapture.Reader(file);
+            TrafficCapture.Record record;
+            while ((record = reader.next()) != null) {
+                records.add(record);
+            }
+            reader.close();
+        }
+        return records;
+    }
+
+    @Test
+    public void recordsRoundTrip() throws Exception {
+        File dir = folder.newFolder("capture");
+        TrafficCapture capture = new TrafficCapture();
+        capture.record(PEER_A, TrafficCapture.DIRECTION_IN, frame(Frame.TYPE_DATA, 1, 0, 8));
+        capture.start(dir, TrafficCapture.DEFAULT_MAX_FILE_BYTES, TrafficCapture.DEFAULT_MAX_FILES);
+        for (int i = 1; i <= 100; i++) {
+            capture.record(i % 2 == 0 ? PEER_A : PEER_B,
+                    i % 3 == 0 ? TrafficCapture.DIRECTION_OUT : TrafficCapture.DIRECTION_IN,
+                    frame(Frame.TYPE_DATA, 1, i, i));
+        }
+        capture.stop();
+        capture.record(PEER_A, TrafficCapture.DIRECTION_IN, frame(Frame.TYPE_DATA, 1, 101, 8));
+
+        List<File> files = TrafficCapture.listFiles(dir);
+        assertEquals(1, files.size());
+        List<TrafficCapture.Record> records = readAll(files);
+        //开始前和停止后的记录不写入
+        assertEquals(100, records.size());
+        long lastTime = -1;
+        for (int i = 1; i <= 100; i++) {
+            TrafficCapture.Record record = records.get(i - 1);
+            assertEquals(i % 2 == 0 ? PEER_A : PEER_B, record.address);
+            assertEquals(i % 3 == 0 ? TrafficCapture.DIRECTION_OUT : TrafficCapture.DIRECTION_IN, record.direction);
+            Frame decoded = Frame.decode(record.frame);
+            assertEquals(i, decoded.getSeq());
+            assertEquals(i, decoded.getPayload().length);
+            assertTrue(record.timeNanos >= lastTime);
+            lastTime = record.timeNanos;
+        }
+        assertEquals(0, capture.getDropped());
+    }
+
+    @Test
+    public void filesRollAndKeepTheNewest() throws Exception {
+        File dir = folder.newFolder("capture");
+        TrafficCapture capture = new TrafficCapture();
+        capture.start(dir, 4096, 3);
+        for (int i = 0; i < 200; i++) {
+            capture.record(PEER_A, TrafficCapture.DIRECTION_IN, frame(Frame.TYPE_DATA, 1, i, 100));
+        }
+        capture.stop();
+
+        List<File> files = TrafficCapture.listFiles(dir);
+        assertEquals(3, files.size());
+        for (File file : files) {
+            assertTrue(file.length() <= 4096);
+        }
+        List<TrafficCapture.Record> records = readAll(files);
+        assertTrue(records.size() < 200);
+        //保留的是最后的记录，跨文件保持顺序
+        int seq = 200 - records.size();
+        for (TrafficCapture.Record record : records) {
+            assertEquals(seq++, Frame.decode(record.frame).getSeq());
+        }
+    }
+
+    @Test
+    public void replayFeedsReceivedFramesThroughRouter() throws Exception {
+        final AtomicInteger delivered = new AtomicInteger();
+        File dir = folder.newFolder("capture");
+        TrafficCapture capture = new TrafficCapture();
+        capture.start(dir, TrafficCapture.DEFAULT_MAX_FILE_BYTES, TrafficCapture.DEFAULT_MAX_FILES);
+        long origin = 0x5EED;
+        for (int i = 0; i < 10; i++) {
+            capture.record(PEER_A, TrafficCapture.DIRECTION_IN, frame(TYPE_TEST, origin, i, 16));
+        }
+        //另一条链路转发来的重复帧、本机发出的帧和链路内的控制帧
+        capture.record(PEER_B, TrafficCapture.DIRECTION_IN, frame(TYPE_TEST, origin, 3, 16));
+        capture.record(PEER_B, TrafficCapture.DIRECTION_OUT, frame(TYPE_TEST, origin, 100, 16));
+        capture.record(PEER_B, TrafficCapture.DIRECTION_IN, Frame.createLocal(Frame.TYPE_PING, new byte[8]).getEncoded());
+        capture.stop();
+
+        TrafficReplay replay = new TrafficReplay(TrafficCapture.listFiles(dir));
+        replay.getRouter().register(TYPE_TEST, true, new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame, Link from) {
+                delivered.incrementAndGet();
+                from.send(Frame.createLocal(Frame.TYPE_PONG, new byte[0]));
+            }
+        });
+        replay.run(false);
+        assertEquals(11, replay.getFrames());
+        assertEquals(10, replay.getRelayed());
+        assertEquals(1, replay.getSkipped());
+        assertEquals(10, delivered.get());
+        assertEquals(10, replay.getLinks().get(PEER_A).getSent());
+        assertEquals(0, replay.getLinks().get(PEER_B).getSent());
+    }
+
+    @Test
+    public void realTimeReplayKeepsOriginalSpacing() throws Exception {
+        File dir = folder.newFolder("capture");
+        TrafficCapture capture = new TrafficCapture();
+        capture.start(dir, TrafficCapture.DEFAULT_MAX_FILE_BYTES, TrafficCapture.DEFAULT_MAX_FILES);
+        for (int i = 0; i < 4; i++) {
+            capture.record(PEER_A, TrafficCapture.DIRECTION_IN, frame(TYPE_TEST, 0xBEEF, i, 16));
+            Thread.sleep(60);
+        }
+        capture.stop();
+
+        List<File> files = TrafficCapture.listFiles(dir);
+        List<TrafficCapture.Record> records = readAll(files);
+        long span = records.get(3).timeNanos - records.get(0).timeNanos;
+        assertTrue(span >= 170000000L);
+
+        TrafficReplay realTime = replay(files);
+        realTime.run(true);
+        assertTrue(realTime.getElapsedNanos() >= span);
+        assertEquals(4, realTime.getRelayed());
+
+        //每次回放的去重窗口都是新的，第二次回放的帧同样完整处理
+        TrafficReplay fast = replay(files);
+        fast.run(false);
+        assertTrue(fast.getElapsedNanos() < span / 4);
+        assertEquals(4, fast.getRelayed());
+    }
+
+    private static TrafficReplay replay(List<File> files) {
+        TrafficReplay replay = new TrafficReplay(files);
+        replay.getRouter().register(TYPE_TEST, true, new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame, Link from) {
+            }
+        });
+        return replay;
+    }
+
+    /**
+     * 关闭时记录一帧只检查开关，远比打开时写入文件快；打开时记录的每一帧都能回放
+     */
+    @Test
+    public void disabledCaptureCostsFarLessThanRecording() throws Exception {
+        File dir = folder.newFolder("capture");
+        TrafficCapture capture = new TrafficCapture();
+        byte[] data = frame(Frame.TYPE_DATA, 1, 0, 256);
+        final int count = 3000;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            capture.record(PEER_A, TrafficCapture.DIRECTION_IN, data);
+        }
+        long disabledNanos = System.nanoTime() - start;
+
+        capture.start(dir, TrafficCapture.DEFAULT_MAX_FILE_BYTES, TrafficCapture.DEFAULT_MAX_FILES);
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            capture.record(PEER_A, TrafficCapture.DIRECTION_IN, frame(Frame.TYPE_DATA, 0xCAFE, i, 256));
+        }
+        long enabledNanos = System.nanoTime() - start;
+        capture.stop();
+        assertEquals(0, capture.getDropped());
+
+        TrafficReplay replay = new TrafficReplay(TrafficCapture.listFiles(dir));
+        replay.run(false);
+        assertEquals(count, replay.getFrames());
+        assertEquals(count, replay.getRelayed());
+        assertTrue(disabledNanos + " vs " + enabledNanos, disabledNanos * 4 < enabledNanos);
+    }
+}
@@ -0,0 +1,325 @@
+package com.tfkj.meeting.meeting.state;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 会议状态副本的收敛、压缩、同步和补发，以及合并吞吐量和增量大小
+ */
+public class MeetingStateTest {
+
+    private static MeetingState[] replicas(int count) {
+        MeetingState[] replicas = new MeetingState[count];
+        for (int i = 0; i < count; i++) {
+            replicas[i] = new MeetingState(i + 1);
+        }
+        return replicas;
+    }
+
+    private static void randomEdit(MeetingState state, Random random, int i) {
+        switch (random.nextInt(6)) {
+            case 0:
+                state.put(MeetingState.AGENDA, "item" + random.nextInt(8), "v" + i);
+                break;
+            case 1:
+                state.remove(MeetingState.ATTENDEES, "user" + random.nextInt(8));
+                break;
+            case 2:
+                state.put(MeetingState.ATTENDEES, "user" + random.nextInt(8), "joined" + i);
+                break;
+            case 3:
+                int size = state.values(MeetingState.NOTES).size();
+                if (size > 0) {
+                    state.delete(MeetingState.NOTES, random.nextInt(size));
+                    break;
+                }
+                // fall through
+            case 4:
+                state.insert(MeetingState.NOTES, random.nextInt(state.values(MeetingState.NOTES).size() + 1),
+                        "note" + i);
+                break;
+            default:
+                state.increment("votes", random.nextBoolean() ? 1 : -1);
+                break;
+        }
+    }
+
+    /**
+     * 每个副本随机修改若干轮，增量以打乱的顺序送达其他副本
+     */
+    private static void runRounds(MeetingState[] replicas, Random random, int rounds, int editsPerRound) throws Exception {
+        List<List<byte[]>> inboxes = new ArrayList<>();
+        for (MeetingState ignored : replicas) {
+            inboxes.add(new ArrayList<byte[]>());
+        }
+        for (int round = 0; round < rounds; round++) {
+            for (int r = 0; r < replicas.length; r++) {
+                for (int i = 0; i < editsPerRound; i++) {
+                    randomEdit(replicas[r], random, round * 1000 + i);
+                }
+                for (byte[] batch : replicas[r].drainDelta()) {
+                    for (int other = 0; other < replicas.length; other++) {
+                        if (other != r) {
+                            inboxes.get(other).add(batch);
+                        }
+                    }
+                }
+            }
+            // 每轮只投递一部分，剩余的留到后面，模拟乱序和延迟
+            for (int r = 0; r < replicas.length; r++) {
+                List<byte[]> inbox = inboxes.get(r);
+                Collections.shuffle(inbox, random);
+                int deliver = round == rounds - 1 ? inbox.size() : random.nextInt(inbox.size() + 1);
+                for (int i = 0; i < deliver; i++) {
+                    replicas[r].applyDelta(inbox.remove(inbox.size() - 1));
+                }
+            }
+        }
+    }
+
+    private static void assertConverged(MeetingState[] replicas) {
+        for (int r = 1; r < replicas.length; r++) {
+            assertEquals(replicas[0].entries(MeetingState.AGENDA), replicas[r].entries(MeetingState.AGENDA));
+            assertEquals(replicas[0].entries(MeetingState.ATTENDEES), replicas[r].entries(MeetingState.ATTENDEES));
+            assertEquals(replicas[0].values(MeetingState.NOTES), replicas[r].values(MeetingState.NOTES));
+            assertEquals(replicas[0].counterValue("votes"), replicas[r].counterValue("votes"));
+        }
+    }
+
+    private static void exchangeReports(MeetingState[] replicas, long now) throws Exception {
+        for (MeetingState from : replicas) {
+            byte[] report = from.encodeReport();
+            for (MeetingState to : replicas) {
+                to.onReport(from.getNodeId(), report, now);
+            }
+        }
+    }
+
+    /**
+     * 交换版本向量，并把补发的批次交给落后的副本
+     *
+     * @return 补发的批次数
+     */
+    private static int exchangeReportsWithRepair(MeetingState[] replicas, long now) throws Exception {
+        int repairs = 0;
+        for (MeetingState from : replicas) {
+            byte[] report = from.encodeReport();
+            for (MeetingState to : replicas) {
+                for (byte[] batch : to.onReport(from.getNodeId(), report, now)) {
+                    from.applySync(to.getNodeId(), batch);
+                    repairs++;
+                }
+            }
+        }
+        return repairs;
+    }
+
+    @Test
+    public void concurrentEditsConverge() throws Exception {
+        for (long seed = 0; seed < 20; seed++) {
+            MeetingState[] replicas = replicas(3);
+            runRounds(replicas, new Random(seed), 20, 5);
+            assertConverged(replicas);
+        }
+    }
+
+    @Test
+    public void concurrentInsertsAtSamePositionKeepBoth() throws Exception {
+        MeetingState[] replicas = replicas(2);
+        replicas[0].insert(MeetingState.NOTES, 0, "a");
+        replicas[1].insert(MeetingState.NOTES, 0, "b");
+        byte[] fromA = replicas[0].drainDelta().get(0);
+        byte[] fromB = replicas[1].drainDelta().get(0);
+        replicas[0].applyDelta(fromB);
+        replicas[1].applyDelta(fromA);
+        assertEquals(2, replicas[0].values(MeetingState.NOTES).size());
+        assertConverged(replicas);
+    }
+
+    @Test
+    public void supersededEditsAreCoalesced() throws Exception {
+        MeetingState state = new MeetingState(1);
+        for (int i = 0; i < 100; i++) {
+            state.put(MeetingState.AGENDA, "topic", "draft " + i);
+            state.increment("votes", 1);
+        }
+        byte[] batch = state.drainDelta().get(0);
+        MeetingState other = new MeetingState(2);
+        other.applyDelta(batch);
+        assertEquals("draft 99", other.get(MeetingState.AGENDA, "topic"));
+        assertEquals(100, other.counterValue("votes"));
+        assertTrue("batch " + batch.length, batch.length < 64);
+    }
+
+    @Test
+    public void stableTombstonesAreCompacted() throws Exception {
+        MeetingState[] replicas = replicas(3);
+        Random random = new Random(7);
+        long now = 0;
+        for (int hour = 0; hour < 5; hour++) {
+            runRounds(replicas, random, 50, 10);
+            exchangeReports(replicas, now);
+            for (MeetingState replica : replicas) {
+                replica.compact(now);
+            }
+            now += 1000;
+        }
+        assertConverged(replicas);
+        for (MeetingState replica : replicas) {
+            int live = replica.entries(MeetingState.AGENDA).size() + replica.entries(MeetingState.ATTENDEES).size()
+                    + replica.values(MeetingState.NOTES).size();
+            // 只剩存活的条目
+            assertEquals(live, replica.retainedSize());
+        }
+    }
+
+    @Test
+    public void lostDeltasAreRepairedFromReports() throws Exception {
+        MeetingState[] replicas = replicas(3);
+        Random random = new Random(5);
+        long now = 0;
+        for (int round = 0; round < 50; round++) {
+            for (int r = 0; r < replicas.length; r++) {
+                for (int i = 0; i < 5; i++) {
+                    randomEdit(replicas[r], random, round * 100 + i);
+                }
+                for (byte[] batch : replicas[r].drainDelta()) {
+                    for (int other = 0; other < replicas.length; other++) {
+                        //转发队列满、去重窗口或依赖缓存丢掉了约五分之一的增量
+                        if (other != r && random.nextInt(5) != 0) {
+                            replicas[other].applyDelta(batch);
+                        }
+                    }
+                }
+            }
+        }
+        int repairs = exchangeReportsWithRepair(replicas, now);
+        assertTrue(repairs > 0);
+        //补齐后版本向量一致，不再补发
+        assertEquals(0, exchangeReportsWithRepair(replicas, now));
+        assertConverged(replicas);
+
+        for (MeetingState replica : replicas) {
+            replica.compact(now);
+        }
+        for (MeetingState replica : replicas) {
+            int live = replica.entries(MeetingState.AGENDA).size() + replica.entries(MeetingState.ATTENDEES).size()
+                    + replica.values(MeetingState.NOTES).size();
+            assertEquals(live, replica.retainedSize());
+        }
+    }
+
+    @Test
+    public void departedOriginIsRepairedByOneReplica() throws Exception {
+        MeetingState[] replicas = replicas(4);
+        replicas[3].put(MeetingState.AGENDA, "topic", "from a replica that left");
+        byte[] batch = replicas[3].drainDelta().get(0);
+        replicas[0].applyDelta(batch);
+        replicas[1].applyDelta(batch);
+        MeetingState[] remaining = {replicas[0], replicas[1], replicas[2]};
+        exchangeReports(remaining, 0);
+
+        byte[] report = replicas[2].encodeReport();
+        assertEquals(1, replicas[0].onReport(replicas[2].getNodeId(), report, 0).size());
+        assertTrue(replicas[1].onReport(replicas[2].getNodeId(), report, 0).isEmpty());
+    }
+
+    @Test
+    public void replicaBehindTheLogFloorIsRepairedWithASnapshot() throws Exception {
+        MeetingState[] replicas = replicas(2);
+        Random random = new Random(9);
+        runRounds(replicas, random, 20, 10);
+        exchangeReports(replicas, 0);
+        replicas[0].compact(0);
+
+        //之后的增量全部丢失，其中最早的已被挤出日志
+        MeetingState lagging = replicas[1];
+        for (int i = 0; i < MeetingState.LOG_LIMIT + 10; i++) {
+            replicas[0].put(MeetingState.AGENDA, "item" + i, "v" + i);
+            replicas[0].drainDelta();
+        }
+        List<byte[]> repair = replicas[0].onReport(lagging.getNodeId(), lagging.encodeReport(), 0);
+        for (byte[] batch : repair) {
+            lagging.applySync(replicas[0].getNodeId(), batch);
+        }
+        assertConverged(replicas);
+        assertEquals("v0", lagging.get(MeetingState.AGENDA, "item0"));
+    }
+
+    @Test
+    public void laggingReplicaResyncsFromSnapshot() throws Exception {
+        MeetingState[] replicas = replicas(2);
+        Random random = new Random(3);
+        runRounds(replicas, random, 20, 10);
+        exchangeReports(replicas, 0);
+        replicas[0].compact(0);
+        replicas[1].compact(0);
+
+        //新加入的副本已有本地修改
+        MeetingState joiner = new MeetingState(9);
+        joiner.insert(MeetingState.NOTES, 0, "offline note");
+        joiner.put(MeetingState.ATTENDEES, "user9", "joined");
+        joiner.drainDelta();
+        joiner.put(MeetingState.ATTENDEES, "user9", "late");
+
+        byte[] joinerRequest = joiner.encodeReport();
+        byte[] hubRequest = replicas[0].encodeReport();
+        List<byte[]> toJoiner = replicas[0].syncResponse(joiner.getNodeId(), joinerRequest, 0);
+        List<byte[]> toHub = joiner.syncResponse(replicas[0].getNodeId(), hubRequest, 0);
+        for (byte[] batch : toJoiner) {
+            joiner.applySync(replicas[0].getNodeId(), batch);
+        }
+        for (byte[] batch : toHub) {
+            replicas[0].applySync(joiner.getNodeId(), batch);
+        }
+        //重置后补发的本地修改
+        for (byte[] batch : joiner.drainDelta()) {
+            replicas[0].applyDelta(batch);
+            replicas[1].applyDelta(batch);
+        }
+        assertConverged(new MeetingState[]{replicas[0], replicas[1], joiner});
+        assertEquals("late", joiner.get(MeetingState.ATTENDEES, "user9"));
+        assertTrue(joiner.values(MeetingState.NOTES).contains("offline note"));
+    }
+
+    @Test
+    public void mergeThroughputAndDeltaSize() throws Exception {
+        Random random = new Random(11);
+        MeetingState writer = new MeetingState(1);
+        List<byte[]> batches = new ArrayList<>();
+        int edits = 0;
+        long bytes = 0;
+        for (int i = 0; i < 2000; i++) {
+            for (int j = 0; j < 10; j++) {
+                randomEdit(writer, random, i * 10 + j);
+                edits++;
+            }
+            for (byte[] batch : writer.drainDelta()) {
+                batches.add(batch);
+                bytes += batch.length;
+            }
+        }
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 5; run++) {
+            MeetingState reader = new MeetingState(2);
+            long start = System.nanoTime();
+            for (byte[] batch : batches) {
+                reader.applyDelta(batch);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+            assertEquals(writer.values(MeetingState.NOTES), reader.values(MeetingState.NOTES));
+        }
+        //每次修改约18字节，同一批的修改合在一起发送
+        assertTrue(bytes + " bytes for " + edits + " edits", bytes < edits * 20L);
+        assertTrue(batches.size() <= 2000);
+        //合并速度远高于会议中的修改频率，每秒至少五万次
+        double perSecond = edits * 1e9 / best;
+        assertTrue(String.format("merge %d edits in %.1f ms", edits, best / 1e6), perSecond > 50000);
+    }
+}
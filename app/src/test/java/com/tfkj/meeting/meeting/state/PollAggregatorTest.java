@@ -0,0 +1,472 @@
+package com.tfkj.meeting.meeting.state;
+
+import com.tfkj.meeting.meeting.MeshSimulator;
+import com.tfkj.meeting.meeting.service.Frame;
+import com.tfkj.meeting.meeting.service.Link;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * 模拟组网中的投票：统计各类帧在链路上的发送次数，与每人的选择都全网广播相比较，并核对结果确定
+ */
+public class PollAggregatorTest {
+
+    private static final byte OPEN = Frame.TYPE_POLL_OPEN;
+    private static final byte PARTIAL = Frame.TYPE_POLL_PARTIAL;
+    private static final byte RESULT = Frame.TYPE_POLL_RESULT;
+    private static final byte ORPHAN = Frame.TYPE_POLL_ORPHAN;
+
+    private static final List<String> OPTIONS = Arrays.asList("赞成", "反对", "弃权");
+    private static final long DURATION_MS = 10000;
+
+    /**
+     * 模拟的网络：随机树加上少量额外连接形成环，每跳有延迟。全网帧与MeshRouter一样按首次收到去重转发
+     */
+    private static class Simulation extends MeshSimulator {
+        final int maxHopMs;
+        final List<Node> nodes = new ArrayList<>();
+        int edges;
+        // 链路上每种帧的发送次数
+        final Map<Byte, Integer> sent = new LinkedHashMap<>();
+
+        Simulation(int size, long seed, int maxHopMs) {
+            super(seed);
+            this.maxHopMs = maxHopMs;
+            for (int i = 0; i < size; i++) {
+                nodes.add(new Node(1000 + i * 7919L, seed));
+            }
+            for (int[] edge : randomMesh(size, 6, 7, size / 5)) {
+                connect(nodes.get(edge[0]), nodes.get(edge[1]));
+            }
+        }
+
+        void connect(Node a, Node b) {
+            a.links.put(b, new SimLink(a, b));
+            b.links.put(a, new SimLink(b, a));
+            edges++;
+        }
+
+        /**
+         * 链路断开，两端都收到通知，途中的帧丢失
+         */
+        void cut(Node a, Node b) {
+            a.aggregator.onLinkDown(a.links.remove(b));
+            b.aggregator.onLinkDown(b.links.remove(a));
+        }
+
+        boolean connected() {
+            Set<Node> reached = new HashSet<>();
+            List<Node> queue = new ArrayList<>();
+            queue.add(nodes.get(0));
+            reached.add(nodes.get(0));
+            for (int i = 0; i < queue.size(); i++) {
+                for (Node peer : queue.get(i).links.keySet()) {
+                    if (reached.add(peer)) {
+                        queue.add(peer);
+                    }
+                }
+            }
+            return reached.size() == nodes.size();
+        }
+
+        class SimLink implements Link {
+            final Node owner;
+            final Node peer;
+
+            SimLink(Node owner, Node peer) {
+                this.owner = owner;
+                this.peer = peer;
+            }
+
+            @Override
+            public String getAddress() {
+                return "sim-" + peer.id;
+            }
+
+            @Override
+            public void send(Frame frame) {
+                throw new UnsupportedOperationException();
+            }
+        }
+
+        class Node implements PollAggregator.Transport, PollAggregator.Listener {
+            final long id;
+            final Map<Node, SimLink> links = new LinkedHashMap<>();
+            final Set<Object> seen = new HashSet<>();
+            final PollAggregator aggregator;
+            // 每个人的选择与延迟使用不同的随机数，改变延迟不影响选择
+            final Random ballot;
+            int choice = -1;
+            // 第一次收到发起帧的邻居
+            Node parent;
+            int[] result;
+            int resultVoters;
+
+            Node(long id, long seed) {
+                this.id = id;
+                ballot = new Random(seed * 31 + id);
+                aggregator = new PollAggregator(id, this, OPEN, PARTIAL, RESULT, ORPHAN);
+                aggregator.setListener(this);
+            }
+
+            @Override
+            public void send(Link link, byte type, byte[] payload) {
+                transmit(this, ((SimLink) link).peer, type, payload);
+            }
+
+            @Override
+            public void sendToNeighbors(Link except, byte type, byte[] payload) {
+                for (Node peer : links.keySet()) {
+                    if (except == null || ((SimLink) except).peer != peer) {
+                        transmit(this, peer, type, payload);
+                    }
+                }
+            }
+
+            @Override
+            public void broadcast(byte type, byte[] payload) {
+                flood(this, type, payload);
+            }
+
+            @Override
+            public void schedule(long delayMs, Runnable task) {
+                Simulation.this.schedule(delayMs, task);
+            }
+
+            @Override
+            public void onPollOpened(final long poll, String question, List<String> options) {
+                //一成的人不投票，其余的在开始后3秒内随机选择
+                if (ballot.nextInt(10) == 0) {
+                    return;
+                }
+                final int option = ballot.nextInt(options.size());
+                Simulation.this.schedule(ballot.nextInt(3000), new Runnable() {
+                    @Override
+                    public void run() {
+                        assertTrue(aggregator.vote(poll, option));
+                        choice = option;
+                    }
+                });
+            }
+
+            @Override
+            public void onPollResult(long poll, int voters, int[] tally) {
+                assertNull("result delivered twice", result);
+                result = tally;
+                resultVoters = voters;
+            }
+
+            void receive(Node from, byte type, byte[] payload) {
+                SimLink link = links.get(from);
+                try {
+                    switch (type) {
+                        case OPEN:
+                            if (link != null) {
+                                if (parent == null) {
+                                    parent = from;
+                                }
+                                aggregator.onOpen(link, payload);
+                            }
+                            break;
+                        case PARTIAL:
+                            if (link != null) {
+                                aggregator.onPartial(link, payload);
+                            }
+                            break;
+                        case RESULT:
+                            aggregator.onResult(payload);
+                            break;
+                        case ORPHAN:
+                            aggregator.onOrphan(payload);
+                            break;
+                        default:
+                            break;
+                    }
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        }
+
+        void transmit(final Node from, final Node to, final byte type, final byte[] payload) {
+            Integer count = sent.get(type);
+            sent.put(type, count == null ? 1 : count + 1);
+            schedule(hop(15, maxHopMs + 1), new Runnable() {
+                @Override
+                public void run() {
+                    to.receive(from, type, payload);
+                }
+            });
+        }
+
+        /**
+         * 全网帧：每个节点第一次收到时转发给其他邻居，重复的丢弃
+         */
+        void flood(Node source, byte type, byte[] payload) {
+            Object key = new Object();
+            source.seen.add(key);
+            relay(source, null, key, type, payload);
+        }
+
+        private void relay(final Node node, Node from, final Object key, final byte type, final byte[] payload) {
+            for (final Node peer : node.links.keySet()) {
+                if (peer == from) {
+                    continue;
+                }
+                Integer count = sent.get(type);
+                sent.put(type, count == null ? 1 : count + 1);
+                schedule(hop(15, maxHopMs + 1), new Runnable() {
+                    @Override
+                    public void run() {
+                        if (peer.seen.add(key)) {
+                            relay(peer, node, key, type, payload);
+                            peer.receive(node, type, payload);
+                        }
+                    }
+                });
+            }
+        }
+
+        int sent(byte type) {
+            Integer count = sent.get(type);
+            return count == null ? 0 : count;
+        }
+
+        int total() {
+            int total = 0;
+            for (int count : sent.values()) {
+                total += count;
+            }
+            return total;
+        }
+
+        int[] expected() {
+            int[] tally = new int[OPTIONS.size()];
+            for (Node node : nodes) {
+                if (node.choice >= 0) {
+                    tally[node.choice]++;
+                }
+            }
+            return tally;
+        }
+
+        int voters() {
+            int voters = 0;
+            for (Node node : nodes) {
+                if (node.choice >= 0) {
+                    voters++;
+                }
+            }
+            return voters;
+        }
+
+        /**
+         * 对比：每人的选择都全网广播时链路上的发送次数
+         */
+        int naive() {
+            int before = total();
+            for (Node node : nodes) {
+                if (node.choice >= 0) {
+                    flood(node, Frame.TYPE_DATA, new byte[1]);
+                }
+            }
+            runAll();
+            return total() - before;
+        }
+    }
+
+    private static Simulation poll(int size, long seed, int maxHopMs) {
+        Simulation sim = new Simulation(size, seed, maxHopMs);
+        sim.nodes.get(sim.random.nextInt(size)).aggregator.open("是否通过", OPTIONS, DURATION_MS);
+        sim.runAll();
+        return sim;
+    }
+
+    private static void assertEveryoneHasTheTrueResult(Simulation sim) {
+        int[] expected = sim.expected();
+        for (Simulation.Node node : sim.nodes) {
+            assertArrayEquals("node " + node.id, expected, node.result);
+            assertEquals(sim.voters(), node.resultVoters);
+        }
+    }
+
+    @Test
+    public void fortyAttendeesUseLinearMessages() {
+        Simulation sim = poll(40, 1, 40);
+        assertEveryoneHasTheTrueResult(sim);
+        int aggregated = sim.total();
+        int naive = sim.naive();
+        //树上每个非根节点恰好上报一次
+        assertEquals(39, sim.sent(PARTIAL));
+        //扩散和结果每条链路最多两个方向各一次
+        assertTrue(sim.sent(OPEN) <= 2 * sim.edges);
+        assertTrue(sim.sent(RESULT) <= 2 * sim.edges);
+        assertTrue(naive > 8 * aggregated);
+    }
+
+    @Test
+    public void framesPerAttendeeStayConstantAsTheRoomGrows() {
+        for (int size : new int[]{10, 20, 40, 80, 160}) {
+            Simulation sim = poll(size, size, 40);
+            assertEveryoneHasTheTrueResult(sim);
+            int aggregated = sim.total();
+            int naive = sim.naive();
+            assertTrue(aggregated < 6 * size);
+            assertTrue(naive > (size - 1) * sim.voters() / 2);
+        }
+    }
+
+    @Test
+    public void resultIsDeterministicUnderDifferentDelays() {
+        //同样的拓扑和选择，只改变每跳的延迟分布
+        int[] first = null;
+        for (int maxHopMs : new int[]{20, 60, 120, 200}) {
+            Simulation sim = poll(40, 7, maxHopMs);
+            assertEveryoneHasTheTrueResult(sim);
+            assertEquals(0, sim.nodes.get(0).aggregator.getLatePartials());
+            if (first == null) {
+                first = sim.expected();
+            }
+            assertArrayEquals(first, sim.nodes.get(0).result);
+        }
+    }
+
+    @Test
+    public void subtreeBehindALostParentLinkIsStillCounted() {
+        final Simulation sim = new Simulation(40, 11, 40);
+        final Simulation.Node root = sim.nodes.get(0);
+        root.aggregator.open("是否通过", OPTIONS, DURATION_MS);
+        //选择结束后、上报开始前，断开一条树上的链路，网络仍然连通
+        sim.schedule(3500, new Runnable() {
+            @Override
+            public void run() {
+                for (Simulation.Node node : sim.nodes) {
+                    if (node == root || node.parent == null) {
+                        continue;
+                    }
+                    Simulation.Node parent = node.parent;
+                    sim.cut(node, parent);
+                    if (sim.connected()) {
+                        return;
+                    }
+                    sim.connect(node, parent);
+                }
+                fail("no tree link can be cut");
+            }
+        });
+        sim.runAll();
+        assertTrue(sim.sent(ORPHAN) > 0);
+        assertEveryoneHasTheTrueResult(sim);
+    }
+
+    @Test
+    public void restartedNodeDoesNotReusePollIds() {
+        PollAggregator.Transport idle = new PollAggregator.Transport() {
+            @Override
+            public void send(Link link, byte type, byte[] payload) {
+            }
+
+            @Override
+            public void sendToNeighbors(Link except, byte type, byte[] payload) {
+            }
+
+            @Override
+            public void broadcast(byte type, byte[] payload) {
+            }
+
+            @Override
+            public void schedule(long delayMs, Runnable task) {
+            }
+        };
+        Set<Long> ids = new HashSet<>();
+        for (int launch = 0; launch < 3; launch++) {
+            PollAggregator aggregator = new PollAggregator(1, idle, OPEN, PARTIAL, RESULT, ORPHAN);
+            for (int i = 0; i < 3; i++) {
+                assertTrue(ids.add(aggregator.open("q", OPTIONS, DURATION_MS)));
+            }
+        }
+    }
+
+    @Test
+    public void lateSubtreeIsForwardedToTheParent() throws IOException {
+        final List<byte[]> sent = new ArrayList<>();
+        final List<Runnable> tasks = new ArrayList<>();
+        PollAggregator.Transport transport = new PollAggregator.Transport() {
+            @Override
+            public void send(Link link, byte type, byte[] payload) {
+                assertEquals(PARTIAL, type);
+                sent.add(payload);
+            }
+
+            @Override
+            public void sendToNeighbors(Link except, byte type, byte[] payload) {
+            }
+
+            @Override
+            public void broadcast(byte type, byte[] payload) {
+            }
+
+            @Override
+            public void schedule(long delayMs, Runnable task) {
+                tasks.add(task);
+            }
+        };
+        final byte[][] open = new byte[1][];
+        PollAggregator opener = new PollAggregator(1, new PollAggregator.Transport() {
+            @Override
+            public void send(Link link, byte type, byte[] payload) {
+            }
+
+            @Override
+            public void sendToNeighbors(Link except, byte type, byte[] payload) {
+                open[0] = payload;
+            }
+
+            @Override
+            public void broadcast(byte type, byte[] payload) {
+            }
+
+            @Override
+            public void schedule(long delayMs, Runnable task) {
+            }
+        }, OPEN, PARTIAL, RESULT, ORPHAN);
+        long poll = opener.open("q", OPTIONS, DURATION_MS);
+
+        Link parent = new Link() {
+            @Override
+            public String getAddress() {
+                return "parent";
+            }
+
+            @Override
+            public void send(Frame frame) {
+            }
+        };
+        PollAggregator node = new PollAggregator(2, transport, OPEN, PARTIAL, RESULT, ORPHAN);
+        node.onOpen(parent, open[0]);
+        assertTrue(node.vote(poll, 1));
+        //上报
+        tasks.get(0).run();
+        assertFalse(node.vote(poll, 2));
+        assertEquals(1, sent.size());
+
+        byte[] late = new byte[sent.get(0).length];
+        System.arraycopy(sent.get(0), 0, late, 0, late.length);
+        node.onPartial(parent, late);
+        assertEquals(2, sent.size());
+        assertEquals(1, node.getLatePartials());
+        assertNull(node.getResult(poll));
+    }
+}
@@ -0,0 +1,399 @@
+package com.tfkj.meeting.meeting.state;
+
+import com.tfkj.meeting.meeting.MeshSimulator;
+import com.tfkj.meeting.meeting.service.Frame;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * 参会名单的编码、权威节点的增量，以及50个参会者的模拟组网：收敛时间和名单占用的流量
+ */
+public class RosterTest {
+
+    private static final byte HELLO = Frame.TYPE_PRESENCE_HELLO;
+    private static final byte UPDATE = Frame.TYPE_PRESENCE_UPDATE;
+    private static final byte SYNC = Frame.TYPE_PRESENCE_SYNC;
+    private static final byte SNAPSHOT = Frame.TYPE_PRESENCE_SNAPSHOT;
+
+    /**
+     * 模拟的网络：树状拓扑，全网帧沿树扩散，每跳有延迟。与PresenceService的处理逻辑一致
+     */
+    private static class Simulation extends MeshSimulator {
+        static final long TICK_MS = 200;
+        static final long SYNC_INTERVAL_MS = 1000;
+
+        final Map<Long, Node> nodes = new HashMap<>();
+        long helloBytes;
+        long rosterBytes;
+        //丢弃发往该节点的名单更新和全量名单，模拟跟不上的节点
+        Node deaf;
+
+        Simulation(long seed) {
+            super(seed);
+        }
+
+        class Node {
+            final Roster roster;
+            final Set<Node> neighbors = new HashSet<>();
+            boolean alive = true;
+            long lastSync = -SYNC_INTERVAL_MS;
+
+            Node(long id) {
+                roster = new Roster(id);
+            }
+
+            long id() {
+                return roster.getNodeId();
+            }
+
+            void tick() {
+                if (!alive) {
+                    return;
+                }
+                if (roster.helloDue(now())) {
+                    flood(this, HELLO, roster.encodeHello(now(), false));
+                }
+                byte[] update = roster.tick(now());
+                if (update != null) {
+                    flood(this, UPDATE, update);
+                }
+                schedule(TICK_MS, new Runnable() {
+                    @Override
+                    public void run() {
+                        tick();
+                    }
+                });
+            }
+
+            void receive(byte type, long origin, byte[] payload, Node from) throws IOException {
+                if (!alive) {
+                    return;
+                }
+                switch (type) {
+                    case HELLO:
+                        if (roster.onHello(origin, payload, now())) {
+                            requestSync(from);
+                        }
+                        break;
+                    case UPDATE:
+                    case SNAPSHOT:
+                        if (this == deaf) {
+                            break;
+                        }
+                        if (roster.applyUpdate(payload) == Roster.GAP) {
+                            requestSync(from);
+                        }
+                        break;
+                    case SYNC:
+                        byte[] full = roster.syncResponse(payload);
+                        if (full != null) {
+                            send(this, from, SNAPSHOT, full);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+
+            void requestSync(Node neighbor) {
+                if (now() - lastSync < SYNC_INTERVAL_MS) {
+                    return;
+                }
+                lastSync = now();
+                send(this, neighbor, SYNC, roster.encodeSyncRequest());
+            }
+        }
+
+        void count(byte type, int payloadLength) {
+            if (type == HELLO) {
+                helloBytes += Frame.HEADER_LENGTH + payloadLength;
+            } else {
+                rosterBytes += Frame.HEADER_LENGTH + payloadLength;
+            }
+        }
+
+        /**
+         * 沿树扩散，每条边传输一次
+         */
+        void flood(final Node source, final byte type, final byte[] payload) {
+            ArrayDeque<Node> queue = new ArrayDeque<>();
+            final Map<Node, Long> arrival = new HashMap<>();
+            final Map<Node, Node> parent = new HashMap<>();
+            arrival.put(source, 0L);
+            queue.add(source);
+            while (!queue.isEmpty()) {
+                Node node = queue.poll();
+                for (Node next : node.neighbors) {
+                    if (!arrival.containsKey(next) && next.alive) {
+                        arrival.put(next, arrival.get(node) + hop(15, 25));
+                        parent.put(next, node);
+                        count(type, payload.length);
+                        queue.add(next);
+                    }
+                }
+            }
+            for (final Map.Entry<Node, Node> entry : parent.entrySet()) {
+                schedule(arrival.get(entry.getKey()), new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver(entry.getKey(), type, source.id(), payload, entry.getValue());
+                    }
+                });
+            }
+        }
+
+        void send(final Node from, final Node to, final byte type, final byte[] payload) {
+            count(type, payload.length);
+            schedule(hop(15, 25), new Runnable() {
+                @Override
+                public void run() {
+                    deliver(to, type, from.id(), payload, from);
+                }
+            });
+        }
+
+        void deliver(Node to, byte type, long origin, byte[] payload, Node from) {
+            try {
+                to.receive(type, origin, payload, from);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        /**
+         * 新节点连接到一个已在会议中的节点，双方交换同步请求
+         */
+        Node join(long id, Node parentNode) {
+            final Node node = new Node(id);
+            nodes.put(id, node);
+            if (parentNode != null) {
+                node.neighbors.add(parentNode);
+                parentNode.neighbors.add(node);
+                send(node, parentNode, SYNC, node.roster.encodeSyncRequest());
+                send(parentNode, node, SYNC, parentNode.roster.encodeSyncRequest());
+            }
+            node.tick();
+            return node;
+        }
+
+        void leave(Node node) {
+            flood(node, HELLO, node.roster.encodeHello(now(), true));
+            node.alive = false;
+            for (Node neighbor : node.neighbors) {
+                neighbor.neighbors.remove(node);
+            }
+            node.neighbors.clear();
+        }
+
+        List<Node> alive() {
+            List<Node> result = new ArrayList<>();
+            for (Node node : nodes.values()) {
+                if (node.alive) {
+                    result.add(node);
+                }
+            }
+            return result;
+        }
+
+        boolean converged() {
+            Set<Long> truth = new HashSet<>();
+            for (Node node : alive()) {
+                truth.add(node.id());
+            }
+            for (Node node : alive()) {
+                if (!new HashSet<>(node.roster.getPresent()).equals(truth)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return 从当前时间到所有节点名单一致的时间，超过limit仍未一致时为-1
+         */
+        long timeToConverge(long limit) {
+            long start = now();
+            while (now() - start <= limit) {
+                if (converged()) {
+                    return now() - start;
+                }
+                runUntil(now() + 50);
+            }
+            return -1;
+        }
+
+        Node pickParent() {
+            List<Node> candidates = new ArrayList<>();
+            for (Node node : alive()) {
+                if (node.neighbors.size() < 7) {
+                    candidates.add(node);
+                }
+            }
+            return candidates.get(random.nextInt(candidates.size()));
+        }
+    }
+
+    @Test
+    public void authorityDiffsAreIncrementalAndCompact() throws Exception {
+        Roster authority = new Roster(1);
+        Roster follower = new Roster(2);
+        long now = 0;
+        authority.encodeHello(now, false);
+        follower.onHello(1, authority.encodeHello(now, false), now);
+        authority.onHello(2, follower.encodeHello(now, false), now);
+        assertNull(authority.tick(now));
+        byte[] full = authority.tick(now + Roster.TAKEOVER_DELAY_MS);
+        assertNotNull(full);
+        assertEquals(Roster.APPLIED, follower.applyUpdate(full));
+        assertEquals(2, follower.size());
+        assertEquals(authority.indexOf(2), follower.indexOf(2));
+
+        //一个新节点加入：编号、位和节点ID
+        authority.onHello(3, new Roster(3).encodeHello(now, false), now);
+        byte[] join = authority.tick(now + Roster.TAKEOVER_DELAY_MS + 200);
+        assertEquals(Roster.APPLIED, follower.applyUpdate(join));
+        assertTrue(follower.isPresent(3));
+        assertTrue("join diff " + join.length, join.length <= 24);
+
+        //已有编号的节点离开只需编号和一位
+        authority.onHello(3, new Roster(3).encodeHello(now, true), now);
+        byte[] leave = authority.tick(now + Roster.TAKEOVER_DELAY_MS + 400);
+        assertTrue("leave diff " + leave.length, leave.length <= 16);
+        assertEquals(Roster.APPLIED, follower.applyUpdate(leave));
+        assertFalse(follower.isPresent(3));
+        assertEquals(Roster.STALE, follower.applyUpdate(leave));
+        assertEquals(authority.getVersion(), follower.getVersion());
+
+        //重新加入使用原来的编号
+        int index = authority.indexOf(3);
+        authority.onHello(3, new Roster(3).encodeHello(now, false), now);
+        byte[] rejoin = authority.tick(now + Roster.TAKEOVER_DELAY_MS + 600);
+        assertEquals(index, authority.indexOf(3));
+        assertTrue(rejoin.length < join.length);
+    }
+
+    @Test
+    public void missedDiffIsRepairedFromFullSnapshot() throws Exception {
+        Roster authority = new Roster(1);
+        Roster follower = new Roster(2);
+        Roster neighbor = new Roster(4);
+        authority.encodeHello(0, false);
+        assertNull(authority.tick(0));
+        byte[] full = authority.tick(Roster.TAKEOVER_DELAY_MS);
+        follower.applyUpdate(full);
+        neighbor.applyUpdate(full);
+
+        authority.onHello(3, new Roster(3).encodeHello(0, false), Roster.TAKEOVER_DELAY_MS);
+        byte[] missed = authority.tick(Roster.TAKEOVER_DELAY_MS + 200);
+        neighbor.applyUpdate(missed);
+        authority.onHello(5, new Roster(5).encodeHello(0, false), Roster.TAKEOVER_DELAY_MS);
+        byte[] next = authority.tick(Roster.TAKEOVER_DELAY_MS + 400);
+        neighbor.applyUpdate(next);
+
+        assertEquals(Roster.GAP, follower.applyUpdate(next));
+        assertNull(follower.syncResponse(neighbor.encodeSyncRequest()));
+        byte[] snapshot = neighbor.syncResponse(follower.encodeSyncRequest());
+        assertEquals(Roster.APPLIED, follower.applyUpdate(snapshot));
+        assertEquals(authority.getPresent(), follower.getPresent());
+        assertEquals(authority.getVersion(), follower.getVersion());
+    }
+
+    @Test
+    public void fiftyAttendeesConvergeWithLittleTraffic() {
+        Simulation sim = new Simulation(50);
+        Random ids = new Random(7);
+        Simulation.Node first = sim.join(ids.nextLong(), null);
+        //每200ms加入一人
+        for (int i = 1; i < 50; i++) {
+            sim.runUntil(sim.now() + 200);
+            sim.join(ids.nextLong(), sim.pickParent());
+        }
+        long joinConvergence = sim.timeToConverge(60000);
+        long joinRosterBytes = sim.rosterBytes;
+        assertTrue("join did not converge", joinConvergence >= 0);
+        //最后加入的节点在权威节点的下一次增量后进入所有名单，不超过两个问候周期
+        assertTrue("join converged in " + joinConvergence, joinConvergence < 2 * Roster.HELLO_INTERVAL_MS);
+
+        //其中10人离开（选择没有下游的节点，保持网络连通）
+        sim.runUntil(sim.now() + 5000);
+        long before = sim.rosterBytes;
+        int left = 0;
+        for (Simulation.Node node : sim.alive()) {
+            if (left < 10 && node.neighbors.size() == 1 && node != first) {
+                sim.leave(node);
+                left++;
+            }
+        }
+        long leaveConvergence = sim.timeToConverge(60000);
+        long leaveRosterBytes = sim.rosterBytes - before;
+        assertTrue("leave did not converge", leaveConvergence >= 0);
+        //离开的问候全网扩散，不等问候超时
+        assertTrue("leave converged in " + leaveConvergence, leaveConvergence < Roster.HELLO_INTERVAL_MS / 10);
+        assertEquals(40, sim.alive().get(0).roster.size());
+
+        //对比：每次加入离开都全网广播完整名单（每人8字节）
+        long naiveJoins = 0;
+        for (int n = 1; n <= 50; n++) {
+            naiveJoins += (long) (Frame.HEADER_LENGTH + 8 * n) * (n - 1);
+        }
+        long naiveLeaves = 0;
+        for (int n = 49; n >= 40; n--) {
+            naiveLeaves += (long) (Frame.HEADER_LENGTH + 8 * n) * (n - 1);
+        }
+        assertTrue(joinRosterBytes * 10 < naiveJoins);
+        assertTrue(leaveRosterBytes * 5 < naiveLeaves);
+    }
+
+    @Test
+    public void laggingNodeCatchesUpAndAuthorityHandsOver() {
+        Simulation sim = new Simulation(11);
+        List<Simulation.Node> members = new ArrayList<>();
+        members.add(sim.join(100, null));
+        for (int i = 1; i < 20; i++) {
+            sim.runUntil(sim.now() + 100);
+            members.add(sim.join(100 + i, sim.pickParent()));
+        }
+        assertTrue(sim.timeToConverge(60000) >= 0);
+
+        //一个节点收不到名单更新，其他节点继续加入
+        Simulation.Node lagging = members.get(19);
+        sim.deaf = lagging;
+        for (int i = 20; i < 25; i++) {
+            sim.runUntil(sim.now() + 100);
+            sim.join(100 + i, sim.pickParent());
+        }
+        sim.runUntil(sim.now() + 2000);
+        assertFalse(sim.converged());
+        sim.deaf = null;
+        //下一次问候暴露版本差距，向邻居请求全量
+        assertTrue(sim.timeToConverge(2 * Roster.HELLO_INTERVAL_MS) >= 0);
+
+        //权威节点（ID最小）离开，下一个节点接管
+        Simulation.Node authority = members.get(0);
+        assertEquals(100, lagging.roster.getAuthority());
+        List<Simulation.Node> children = new ArrayList<>(authority.neighbors);
+        sim.leave(authority);
+        //重新连接被分开的部分
+        for (int i = 1; i < children.size(); i++) {
+            children.get(0).neighbors.add(children.get(i));
+            children.get(i).neighbors.add(children.get(0));
+        }
+        long handover = sim.timeToConverge(60000);
+        assertTrue(handover >= 0);
+        assertEquals(101, lagging.roster.getAuthority());
+        //离开的问候直接触发接管，不等问候超时
+        assertTrue("handover converged in " + handover, handover < Roster.HELLO_INTERVAL_MS);
+    }
+}
@@ -0,0 +1,210 @@
+package com.tfkj.meeting.meeting.voice;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 用合成的PCM语音经过模拟链路（固定延迟、随机抖动、丢包）测试抖动缓冲，
+ * 统计端到端延迟和丢包补偿次数。发送端和接收端使用同一个模拟时钟。
+ */
+public class JitterBufferTest {
+    private static final int FRAME_MS = VoiceChannel.FRAME_MS;
+    // 16kHz 16位单声道，20ms
+    private static final int SAMPLES = 320;
+
+    private static class Packet {
+        final long arrival;
+        final byte[] payload;
+
+        Packet(long arrival, byte[] payload) {
+            this.arrival = arrival;
+            this.payload = payload;
+        }
+    }
+
+    private static class Report {
+        int sent;
+        int lost;
+        int played;
+        long concealed;
+        long late;
+        long discarded;
+        double meanLatencyMs;
+        long maxLatencyMs;
+        int targetDelayMs;
+        boolean inOrder = true;
+
+        @Override
+        public String toString() {
+            return String.format("sent %d lost %d played %d concealed %d late %d discarded %d "
+                            + "latency mean %.1fms max %dms target %dms",
+                    sent, lost, played, concealed, late, discarded, meanLatencyMs, maxLatencyMs, targetDelayMs);
+        }
+    }
+
+    /**
+     * 合成一帧正弦波PCM，前两个采样写入序号用于核对播放顺序
+     */
+    private static byte[] pcm(int seq) {
+        byte[] frame = new byte[SAMPLES * 2];
+        for (int i = 0; i < SAMPLES; i++) {
+            short sample = (short) (8000 * Math.sin(2 * Math.PI * 440 * (seq * SAMPLES + i) / 16000.0));
+            frame[2 * i] = (byte) sample;
+            frame[2 * i + 1] = (byte) (sample >> 8);
+        }
+        frame[0] = (byte) (seq >> 8);
+        frame[1] = (byte) seq;
+        return frame;
+    }
+
+    /**
+     * @param frames       讲话的帧数，最后一帧带结束标志
+     * @param baseDelayMs  链路的固定延迟
+     * @param jitterMs     附加的随机延迟上限
+     * @param lossRate     丢包率
+     */
+    private static Report simulate(int frames, int baseDelayMs, int jitterMs, double lossRate, long seed) {
+        Random random = new Random(seed);
+        Report report = new Report();
+        List<Packet> packets = new ArrayList<>();
+        for (int seq = 0; seq < frames; seq++) {
+            long captured = 1000 + (long) seq * FRAME_MS;
+            byte[] audio = pcm(seq);
+            byte flags = seq == frames - 1 ? VoiceFrame.FLAG_END : 0;
+            byte[] payload = VoiceFrame.encode(flags, seq, captured, FRAME_MS, audio, 0, audio.length);
+            report.sent++;
+            //结束帧不丢，保证缓冲复位
+            if (seq < frames - 1 && random.nextDouble() < lossRate) {
+                report.lost++;
+                continue;
+            }
+            //偶尔出现较大的延迟尖峰
+            int extra = random.nextInt(jitterMs + 1);
+            if (random.nextInt(50) == 0) {
+                extra += jitterMs;
+            }
+            packets.add(new Packet(captured + baseDelayMs + extra, payload));
+        }
+        Collections.sort(packets, new Comparator<Packet>() {
+            @Override
+            public int compare(Packet a, Packet b) {
+                return Long.compare(a.arrival, b.arrival);
+            }
+        });
+
+        JitterBuffer buffer = new JitterBuffer(FRAME_MS, VoiceChannel.MIN_DELAY_MS, VoiceChannel.MAX_DELAY_MS,
+                VoiceChannel.MAX_FRAME_BYTES);
+        byte[] out = new byte[VoiceChannel.MAX_FRAME_BYTES];
+        int next = 0;
+        int lastPlayedSeq = -1;
+        long end = 1000 + (long) frames * FRAME_MS + baseDelayMs + 3 * jitterMs + VoiceChannel.MAX_DELAY_MS;
+        //播放时钟与采集时钟相位不同
+        for (long now = 1000; now < end; now++) {
+            while (next < packets.size() && packets.get(next).arrival <= now) {
+                byte[] payload = packets.get(next++).payload;
+                buffer.put(VoiceFrame.seq(payload, 0), VoiceFrame.timestamp(payload, 0), now,
+                        (VoiceFrame.flags(payload, 0) & VoiceFrame.FLAG_END) != 0,
+                        payload, VoiceFrame.HEADER_LENGTH, payload.length - VoiceFrame.HEADER_LENGTH);
+            }
+            if (now % FRAME_MS == 7) {
+                int length = buffer.poll(now, out);
+                if (length != JitterBuffer.MISSING) {
+                    assertEquals(SAMPLES * 2, length);
+                    int seq = ((out[0] & 0xFF) << 8) | (out[1] & 0xFF);
+                    if (seq <= lastPlayedSeq) {
+                        report.inOrder = false;
+                    }
+                    lastPlayedSeq = seq;
+                    byte[] expected = pcm(seq);
+                    for (int i = 2; i < expected.length; i++) {
+                        assertEquals(expected[i], out[i]);
+                    }
+                }
+            }
+            if (now == 1000 + (long) frames * FRAME_MS / 2) {
+                report.targetDelayMs = buffer.getTargetDelayMs();
+            }
+        }
+        assertFalse("buffer should reset after the end frame", buffer.isPlaying());
+        report.played = (int) buffer.getPlayed();
+        report.concealed = buffer.getConcealed();
+        report.late = buffer.getLate();
+        report.discarded = buffer.getDiscarded();
+        report.meanLatencyMs = buffer.getMeanLatencyMs();
+        report.maxLatencyMs = buffer.getMaxLatencyMs();
+        return report;
+    }
+
+    @Test
+    public void steadyLinkPlaysEverythingWithMinimalDelay() {
+        Report report = simulate(500, 30, 2, 0, 1);
+        assertTrue(report.inOrder);
+        assertEquals(500, report.played);
+        assertEquals(0, report.concealed);
+        assertEquals(VoiceChannel.MIN_DELAY_MS, report.targetDelayMs);
+        //链路延迟30ms + 最小缓冲 + 播放相位
+        assertTrue(report.toString(), report.meanLatencyMs < 30 + VoiceChannel.MIN_DELAY_MS + 2 * FRAME_MS);
+    }
+
+    @Test
+    public void lossIsConcealedAndPlaybackStaysInOrder() {
+        Report report = simulate(1000, 30, 10, 0.05, 2);
+        assertTrue(report.inOrder);
+        assertTrue(report.lost > 20);
+        assertTrue(report.concealed >= report.lost - report.discarded);
+        //除了丢包，几乎没有因抖动产生的补偿
+        assertTrue(report.toString(), report.concealed - report.lost < report.sent / 50);
+        assertEquals(report.sent - report.lost - report.late - report.discarded, report.played);
+    }
+
+    @Test
+    public void delayGrowsWithJitterToKeepPlaybackSmooth() {
+        Report steady = simulate(1000, 30, 5, 0, 3);
+        Report jittery = simulate(1000, 30, 80, 0, 3);
+        assertTrue(jittery.inOrder);
+        assertTrue(jittery.targetDelayMs > steady.targetDelayMs + 2 * FRAME_MS);
+        assertTrue(jittery.meanLatencyMs > steady.meanLatencyMs);
+        //自适应后，迟到和补偿只占很小一部分
+        assertTrue(jittery.toString(), jittery.concealed + jittery.late < jittery.sent / 10);
+        assertTrue(jittery.maxLatencyMs <= 30 + 160 + VoiceChannel.MAX_DELAY_MS);
+    }
+
+    @Test
+    public void nothingIsPlayedBeforeTheFirstFrame() {
+        JitterBuffer buffer = new JitterBuffer(FRAME_MS, 40, 400, 64);
+        byte[] out = new byte[64];
+        assertEquals(JitterBuffer.MISSING, buffer.poll(0, out));
+        assertEquals(0, buffer.getConcealed());
+        assertFalse(buffer.put(0, 0, 0, false, new byte[65], 0, 65));
+    }
+
+    @Test
+    public void consecutiveTalkSpurtsResetBetween() {
+        JitterBuffer buffer = new JitterBuffer(FRAME_MS, 40, 400, 64);
+        byte[] out = new byte[64];
+        long now = 0;
+        int seq = 0;
+        for (int spurt = 0; spurt < 3; spurt++) {
+            for (int i = 0; i < 10; i++, seq++) {
+                buffer.put(seq, now, now + 30, i == 9, new byte[]{(byte) seq}, 0, 1);
+                now += FRAME_MS;
+                buffer.poll(now + 30, out);
+            }
+            //停顿期间不应计为补偿
+            for (int i = 0; i < 100; i++) {
+                now += FRAME_MS;
+                buffer.poll(now + 30, out);
+            }
+            assertFalse(buffer.isPlaying());
+        }
+        assertEquals(30, buffer.getPlayed());
+        assertEquals(0, buffer.getConcealed());
+    }
+}